@@ -23,38 +23,79 @@
 
 package org.osiam.auth.configuration;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 import org.osiam.auth.exception.LdapConfigurationException;
+import org.osiam.auth.login.AsyncResourceServerConnector;
+import org.osiam.auth.login.ResourceServerConnector;
+import org.osiam.auth.login.ldap.FailoverLdapContextSource;
+import org.osiam.auth.login.ldap.LdapProvisioningJob;
+import org.osiam.auth.login.ldap.LdapServerContextSource;
+import org.osiam.auth.login.ldap.LdapUserSyncQueue;
 import org.osiam.auth.login.ldap.OsiamLdapAuthenticationProvider;
 import org.osiam.auth.login.ldap.OsiamLdapUserContextMapper;
+import org.osiam.auth.login.ldap.PooledLdapContextSource;
+import org.osiam.auth.resilience.AdaptiveConcurrencyLimiter;
 import org.osiam.resources.scim.User;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.jmx.export.MBeanExporter;
 import org.springframework.ldap.core.DirContextAdapter;
 import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.ldap.core.support.BaseLdapPathContextSource;
 import org.springframework.security.authentication.ProviderManager;
-import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
 import org.springframework.security.ldap.authentication.BindAuthenticator;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.support.CronTrigger;
 import org.springframework.security.ldap.userdetails.DefaultLdapAuthoritiesPopulator;
 
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
 @Configuration
-public class LdapConfiguration implements InitializingBean {
+public class LdapConfiguration implements InitializingBean, DisposableBean {
 
     public static final String LDAP_PROVIDER = "ldap";
     public static final String AUTH_EXTENSION = "urn:org.osiam:scim:extensions:auth-server";
 
+    /**
+     * Splits the configured server urls only at commas that start a new url, the ones in the root DN are kept.
+     */
+    private static final Splitter SERVER_URL_SPLITTER = Splitter.onPattern(",(?=\\s*ldaps?://)").trimResults()
+            .omitEmptyStrings();
+
     @Value("${org.osiam.auth-server.ldap.enabled:false}")
     private boolean isLdapConfigured;
 
     @Value("${org.osiam.auth-server.ldap.server.url:}")
     private String url;
 
+    @Value("${org.osiam.auth-server.ldap.connect-timeout:2000}")
+    private int connectTimeout;
+
+    @Value("${org.osiam.auth-server.ldap.read-timeout:10000}")
+    private int readTimeout;
+
+    @Value("${org.osiam.auth-server.ldap.ejection.failure-threshold:3}")
+    private int ejectionFailureThreshold;
+
+    @Value("${org.osiam.auth-server.ldap.ejection.duration:30}")
+    private int ejectionDuration;
+
     @Value("${org.osiam.auth-server.ldap.server.groupsearchbase:}")
     private String groupSearchBase;
 
@@ -66,17 +107,108 @@ public class LdapConfiguration implements InitializingBean {
     @Value("${org.osiam.auth-server.ldap.mapping:}")
     private String[] attributeMapping;
 
+    @Value("${org.osiam.auth-server.ldap.max-concurrent-binds:20}")
+    private int maxConcurrentBinds;
+
+    @Value("${org.osiam.auth-server.ldap.min-concurrent-binds:2}")
+    private int minConcurrentBinds;
+
+    @Value("${org.osiam.auth-server.ldap.bind-max-wait:1000}")
+    private int bindMaxWait;
+
+    @Value("${org.osiam.auth-server.ldap.pool.enabled:false}")
+    private boolean poolEnabled;
+
+    @Value("${org.osiam.auth-server.ldap.pool.size:8}")
+    private int poolSize;
+
+    @Value("${org.osiam.auth-server.ldap.pool.max-active:20}")
+    private int poolMaxActive;
+
+    @Value("${org.osiam.auth-server.ldap.pool.max-wait:1000}")
+    private int poolMaxWait;
+
+    @Value("${org.osiam.auth-server.ldap.pool.idle-timeout:300}")
+    private int poolIdleTimeout;
+
+    @Value("${org.osiam.auth-server.ldap.pool.validation-interval:30}")
+    private int poolValidationInterval;
+
+    @Value("${org.osiam.auth-server.ldap.sync.write-behind:false}")
+    private boolean syncWriteBehind;
+
+    @Value("${org.osiam.auth-server.ldap.sync.queue-size:10000}")
+    private int syncQueueSize;
+
+    @Value("${org.osiam.auth-server.ldap.sync.max-retries:5}")
+    private int syncMaxRetries;
+
+    @Value("${org.osiam.auth-server.ldap.sync.retry-delay:1000}")
+    private int syncRetryDelay;
+
+    @Value("${org.osiam.auth-server.ldap.provisioning.page-size:500}")
+    private int provisioningPageSize;
+
+    @Value("${org.osiam.auth-server.ldap.provisioning.threads:4}")
+    private int provisioningThreads;
+
+    @Value("${org.osiam.auth-server.ldap.provisioning.filter:}")
+    private String provisioningFilter;
+
+    @Value("${org.osiam.auth-server.ldap.provisioning.checkpoint-file:}")
+    private String provisioningCheckpointFile;
+
+    @Value("${org.osiam.auth-server.ldap.provisioning.cron:}")
+    private String provisioningCron;
+
     private Map<String, String> scimLdapAttributes;
 
+    private final List<PooledLdapContextSource> pooledContextSources = new ArrayList<>();
+
+    private LdapUserSyncQueue userSyncQueue;
+
+    private ThreadPoolTaskScheduler provisioningScheduler;
+
     @Inject
     private ProviderManager authenticationManager;
 
-    @Bean
-    public DefaultSpringSecurityContextSource createLdapContextSource() {
-        if (isLdapConfigured) {
-            return new DefaultSpringSecurityContextSource(url);
+    @Inject
+    private MBeanExporter mbeanExporter;
+
+    @Inject
+    private ResourceServerConnector resourceServerConnector;
+
+    @Inject
+    private AsyncResourceServerConnector asyncResourceServerConnector;
+
+    private List<String> getServerUrls() {
+        List<String> serverUrls = SERVER_URL_SPLITTER.splitToList(url);
+        if (serverUrls.isEmpty()) {
+            throw new LdapConfigurationException("No LDAP server is configured, please set ldap.server.url");
         }
-        return null;
+        return serverUrls;
+    }
+
+    private LdapServerContextSource createServerContextSource(String serverUrl) {
+        LdapServerContextSource contextSource = new LdapServerContextSource(serverUrl);
+        contextSource.setBaseEnvironmentProperties(createTimeoutEnvironment());
+        try {
+            contextSource.afterPropertiesSet();
+        } catch (Exception e) {
+            throw new LdapConfigurationException("The LDAP server URL '" + serverUrl + "' is not valid", e);
+        }
+        return contextSource;
+    }
+
+    private Hashtable<String, Object> createTimeoutEnvironment() {
+        Hashtable<String, Object> environment = new Hashtable<>();
+        if (connectTimeout > 0) {
+            environment.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(connectTimeout));
+        }
+        if (readTimeout > 0) {
+            environment.put("com.sun.jndi.ldap.read.timeout", String.valueOf(readTimeout));
+        }
+        return environment;
     }
 
     private void createLdapToScimAttributeMapping() {
@@ -108,7 +240,7 @@ public class LdapConfiguration implements InitializingBean {
 
             createLdapToScimAttributeMapping();
 
-            DefaultSpringSecurityContextSource contextSource = createLdapContextSource();
+            BaseLdapPathContextSource contextSource = createContextSource();
 
             BindAuthenticator bindAuthenticator = new BindAuthenticator(contextSource);
             bindAuthenticator.setUserDnPatterns(dnPatterns);
@@ -120,6 +252,13 @@ public class LdapConfiguration implements InitializingBean {
 
             OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(bindAuthenticator,
                     authoritiesPopulator, mapper);
+            provider.setBindConcurrencyLimiter(createBindConcurrencyLimiter());
+            provider.setAsyncResourceServerConnector(asyncResourceServerConnector);
+            if (syncWriteBehind) {
+                provider.setUserSyncQueue(createUserSyncQueue(mapper));
+            }
+
+            createProvisioningJob(contextSource, mapper);
 
             authenticationManager.getProviders().add(provider);
 
@@ -128,6 +267,101 @@ public class LdapConfiguration implements InitializingBean {
         return null;
     }
 
+    private BaseLdapPathContextSource createContextSource() {
+        List<String> serverUrls = getServerUrls();
+        if (serverUrls.size() == 1) {
+            return poolIfEnabled(createServerContextSource(serverUrls.get(0)), "");
+        }
+
+        LinkedHashMap<String, BaseLdapPathContextSource> servers = new LinkedHashMap<>();
+        for (int i = 0; i < serverUrls.size(); i++) {
+            String serverUrl = serverUrls.get(i);
+            servers.put(serverUrl, poolIfEnabled(createServerContextSource(serverUrl), ",server=" + i));
+        }
+        FailoverLdapContextSource failoverContextSource = new FailoverLdapContextSource(servers,
+                ejectionFailureThreshold, ejectionDuration, TimeUnit.SECONDS);
+        registerManagedResource(failoverContextSource, "org.osiam.auth-server:type=LdapServers");
+        return failoverContextSource;
+    }
+
+    private BaseLdapPathContextSource poolIfEnabled(LdapServerContextSource contextSource, String objectNameSuffix) {
+        if (!poolEnabled) {
+            return contextSource;
+        }
+        PooledLdapContextSource pooledContextSource = new PooledLdapContextSource(contextSource, poolSize,
+                poolMaxActive, poolMaxWait, poolIdleTimeout, poolValidationInterval, TimeUnit.SECONDS);
+        pooledContextSources.add(pooledContextSource);
+        registerManagedResource(pooledContextSource.getReadOnlyPool(),
+                "org.osiam.auth-server:type=LdapConnectionPool,name=read-only" + objectNameSuffix);
+        registerManagedResource(pooledContextSource.getBindPool(),
+                "org.osiam.auth-server:type=LdapConnectionPool,name=bind" + objectNameSuffix);
+        return pooledContextSource;
+    }
+
+    private AdaptiveConcurrencyLimiter createBindConcurrencyLimiter() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(minConcurrentBinds, minConcurrentBinds,
+                maxConcurrentBinds, bindMaxWait);
+        registerManagedResource(limiter, "org.osiam.auth-server:type=LdapBindConcurrencyLimiter");
+        return limiter;
+    }
+
+    private void createProvisioningJob(BaseLdapPathContextSource contextSource,
+            OsiamLdapUserContextMapper mapper) {
+        LdapProvisioningJob job = new LdapProvisioningJob(contextSource, dnPatterns, attributes, mapper,
+                resourceServerConnector);
+        job.setPageSize(provisioningPageSize);
+        job.setThreads(provisioningThreads);
+        job.setFilter(provisioningFilter);
+        if (!Strings.isNullOrEmpty(provisioningCheckpointFile)) {
+            job.setCheckpointFile(new File(provisioningCheckpointFile));
+        }
+        registerManagedResource(job, "org.osiam.auth-server:type=LdapProvisioningJob");
+
+        if (!Strings.isNullOrEmpty(provisioningCron)) {
+            provisioningScheduler = new ThreadPoolTaskScheduler();
+            provisioningScheduler.setThreadNamePrefix("ldap-provisioning-scheduler-");
+            provisioningScheduler.setDaemon(true);
+            provisioningScheduler.initialize();
+            provisioningScheduler.schedule(job, new CronTrigger(provisioningCron));
+        }
+    }
+
+    private LdapUserSyncQueue createUserSyncQueue(OsiamLdapUserContextMapper mapper) {
+        userSyncQueue = new LdapUserSyncQueue(resourceServerConnector, mapper, syncQueueSize, syncMaxRetries,
+                syncRetryDelay);
+        userSyncQueue.start();
+        registerManagedResource(userSyncQueue, "org.osiam.auth-server:type=LdapUserSyncQueue");
+        return userSyncQueue;
+    }
+
+    /**
+     * The LDAP beans are only created if LDAP is enabled, so their metrics are registered here instead of being
+     * detected by the MBean exporter.
+     */
+    private void registerManagedResource(Object resource, String objectName) {
+        if (mbeanExporter == null) {
+            return;
+        }
+        try {
+            mbeanExporter.registerManagedResource(resource, new ObjectName(objectName));
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (provisioningScheduler != null) {
+            provisioningScheduler.shutdown();
+        }
+        if (userSyncQueue != null) {
+            userSyncQueue.stop();
+        }
+        for (PooledLdapContextSource pooledContextSource : pooledContextSources) {
+            pooledContextSource.destroy();
+        }
+    }
+
     @Override
     public void afterPropertiesSet() {
         if (!isLdapConfigured) {
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.login;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.osiam.auth.resilience.Deadline;
+import org.osiam.resources.scim.UpdateUser;
+import org.osiam.resources.scim.User;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Non-blocking variant of the {@link ResourceServerConnector}. The calls are executed on a dedicated thread pool, so
+ * callers can overlap calls to the resource server with other work, e.g. the bind against the LDAP server. All calls
+ * are still guarded by the circuit breaker and concurrency limit of the {@link ResourceServerConnector} and are bound
+ * to the {@link Deadline} of the request that started them.
+ * <p/>
+ * Calls that find all threads busy wait in a bounded queue. If the queue is full, the call is rejected right away like
+ * a call rejected by the concurrency limit of the {@link ResourceServerConnector}, so an overloaded resource server
+ * doesn't pile up waiting calls. Like all other errors, the rejection is reported by the returned future.
+ */
+@Service
+public class AsyncResourceServerConnector {
+
+    @Value("${org.osiam.resource-server.connector.io-threads:20}")
+    private int ioThreads;
+
+    @Value("${org.osiam.resource-server.connector.io-queue-size:100}")
+    private int ioQueueSize;
+
+    @Inject
+    private ResourceServerConnector resourceServerConnector;
+
+    private ListeningExecutorService executor;
+
+    @PostConstruct
+    private void createExecutor() {
+        executor = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(ioThreads, ioThreads, 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, ioQueueSize)),
+                new ThreadFactoryBuilder().setNameFormat("resource-server-io-%d").setDaemon(true).build()));
+    }
+
+    @PreDestroy
+    private void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    public ListenableFuture<User> getUserByUsername(final String userName) {
+        return submit(new Callable<User>() {
+            @Override
+            public User call() {
+                return resourceServerConnector.getUserByUsername(userName);
+            }
+        });
+    }
+
+    public ListenableFuture<User> getUserById(final String id) {
+        return submit(new Callable<User>() {
+            @Override
+            public User call() {
+                return resourceServerConnector.getUserById(id);
+            }
+        });
+    }
+
+    public ListenableFuture<User> createUser(final User user) {
+        return submit(new Callable<User>() {
+            @Override
+            public User call() {
+                return resourceServerConnector.createUser(user);
+            }
+        });
+    }
+
+    public ListenableFuture<User> updateUser(final String userId, final UpdateUser user) {
+        return submit(new Callable<User>() {
+            @Override
+            public User call() {
+                return resourceServerConnector.updateUser(userId, user);
+            }
+        });
+    }
+
+    public ListenableFuture<User> searchUserByUserNameAndPassword(final String userName, final String hashedPassword) {
+        return submit(new Callable<User>() {
+            @Override
+            public User call() {
+                return resourceServerConnector.searchUserByUserNameAndPassword(userName, hashedPassword);
+            }
+        });
+    }
+
+    private <T> ListenableFuture<T> submit(final Callable<T> call) {
+        final Deadline deadline = Deadline.current();
+        try {
+            return executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    Deadline previous = Deadline.setCurrent(deadline);
+                    try {
+                        return call.call();
+                    } finally {
+                        Deadline.setCurrent(previous);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(resourceServerConnector.rejectCall());
+        }
+    }
+}
@@ -23,40 +23,176 @@
 
 package org.osiam.auth.login;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
+import org.osiam.auth.exception.ResourceServerUnavailableException;
 import org.osiam.auth.oauth_client.OsiamAuthServerClientProvider;
+import org.osiam.auth.resilience.AdaptiveConcurrencyLimiter;
+import org.osiam.auth.resilience.CircuitBreaker;
+import org.osiam.auth.resilience.Deadline;
+import org.osiam.auth.resilience.Endpoint;
+import org.osiam.auth.resilience.LatencyRecorder;
+import org.osiam.auth.resilience.LoadBalancer;
 import org.osiam.auth.token.OsiamAccessTokenProvider;
 import org.osiam.client.OsiamConnector;
+import org.osiam.client.exception.ConnectionInitializationException;
+import org.osiam.client.exception.OsiamRequestException;
+import org.osiam.client.oauth.AccessToken;
 import org.osiam.client.query.Query;
 import org.osiam.client.query.QueryBuilder;
 import org.osiam.resources.scim.SCIMSearchResult;
 import org.osiam.resources.scim.UpdateUser;
 import org.osiam.resources.scim.User;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Service;
 
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Executes all calls to the resource server. Every call is guarded by a circuit breaker and an adaptive concurrency
+ * limit, so an unavailable or slow resource server lets logins fail fast with a
+ * {@link ResourceServerUnavailableException} instead of blocking all request threads of the auth server. The
+ * concurrency limit follows the latency of the resource server, so it isn't flooded with more requests than it can
+ * handle when it slows down. Calls made after the {@link Deadline} of the current request has passed fail immediately
+ * with a {@link org.osiam.auth.exception.DeadlineExceededException}.
+ * <p/>
+ * The resource server may be given as a comma separated list of replicas. Calls go to the replica with the fewest
+ * calls in progress and replicas that fail repeatedly are ejected for a while. Optionally, read-only lookups are hedged:
+ * if the first replica hasn't answered within the 95th percentile of the recent latencies, the same lookup is sent to
+ * a second replica and the first answer is used.
+ */
 @Service
+@ManagedResource(objectName = "org.osiam.auth-server:type=ResourceServerConnector")
 public class ResourceServerConnector {
 
+    private static final int LATENCY_WINDOW = 1000;
+
+    /**
+     * The number of latency samples needed before lookups are hedged, otherwise the 95th percentile is meaningless.
+     */
+    private static final int MIN_SAMPLES_FOR_HEDGING = 20;
+
     @Value("${org.osiam.resource-server.home}")
     private String resourceServerHome;
 
     @Value("${org.osiam.auth-server.home}")
     private String authServerHome;
 
+    @Value("${org.osiam.resource-server.connector.connect-timeout:2500}")
+    private int connectTimeout;
+
+    @Value("${org.osiam.resource-server.connector.read-timeout:5000}")
+    private int readTimeout;
+
+    @Value("${org.osiam.resource-server.connector.max-concurrent-requests:40}")
+    private int maxConcurrentRequests;
+
+    @Value("${org.osiam.resource-server.connector.min-concurrent-requests:2}")
+    private int minConcurrentRequests;
+
+    @Value("${org.osiam.resource-server.connector.max-wait:1000}")
+    private int maxWait;
+
+    @Value("${org.osiam.resource-server.connector.circuit-breaker.failure-threshold:5}")
+    private int failureThreshold;
+
+    @Value("${org.osiam.resource-server.connector.circuit-breaker.open-duration:10}")
+    private int openDuration;
+
+    @Value("${org.osiam.resource-server.connector.ejection.failure-threshold:3}")
+    private int ejectionFailureThreshold;
+
+    @Value("${org.osiam.resource-server.connector.ejection.duration:30}")
+    private int ejectionDuration;
+
+    @Value("${org.osiam.resource-server.connector.hedging.enabled:false}")
+    private boolean hedgingEnabled;
+
+    @Value("${org.osiam.resource-server.connector.hedging.min-delay:10}")
+    private int minHedgingDelay;
+
     @Inject
     private OsiamAccessTokenProvider osiamAccessTokenProvider;
 
     @Inject
     private OsiamAuthServerClientProvider authServerClientProvider;
 
+    @Inject
+    private UnknownUserCache unknownUserCache;
+
+    @Inject
+    private ApplicationEventPublisher eventPublisher;
+
+    private CircuitBreaker circuitBreaker;
+
+    private AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+    private LoadBalancer loadBalancer;
+
+    private final LatencyRecorder latencies = new LatencyRecorder(LATENCY_WINDOW, 0.95);
+
+    private ExecutorService hedgingExecutor;
+
+    private final AtomicLong hedgedCalls = new AtomicLong();
+
+    @PostConstruct
+    private void configure() {
+        OsiamConnector.setConnectTimeout(connectTimeout);
+        OsiamConnector.setReadTimeout(readTimeout);
+        circuitBreaker = new CircuitBreaker("resource-server", failureThreshold, openDuration, TimeUnit.SECONDS,
+                eventPublisher);
+        concurrencyLimiter = new AdaptiveConcurrencyLimiter(minConcurrentRequests, minConcurrentRequests,
+                maxConcurrentRequests, maxWait);
+        List<String> endpoints = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(resourceServerHome);
+        loadBalancer = new LoadBalancer(endpoints, ejectionFailureThreshold, ejectionDuration, TimeUnit.SECONDS);
+        if (hedgingEnabled && endpoints.size() > 1) {
+            hedgingExecutor = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("resource-server-hedging-%d").setDaemon(true).build());
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        if (hedgingExecutor != null) {
+            hedgingExecutor.shutdownNow();
+        }
+    }
+
     public User getUserByUsername(final String userName) {
-        OsiamConnector osiamConnector = createOsiamConnector();
-        Query query = new QueryBuilder().filter("userName eq \"" + userName + "\"").build();
+        if (unknownUserCache.isUnknown(userName)) {
+            return null;
+        }
+
+        final Query query = new QueryBuilder().filter("userName eq \"" + userName + "\"").build();
+
+        SCIMSearchResult<User> result = executeReadOnly(new ResourceServerCall<SCIMSearchResult<User>>() {
+            @Override
+            public SCIMSearchResult<User> execute(OsiamConnector osiamConnector, AccessToken accessToken) {
+                return osiamConnector.searchUsers(query, accessToken);
+            }
+        });
 
-        SCIMSearchResult<User> result = osiamConnector.searchUsers(query,
-                osiamAccessTokenProvider.createAccessToken());
+        if (result.getTotalResults() == 0) {
+            unknownUserCache.markUnknown(userName);
+        }
 
         if (result.getTotalResults() != 1) {
             return null;
@@ -66,27 +202,44 @@ public class ResourceServerConnector {
     }
     
     public User getUserById(final String id) {
-        OsiamConnector osiamConnector = createOsiamConnector();
-        return osiamConnector.getUser(id, osiamAccessTokenProvider.createAccessToken());
+        return executeReadOnly(new ResourceServerCall<User>() {
+            @Override
+            public User execute(OsiamConnector osiamConnector, AccessToken accessToken) {
+                return osiamConnector.getUser(id, accessToken);
+            }
+        });
     }
 
-    public User createUser(User user) {
-        OsiamConnector osiamConnector = createOsiamConnector();
-        return osiamConnector.createUser(user, osiamAccessTokenProvider.createAccessToken());
+    public User createUser(final User user) {
+        User createdUser = execute(new ResourceServerCall<User>() {
+            @Override
+            public User execute(OsiamConnector osiamConnector, AccessToken accessToken) {
+                return osiamConnector.createUser(user, accessToken);
+            }
+        });
+        unknownUserCache.invalidate(user.getUserName());
+        return createdUser;
     }
 
-    public User updateUser(String userId, UpdateUser user) {
-        OsiamConnector osiamConnector = createOsiamConnector();
-        return osiamConnector.updateUser(userId, user, osiamAccessTokenProvider.createAccessToken());
+    public User updateUser(final String userId, final UpdateUser user) {
+        return execute(new ResourceServerCall<User>() {
+            @Override
+            public User execute(OsiamConnector osiamConnector, AccessToken accessToken) {
+                return osiamConnector.updateUser(userId, user, accessToken);
+            }
+        });
     }
 
     public User searchUserByUserNameAndPassword(String userName, String hashedPassword) {
-        OsiamConnector osiamConnector = createOsiamConnector();
-        Query query = new QueryBuilder().filter("userName eq \"" + userName + "\""
+        final Query query = new QueryBuilder().filter("userName eq \"" + userName + "\""
                 + " and password eq \"" + hashedPassword + "\"").build();
 
-        SCIMSearchResult<User> result = osiamConnector.searchUsers(query,
-                osiamAccessTokenProvider.createAccessToken());
+        SCIMSearchResult<User> result = executeReadOnly(new ResourceServerCall<SCIMSearchResult<User>>() {
+            @Override
+            public SCIMSearchResult<User> execute(OsiamConnector osiamConnector, AccessToken accessToken) {
+                return osiamConnector.searchUsers(query, accessToken);
+            }
+        });
 
         if (result.getTotalResults() != 1) {
             return null;
@@ -95,12 +248,208 @@ public class ResourceServerConnector {
         }
     }
 
-    private OsiamConnector createOsiamConnector() {
+    /**
+     * @return true if calls to the resource server are currently rejected, because it failed repeatedly
+     */
+    public boolean isCircuitOpen() {
+        return circuitBreaker.getState() == CircuitBreaker.State.OPEN;
+    }
+
+    @ManagedAttribute(description = "The state of the circuit breaker guarding the resource server")
+    public String getCircuitBreakerState() {
+        return circuitBreaker.getState().name();
+    }
+
+    @ManagedAttribute(description = "Calls rejected because the circuit breaker was open")
+    public long getCircuitBreakerRejectedCalls() {
+        return circuitBreaker.getRejectedCalls();
+    }
+
+    @ManagedAttribute(description = "Calls that failed because the resource server was not reachable or had an error")
+    public long getFailedCalls() {
+        return circuitBreaker.getFailedCalls();
+    }
+
+    @ManagedAttribute(description = "Calls currently in progress")
+    public int getActiveCalls() {
+        return concurrencyLimiter.getInFlight();
+    }
+
+    @ManagedAttribute(description = "The current limit of concurrent calls, adapted to the latency of the resource server")
+    public int getConcurrencyLimit() {
+        return concurrencyLimiter.getLimit();
+    }
+
+    @ManagedAttribute(description = "Calls rejected because the concurrency limit was reached")
+    public long getConcurrencyLimitRejectedCalls() {
+        return concurrencyLimiter.getRejectedCalls();
+    }
+
+    @ManagedAttribute(description = "Replicas of the resource server that are currently not ejected")
+    public int getHealthyEndpoints() {
+        return loadBalancer.getHealthyEndpoints();
+    }
+
+    @ManagedAttribute(description = "Lookups sent to a second replica because the first one was slow")
+    public long getHedgedCalls() {
+        return hedgedCalls.get();
+    }
+
+    private <T> T execute(ResourceServerCall<T> call) {
+        Deadline.checkCurrent();
+
+        if (!circuitBreaker.allowRequest()) {
+            throw new ResourceServerUnavailableException("The resource server is unavailable");
+        }
+
+        return attempt(loadBalancer.choose(), call, maxWait);
+    }
+
+    /**
+     * Executes a call that doesn't change anything at the resource server, so it can safely be hedged.
+     */
+    private <T> T executeReadOnly(ResourceServerCall<T> call) {
+        if (hedgingExecutor == null || latencies.getSampleCount() < MIN_SAMPLES_FOR_HEDGING) {
+            return execute(call);
+        }
+
+        Deadline.checkCurrent();
+
+        if (!circuitBreaker.allowRequest()) {
+            throw new ResourceServerUnavailableException("The resource server is unavailable");
+        }
+
+        long hedgingDelay = Math.max(TimeUnit.MILLISECONDS.toNanos(minHedgingDelay), latencies.getPercentile());
+        CompletionService<T> completionService = new ExecutorCompletionService<>(hedgingExecutor);
+        List<Future<T>> attempts = new ArrayList<>(2);
+
+        Endpoint primary = loadBalancer.choose();
+        attempts.add(completionService.submit(createAttempt(primary, call, maxWait)));
+        try {
+            Future<T> completed = completionService.poll(hedgingDelay, TimeUnit.NANOSECONDS);
+            if (completed == null) {
+                Endpoint secondary = loadBalancer.chooseOther(primary);
+                if (secondary != null) {
+                    hedgedCalls.incrementAndGet();
+                    // the hedged call must not wait for a free slot, it would only add load
+                    attempts.add(completionService.submit(createAttempt(secondary, call, 0)));
+                }
+                completed = completionService.take();
+            }
+            try {
+                return getResult(completed);
+            } catch (RuntimeException e) {
+                if (attempts.size() == 1) {
+                    throw e;
+                }
+                return getResult(completionService.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceServerUnavailableException("Interrupted while waiting for the resource server", e);
+        } finally {
+            for (Future<T> attempt : attempts) {
+                attempt.cancel(false);
+            }
+        }
+    }
+
+    private <T> Callable<T> createAttempt(final Endpoint endpoint, final ResourceServerCall<T> call,
+            final long maxWaitMillis) {
+        final Deadline deadline = Deadline.current();
+        return new Callable<T>() {
+            @Override
+            public T call() {
+                Deadline previous = Deadline.setCurrent(deadline);
+                try {
+                    return attempt(endpoint, call, maxWaitMillis);
+                } finally {
+                    Deadline.setCurrent(previous);
+                }
+            }
+        };
+    }
+
+    private <T> T getResult(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ResourceServerUnavailableException("The call to the resource server failed", e.getCause());
+        }
+    }
+
+    /**
+     * Rejects a call that could not even be queued, e.g. by the {@link AsyncResourceServerConnector}, the same way as
+     * a call rejected by the concurrency limit.
+     *
+     * @return the exception the call fails with
+     */
+    public ResourceServerUnavailableException rejectCall() {
+        concurrencyLimiter.recordRejected();
+        return new ResourceServerUnavailableException("Too many concurrent requests to the resource server");
+    }
+
+    /**
+     * Executes the call against the given replica. The call has to be permitted by the circuit breaker already.
+     */
+    private <T> T attempt(Endpoint endpoint, ResourceServerCall<T> call, long maxWaitMillis) {
+        if (!concurrencyLimiter.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+            loadBalancer.callIgnored(endpoint);
+            circuitBreaker.recordIgnored();
+            Deadline.checkCurrent();
+            throw new ResourceServerUnavailableException("Too many concurrent requests to the resource server");
+        }
+
+        long start = System.nanoTime();
+        try {
+            T result = call.execute(createOsiamConnector(endpoint.getUrl()),
+                    osiamAccessTokenProvider.createAccessToken());
+            recordAnswer(endpoint, System.nanoTime() - start);
+            return result;
+        } catch (ConnectionInitializationException e) {
+            recordFailure(endpoint);
+            throw new ResourceServerUnavailableException("The resource server could not be reached", e);
+        } catch (OsiamRequestException e) {
+            if (e.getHttpStatusCode() >= 500) {
+                recordFailure(endpoint);
+                throw new ResourceServerUnavailableException("The resource server responded with an error", e);
+            }
+            recordAnswer(endpoint, System.nanoTime() - start);
+            throw e;
+        } catch (RuntimeException e) {
+            concurrencyLimiter.releaseIgnored();
+            loadBalancer.callIgnored(endpoint);
+            circuitBreaker.recordIgnored();
+            throw e;
+        }
+    }
+
+    private void recordAnswer(Endpoint endpoint, long latency) {
+        concurrencyLimiter.release(latency);
+        latencies.record(latency);
+        loadBalancer.callSucceeded(endpoint);
+        circuitBreaker.recordSuccess();
+    }
+
+    private void recordFailure(Endpoint endpoint) {
+        concurrencyLimiter.releaseDropped();
+        loadBalancer.callFailed(endpoint);
+        circuitBreaker.recordFailure();
+    }
+
+    OsiamConnector createOsiamConnector(String resourceServerEndpoint) {
         OsiamConnector.Builder oConBuilder = new OsiamConnector.Builder().
                 setAuthServerEndpoint(authServerHome).
-                setResourceServerEndpoint(resourceServerHome).
+                setResourceServerEndpoint(resourceServerEndpoint).
                 setClientId(OsiamAuthServerClientProvider.AUTH_SERVER_CLIENT_ID).
                 setClientSecret(authServerClientProvider.getClientSecret());
         return oConBuilder.build();
     }
+
+    private interface ResourceServerCall<T> {
+        T execute(OsiamConnector osiamConnector, AccessToken accessToken);
+    }
 }
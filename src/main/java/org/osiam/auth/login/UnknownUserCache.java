@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.login;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers the user names for which the resource server recently reported that no such user exists, so repeated
+ * logins with unknown user names don't cause a search request against the resource server each time.
+ */
+@Service
+public class UnknownUserCache {
+
+    @Value("${org.osiam.auth-server.unknown-user-cache.size:10000}")
+    private int maximumSize;
+
+    @Value("${org.osiam.auth-server.unknown-user-cache.ttl:30}")
+    private int timeToLiveInSeconds;
+
+    private Cache<String, Boolean> unknownUsers;
+
+    @PostConstruct
+    private void createCache() {
+        if (maximumSize <= 0 || timeToLiveInSeconds <= 0) {
+            return;
+        }
+
+        unknownUsers = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLiveInSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public boolean isUnknown(String userName) {
+        return unknownUsers != null && unknownUsers.getIfPresent(userName) != null;
+    }
+
+    public void markUnknown(String userName) {
+        if (unknownUsers != null) {
+            unknownUsers.put(userName, Boolean.TRUE);
+        }
+    }
+
+    public void invalidate(String userName) {
+        if (unknownUsers != null) {
+            unknownUsers.invalidate(userName);
+        }
+    }
+}
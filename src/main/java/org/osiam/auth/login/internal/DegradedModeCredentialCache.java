@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.login.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.osiam.resources.scim.Role;
+import org.osiam.resources.scim.User;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.stereotype.Service;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers recent successful logins, so users can still log in while the resource server is unavailable (degraded
+ * mode). Only a salted PBKDF2 verifier of the password is kept, together with the id, the roles and the active flag of
+ * the user. The entries are encrypted and authenticated with keys that are generated at startup and never leave the
+ * process, and they are only usable up to a strict maximum age.
+ * <p/>
+ * Every login in degraded mode is audited and counted.
+ */
+@Service
+@ManagedResource(objectName = "org.osiam.auth-server:type=DegradedModeCredentialCache")
+public class DegradedModeCredentialCache {
+
+    private static final Logger LOGGER = Logger.getLogger(DegradedModeCredentialCache.class.getName());
+
+    private static final String VERIFIER_ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final int VERIFIER_LENGTH = 256;
+
+    @Value("${org.osiam.auth-server.degraded-mode.enabled:false}")
+    private boolean enabled;
+
+    @Value("${org.osiam.auth-server.degraded-mode.max-age:3600}")
+    private int maxAgeInSeconds;
+
+    @Value("${org.osiam.auth-server.degraded-mode.size:10000}")
+    private int maximumSize;
+
+    @Value("${org.osiam.auth-server.degraded-mode.verifier-iterations:10000}")
+    private int verifierIterations;
+
+    private Ticker ticker = Ticker.systemTicker();
+
+    private final SecureRandom random = new SecureRandom();
+
+    private SecretKey encryptionKey;
+
+    private SecretKey macKey;
+
+    private Cache<String, byte[]> verifiedLogins;
+
+    private final AtomicLong degradedLogins = new AtomicLong();
+    private final AtomicLong rejectedDegradedLogins = new AtomicLong();
+    private final AtomicLong unservedDegradedLogins = new AtomicLong();
+
+    @PostConstruct
+    private void createCache() throws GeneralSecurityException {
+        if (!enabled || maximumSize <= 0 || maxAgeInSeconds <= 0) {
+            return;
+        }
+
+        KeyGenerator aesKeyGenerator = KeyGenerator.getInstance("AES");
+        aesKeyGenerator.init(128, random);
+        encryptionKey = aesKeyGenerator.generateKey();
+
+        KeyGenerator macKeyGenerator = KeyGenerator.getInstance(MAC_ALGORITHM);
+        macKeyGenerator.init(256, random);
+        macKey = macKeyGenerator.generateKey();
+
+        verifiedLogins = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(maxAgeInSeconds, TimeUnit.SECONDS)
+                .ticker(ticker)
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return verifiedLogins != null;
+    }
+
+    /**
+     * Remembers a login that was verified by the resource server.
+     */
+    public void remember(String userName, String password, User user) {
+        if (verifiedLogins == null) {
+            return;
+        }
+
+        try {
+            byte[] salt = new byte[SALT_LENGTH];
+            random.nextBytes(salt);
+
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(plain);
+            out.writeLong(ticker.read());
+            out.write(salt);
+            out.write(createVerifier(password, salt));
+            out.writeBoolean(user.isActive());
+            out.writeUTF(user.getId());
+            out.writeInt(user.getRoles().size());
+            for (Role role : user.getRoles()) {
+                out.writeUTF(role.getValue());
+            }
+            out.flush();
+
+            verifiedLogins.put(userName, encrypt(plain.toByteArray()));
+        } catch (IOException | GeneralSecurityException e) {
+            LOGGER.warning("Unable to remember the login of user '" + userName + "' for the degraded mode: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Verifies a login against the remembered logins. Must only be used while the resource server is unavailable.
+     *
+     * @return the remembered login or null if the user has no remembered login that isn't older than the maximum age
+     * @throws BadCredentialsException
+     *         if the password doesn't match the remembered one
+     */
+    public VerifiedLogin verify(String userName, String password) {
+        byte[] encrypted = verifiedLogins == null ? null : verifiedLogins.getIfPresent(userName);
+        if (encrypted == null) {
+            unservedDegradedLogins.incrementAndGet();
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(decrypt(encrypted)));
+
+            long verifiedAt = in.readLong();
+            if (ticker.read() - verifiedAt > TimeUnit.SECONDS.toNanos(maxAgeInSeconds)) {
+                verifiedLogins.invalidate(userName);
+                unservedDegradedLogins.incrementAndGet();
+                return null;
+            }
+
+            byte[] salt = new byte[SALT_LENGTH];
+            in.readFully(salt);
+            byte[] verifier = new byte[VERIFIER_LENGTH / 8];
+            in.readFully(verifier);
+
+            if (!MessageDigest.isEqual(verifier, createVerifier(password, salt))) {
+                rejectedDegradedLogins.incrementAndGet();
+                LOGGER.warning("Rejected login of user '" + userName + "' in degraded mode: bad credentials");
+                throw new BadCredentialsException("Bad credentials");
+            }
+
+            boolean active = in.readBoolean();
+            String userId = in.readUTF();
+            int roleCount = in.readInt();
+            List<String> roles = new ArrayList<>(roleCount);
+            for (int i = 0; i < roleCount; i++) {
+                roles.add(in.readUTF());
+            }
+
+            degradedLogins.incrementAndGet();
+            LOGGER.warning("Login of user '" + userName + "' (id " + userId
+                    + ") served in degraded mode, because the resource server is unavailable");
+            return new VerifiedLogin(userId, active, roles);
+        } catch (IOException | GeneralSecurityException e) {
+            verifiedLogins.invalidate(userName);
+            unservedDegradedLogins.incrementAndGet();
+            LOGGER.warning("Discarded the invalid remembered login of user '" + userName + "': " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void invalidate(String userName) {
+        if (verifiedLogins != null) {
+            verifiedLogins.invalidate(userName);
+        }
+    }
+
+    @ManagedAttribute(description = "Logins served from the cache while the resource server was unavailable")
+    public long getDegradedLogins() {
+        return degradedLogins.get();
+    }
+
+    @ManagedAttribute(description = "Logins rejected in degraded mode because of bad credentials")
+    public long getRejectedDegradedLogins() {
+        return rejectedDegradedLogins.get();
+    }
+
+    @ManagedAttribute(description = "Logins that could not be served in degraded mode, because no recent login was known")
+    public long getUnservedDegradedLogins() {
+        return unservedDegradedLogins.get();
+    }
+
+    @ManagedAttribute(description = "The number of remembered logins")
+    public long getSize() {
+        return verifiedLogins == null ? 0 : verifiedLogins.size();
+    }
+
+    private byte[] createVerifier(String password, byte[] salt) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, verifierIterations, VERIFIER_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(VERIFIER_ALGORITHM).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private byte[] encrypt(byte[] plain) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+        byte[] cipherText = cipher.doFinal(plain);
+
+        byte[] result = Arrays.copyOf(iv, IV_LENGTH + cipherText.length + MAC_LENGTH);
+        System.arraycopy(cipherText, 0, result, IV_LENGTH, cipherText.length);
+        byte[] mac = mac(result, IV_LENGTH + cipherText.length);
+        System.arraycopy(mac, 0, result, IV_LENGTH + cipherText.length, MAC_LENGTH);
+        return result;
+    }
+
+    private byte[] decrypt(byte[] encrypted) throws GeneralSecurityException {
+        if (encrypted.length < IV_LENGTH + MAC_LENGTH) {
+            throw new GeneralSecurityException("The remembered login is truncated");
+        }
+        int macOffset = encrypted.length - MAC_LENGTH;
+        if (!MessageDigest.isEqual(mac(encrypted, macOffset), Arrays.copyOfRange(encrypted, macOffset,
+                encrypted.length))) {
+            throw new GeneralSecurityException("The remembered login has been tampered with");
+        }
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(encrypted, 0, IV_LENGTH));
+        return cipher.doFinal(encrypted, IV_LENGTH, macOffset - IV_LENGTH);
+    }
+
+    private byte[] mac(byte[] data, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(macKey);
+        mac.update(data, 0, length);
+        return mac.doFinal();
+    }
+
+    /**
+     * A login remembered from the time the resource server was available.
+     */
+    public static class VerifiedLogin {
+
+        private final String userId;
+        private final boolean active;
+        private final List<String> roles;
+
+        VerifiedLogin(String userId, boolean active, List<String> roles) {
+            this.userId = userId;
+            this.active = active;
+            this.roles = Collections.unmodifiableList(roles);
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public List<String> getRoles() {
+            return roles;
+        }
+    }
+}
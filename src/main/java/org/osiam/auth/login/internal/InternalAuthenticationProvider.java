@@ -32,7 +32,9 @@ import java.util.Map;
 
 import javax.inject.Inject;
 
+import org.osiam.auth.exception.ResourceServerUnavailableException;
 import org.osiam.auth.login.ResourceServerConnector;
+import org.osiam.auth.login.internal.DegradedModeCredentialCache.VerifiedLogin;
 import org.osiam.resources.scim.Role;
 import org.osiam.resources.scim.User;
 import org.springframework.beans.factory.annotation.Value;
@@ -69,6 +71,9 @@ public class InternalAuthenticationProvider implements AuthenticationProvider, A
     @Inject
     private ShaPasswordEncoder passwordEncoder;
 
+    @Inject
+    private DegradedModeCredentialCache degradedModeCredentialCache;
+
     @Override
     public Authentication authenticate(Authentication authentication) {
         Preconditions.checkArgument(authentication instanceof InternalAuthentication,
@@ -87,29 +92,73 @@ public class InternalAuthenticationProvider implements AuthenticationProvider, A
 
         assertUserNotLocked(username);
 
+        try {
+            return authenticateAtResourceServer(username, password);
+        } catch (ResourceServerUnavailableException e) {
+            return authenticateInDegradedMode(username, password, e);
+        }
+    }
+
+    private Authentication authenticateAtResourceServer(String username, String password) {
         // Determine username
         User user = resourceServerConnector.getUserByUsername(username);
 
         if (user == null) {
+            degradedModeCredentialCache.invalidate(username);
             throw new BadCredentialsException("The user with the username '" + username + "' doesn't exist!");
         }
 
         if (!user.isActive()) {
+            degradedModeCredentialCache.invalidate(username);
             throw new DisabledException("The user with the username '" + username + "' is disabled!");
         }
 
         String hashedPassword = passwordEncoder.encodePassword(password, user.getId());
 
         if (resourceServerConnector.searchUserByUserNameAndPassword(username, hashedPassword) == null) {
+            degradedModeCredentialCache.invalidate(username);
             throw new BadCredentialsException("Bad credentials");
         }
 
-        User authUser = new User.Builder(username).setId(user.getId()).build();
+        degradedModeCredentialCache.remember(username, password, user);
+
+        List<String> roles = new ArrayList<String>();
+        for (Role role : user.getRoles()) {
+            roles.add(role.getValue());
+        }
+
+        return createAuthentication(username, user.getId(), password, roles);
+    }
+
+    /**
+     * Authenticates the user against a recent successful login, if the resource server is known to be unavailable.
+     */
+    private Authentication authenticateInDegradedMode(String username, String password,
+            ResourceServerUnavailableException cause) {
+        if (!degradedModeCredentialCache.isEnabled() || !resourceServerConnector.isCircuitOpen()) {
+            throw cause;
+        }
+
+        VerifiedLogin verifiedLogin = degradedModeCredentialCache.verify(username, password);
+
+        if (verifiedLogin == null) {
+            throw cause;
+        }
+
+        if (!verifiedLogin.isActive()) {
+            throw new DisabledException("The user with the username '" + username + "' is disabled!");
+        }
+
+        return createAuthentication(username, verifiedLogin.getUserId(), password, verifiedLogin.getRoles());
+    }
+
+    private Authentication createAuthentication(String username, String userId, String password, List<String> roles) {
+        User authUser = new User.Builder(username).setId(userId).build();
 
         List<GrantedAuthority> grantedAuthorities = new ArrayList<GrantedAuthority>();
 
-        for (Role role : user.getRoles()) {
-            grantedAuthorities.add(new SimpleGrantedAuthority(role.getValue()));
+        for (String role : roles) {
+            grantedAuthorities.add(new SimpleGrantedAuthority(role));
         }
 
         return new InternalAuthentication(authUser, password, grantedAuthorities);
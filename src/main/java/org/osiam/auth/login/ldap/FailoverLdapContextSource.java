@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.auth.login.ldap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
+
+import org.osiam.auth.resilience.Deadline;
+import org.osiam.auth.resilience.Endpoint;
+import org.osiam.auth.resilience.LoadBalancer;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.ldap.AuthenticationException;
+import org.springframework.ldap.NamingException;
+import org.springframework.ldap.core.DistinguishedName;
+import org.springframework.ldap.core.support.BaseLdapPathContextSource;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Spreads the connections over several replicas of the directory. Every context is taken from the replica with the
+ * lowest latency weighted by its contexts in progress, see {@link LoadBalancer}. A context is in progress until it is
+ * closed, so the latency of a replica covers the whole operation, e.g. the bind and the reading of the attributes of
+ * the user, not only the opening of the connection. If a replica can't be reached or doesn't answer in time, the next
+ * replica is tried at once and the failing replica is ejected after some consecutive failures. This also applies to
+ * the connection breaking during a reading operation on a context: the operation is repeated with a new context from
+ * the next replica. A wrong password is not a failure of the replica.
+ */
+@ManagedResource
+public class FailoverLdapContextSource implements BaseLdapPathContextSource {
+
+    private static final Logger LOGGER = Logger.getLogger(FailoverLdapContextSource.class.getName());
+
+    /**
+     * The operations that don't change the directory, so they can be repeated at another replica.
+     */
+    private static final Set<String> READING_OPERATIONS = ImmutableSet.of("search", "getAttributes", "lookup",
+            "lookupLink", "list", "listBindings");
+
+    private final Map<String, BaseLdapPathContextSource> servers;
+    private final LoadBalancer loadBalancer;
+
+    /**
+     * @param servers
+     *        the context sources of the replicas by their URLs
+     */
+    public FailoverLdapContextSource(LinkedHashMap<String, BaseLdapPathContextSource> servers, int failureThreshold,
+            long ejectionDuration, TimeUnit unit) {
+        this.servers = new LinkedHashMap<>(servers);
+        this.loadBalancer = new LoadBalancer(new ArrayList<>(servers.keySet()), failureThreshold, ejectionDuration,
+                unit);
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() {
+        return getContext(new ContextFactory() {
+            @Override
+            public DirContext createContext(BaseLdapPathContextSource server) {
+                return server.getReadOnlyContext();
+            }
+        });
+    }
+
+    @Override
+    public DirContext getReadWriteContext() {
+        return getContext(new ContextFactory() {
+            @Override
+            public DirContext createContext(BaseLdapPathContextSource server) {
+                return server.getReadWriteContext();
+            }
+        });
+    }
+
+    @Override
+    public DirContext getContext(final String principal, final String credentials) {
+        return getContext(new ContextFactory() {
+            @Override
+            public DirContext createContext(BaseLdapPathContextSource server) {
+                return server.getContext(principal, credentials);
+            }
+        });
+    }
+
+    @Override
+    public DistinguishedName getBaseLdapPath() {
+        return servers.values().iterator().next().getBaseLdapPath();
+    }
+
+    @Override
+    public String getBaseLdapPathAsString() {
+        return servers.values().iterator().next().getBaseLdapPathAsString();
+    }
+
+    @ManagedAttribute(description = "The number of LDAP servers that are not ejected")
+    public int getHealthyServers() {
+        return loadBalancer.getHealthyEndpoints();
+    }
+
+    @ManagedAttribute(description = "The state of every LDAP server")
+    public String[] getServers() {
+        List<String> states = new ArrayList<>();
+        for (Endpoint endpoint : loadBalancer.getEndpoints()) {
+            states.add(String.format("%s: %s, %.1f ms, %d in progress", endpoint.getUrl(),
+                    loadBalancer.isHealthy(endpoint) ? "healthy" : "ejected",
+                    loadBalancer.getLatency(endpoint, TimeUnit.MILLISECONDS), endpoint.getOutstandingCalls()));
+        }
+        return states.toArray(new String[states.size()]);
+    }
+
+    LoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    private DirContext getContext(ContextFactory contextFactory) {
+        FailoverContextHandler handler = new FailoverContextHandler(contextFactory);
+        DirContext context = handler.open(loadBalancer.choose());
+        Class<?> contextInterface = context instanceof LdapContext ? LdapContext.class : DirContext.class;
+        return (DirContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {contextInterface},
+                handler);
+    }
+
+    private static boolean isConnectionFailure(Throwable e) {
+        return e instanceof javax.naming.CommunicationException
+                || e instanceof javax.naming.ServiceUnavailableException;
+    }
+
+    /**
+     * Keeps the replica of a context in progress until the context is closed and moves the context to the next
+     * replica if the connection breaks during a reading operation.
+     */
+    private final class FailoverContextHandler implements InvocationHandler {
+
+        private final ContextFactory contextFactory;
+        private final List<Endpoint> triedEndpoints = new ArrayList<>();
+        private Endpoint endpoint;
+        private DirContext context;
+        private long start;
+        private boolean closed;
+
+        FailoverContextHandler(ContextFactory contextFactory) {
+            this.contextFactory = contextFactory;
+        }
+
+        /**
+         * Opens a context at the given replica or, if it fails, at the next ones. The replica of the returned context
+         * stays in progress until the context is closed.
+         */
+        DirContext open(Endpoint firstEndpoint) {
+            endpoint = firstEndpoint;
+            while (true) {
+                start = System.nanoTime();
+                try {
+                    context = contextFactory.createContext(servers.get(endpoint.getUrl()));
+                    return context;
+                } catch (AuthenticationException e) {
+                    // the server answered, only the credentials were wrong
+                    loadBalancer.callSucceeded(endpoint, System.nanoTime() - start);
+                    throw e;
+                } catch (NamingException e) {
+                    failOver(e);
+                }
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            if (methodName.equals("close")) {
+                close();
+                return null;
+            }
+            if (methodName.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (methodName.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (closed) {
+                throw new IllegalStateException("The LDAP context has already been closed");
+            }
+            while (true) {
+                try {
+                    return method.invoke(context, args);
+                } catch (InvocationTargetException e) {
+                    if (!isConnectionFailure(e.getCause())) {
+                        throw e.getCause();
+                    }
+                    // the replica of the broken context is reported as failed, it must not be reported again at close
+                    closed = true;
+                    closeBrokenContext();
+                    if (!READING_OPERATIONS.contains(methodName)) {
+                        loadBalancer.callFailed(endpoint);
+                        throw e.getCause();
+                    }
+                    failOver(e.getCause());
+                    open(endpoint);
+                    closed = false;
+                }
+            }
+        }
+
+        /**
+         * Reports the failure of the current replica and chooses the next one.
+         *
+         * @throws Throwable
+         *         the given failure if there is no other replica
+         */
+        private <T extends Throwable> void failOver(T failure) throws T {
+            loadBalancer.callFailed(endpoint);
+            triedEndpoints.add(endpoint);
+            Endpoint nextEndpoint = loadBalancer.chooseOther(triedEndpoints);
+            if (nextEndpoint == null) {
+                throw failure;
+            }
+            LOGGER.warning("The LDAP server " + endpoint + " failed, trying " + nextEndpoint + ": "
+                    + failure.getMessage());
+            endpoint = nextEndpoint;
+            try {
+                Deadline.checkCurrent();
+            } catch (RuntimeException deadlineExceeded) {
+                loadBalancer.callIgnored(endpoint);
+                throw deadlineExceeded;
+            }
+        }
+
+        private void closeBrokenContext() {
+            try {
+                context.close();
+            } catch (javax.naming.NamingException e) {
+                LOGGER.log(Level.FINE, "Could not close the broken LDAP context", e);
+            }
+        }
+
+        private void close() throws javax.naming.NamingException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            loadBalancer.callSucceeded(endpoint, System.nanoTime() - start);
+            context.close();
+        }
+    }
+
+    private interface ContextFactory {
+        DirContext createContext(BaseLdapPathContextSource server);
+    }
+}
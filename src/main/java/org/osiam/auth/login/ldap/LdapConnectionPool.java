@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.login.ldap;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Hashtable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.LimitExceededException;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.osiam.auth.resilience.Deadline;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import com.google.common.base.Ticker;
+
+/**
+ * A pool of connections to an LDAP server. At most the configured number of connections are in use at the same time,
+ * further callers wait for a connection to be given back, but not longer than the configured wait time or the
+ * {@link Deadline} of the current request. Up to the configured size idle connections are kept for reuse, further
+ * connections are closed when they are given back. Connections that have been idle longer than the idle timeout are
+ * closed, connections that have been idle longer than the validation interval are checked with a cheap read before they
+ * are reused.
+ */
+@ManagedResource
+public class LdapConnectionPool {
+
+    private static final Logger LOGGER = Logger.getLogger(LdapConnectionPool.class.getName());
+
+    private static final String[] VALIDATION_ATTRIBUTES = {"objectClass"};
+
+    private final Hashtable<String, Object> environment;
+    private final int maxIdle;
+    private final int maxActive;
+    private final long maxWaitNanos;
+    private final long idleTimeoutNanos;
+    private final long validationIntervalNanos;
+    private final Ticker ticker;
+
+    private final Deque<IdleConnection> idleConnections = new ArrayDeque<>();
+    private final Semaphore permits;
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong createdConnections = new AtomicLong();
+    private final AtomicLong reusedConnections = new AtomicLong();
+    private final AtomicLong closedConnections = new AtomicLong();
+    private final AtomicLong failedValidations = new AtomicLong();
+    private final AtomicLong rejectedBorrows = new AtomicLong();
+
+    public LdapConnectionPool(Hashtable<String, Object> environment, int maxIdle, int maxActive, long maxWaitMillis,
+            long idleTimeout, long validationInterval, TimeUnit unit) {
+        this(environment, maxIdle, maxActive, maxWaitMillis, idleTimeout, validationInterval, unit,
+                Ticker.systemTicker());
+    }
+
+    LdapConnectionPool(Hashtable<String, Object> environment, int maxIdle, int maxActive, long maxWaitMillis,
+            long idleTimeout, long validationInterval, TimeUnit unit, Ticker ticker) {
+        this.environment = environment;
+        this.maxActive = Math.max(1, maxActive);
+        this.maxIdle = Math.min(maxIdle, this.maxActive);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.permits = new Semaphore(this.maxActive, true);
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+        this.validationIntervalNanos = unit.toNanos(validationInterval);
+        this.ticker = ticker;
+    }
+
+    /**
+     * Takes an idle connection from the pool or opens a new one. The connection has to be given back with
+     * {@link #giveBack(LdapContext, boolean)}.
+     *
+     * @throws LimitExceededException
+     *         if all connections are in use and none was given back in time
+     */
+    public LdapContext borrow() throws NamingException {
+        acquirePermit();
+        try {
+            return borrowWithPermit();
+        } catch (NamingException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void acquirePermit() throws NamingException {
+        try {
+            if (!permits.tryAcquire(Deadline.remainingOrMax(maxWaitNanos, TimeUnit.NANOSECONDS),
+                    TimeUnit.NANOSECONDS)) {
+                rejectedBorrows.incrementAndGet();
+                throw new LimitExceededException("All " + maxActive + " connections to the LDAP server are in use");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedNamingException("Interrupted while waiting for a connection to the LDAP server");
+        }
+    }
+
+    private LdapContext borrowWithPermit() throws NamingException {
+        IdleConnection idle;
+        while ((idle = pollIdleConnection()) != null) {
+            long idleTime = ticker.read() - idle.idleSince;
+            if (idleTime > idleTimeoutNanos) {
+                close(idle.context);
+            } else if (idleTime > validationIntervalNanos && !isValid(idle.context)) {
+                failedValidations.incrementAndGet();
+                close(idle.context);
+            } else {
+                reusedConnections.incrementAndGet();
+                activeConnections.incrementAndGet();
+                return idle.context;
+            }
+        }
+
+        LdapContext context = new InitialLdapContext(new Hashtable<>(environment), null);
+        createdConnections.incrementAndGet();
+        activeConnections.incrementAndGet();
+        return context;
+    }
+
+    /**
+     * Gives back a borrowed connection.
+     *
+     * @param reusable
+     *        false if the connection may be broken and has to be closed
+     */
+    public void giveBack(LdapContext context, boolean reusable) {
+        activeConnections.decrementAndGet();
+        try {
+            if (reusable) {
+                synchronized (idleConnections) {
+                    if (idleConnections.size() < maxIdle) {
+                        idleConnections.push(new IdleConnection(context, ticker.read()));
+                        return;
+                    }
+                }
+            }
+            close(context);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    public void close() {
+        IdleConnection idle;
+        while ((idle = pollIdleConnection()) != null) {
+            close(idle.context);
+        }
+    }
+
+    @ManagedAttribute(description = "Connections currently in use")
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @ManagedAttribute(description = "The maximum number of connections in use at the same time")
+    public int getMaxActiveConnections() {
+        return maxActive;
+    }
+
+    @ManagedAttribute(description = "Requests for a connection rejected because all connections were in use")
+    public long getRejectedBorrows() {
+        return rejectedBorrows.get();
+    }
+
+    @ManagedAttribute(description = "Connections waiting in the pool for reuse")
+    public int getIdleConnections() {
+        synchronized (idleConnections) {
+            return idleConnections.size();
+        }
+    }
+
+    @ManagedAttribute(description = "Connections opened since the start")
+    public long getCreatedConnections() {
+        return createdConnections.get();
+    }
+
+    @ManagedAttribute(description = "Connections taken from the pool instead of opening a new one")
+    public long getReusedConnections() {
+        return reusedConnections.get();
+    }
+
+    @ManagedAttribute(description = "Connections closed since the start")
+    public long getClosedConnections() {
+        return closedConnections.get();
+    }
+
+    @ManagedAttribute(description = "Idle connections that turned out to be broken")
+    public long getFailedValidations() {
+        return failedValidations.get();
+    }
+
+    private IdleConnection pollIdleConnection() {
+        synchronized (idleConnections) {
+            return idleConnections.poll();
+        }
+    }
+
+    private boolean isValid(LdapContext context) {
+        try {
+            context.getAttributes("", VALIDATION_ATTRIBUTES);
+            return true;
+        } catch (NamingException e) {
+            LOGGER.log(Level.FINE, "Discarding a broken LDAP connection", e);
+            return false;
+        }
+    }
+
+    private void close(LdapContext context) {
+        closedConnections.incrementAndGet();
+        try {
+            context.close();
+        } catch (NamingException e) {
+            LOGGER.log(Level.FINE, "Unable to close an LDAP connection", e);
+        }
+    }
+
+    private static class IdleConnection {
+
+        private final LdapContext context;
+        private final long idleSince;
+
+        IdleConnection(LdapContext context, long idleSince) {
+            this.context = context;
+            this.idleSince = idleSince;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.auth.login.ldap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.LdapContext;
+
+import org.osiam.auth.exception.LdapConfigurationException;
+import org.osiam.auth.exception.ResourceServerUnavailableException;
+import org.osiam.auth.login.ResourceServerConnector;
+import org.osiam.resources.scim.UpdateUser;
+import org.osiam.resources.scim.User;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.ldap.control.PagedResultsCookie;
+import org.springframework.ldap.control.PagedResultsDirContextProcessor;
+import org.springframework.ldap.core.ContextMapper;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.support.SingleContextSource;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Creates or updates the SCIM users of all users in the LDAP directory in advance, so their first login doesn't have
+ * to wait for the creation of the user at the resource server.
+ * <p/>
+ * The users are searched page by page below the base of every configured DN pattern. The users of a page are
+ * provisioned in parallel by a fixed number of threads, which also limits the load on the resource server. After each
+ * page the number of provisioned entries is written to the checkpoint file, so an interrupted run resumes after the last
+ * completed page. Provisioning a user again is harmless, because unchanged users are not written.
+ */
+@ManagedResource
+public class LdapProvisioningJob implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(LdapProvisioningJob.class.getName());
+
+    private static final String CHECKPOINT_POSITION = "position";
+
+    private final ContextSource contextSource;
+    private final String[] dnPatterns;
+    private final String[] attributes;
+    private final OsiamLdapUserContextMapper mapper;
+    private final ResourceServerConnector resourceServerConnector;
+
+    private int pageSize = 500;
+    private int threads = 4;
+    private String filter;
+    private File checkpointFile;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final AtomicLong provisionedEntries = new AtomicLong();
+    private final AtomicLong createdUsers = new AtomicLong();
+    private final AtomicLong updatedUsers = new AtomicLong();
+    private final AtomicLong unchangedUsers = new AtomicLong();
+    private final AtomicLong skippedUsers = new AtomicLong();
+    private final AtomicLong failedUsers = new AtomicLong();
+
+    public LdapProvisioningJob(ContextSource contextSource, String[] dnPatterns, String[] attributes,
+            OsiamLdapUserContextMapper mapper, ResourceServerConnector resourceServerConnector) {
+        this.contextSource = contextSource;
+        this.dnPatterns = dnPatterns.clone();
+        this.attributes = attributes.clone();
+        this.mapper = mapper;
+        this.resourceServerConnector = resourceServerConnector;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Sets an additional LDAP filter the users have to match, e.g. {@code (objectClass=person)}.
+     */
+    public void setFilter(String filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Sets the file the progress is written to. Without a checkpoint file an interrupted run starts from the beginning.
+     */
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    @ManagedOperation(description = "Starts the provisioning in the background, resuming from the checkpoint")
+    public boolean start() {
+        if (running.get()) {
+            return false;
+        }
+        Thread thread = new Thread(this, "ldap-provisioning");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    @ManagedOperation(description = "Deletes the checkpoint, so the next run starts from the beginning")
+    public void resetCheckpoint() {
+        if (checkpointFile != null && checkpointFile.exists() && !checkpointFile.delete()) {
+            LOGGER.warning("Could not delete the checkpoint file " + checkpointFile);
+        }
+    }
+
+    /**
+     * Provisions all users of the directory in the calling thread. Does nothing if a run is already in progress.
+     */
+    @Override
+    public void run() {
+        if (!running.compareAndSet(false, true)) {
+            LOGGER.info("The LDAP provisioning is already running");
+            return;
+        }
+        resetCounters();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ldap-provisioning-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        DirContext context = null;
+        try {
+            long checkpoint = readCheckpoint();
+            LOGGER.info("Starting the LDAP provisioning" + (checkpoint > 0 ? " after entry " + checkpoint : ""));
+
+            // paged results are bound to the connection they were requested on
+            context = contextSource.getReadOnlyContext();
+            LdapTemplate ldapTemplate = new LdapTemplate(new SingleContextSource(context));
+
+            long position = 0;
+            for (String dnPattern : dnPatterns) {
+                position = provisionUsersOf(dnPattern, ldapTemplate, executor, position, checkpoint);
+                if (position < 0) {
+                    return;
+                }
+            }
+            resetCheckpoint();
+            LOGGER.info("The LDAP provisioning finished: " + createdUsers + " users created, " + updatedUsers
+                    + " updated, " + unchangedUsers + " unchanged, " + skippedUsers + " skipped, " + failedUsers
+                    + " failed");
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "The LDAP provisioning failed", e);
+        } finally {
+            executor.shutdownNow();
+            if (context != null) {
+                closeContext(context);
+            }
+            running.set(false);
+        }
+    }
+
+    @ManagedAttribute(description = "Whether the provisioning is running")
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @ManagedAttribute(description = "Entries provisioned by the current or last run")
+    public long getProvisionedEntries() {
+        return provisionedEntries.get();
+    }
+
+    @ManagedAttribute(description = "Users created by the current or last run")
+    public long getCreatedUsers() {
+        return createdUsers.get();
+    }
+
+    @ManagedAttribute(description = "Users updated by the current or last run")
+    public long getUpdatedUsers() {
+        return updatedUsers.get();
+    }
+
+    @ManagedAttribute(description = "Users that were already up to date in the current or last run")
+    public long getUnchangedUsers() {
+        return unchangedUsers.get();
+    }
+
+    @ManagedAttribute(description = "Users skipped, because an internal user with the same name exists")
+    public long getSkippedUsers() {
+        return skippedUsers.get();
+    }
+
+    @ManagedAttribute(description = "Users that could not be provisioned in the current or last run")
+    public long getFailedUsers() {
+        return failedUsers.get();
+    }
+
+    /**
+     * @return the position after the last entry of the DN pattern, or -1 if the run has to be stopped
+     */
+    private long provisionUsersOf(String dnPattern, LdapTemplate ldapTemplate, ExecutorService executor,
+            long position, long checkpoint) {
+        int separator = dnPattern.indexOf(',');
+        String rdn = separator < 0 ? dnPattern : dnPattern.substring(0, separator);
+        String base = separator < 0 ? "" : dnPattern.substring(separator + 1).trim();
+        if (!rdn.contains("={0}")) {
+            throw new LdapConfigurationException("The DN pattern '" + dnPattern
+                    + "' can't be used for provisioning, because its first RDN is not of the form <attribute>={0}");
+        }
+        final String userNameAttribute = rdn.substring(0, rdn.indexOf('=')).trim();
+        String userFilter = "(" + userNameAttribute + "=*)";
+        if (!Strings.isNullOrEmpty(filter)) {
+            userFilter = "(&" + userFilter + filter + ")";
+        }
+
+        SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        searchControls.setReturningAttributes(withAttribute(attributes, userNameAttribute));
+
+        PagedResultsCookie cookie = null;
+        do {
+            PagedResultsDirContextProcessor pagedResults = new PagedResultsDirContextProcessor(pageSize, cookie);
+            @SuppressWarnings("unchecked")
+            List<DirContextOperations> page = ldapTemplate.search(base, userFilter, searchControls,
+                    new ContextMapper() {
+                        @Override
+                        public Object mapFromContext(Object ctx) {
+                            return ctx;
+                        }
+                    }, pagedResults);
+
+            List<Future<?>> provisionings = new ArrayList<>();
+            for (final DirContextOperations entry : page) {
+                if (++position <= checkpoint) {
+                    continue;
+                }
+                provisionings.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        provision(entry.getStringAttribute(userNameAttribute), entry);
+                        return null;
+                    }
+                }));
+            }
+            if (!awaitPage(provisionings)) {
+                LOGGER.warning("Stopping the LDAP provisioning, because the resource server is unavailable."
+                        + " It will resume after entry " + Math.max(checkpoint, position - page.size()));
+                return -1;
+            }
+            if (position > checkpoint) {
+                writeCheckpoint(position);
+            }
+            cookie = pagedResults.getCookie();
+        } while (cookie != null && cookie.getCookie() != null);
+
+        return position;
+    }
+
+    /**
+     * @return false if the resource server became unavailable while the page was provisioned
+     */
+    private boolean awaitPage(List<Future<?>> provisionings) {
+        boolean resourceServerAvailable = true;
+        for (Future<?> provisioning : provisionings) {
+            try {
+                Uninterruptibles.getUninterruptibly(provisioning);
+            } catch (ExecutionException e) {
+                resourceServerAvailable &= !(e.getCause() instanceof ResourceServerUnavailableException);
+            }
+        }
+        return resourceServerAvailable;
+    }
+
+    private void provision(String userName, DirContextOperations ldapUserData) {
+        try {
+            User user = resourceServerConnector.getUserByUsername(userName);
+            if (user == null) {
+                resourceServerConnector.createUser(mapper.mapUser(ldapUserData));
+                createdUsers.incrementAndGet();
+            } else if (!OsiamLdapUserContextMapper.isLdapUser(user)) {
+                skippedUsers.incrementAndGet();
+            } else {
+                UpdateUser updateUser = mapper.mapUpdateUser(user, ldapUserData);
+                if (updateUser == null) {
+                    unchangedUsers.incrementAndGet();
+                } else {
+                    resourceServerConnector.updateUser(user.getId(), updateUser);
+                    updatedUsers.incrementAndGet();
+                }
+            }
+            provisionedEntries.incrementAndGet();
+        } catch (ResourceServerUnavailableException e) {
+            failedUsers.incrementAndGet();
+            throw e;
+        } catch (RuntimeException e) {
+            failedUsers.incrementAndGet();
+            LOGGER.log(Level.WARNING, "Could not provision the LDAP user '" + userName + "'", e);
+        }
+    }
+
+    private void resetCounters() {
+        provisionedEntries.set(0);
+        createdUsers.set(0);
+        updatedUsers.set(0);
+        unchangedUsers.set(0);
+        skippedUsers.set(0);
+        failedUsers.set(0);
+    }
+
+    private long readCheckpoint() {
+        if (checkpointFile == null || !checkpointFile.exists()) {
+            return 0;
+        }
+        Properties checkpoint = new Properties();
+        try (InputStream in = new FileInputStream(checkpointFile)) {
+            checkpoint.load(in);
+            return Long.parseLong(checkpoint.getProperty(CHECKPOINT_POSITION, "0"));
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Could not read the checkpoint file " + checkpointFile
+                    + ", starting from the beginning", e);
+            return 0;
+        }
+    }
+
+    private void writeCheckpoint(long position) {
+        if (checkpointFile == null) {
+            return;
+        }
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty(CHECKPOINT_POSITION, String.valueOf(position));
+        try (OutputStream out = new FileOutputStream(checkpointFile)) {
+            checkpoint.store(out, "Progress of the LDAP provisioning");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write the checkpoint file " + checkpointFile, e);
+        }
+    }
+
+    /**
+     * Removes the paged results control before the context is closed, because a pooled context is used again for
+     * other searches.
+     */
+    private void closeContext(DirContext context) {
+        try {
+            if (context instanceof LdapContext) {
+                ((LdapContext) context).setRequestControls(null);
+            }
+            context.close();
+        } catch (NamingException e) {
+            LOGGER.log(Level.FINE, "Could not close the LDAP context", e);
+        }
+    }
+
+    private static String[] withAttribute(String[] attributes, String attribute) {
+        String[] result = new String[attributes.length + 1];
+        System.arraycopy(attributes, 0, result, 0, attributes.length);
+        result[attributes.length] = attribute;
+        return result;
+    }
+}
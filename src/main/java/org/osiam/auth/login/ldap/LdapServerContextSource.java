@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.login.ldap;
+
+import java.util.Hashtable;
+
+import javax.naming.Context;
+
+import org.springframework.ldap.core.AuthenticationSource;
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource;
+
+/**
+ * The context source of a single LDAP server. It exposes the JNDI environments it opens its connections with, so the
+ * {@link PooledLdapContextSource} opens its connections exactly like this context source would, i.e. with the
+ * configured manager DN, referral handling and base environment.
+ */
+public class LdapServerContextSource extends DefaultSpringSecurityContextSource {
+
+    public LdapServerContextSource(String providerUrl) {
+        super(providerUrl);
+    }
+
+    /**
+     * @return the environment of the connections used to search the directory, authenticated with the manager DN
+     *         unless the context source is anonymous read-only
+     */
+    @SuppressWarnings("unchecked")
+    public Hashtable<String, Object> getReadOnlyEnvironment() {
+        if (isAnonymousReadOnly()) {
+            return getBindEnvironment();
+        }
+        AuthenticationSource authenticationSource = getAuthenticationSource();
+        return withoutJndiPooling(getAuthenticatedEnv(authenticationSource.getPrincipal(),
+                authenticationSource.getCredentials()));
+    }
+
+    /**
+     * @return the environment of the connections that are bound with the credentials of the users, without any
+     *         credentials
+     */
+    @SuppressWarnings("unchecked")
+    public Hashtable<String, Object> getBindEnvironment() {
+        Hashtable<String, Object> environment = withoutJndiPooling(getAnonymousEnv());
+        environment.put(Context.SECURITY_AUTHENTICATION, "none");
+        return environment;
+    }
+
+    /**
+     * The connections are pooled by the {@link PooledLdapContextSource}, so the connection pool of JNDI must not keep
+     * them as well.
+     */
+    private static Hashtable<String, Object> withoutJndiPooling(Hashtable<String, Object> environment) {
+        Hashtable<String, Object> copy = new Hashtable<>(environment);
+        copy.remove(SUN_LDAP_POOLING_FLAG);
+        return copy;
+    }
+}
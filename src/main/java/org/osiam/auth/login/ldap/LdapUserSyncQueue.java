@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.auth.login.ldap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osiam.auth.exception.ResourceServerUnavailableException;
+import org.osiam.auth.login.ResourceServerConnector;
+import org.osiam.resources.scim.UpdateUser;
+import org.osiam.resources.scim.User;
+import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Sends the changes of LDAP users to the resource server in the background, so the login doesn't wait for the update.
+ * <p/>
+ * The queue holds at most one update per user: an update for a user that is still waiting replaces the waiting one.
+ * Every update is computed against the state of the user at the resource server that the login has read, so an update
+ * is only valid as long as no other update of the user was sent in the meantime. Only one update per user is sent at a
+ * time: an update submitted while another update of the same user is being sent waits for it and is computed again
+ * from the LDAP data against the user read anew from the resource server before it is sent, so the multi-valued
+ * attributes added by both updates don't end up twice at the user. Updates that fail because the resource server is
+ * unavailable are retried with exponential backoff, unless a newer update for the same user arrived in the meantime.
+ * A retry is always computed again against the user read anew, because the failed update may have been applied before
+ * the connection broke.
+ */
+@ManagedResource
+public class LdapUserSyncQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(LdapUserSyncQueue.class.getName());
+
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ResourceServerConnector resourceServerConnector;
+    private final OsiamLdapUserContextMapper osiamLdapUserContextMapper;
+    private final int capacity;
+    private final int maxRetries;
+    private final long retryDelayMillis;
+
+    private final LinkedHashMap<String, PendingUpdate> pendingUpdates = new LinkedHashMap<>();
+    private final Set<String> sendingUserIds = new HashSet<>();
+    private final Map<String, PendingUpdate> retryingUpdates = new HashMap<>();
+
+    private final AtomicLong completedUpdates = new AtomicLong();
+    private final AtomicLong coalescedUpdates = new AtomicLong();
+    private final AtomicLong rejectedUpdates = new AtomicLong();
+    private final AtomicLong retriedUpdates = new AtomicLong();
+    private final AtomicLong failedUpdates = new AtomicLong();
+    private final AtomicLong recomputedUpdates = new AtomicLong();
+
+    private Thread worker;
+    private ScheduledExecutorService retryScheduler;
+
+    public LdapUserSyncQueue(ResourceServerConnector resourceServerConnector,
+            OsiamLdapUserContextMapper osiamLdapUserContextMapper, int capacity, int maxRetries,
+            long retryDelayMillis) {
+        this.resourceServerConnector = resourceServerConnector;
+        this.osiamLdapUserContextMapper = osiamLdapUserContextMapper;
+        this.capacity = capacity;
+        this.maxRetries = maxRetries;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ldap-user-sync-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processUpdates();
+            }
+        }, "ldap-user-sync");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        if (worker == null) {
+            return;
+        }
+        worker.interrupt();
+        retryScheduler.shutdownNow();
+        retryingUpdates.clear();
+        worker = null;
+        if (!pendingUpdates.isEmpty()) {
+            LOGGER.warning(pendingUpdates.size() + " updates of LDAP users were not sent to the resource server,"
+                    + " they will be sent at the next login of the users");
+            pendingUpdates.clear();
+        }
+    }
+
+    /**
+     * Queues the update of a user, replacing an update of the same user that is still waiting.
+     *
+     * @param updateUser
+     *        the update computed against the user read from the resource server
+     * @param ldapUserData
+     *        the LDAP data the update was computed from, to compute it again if another update of the user is sent
+     *        before it
+     * @return false if the queue is full and the caller has to send the update itself
+     */
+    public synchronized boolean submit(String userId, UpdateUser updateUser, DirContextOperations ldapUserData) {
+        retryingUpdates.remove(userId);
+        PendingUpdate waitingUpdate = pendingUpdates.get(userId);
+        boolean stale = sendingUserIds.contains(userId) || waitingUpdate != null && waitingUpdate.stale;
+        if (waitingUpdate != null) {
+            pendingUpdates.put(userId, new PendingUpdate(userId, updateUser, ldapUserData, 0, stale));
+            coalescedUpdates.incrementAndGet();
+            return true;
+        }
+        if (worker == null || pendingUpdates.size() >= capacity) {
+            rejectedUpdates.incrementAndGet();
+            return false;
+        }
+        pendingUpdates.put(userId, new PendingUpdate(userId, updateUser, ldapUserData, 0, stale));
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Drops a waiting update of the user, because the user at the resource server was found to be up to date or is
+     * updated by the caller itself. If an update of the user is being sent, waits until it is done.
+     *
+     * @return true if an update of the user was being sent, so the caller has to read the user again before computing
+     *         its own update
+     */
+    public synchronized boolean discard(String userId) {
+        pendingUpdates.remove(userId);
+        retryingUpdates.remove(userId);
+        boolean waited = false;
+        while (sendingUserIds.contains(userId)) {
+            waited = true;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return true;
+            }
+        }
+        return waited;
+    }
+
+    @ManagedAttribute(description = "Updates waiting to be sent to the resource server")
+    public synchronized int getQueuedUpdates() {
+        return pendingUpdates.size();
+    }
+
+    @ManagedAttribute(description = "Updates sent to the resource server")
+    public long getCompletedUpdates() {
+        return completedUpdates.get();
+    }
+
+    @ManagedAttribute(description = "Updates replaced by a newer update of the same user")
+    public long getCoalescedUpdates() {
+        return coalescedUpdates.get();
+    }
+
+    @ManagedAttribute(description = "Updates not queued because the queue was full")
+    public long getRejectedUpdates() {
+        return rejectedUpdates.get();
+    }
+
+    @ManagedAttribute(description = "Retries of updates after the resource server was unavailable")
+    public long getRetriedUpdates() {
+        return retriedUpdates.get();
+    }
+
+    @ManagedAttribute(description = "Updates given up after failing")
+    public long getFailedUpdates() {
+        return failedUpdates.get();
+    }
+
+    @ManagedAttribute(description = "Updates computed again because another update of the user was sent before them"
+            + " or they are retried")
+    public long getRecomputedUpdates() {
+        return recomputedUpdates.get();
+    }
+
+    private void processUpdates() {
+        while (!Thread.currentThread().isInterrupted()) {
+            PendingUpdate pendingUpdate;
+            try {
+                pendingUpdate = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            send(pendingUpdate);
+        }
+    }
+
+    private synchronized PendingUpdate take() throws InterruptedException {
+        while (true) {
+            Iterator<PendingUpdate> iterator = pendingUpdates.values().iterator();
+            while (iterator.hasNext()) {
+                PendingUpdate pendingUpdate = iterator.next();
+                if (sendingUserIds.add(pendingUpdate.userId)) {
+                    iterator.remove();
+                    return pendingUpdate;
+                }
+            }
+            wait();
+        }
+    }
+
+    private synchronized void finishSending(String userId) {
+        sendingUserIds.remove(userId);
+        notifyAll();
+    }
+
+    private void send(PendingUpdate pendingUpdate) {
+        try {
+            UpdateUser updateUser = pendingUpdate.stale ? recompute(pendingUpdate) : pendingUpdate.updateUser;
+            if (updateUser != null) {
+                resourceServerConnector.updateUser(pendingUpdate.userId, updateUser);
+            }
+            completedUpdates.incrementAndGet();
+        } catch (ResourceServerUnavailableException e) {
+            scheduleRetry(pendingUpdate, e);
+        } catch (RuntimeException e) {
+            failedUpdates.incrementAndGet();
+            LOGGER.log(Level.WARNING, "Could not update the LDAP user with id '" + pendingUpdate.userId
+                    + "' at the resource server", e);
+        } finally {
+            finishSending(pendingUpdate.userId);
+        }
+    }
+
+    private UpdateUser recompute(PendingUpdate pendingUpdate) {
+        recomputedUpdates.incrementAndGet();
+        User user = resourceServerConnector.getUserById(pendingUpdate.userId);
+        return osiamLdapUserContextMapper.mapUpdateUser(user, pendingUpdate.ldapUserData);
+    }
+
+    private void scheduleRetry(final PendingUpdate pendingUpdate, ResourceServerUnavailableException cause) {
+        if (pendingUpdate.attempt >= maxRetries) {
+            failedUpdates.incrementAndGet();
+            LOGGER.log(Level.WARNING, "Giving up to update the LDAP user with id '" + pendingUpdate.userId
+                    + "' at the resource server after " + (pendingUpdate.attempt + 1) + " attempts", cause);
+            return;
+        }
+        long delay = Math.min(MAX_RETRY_DELAY_MILLIS, retryDelayMillis << Math.min(pendingUpdate.attempt, 30));
+        synchronized (this) {
+            if (worker == null || pendingUpdates.containsKey(pendingUpdate.userId)) {
+                // a newer update of the user is waiting and supersedes the failed one
+                return;
+            }
+            retryingUpdates.put(pendingUpdate.userId, pendingUpdate);
+            retryScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    requeue(pendingUpdate);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void requeue(PendingUpdate pendingUpdate) {
+        if (retryingUpdates.get(pendingUpdate.userId) != pendingUpdate) {
+            // a newer update of the user was submitted or discarded since, it supersedes the failed one
+            return;
+        }
+        retryingUpdates.remove(pendingUpdate.userId);
+        retriedUpdates.incrementAndGet();
+        // the failed update may have been applied nonetheless, so it is computed again against the user read anew
+        pendingUpdates.put(pendingUpdate.userId, new PendingUpdate(pendingUpdate.userId, pendingUpdate.updateUser,
+                pendingUpdate.ldapUserData, pendingUpdate.attempt + 1, true));
+        notifyAll();
+    }
+
+    private static class PendingUpdate {
+
+        private final String userId;
+        private final UpdateUser updateUser;
+        private final DirContextOperations ldapUserData;
+        private final int attempt;
+        private final boolean stale;
+
+        PendingUpdate(String userId, UpdateUser updateUser, DirContextOperations ldapUserData, int attempt,
+                boolean stale) {
+            this.userId = userId;
+            this.updateUser = updateUser;
+            this.ldapUserData = ldapUserData;
+            this.attempt = attempt;
+            this.stale = stale;
+        }
+    }
+}
@@ -25,34 +25,46 @@ package org.osiam.auth.login.ldap;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
 import org.osiam.auth.configuration.LdapConfiguration;
 import org.osiam.auth.exception.LdapAuthenticationProcessException;
+import org.osiam.auth.login.AsyncResourceServerConnector;
 import org.osiam.auth.login.ResourceServerConnector;
-import org.osiam.resources.scim.Extension;
+import org.osiam.auth.resilience.AdaptiveConcurrencyLimiter;
+import org.osiam.auth.resilience.Deadline;
 import org.osiam.resources.scim.Role;
 import org.osiam.resources.scim.UpdateUser;
 import org.osiam.resources.scim.User;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.authentication.DisabledException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
-import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.ldap.authentication.LdapAuthenticationProvider;
 import org.springframework.security.ldap.authentication.LdapAuthenticator;
 import org.springframework.security.ldap.userdetails.LdapAuthoritiesPopulator;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public class OsiamLdapAuthenticationProvider extends LdapAuthenticationProvider {
 
+    private static final int USER_NAME_CACHE_SIZE = 10000;
+    private static final long USER_NAME_CACHE_TTL_MINUTES = 5;
+
     @Inject
     private ResourceServerConnector resourceServerConnector;
 
@@ -61,6 +73,31 @@ public class OsiamLdapAuthenticationProvider extends LdapAuthenticationProvider
 
     private OsiamLdapUserContextMapper osiamLdapUserContextMapper;
 
+    private AdaptiveConcurrencyLimiter bindConcurrencyLimiter;
+
+    private AsyncResourceServerConnector asyncResourceServerConnector;
+
+    private LdapUserSyncQueue userSyncQueue;
+
+    /**
+     * The user names that were recently found to belong to internal users, so further logins with these names are
+     * rejected without a bind against the LDAP server.
+     */
+    private final Cache<String, Boolean> internalUserNames = CacheBuilder.newBuilder()
+            .maximumSize(USER_NAME_CACHE_SIZE)
+            .expireAfterWrite(USER_NAME_CACHE_TTL_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * The user names that were recently found to belong to LDAP users or to no user at all, so the lookup of these
+     * users at the resource server can run while the bind is in progress. For all other names the lookup has to finish
+     * before the bind, so the password of an internal user is never sent to the LDAP server.
+     */
+    private final Cache<String, Boolean> ldapUserNames = CacheBuilder.newBuilder()
+            .maximumSize(USER_NAME_CACHE_SIZE)
+            .expireAfterWrite(USER_NAME_CACHE_TTL_MINUTES, TimeUnit.MINUTES)
+            .build();
+
     public OsiamLdapAuthenticationProvider(LdapAuthenticator authenticator,
             LdapAuthoritiesPopulator authoritiesPopulator, OsiamLdapUserContextMapper osiamLdapUserContextMapper) {
         super(authenticator, authoritiesPopulator);
@@ -85,13 +122,41 @@ public class OsiamLdapAuthenticationProvider extends LdapAuthenticationProvider
             throw new BadCredentialsException("OsiamLdapAuthenticationProvider: Empty Password");
         }
 
-        User user = resourceServerConnector.getUserByUsername(username);
-        checkIfInternalUserExists(user);
+        if (internalUserNames.getIfPresent(username) != null) {
+            throw internalUserExists(username);
+        }
 
-        DirContextOperations userData = doAuthentication(userToken);
+        DirContextOperations userData;
+        User user;
+        if (asyncResourceServerConnector == null) {
+            user = resourceServerConnector.getUserByUsername(username);
+            checkIfInternalUserExists(user);
+            userData = bind(userToken);
+        } else {
+            // the user is looked up while the bind is in progress, its errors still take precedence over the ones of
+            // the bind
+            Future<User> pendingUser = asyncResourceServerConnector.getUserByUsername(username);
+            if (pendingUser.isDone() || ldapUserNames.getIfPresent(username) == null) {
+                // the name may belong to an internal user, so it is rejected without a bind
+                checkIfInternalUserExists(getUser(pendingUser));
+            }
+            RuntimeException bindError = null;
+            userData = null;
+            try {
+                userData = bind(userToken);
+            } catch (RuntimeException e) {
+                bindError = e;
+            }
+            user = getUser(pendingUser);
+            checkIfInternalUserExists(user);
+            ldapUserNames.put(username, Boolean.TRUE);
+            if (bindError != null) {
+                throw bindError;
+            }
+        }
 
-        UserDetails ldapUser = osiamLdapUserContextMapper.mapUserFromContext(userData, authentication.getName(),
-                loadUserAuthorities(userData, authentication.getName(), (String) authentication.getCredentials()));
+        // the authorities are taken from the roles of the SCIM user, so the groups of the user in the directory are
+        // not loaded
 
         user = synchronizeLdapData(userData, user);
         
@@ -113,20 +178,76 @@ public class OsiamLdapAuthenticationProvider extends LdapAuthenticationProvider
         return result;
     }
     
-    private void checkIfInternalUserExists(User user) {
-        if (user != null && !hasAuthServerExtension(user)) {
-            throw new LdapAuthenticationProcessException("Can't create the ldap user with the username '"
-                    + user.getUserName() + "'. An internal user with the same username already exists.");
+    /**
+     * Sets the limiter for concurrent binds against the LDAP server. Without a limiter the number of concurrent binds
+     * is not limited.
+     */
+    public void setBindConcurrencyLimiter(AdaptiveConcurrencyLimiter bindConcurrencyLimiter) {
+        this.bindConcurrencyLimiter = bindConcurrencyLimiter;
+    }
+
+    /**
+     * Sets the connector used to look up the user at the resource server while the bind against the LDAP server is in
+     * progress. Without it the user is looked up before the bind.
+     */
+    public void setAsyncResourceServerConnector(AsyncResourceServerConnector asyncResourceServerConnector) {
+        this.asyncResourceServerConnector = asyncResourceServerConnector;
+    }
+
+    /**
+     * Sets the queue that sends the changes of existing users to the resource server in the background. Without a
+     * queue the changes are sent before the login completes.
+     */
+    public void setUserSyncQueue(LdapUserSyncQueue userSyncQueue) {
+        this.userSyncQueue = userSyncQueue;
+    }
+
+    private DirContextOperations bind(OsiamLdapAuthentication userToken) {
+        Deadline.checkCurrent();
+
+        if (bindConcurrencyLimiter == null) {
+            return doAuthentication(userToken);
+        }
+
+        if (!bindConcurrencyLimiter.tryAcquire()) {
+            Deadline.checkCurrent();
+            throw new AuthenticationServiceException("Too many concurrent requests to the LDAP server");
+        }
+
+        long start = System.nanoTime();
+        try {
+            DirContextOperations userData = doAuthentication(userToken);
+            bindConcurrencyLimiter.release(System.nanoTime() - start);
+            return userData;
+        } catch (BadCredentialsException e) {
+            bindConcurrencyLimiter.release(System.nanoTime() - start);
+            throw e;
+        } catch (RuntimeException e) {
+            bindConcurrencyLimiter.releaseDropped();
+            throw e;
+        }
+    }
+
+    private User getUser(Future<User> pendingUser) {
+        try {
+            return Uninterruptibles.getUninterruptibly(pendingUser);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new AuthenticationServiceException("Could not look up the user at the resource server", e.getCause());
         }
     }
 
-    private boolean hasAuthServerExtension(User user) {
-        if (!user.isExtensionPresent(LdapConfiguration.AUTH_EXTENSION)) {
-            return false;
+    private void checkIfInternalUserExists(User user) {
+        if (user != null && !OsiamLdapUserContextMapper.isLdapUser(user)) {
+            ldapUserNames.invalidate(user.getUserName());
+            internalUserNames.put(user.getUserName(), Boolean.TRUE);
+            throw internalUserExists(user.getUserName());
         }
-        Extension authExtension = user.getExtension(LdapConfiguration.AUTH_EXTENSION);
-        return authExtension.isFieldPresent("origin")
-                && authExtension.getFieldAsString("origin").equals(LdapConfiguration.LDAP_PROVIDER);
+    }
+
+    private LdapAuthenticationProcessException internalUserExists(String username) {
+        return new LdapAuthenticationProcessException("Can't create the ldap user with the username '" + username
+                + "'. An internal user with the same username already exists.");
     }
 
     private User synchronizeLdapData(DirContextOperations ldapUserData, User user) {
@@ -137,11 +258,30 @@ public class OsiamLdapAuthenticationProvider extends LdapAuthenticationProvider
             user = resourceServerConnector.createUser(user);
         } else if (syncUserData && userExists) {
             UpdateUser updateUser = osiamLdapUserContextMapper.mapUpdateUser(user, ldapUserData);
-            user = resourceServerConnector.updateUser(user.getId(), updateUser);
+            if (updateUser != null && userSyncQueue != null && !changesRoles(updateUser)
+                    && userSyncQueue.submit(user.getId(), updateUser, ldapUserData)) {
+                return user;
+            }
+            if (userSyncQueue != null && userSyncQueue.discard(user.getId())) {
+                // the user was changed by the update sent in the background, so the update is computed again
+                user = resourceServerConnector.getUserById(user.getId());
+                updateUser = osiamLdapUserContextMapper.mapUpdateUser(user, ldapUserData);
+            }
+            if (updateUser != null) {
+                user = resourceServerConnector.updateUser(user.getId(), updateUser);
+            }
         }
         return user;
     }
 
+    /**
+     * The authorities of the login are taken from the roles of the updated user, so an update of the roles can't be
+     * sent in the background.
+     */
+    private boolean changesRoles(UpdateUser updateUser) {
+        return !updateUser.getScimConformUpdateUser().getRoles().isEmpty();
+    }
+
     @Override
     public boolean supports(Class<?> authentication) {
         return OsiamLdapAuthentication.class.isAssignableFrom(authentication);
@@ -26,6 +26,7 @@ package org.osiam.auth.login.ldap;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -48,79 +49,98 @@ import org.springframework.ldap.core.DirContextOperations;
 import org.springframework.security.ldap.userdetails.LdapUserDetailsMapper;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
+/**
+ * Maps the data of a LDAP user into a SCIM user. The configured mapping is compiled once into a plan, so a login reads
+ * every mapped LDAP attribute exactly once and doesn't need to look at the names of the SCIM attributes again.
+ */
 public class OsiamLdapUserContextMapper extends LdapUserDetailsMapper {
 
-    private Map<String, String> scimLdapAttributes;
+    private final ImmutableList<AttributeMapping> mappingPlan;
+    private final boolean addressMapped;
+    private final boolean nameMapped;
 
     public OsiamLdapUserContextMapper(Map<String, String> scimLdapAttributes) {
-        this.scimLdapAttributes = scimLdapAttributes;
+        ImmutableList.Builder<AttributeMapping> planBuilder = ImmutableList.builder();
+        boolean addressFound = false;
+        boolean nameFound = false;
+        for (Map.Entry<String, String> scimLdapAttribute : scimLdapAttributes.entrySet()) {
+            ScimAttribute scimAttribute = ScimAttribute.forName(scimLdapAttribute.getKey());
+            planBuilder.add(new AttributeMapping(scimAttribute, scimLdapAttribute.getValue()));
+            addressFound |= scimAttribute.isAddress();
+            nameFound |= scimAttribute.isName();
+        }
+        mappingPlan = planBuilder.build();
+        addressMapped = addressFound;
+        nameMapped = nameFound;
     }
 
     public User mapUser(DirContextOperations ldapUserData) {
+        EnumMap<ScimAttribute, String> ldapValues = readLdapValues(ldapUserData);
 
         Extension extension = new Extension.Builder(LdapConfiguration.AUTH_EXTENSION)
                 .setField("origin", LdapConfiguration.LDAP_PROVIDER)
                 .build();
 
-        String userName = ldapUserData.getStringAttribute(scimLdapAttributes.get("userName"));
+        String userName = ldapValues.get(ScimAttribute.USER_NAME);
         User.Builder builder = new User.Builder(userName)
                 .addExtension(extension)
                 .setActive(true)
                 .setPassword(UUID.randomUUID().toString() + UUID.randomUUID().toString());
 
-        for (String scimAttribute : scimLdapAttributes.keySet()) {
-            String ldapAttribute = scimLdapAttributes.get(scimAttribute);
-            String ldapValue = ldapUserData.getStringAttribute(ldapAttribute);
+        for (AttributeMapping mapping : mappingPlan) {
+            String ldapValue = ldapValues.get(mapping.scimAttribute);
 
             if (Strings.isNullOrEmpty(ldapValue)) {
                 continue;
             }
 
-            switch (scimAttribute) {
-            case "userName":
+            switch (mapping.scimAttribute) {
+            case USER_NAME:
                 break;
-            case "displayName":
+            case DISPLAY_NAME:
                 builder.setDisplayName(ldapValue);
                 break;
-            case "email":
+            case EMAIL:
                 Email.Builder emailBuilder = new Email.Builder().setValue(ldapValue)
                         .setType(new Email.Type(LdapConfiguration.LDAP_PROVIDER));
                 List<Email> emails = new ArrayList<Email>();
                 emails.add(emailBuilder.build());
                 builder.addEmails(emails);
                 break;
-            case "entitlement":
+            case ENTITLEMENT:
                 Entitlement.Builder entitlementBuilder = new Entitlement.Builder().setValue(ldapValue)
                         .setType(new Entitlement.Type(LdapConfiguration.LDAP_PROVIDER));
                 List<Entitlement> entitlements = new ArrayList<Entitlement>();
                 entitlements.add(entitlementBuilder.build());
                 builder.addEntitlements(entitlements);
                 break;
-            case "externalId":
+            case EXTERNAL_ID:
                 builder.setExternalId(ldapValue);
                 break;
-            case "im":
+            case IM:
                 Im.Builder imBuilder = new Im.Builder().setValue(ldapValue)
                         .setType(new Im.Type(LdapConfiguration.LDAP_PROVIDER));
                 List<Im> ims = new ArrayList<Im>();
                 ims.add(imBuilder.build());
                 builder.addIms(ims);
                 break;
-            case "locale":
+            case LOCALE:
                 builder.setLocale(ldapValue);
                 break;
-            case "nickName":
+            case NICK_NAME:
                 builder.setNickName(ldapValue);
                 break;
-            case "phoneNumber":
+            case PHONE_NUMBER:
                 PhoneNumber.Builder phoneNumberBuilder = new PhoneNumber.Builder().setValue(ldapValue)
                         .setType(new PhoneNumber.Type(LdapConfiguration.LDAP_PROVIDER));
                 List<PhoneNumber> phoneNumbers = new ArrayList<PhoneNumber>();
                 phoneNumbers.add(phoneNumberBuilder.build());
                 builder.addPhoneNumbers(phoneNumbers);
                 break;
-            case "photo":
+            case PHOTO:
                 Photo.Builder photoBuilder;
                 try {
                     photoBuilder = new Photo.Builder().setValue(new URI(ldapValue))
@@ -130,33 +150,33 @@ public class OsiamLdapUserContextMapper extends LdapUserDetailsMapper {
                     builder.addPhotos(photos);
                 } catch (URISyntaxException e) {
                     throw new LdapConfigurationException("Could not map the ldap attibute '"
-                            + ldapAttribute + "' with the value '" + ldapValue
+                            + mapping.ldapAttribute + "' with the value '" + ldapValue
                             + "' into an scim photo because the value could not be conferted into an URI.", e);
                 }
                 break;
-            case "preferredLanguage":
+            case PREFERRED_LANGUAGE:
                 builder.setPreferredLanguage(ldapValue);
                 break;
-            case "profileUrl":
+            case PROFILE_URL:
                 builder.setProfileUrl(ldapValue);
                 break;
-            case "role":
+            case ROLE:
                 Role.Builder roleBuilder = new Role.Builder().setValue(ldapValue)
                         .setType(new Role.Type(LdapConfiguration.LDAP_PROVIDER));
                 List<Role> roles = new ArrayList<Role>();
                 roles.add(roleBuilder.build());
                 builder.addRoles(roles);
                 break;
-            case "timezone":
+            case TIMEZONE:
                 builder.setTimezone(ldapValue);
                 break;
-            case "title":
+            case TITLE:
                 builder.setTitle(ldapValue);
                 break;
-            case "userType":
+            case USER_TYPE:
                 builder.setUserType(ldapValue);
                 break;
-            case "x509Certificate":
+            case X509_CERTIFICATE:
                 X509Certificate.Builder x509CertificateBuilder = new X509Certificate.Builder().setValue(ldapValue)
                         .setType(new X509Certificate.Type(LdapConfiguration.LDAP_PROVIDER));
                 List<X509Certificate> x509Certificates = new ArrayList<X509Certificate>();
@@ -164,168 +184,330 @@ public class OsiamLdapUserContextMapper extends LdapUserDetailsMapper {
                 builder.addX509Certificates(x509Certificates);
                 break;
             default:
-                if (!scimAttribute.startsWith("address.") && !scimAttribute.startsWith("name.")) {
-                    throw createAttributeNotRecnoizedException(scimAttribute);
-                }
+                // the user name is already set, addresses and names are mapped below
                 break;
             }
         }
 
-        builder.addAddresses(getAddresses(ldapUserData));
-        builder.setName(getName(ldapUserData));
+        builder.addAddresses(getAddresses(ldapValues));
+        builder.setName(getName(ldapValues));
 
         return builder.build();
     }
 
+    /**
+     * Maps the data of the ldap user into an update of the given SCIM user. Only the attributes whose values differ
+     * from the ones the SCIM user already has are part of the update, so a login without any changes in the directory
+     * doesn't cause a write at the resource server.
+     *
+     * @return the changes to apply to the SCIM user, or {@code null} if the SCIM user is already up to date
+     */
     public UpdateUser mapUpdateUser(User user, DirContextOperations ldapUserData) {
 
+        EnumMap<ScimAttribute, String> ldapValues = readLdapValues(ldapUserData);
         UpdateUser.Builder updateBuilder = new UpdateUser.Builder();
+        boolean changed = false;
 
-        for (String scimAttribute : scimLdapAttributes.keySet()) {
-            String ldapValue = ldapUserData.getStringAttribute(scimLdapAttributes.get(scimAttribute));
-
-            if (ldapValue == null) {
-                ldapValue = "";
-            }
+        for (AttributeMapping mapping : mappingPlan) {
+            String ldapValue = Strings.nullToEmpty(ldapValues.get(mapping.scimAttribute));
 
-            switch (scimAttribute) {
-            case "userName":
+            switch (mapping.scimAttribute) {
+            case USER_NAME:
                 break;
-            case "displayName":
-                updateBuilder.updateDisplayName(ldapValue);
+            case DISPLAY_NAME:
+                if (hasChanged(user.getDisplayName(), ldapValue)) {
+                    updateBuilder.updateDisplayName(ldapValue);
+                    changed = true;
+                }
                 break;
-            case "email":
-                updateEmail(updateBuilder, user.getEmails(), ldapValue);
+            case EMAIL:
+                changed |= updateEmail(updateBuilder, user.getEmails(), ldapValue);
                 break;
-            case "entitlement":
-                updateEntitlement(updateBuilder, user.getEntitlements(), ldapValue);
+            case ENTITLEMENT:
+                changed |= updateEntitlement(updateBuilder, user.getEntitlements(), ldapValue);
                 break;
-            case "externalId":
-                updateBuilder.updateExternalId(ldapValue);
+            case EXTERNAL_ID:
+                if (hasChanged(user.getExternalId(), ldapValue)) {
+                    updateBuilder.updateExternalId(ldapValue);
+                    changed = true;
+                }
                 break;
-            case "im":
-                updateIm(updateBuilder, user.getIms(), ldapValue);
+            case IM:
+                changed |= updateIm(updateBuilder, user.getIms(), ldapValue);
                 break;
-            case "locale":
-                updateBuilder.updateLocale(ldapValue);
+            case LOCALE:
+                if (hasChanged(user.getLocale(), ldapValue)) {
+                    updateBuilder.updateLocale(ldapValue);
+                    changed = true;
+                }
                 break;
-            case "nickName":
-                updateBuilder.updateNickName(ldapValue);
+            case NICK_NAME:
+                if (hasChanged(user.getNickName(), ldapValue)) {
+                    updateBuilder.updateNickName(ldapValue);
+                    changed = true;
+                }
                 break;
-            case "phoneNumber":
-                updatePhoneNumber(updateBuilder, user.getPhoneNumbers(), ldapValue);
+            case PHONE_NUMBER:
+                changed |= updatePhoneNumber(updateBuilder, user.getPhoneNumbers(), ldapValue);
                 break;
-            case "photo":
-                updatePhoto(updateBuilder, user.getPhotos(), ldapValue, scimAttribute);
+            case PHOTO:
+                changed |= updatePhoto(updateBuilder, user.getPhotos(), ldapValue, mapping.ldapAttribute);
                 break;
-            case "preferredLanguage":
-                updateBuilder.updatePreferredLanguage(ldapValue);
+            case PREFERRED_LANGUAGE:
+                if (hasChanged(user.getPreferredLanguage(), ldapValue)) {
+                    updateBuilder.updatePreferredLanguage(ldapValue);
+                    changed = true;
+                }
                 break;
-            case "profileUrl":
-                updateBuilder.updateProfileUrl(ldapValue);
+            case PROFILE_URL:
+                if (hasChanged(user.getProfileUrl(), ldapValue)) {
+                    updateBuilder.updateProfileUrl(ldapValue);
+                    changed = true;
+                }
                 break;
-            case "role":
-                updateRole(updateBuilder, user.getRoles(), ldapValue);
+            case ROLE:
+                changed |= updateRole(updateBuilder, user.getRoles(), ldapValue);
                 break;
-            case "timezone":
-                updateBuilder.updateTimezone(ldapValue);
+            case TIMEZONE:
+                if (hasChanged(user.getTimezone(), ldapValue)) {
+                    updateBuilder.updateTimezone(ldapValue);
+                    changed = true;
+                }
                 break;
-            case "title":
-                updateBuilder.updateTitle(ldapValue);
+            case TITLE:
+                if (hasChanged(user.getTitle(), ldapValue)) {
+                    updateBuilder.updateTitle(ldapValue);
+                    changed = true;
+                }
                 break;
-            case "userType":
-                updateBuilder.updateUserType(ldapValue);
+            case USER_TYPE:
+                if (hasChanged(user.getUserType(), ldapValue)) {
+                    updateBuilder.updateUserType(ldapValue);
+                    changed = true;
+                }
                 break;
-            case "x509Certificate":
-                updateX509Certificate(updateBuilder, user.getX509Certificates(), ldapValue);
+            case X509_CERTIFICATE:
+                changed |= updateX509Certificate(updateBuilder, user.getX509Certificates(), ldapValue);
                 break;
             default:
-                if (!scimAttribute.startsWith("address.") && !scimAttribute.startsWith("name.")) {
-                    throw createAttributeNotRecnoizedException(scimAttribute);
-                }
+                // the user name is never updated, addresses and names are mapped below
+                break;
             }
         }
 
-        updateAddress(updateBuilder, user.getAddresses(), ldapUserData);
-        updateName(updateBuilder, ldapUserData);
+        changed |= updateAddress(updateBuilder, user.getAddresses(), ldapValues);
+        changed |= updateName(updateBuilder, user.getName(), ldapValues);
 
-        return updateBuilder.build();
+        return changed ? updateBuilder.build() : null;
     }
     
-    private LdapConfigurationException createAttributeNotRecnoizedException(String scimAttribute){
-        return new LdapConfigurationException("The ldap attibute mapping value '" + scimAttribute
-                + "' could not be reconized as scim attribute.");
+    /**
+     * Checks whether the given SCIM user was created from a LDAP user.
+     */
+    static boolean isLdapUser(User user) {
+        if (!user.isExtensionPresent(LdapConfiguration.AUTH_EXTENSION)) {
+            return false;
+        }
+        Extension authExtension = user.getExtension(LdapConfiguration.AUTH_EXTENSION);
+        return authExtension.isFieldPresent("origin")
+                && authExtension.getFieldAsString("origin").equals(LdapConfiguration.LDAP_PROVIDER);
+    }
+
+    private EnumMap<ScimAttribute, String> readLdapValues(DirContextOperations ldapUserData) {
+        EnumMap<ScimAttribute, String> ldapValues = new EnumMap<>(ScimAttribute.class);
+        for (AttributeMapping mapping : mappingPlan) {
+            ldapValues.put(mapping.scimAttribute, ldapUserData.getStringAttribute(mapping.ldapAttribute));
+        }
+        return ldapValues;
+    }
+
+    private static boolean hasChanged(String scimValue, String ldapValue) {
+        return !Strings.nullToEmpty(scimValue).equals(Strings.nullToEmpty(ldapValue));
+    }
+
+    /**
+     * Checks whether the ldap typed values of a multi valued attribute are exactly the given value, or whether there
+     * are none if the value is empty.
+     */
+    private static boolean isOnlyLdapValue(List<String> ldapTypedValues, String ldapValue) {
+        if (ldapValue.isEmpty()) {
+            return ldapTypedValues.isEmpty();
+        }
+        return ldapTypedValues.size() == 1 && !hasChanged(ldapTypedValues.get(0), ldapValue);
     }
 
-    private void updateName(UpdateUser.Builder updateBuilder, DirContextOperations ldapUserData) {
-        updateBuilder.updateName(getName(ldapUserData));
+    private static boolean isLdapType(Object type) {
+        return type != null && type.toString().equals(LdapConfiguration.LDAP_PROVIDER);
     }
 
-    private void updateAddress(UpdateUser.Builder updateBuilder, List<Address> addresses,
-            DirContextOperations ldapUserData) {
+    private boolean updateName(UpdateUser.Builder updateBuilder, Name currentName,
+            EnumMap<ScimAttribute, String> ldapValues) {
+        if (!nameMapped) {
+            // the name is not taken from the directory, so it is left as it is
+            return false;
+        }
+        Name newName = getName(ldapValues);
+        if (isSameName(currentName, newName)) {
+            return false;
+        }
+        updateBuilder.updateName(newName);
+        return true;
+    }
+
+    private static boolean isSameName(Name currentName, Name newName) {
+        if (currentName == null || newName == null) {
+            return currentName == newName;
+        }
+        return !hasChanged(currentName.getFormatted(), newName.getFormatted())
+                && !hasChanged(currentName.getFamilyName(), newName.getFamilyName())
+                && !hasChanged(currentName.getGivenName(), newName.getGivenName())
+                && !hasChanged(currentName.getMiddleName(), newName.getMiddleName())
+                && !hasChanged(currentName.getHonorificPrefix(), newName.getHonorificPrefix())
+                && !hasChanged(currentName.getHonorificSuffix(), newName.getHonorificSuffix());
+    }
+
+    private boolean updateAddress(UpdateUser.Builder updateBuilder, List<Address> addresses,
+            EnumMap<ScimAttribute, String> ldapValues) {
+        List<Address> currentAddresses = new ArrayList<Address>();
         for (Address address : addresses) {
-            if (address.getType() != null && address.getType().toString().equals(LdapConfiguration.LDAP_PROVIDER)) {
-                updateBuilder.deleteAddress(address);
+            if (isLdapType(address.getType())) {
+                currentAddresses.add(address);
             }
         }
 
-        List<Address> newAddresses = getAddresses(ldapUserData);
+        List<Address> newAddresses = getAddresses(ldapValues);
+        if (currentAddresses.size() == newAddresses.size()
+                && (newAddresses.isEmpty() || isSameAddress(currentAddresses.get(0), newAddresses.get(0)))) {
+            return false;
+        }
+
+        for (Address address : currentAddresses) {
+            updateBuilder.deleteAddress(address);
+        }
         if (!newAddresses.isEmpty()) {
             updateBuilder.addAddress(newAddresses.get(0));
         }
+        return true;
     }
 
-    private void updateEmail(UpdateUser.Builder updateBuilder, List<Email> emails, String emailValue) {
-        Email newEmail = new Email.Builder().setValue(emailValue)
-                .setType(new Email.Type(LdapConfiguration.LDAP_PROVIDER)).build();
+    private static boolean isSameAddress(Address currentAddress, Address newAddress) {
+        return !hasChanged(currentAddress.getFormatted(), newAddress.getFormatted())
+                && !hasChanged(currentAddress.getStreetAddress(), newAddress.getStreetAddress())
+                && !hasChanged(currentAddress.getLocality(), newAddress.getLocality())
+                && !hasChanged(currentAddress.getRegion(), newAddress.getRegion())
+                && !hasChanged(currentAddress.getPostalCode(), newAddress.getPostalCode())
+                && !hasChanged(currentAddress.getCountry(), newAddress.getCountry());
+    }
+
+    private boolean updateEmail(UpdateUser.Builder updateBuilder, List<Email> emails, String emailValue) {
+        List<Email> ldapEmails = new ArrayList<Email>();
+        List<String> ldapValues = new ArrayList<String>();
         for (Email email : emails) {
-            if (email.getType() != null && email.getType().toString().equals(LdapConfiguration.LDAP_PROVIDER)) {
-                updateBuilder.deleteEmail(email);
+            if (isLdapType(email.getType())) {
+                ldapEmails.add(email);
+                ldapValues.add(email.getValue());
             }
         }
-        updateBuilder.addEmail(newEmail);
+        if (isOnlyLdapValue(ldapValues, emailValue)) {
+            return false;
+        }
+
+        for (Email email : ldapEmails) {
+            updateBuilder.deleteEmail(email);
+        }
+        if (!emailValue.isEmpty()) {
+            updateBuilder.addEmail(new Email.Builder().setValue(emailValue)
+                    .setType(new Email.Type(LdapConfiguration.LDAP_PROVIDER)).build());
+        }
+        return true;
     }
 
-    private void updateEntitlement(UpdateUser.Builder updateBuilder, List<Entitlement> entitlements, String value) {
-        Entitlement newEntitlement = new Entitlement.Builder().setValue(value)
-                .setType(new Entitlement.Type(LdapConfiguration.LDAP_PROVIDER)).build();
+    private boolean updateEntitlement(UpdateUser.Builder updateBuilder, List<Entitlement> entitlements, String value) {
+        List<Entitlement> ldapEntitlements = new ArrayList<Entitlement>();
+        List<String> ldapValues = new ArrayList<String>();
         for (Entitlement entitlement : entitlements) {
-            if (entitlement.getType() != null
-                    && entitlement.getType().toString().equals(LdapConfiguration.LDAP_PROVIDER)) {
-                updateBuilder.deleteEntitlement(entitlement);
+            if (isLdapType(entitlement.getType())) {
+                ldapEntitlements.add(entitlement);
+                ldapValues.add(entitlement.getValue());
             }
         }
-        updateBuilder.addEntitlement(newEntitlement);
+        if (isOnlyLdapValue(ldapValues, value)) {
+            return false;
+        }
+
+        for (Entitlement entitlement : ldapEntitlements) {
+            updateBuilder.deleteEntitlement(entitlement);
+        }
+        if (!value.isEmpty()) {
+            updateBuilder.addEntitlement(new Entitlement.Builder().setValue(value)
+                    .setType(new Entitlement.Type(LdapConfiguration.LDAP_PROVIDER)).build());
+        }
+        return true;
     }
 
-    private void updateIm(UpdateUser.Builder updateBuilder, List<Im> ims, String value) {
-        Im newIm = new Im.Builder().setValue(value).setType(new Im.Type(LdapConfiguration.LDAP_PROVIDER)).build();
+    private boolean updateIm(UpdateUser.Builder updateBuilder, List<Im> ims, String value) {
+        List<Im> ldapIms = new ArrayList<Im>();
+        List<String> ldapValues = new ArrayList<String>();
         for (Im im : ims) {
-            if (im.getType() != null && im.getType().toString().equals(LdapConfiguration.LDAP_PROVIDER)) {
-                updateBuilder.deleteIm(im);
+            if (isLdapType(im.getType())) {
+                ldapIms.add(im);
+                ldapValues.add(im.getValue());
             }
         }
-        updateBuilder.addIm(newIm);
+        if (isOnlyLdapValue(ldapValues, value)) {
+            return false;
+        }
+
+        for (Im im : ldapIms) {
+            updateBuilder.deleteIm(im);
+        }
+        if (!value.isEmpty()) {
+            updateBuilder.addIm(new Im.Builder().setValue(value)
+                    .setType(new Im.Type(LdapConfiguration.LDAP_PROVIDER)).build());
+        }
+        return true;
     }
 
-    private void updatePhoneNumber(UpdateUser.Builder updateBuilder, List<PhoneNumber> phoneNumbers, String value) {
-        PhoneNumber newPhoneNumber = new PhoneNumber.Builder().setValue(value)
-                .setType(new PhoneNumber.Type(LdapConfiguration.LDAP_PROVIDER)).build();
+    private boolean updatePhoneNumber(UpdateUser.Builder updateBuilder, List<PhoneNumber> phoneNumbers, String value) {
+        List<PhoneNumber> ldapPhoneNumbers = new ArrayList<PhoneNumber>();
+        List<String> ldapValues = new ArrayList<String>();
         for (PhoneNumber phoneNumber : phoneNumbers) {
-            if (phoneNumber.getType() != null
-                    && phoneNumber.getType().toString().equals(LdapConfiguration.LDAP_PROVIDER)) {
-                updateBuilder.deletePhoneNumber(phoneNumber);
+            if (isLdapType(phoneNumber.getType())) {
+                ldapPhoneNumbers.add(phoneNumber);
+                ldapValues.add(phoneNumber.getValue());
             }
         }
-        updateBuilder.addPhoneNumber(newPhoneNumber);
+        if (isOnlyLdapValue(ldapValues, value)) {
+            return false;
+        }
+
+        for (PhoneNumber phoneNumber : ldapPhoneNumbers) {
+            updateBuilder.deletePhoneNumber(phoneNumber);
+        }
+        if (!value.isEmpty()) {
+            updateBuilder.addPhoneNumber(new PhoneNumber.Builder().setValue(value)
+                    .setType(new PhoneNumber.Type(LdapConfiguration.LDAP_PROVIDER)).build());
+        }
+        return true;
     }
 
-    private void updatePhoto(UpdateUser.Builder updateBuilder, List<Photo> photos, String value, String scimAttribute) {
+    private boolean updatePhoto(UpdateUser.Builder updateBuilder, List<Photo> photos, String value,
+            String ldapAttribute) {
+        List<Photo> ldapPhotos = new ArrayList<Photo>();
+        List<String> ldapValues = new ArrayList<String>();
+        for (Photo photo : photos) {
+            if (isLdapType(photo.getType())) {
+                ldapPhotos.add(photo);
+                ldapValues.add(photo.getValueAsURI() != null ? photo.getValueAsURI().toString() : null);
+            }
+        }
+        if (isOnlyLdapValue(ldapValues, value)) {
+            return false;
+        }
+
         try {
-            for (Photo photo : photos) {
-                if (photo.getType() != null && photo.getType().toString().equals(LdapConfiguration.LDAP_PROVIDER)) {
-                    updateBuilder.deletePhoto(photo);
-                }
+            for (Photo photo : ldapPhotos) {
+                updateBuilder.deletePhoto(photo);
             }
             if (value.length() > 0) {
                 Photo newPhoto = new Photo.Builder()
@@ -336,116 +518,165 @@ public class OsiamLdapUserContextMapper extends LdapUserDetailsMapper {
             }
         } catch (URISyntaxException e) {
             throw new LdapConfigurationException("Could not map the ldap attibute '"
-                    + scimLdapAttributes.get(scimAttribute) + "' with the value '" + value
+                    + ldapAttribute + "' with the value '" + value
                     + "' into an scim photo because the value could not be converted into an URI.", e);
         }
+        return true;
     }
 
-    private void updateRole(UpdateUser.Builder updateBuilder, List<Role> roles, String value) {
-        Role newRole = new Role.Builder().setValue(value).setType(new Role.Type(LdapConfiguration.LDAP_PROVIDER))
-                .build();
+    private boolean updateRole(UpdateUser.Builder updateBuilder, List<Role> roles, String value) {
+        List<Role> ldapRoles = new ArrayList<Role>();
+        List<String> ldapValues = new ArrayList<String>();
         for (Role role : roles) {
-            if (role.getType() != null && role.getType().toString().equals(LdapConfiguration.LDAP_PROVIDER)) {
-                updateBuilder.deleteRole(role);
+            if (isLdapType(role.getType())) {
+                ldapRoles.add(role);
+                ldapValues.add(role.getValue());
             }
         }
-        updateBuilder.addRole(newRole);
+        if (isOnlyLdapValue(ldapValues, value)) {
+            return false;
+        }
+
+        for (Role role : ldapRoles) {
+            updateBuilder.deleteRole(role);
+        }
+        if (!value.isEmpty()) {
+            updateBuilder.addRole(new Role.Builder().setValue(value)
+                    .setType(new Role.Type(LdapConfiguration.LDAP_PROVIDER)).build());
+        }
+        return true;
     }
 
-    private void updateX509Certificate(UpdateUser.Builder updateBuilder, List<X509Certificate> x509Certificates,
+    private boolean updateX509Certificate(UpdateUser.Builder updateBuilder, List<X509Certificate> x509Certificates,
             String value) {
-        X509Certificate newX509Certificate = new X509Certificate.Builder().setValue(value)
-                .setType(new X509Certificate.Type(LdapConfiguration.LDAP_PROVIDER)).build();
+        List<X509Certificate> ldapX509Certificates = new ArrayList<X509Certificate>();
+        List<String> ldapValues = new ArrayList<String>();
         for (X509Certificate x509Certificate : x509Certificates) {
-            if (x509Certificate.getType() != null
-                    && x509Certificate.getType().toString().equals(LdapConfiguration.LDAP_PROVIDER)) {
-                updateBuilder.deleteX509Certificate(x509Certificate);
+            if (isLdapType(x509Certificate.getType())) {
+                ldapX509Certificates.add(x509Certificate);
+                ldapValues.add(x509Certificate.getValue());
             }
         }
-        updateBuilder.addX509Certificate(newX509Certificate);
+        if (isOnlyLdapValue(ldapValues, value)) {
+            return false;
+        }
+
+        for (X509Certificate x509Certificate : ldapX509Certificates) {
+            updateBuilder.deleteX509Certificate(x509Certificate);
+        }
+        if (!value.isEmpty()) {
+            updateBuilder.addX509Certificate(new X509Certificate.Builder().setValue(value)
+                    .setType(new X509Certificate.Type(LdapConfiguration.LDAP_PROVIDER)).build());
+        }
+        return true;
     }
 
-    private List<Address> getAddresses(DirContextOperations ldapUserData) {
+    private List<Address> getAddresses(EnumMap<ScimAttribute, String> ldapValues) {
         List<Address> addresses = new ArrayList<Address>();
-        Address.Builder builder = new Address.Builder();
-        boolean addressFound = false;
+        if (addressMapped) {
+            addresses.add(new Address.Builder()
+                    .setCountry(ldapValues.get(ScimAttribute.ADDRESS_COUNTRY))
+                    .setFormatted(ldapValues.get(ScimAttribute.ADDRESS_FORMATTED))
+                    .setLocality(ldapValues.get(ScimAttribute.ADDRESS_LOCALITY))
+                    .setPostalCode(ldapValues.get(ScimAttribute.ADDRESS_POSTAL_CODE))
+                    .setRegion(ldapValues.get(ScimAttribute.ADDRESS_REGION))
+                    .setStreetAddress(ldapValues.get(ScimAttribute.ADDRESS_STREET_ADDRESS))
+                    .setType(new Address.Type(LdapConfiguration.LDAP_PROVIDER))
+                    .build());
+        }
+        return addresses;
+    }
 
-        for (String scimAttribute : scimLdapAttributes.keySet()) {
-            String ldapValue = ldapUserData.getStringAttribute(scimLdapAttributes.get(scimAttribute));
-            if (!scimAttribute.startsWith("address.")) {
-                continue;
-            }
-            addressFound = true;
-            switch (scimAttribute) {
-            case "address.country":
-                builder.setCountry(ldapValue);
-                break;
-            case "address.formatted":
-                builder.setFormatted(ldapValue);
-                break;
-            case "address.locality":
-                builder.setLocality(ldapValue);
-                break;
-            case "address.postalCode":
-                builder.setPostalCode(ldapValue);
-                break;
-            case "address.region":
-                builder.setRegion(ldapValue);
-                break;
-            case "address.streetAddress":
-                builder.setStreetAddress(ldapValue);
-                break;
-            default:
-                throw createAttributeNotRecnoizedException(scimAttribute);
+    private Name getName(EnumMap<ScimAttribute, String> ldapValues) {
+        if (!nameMapped) {
+            return null;
+        }
+        return new Name.Builder()
+                .setFamilyName(ldapValues.get(ScimAttribute.NAME_FAMILY_NAME))
+                .setFormatted(ldapValues.get(ScimAttribute.NAME_FORMATTED))
+                .setGivenName(ldapValues.get(ScimAttribute.NAME_GIVEN_NAME))
+                .setHonorificPrefix(ldapValues.get(ScimAttribute.NAME_HONORIFIC_PREFIX))
+                .setHonorificSuffix(ldapValues.get(ScimAttribute.NAME_HONORIFIC_SUFFIX))
+                .setMiddleName(ldapValues.get(ScimAttribute.NAME_MIDDLE_NAME))
+                .build();
+    }
+
+    /**
+     * The SCIM attributes a LDAP attribute can be mapped to.
+     */
+    private enum ScimAttribute {
+        USER_NAME("userName"),
+        DISPLAY_NAME("displayName"),
+        EMAIL("email"),
+        ENTITLEMENT("entitlement"),
+        EXTERNAL_ID("externalId"),
+        IM("im"),
+        LOCALE("locale"),
+        NICK_NAME("nickName"),
+        PHONE_NUMBER("phoneNumber"),
+        PHOTO("photo"),
+        PREFERRED_LANGUAGE("preferredLanguage"),
+        PROFILE_URL("profileUrl"),
+        ROLE("role"),
+        TIMEZONE("timezone"),
+        TITLE("title"),
+        USER_TYPE("userType"),
+        X509_CERTIFICATE("x509Certificate"),
+        ADDRESS_COUNTRY("address.country"),
+        ADDRESS_FORMATTED("address.formatted"),
+        ADDRESS_LOCALITY("address.locality"),
+        ADDRESS_POSTAL_CODE("address.postalCode"),
+        ADDRESS_REGION("address.region"),
+        ADDRESS_STREET_ADDRESS("address.streetAddress"),
+        NAME_FAMILY_NAME("name.familyName"),
+        NAME_FORMATTED("name.formatted"),
+        NAME_GIVEN_NAME("name.givenName"),
+        NAME_HONORIFIC_PREFIX("name.honorificPrefix"),
+        NAME_HONORIFIC_SUFFIX("name.honorificSuffix"),
+        NAME_MIDDLE_NAME("name.middleName");
+
+        private static final ImmutableMap<String, ScimAttribute> BY_NAME;
+
+        static {
+            ImmutableMap.Builder<String, ScimAttribute> byName = ImmutableMap.builder();
+            for (ScimAttribute scimAttribute : values()) {
+                byName.put(scimAttribute.scimName, scimAttribute);
             }
+            BY_NAME = byName.build();
         }
 
-        if (addressFound) {
-            builder.setType(new Address.Type(LdapConfiguration.LDAP_PROVIDER));
-            addresses.add(builder.build());
+        private final String scimName;
+
+        private ScimAttribute(String scimName) {
+            this.scimName = scimName;
         }
-        return addresses;
-    }
 
-    private Name getName(DirContextOperations ldapUserData) {
-        Name name = null;
-        Name.Builder builder = new Name.Builder();
-        boolean nameFound = false;
+        boolean isAddress() {
+            return scimName.startsWith("address.");
+        }
 
-        for (String scimAttribute : scimLdapAttributes.keySet()) {
-            String ldapValue = ldapUserData.getStringAttribute(scimLdapAttributes.get(scimAttribute));
-            if (!scimAttribute.startsWith("name.")) {
-                continue;
-            }
-            nameFound = true;
-            switch (scimAttribute) {
-            case "name.familyName":
-                builder.setFamilyName(ldapValue);
-                break;
-            case "name.formatted":
-                builder.setFormatted(ldapValue);
-                break;
-            case "name.givenName":
-                builder.setGivenName(ldapValue);
-                break;
-            case "name.honorificPrefix":
-                builder.setHonorificPrefix(ldapValue);
-                break;
-            case "name.honorificSuffix":
-                builder.setHonorificSuffix(ldapValue);
-                break;
-            case "name.middleName":
-                builder.setMiddleName(ldapValue);
-                break;
-            default:
-                throw createAttributeNotRecnoizedException(scimAttribute);
-            }
+        boolean isName() {
+            return scimName.startsWith("name.");
         }
 
-        if (nameFound) {
-            name = builder.build();
+        static ScimAttribute forName(String scimName) {
+            ScimAttribute scimAttribute = BY_NAME.get(scimName);
+            if (scimAttribute == null) {
+                throw new LdapConfigurationException("The ldap attibute mapping value '" + scimName
+                        + "' could not be reconized as scim attribute.");
+            }
+            return scimAttribute;
         }
-        return name;
     }
 
+    private static class AttributeMapping {
+
+        private final ScimAttribute scimAttribute;
+        private final String ldapAttribute;
+
+        AttributeMapping(ScimAttribute scimAttribute, String ldapAttribute) {
+            this.scimAttribute = scimAttribute;
+            this.ldapAttribute = ldapAttribute;
+        }
+    }
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.login.ldap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.ldap.core.DistinguishedName;
+import org.springframework.ldap.core.support.BaseLdapPathContextSource;
+import org.springframework.ldap.support.LdapUtils;
+
+/**
+ * A context source that keeps the connections to the LDAP server open for reuse. Two separate pools are used: one for
+ * the connections used to search the directory and one for authenticating users. The connections are opened with the
+ * environments of the wrapped {@link LdapServerContextSource}, so searches are authenticated with the configured
+ * manager DN like without the pool. To authenticate a user an idle connection is bound again with the credentials of
+ * the user, so a login doesn't need a new TCP (and TLS) connection. Before such a connection is given back to the pool
+ * it is bound anonymously again, so idle connections never carry the identity of a user.
+ * <p/>
+ * The contexts handed out are proxies whose {@code close()} gives the connection back to its pool.
+ */
+public class PooledLdapContextSource implements BaseLdapPathContextSource, DisposableBean {
+
+    private final BaseLdapPathContextSource baseLdapPathSource;
+    private final LdapConnectionPool readOnlyPool;
+    private final LdapConnectionPool bindPool;
+
+    /**
+     * @param contextSource
+     *        the context source of the LDAP server, provides the environments of the connections and the base path
+     * @param maxIdle
+     *        the maximum number of idle connections per pool
+     * @param maxActive
+     *        the maximum number of connections in use per pool
+     * @param maxWaitMillis
+     *        the maximum time to wait for a connection if all are in use
+     */
+    public PooledLdapContextSource(LdapServerContextSource contextSource, int maxIdle, int maxActive,
+            long maxWaitMillis, long idleTimeout, long validationInterval, TimeUnit unit) {
+        this.baseLdapPathSource = contextSource;
+        readOnlyPool = new LdapConnectionPool(contextSource.getReadOnlyEnvironment(), maxIdle, maxActive,
+                maxWaitMillis, idleTimeout, validationInterval, unit);
+        bindPool = new LdapConnectionPool(contextSource.getBindEnvironment(), maxIdle, maxActive, maxWaitMillis,
+                idleTimeout, validationInterval, unit);
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() {
+        try {
+            return createPooledContext(readOnlyPool.borrow(), readOnlyPool);
+        } catch (NamingException e) {
+            throw LdapUtils.convertLdapException(e);
+        }
+    }
+
+    @Override
+    public DirContext getReadWriteContext() {
+        return getReadOnlyContext();
+    }
+
+    /**
+     * Binds a pooled connection with the given credentials.
+     *
+     * @throws org.springframework.ldap.AuthenticationException
+     *         if the credentials are wrong
+     */
+    @Override
+    public DirContext getContext(String principal, String credentials) {
+        LdapContext context;
+        try {
+            context = bindPool.borrow();
+        } catch (NamingException e) {
+            throw LdapUtils.convertLdapException(e);
+        }
+
+        try {
+            context.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+            context.addToEnvironment(Context.SECURITY_PRINCIPAL, principal);
+            context.addToEnvironment(Context.SECURITY_CREDENTIALS, credentials);
+            context.reconnect(null);
+        } catch (javax.naming.AuthenticationException e) {
+            // the bind was answered and a failed bind leaves the connection anonymous, so it is still usable
+            bindPool.giveBack(clearCredentials(context), true);
+            throw LdapUtils.convertLdapException(e);
+        } catch (NamingException e) {
+            bindPool.giveBack(context, false);
+            throw LdapUtils.convertLdapException(e);
+        }
+        return createPooledContext(context, bindPool);
+    }
+
+    @Override
+    public DistinguishedName getBaseLdapPath() {
+        return baseLdapPathSource.getBaseLdapPath();
+    }
+
+    @Override
+    public String getBaseLdapPathAsString() {
+        return baseLdapPathSource.getBaseLdapPathAsString();
+    }
+
+    public LdapConnectionPool getReadOnlyPool() {
+        return readOnlyPool;
+    }
+
+    public LdapConnectionPool getBindPool() {
+        return bindPool;
+    }
+
+    @Override
+    public void destroy() {
+        readOnlyPool.close();
+        bindPool.close();
+    }
+
+    private LdapContext clearCredentials(LdapContext context) {
+        try {
+            context.addToEnvironment(Context.SECURITY_AUTHENTICATION, "none");
+            context.removeFromEnvironment(Context.SECURITY_PRINCIPAL);
+            context.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+        } catch (NamingException e) {
+            // the credentials are overwritten with the next bind anyway
+        }
+        return context;
+    }
+
+    /**
+     * Binds a connection that is bound as a user anonymously again.
+     *
+     * @return false if the connection couldn't be bound again and has to be closed
+     */
+    private boolean bindAnonymously(LdapContext context) {
+        try {
+            clearCredentials(context).reconnect(null);
+            return true;
+        } catch (NamingException e) {
+            return false;
+        }
+    }
+
+    private DirContext createPooledContext(LdapContext context, LdapConnectionPool pool) {
+        return (DirContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {LdapContext.class},
+                new PooledContextHandler(context, pool));
+    }
+
+    private final class PooledContextHandler implements InvocationHandler {
+
+        private final LdapContext context;
+        private final LdapConnectionPool pool;
+        private boolean closed;
+        private boolean broken;
+
+        PooledContextHandler(LdapContext context, LdapConnectionPool pool) {
+            this.context = context;
+            this.pool = pool;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            if (methodName.equals("close")) {
+                close();
+                return null;
+            }
+            if (methodName.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (methodName.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("The LDAP context has already been closed");
+                }
+            }
+            try {
+                return method.invoke(context, args);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof javax.naming.CommunicationException
+                        || e.getCause() instanceof javax.naming.ServiceUnavailableException) {
+                    broken = true;
+                }
+                throw e.getCause();
+            }
+        }
+
+        private synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (pool == bindPool) {
+                pool.giveBack(context, !broken && bindAnonymously(context));
+            } else {
+                pool.giveBack(context, !broken);
+            }
+        }
+    }
+}
@@ -26,8 +26,11 @@ package org.osiam.auth.login.oauth;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.osiam.auth.login.internal.InternalAuthentication;
+import org.osiam.auth.resilience.Deadline;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.AccountStatusException;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.BadCredentialsException;
@@ -45,6 +48,9 @@ public class OsiamResourceOwnerPasswordTokenGranter extends ResourceOwnerPasswor
 
     private final AuthenticationManager authenticationManager;
 
+    @Value("${org.osiam.auth-server.token.deadline:10000}")
+    private long deadline;
+
     public OsiamResourceOwnerPasswordTokenGranter(AuthenticationManager authenticationManager, AuthorizationServerTokenServices tokenServices,
             ClientDetailsService clientDetailsService) {
         super(authenticationManager, tokenServices, clientDetailsService);
@@ -59,6 +65,10 @@ public class OsiamResourceOwnerPasswordTokenGranter extends ResourceOwnerPasswor
         String password = parameters.get("password");
 
         Authentication userAuth = new InternalAuthentication(username, password, new ArrayList<GrantedAuthority>());
+        Deadline previous = Deadline.current();
+        if (deadline > 0) {
+            Deadline.setCurrent(Deadline.after(deadline, TimeUnit.MILLISECONDS));
+        }
         try {
             userAuth = authenticationManager.authenticate(userAuth);
         } catch (AccountStatusException ase) {
@@ -67,6 +77,8 @@ public class OsiamResourceOwnerPasswordTokenGranter extends ResourceOwnerPasswor
         } catch (BadCredentialsException e) {
             // If the username/password are wrong the spec says we should send 400/bad grant
             throw new InvalidGrantException(e.getMessage(), e);
+        } finally {
+            Deadline.setCurrent(previous);
         }
         
         if (userAuth == null || !userAuth.isAuthenticated()) {
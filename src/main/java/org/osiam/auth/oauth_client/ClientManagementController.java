@@ -27,6 +27,7 @@ import java.io.IOException;
 
 import javax.inject.Inject;
 
+import org.osiam.auth.token.RevocationLog;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.transaction.annotation.Transactional;
@@ -50,6 +51,9 @@ public class ClientManagementController {
     @Inject
     private ClientDao clientDao;
 
+    @Inject
+    private RevocationLog revocationLog;
+
     private ObjectMapper mapper = new ObjectMapper();
 
     @RequestMapping(value = "/{id}", method = RequestMethod.GET)
@@ -69,6 +73,7 @@ public class ClientManagementController {
     @ResponseStatus(HttpStatus.OK)
     public void delete(@PathVariable final String id) {
         clientDao.delete(id);
+        revocationLog.append(RevocationLog.Type.CLIENT, id);
     }
 
     @RequestMapping(value = "/{id}", method = RequestMethod.PUT)
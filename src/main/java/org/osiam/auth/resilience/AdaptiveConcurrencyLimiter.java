@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.resilience;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Limits the number of concurrent calls to a remote system. Unlike a fixed size pool the limit adapts itself to the
+ * observed latency of the remote system (TCP Vegas style):
+ * <p/>
+ * The lowest latency seen recently is taken as the latency of the unloaded system. From the latency of every call the
+ * number of calls queued at the remote system is estimated as {@code limit * (1 - minLatency / latency)}. If fewer than
+ * {@link #ALPHA} calls are queued the limit is increased by one, if more than {@link #BETA} calls are queued it is
+ * decreased by one. Failed calls decrease the limit multiplicatively. The limit thereby settles where the remote system
+ * is fully used, but doesn't queue requests. The limit should start low, because the lowest latency can only be
+ * observed while the remote system is not overloaded.
+ * <p/>
+ * Callers that don't get a permit within the configured wait time or before the {@link Deadline} of the current
+ * request are rejected.
+ */
+@ManagedResource
+public class AdaptiveConcurrencyLimiter {
+
+    static final int ALPHA = 3;
+    static final int BETA = 6;
+    static final double BACKOFF_RATIO = 0.9;
+
+    /**
+     * The number of samples after which the lowest latency is determined anew, so the limiter adapts to a permanent
+     * change of the latency of the remote system.
+     */
+    static final int SAMPLES_PER_EPOCH = 1000;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long maxWaitNanos;
+
+    private double limit;
+    private int inFlight;
+    private long rejectedCalls;
+
+    private long minLatencyOfPreviousEpoch = Long.MAX_VALUE;
+    private long minLatencyOfCurrentEpoch = Long.MAX_VALUE;
+    private int samplesInCurrentEpoch;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long maxWaitMillis) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+    }
+
+    /**
+     * Tries to get a permit for a call. Every acquired permit has to be given back with {@link #release(long)},
+     * {@link #releaseDropped()} or {@link #releaseIgnored()}.
+     *
+     * @return true if a permit was acquired, false if the call has to be rejected
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Tries to get a permit for a call, waiting at most the given time instead of the configured wait time.
+     *
+     * @see #tryAcquire()
+     */
+    public boolean tryAcquire(long maxWait, TimeUnit unit) {
+        long waitUntil = System.nanoTime() + Deadline.remainingOrMax(unit.toNanos(maxWait), TimeUnit.NANOSECONDS);
+        synchronized (this) {
+            try {
+                while (inFlight >= (int) limit) {
+                    long remaining = waitUntil - System.nanoTime();
+                    if (remaining <= 0) {
+                        rejectedCalls++;
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejectedCalls++;
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+    }
+
+    /**
+     * Counts a call that was rejected before it asked for a permit, e.g. because the queue in front of the limiter was
+     * full.
+     */
+    public synchronized void recordRejected() {
+        rejectedCalls++;
+    }
+
+    /**
+     * Gives back the permit of a call that was answered by the remote system and adapts the limit to its latency.
+     *
+     * @param latencyNanos
+     *        the time the call took in nanoseconds
+     */
+    public synchronized void release(long latencyNanos) {
+        int inFlightDuringCall = inFlight;
+        inFlight--;
+        long minLatency = updateMinLatency(Math.max(1, latencyNanos));
+
+        double queueSize = limit * (1 - (double) minLatency / Math.max(1, latencyNanos));
+
+        if (queueSize < ALPHA && inFlightDuringCall >= limit / 2) {
+            // only increase the limit if it was actually used, otherwise it can grow without bounds when idle
+            limit = Math.min(maxLimit, limit + 1);
+        } else if (queueSize > BETA) {
+            limit = Math.max(minLimit, limit - 1);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Gives back the permit of a call that failed because the remote system was overloaded or not reachable.
+     */
+    public synchronized void releaseDropped() {
+        inFlight--;
+        limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        notifyAll();
+    }
+
+    /**
+     * Gives back the permit of a call whose latency doesn't tell anything about the load of the remote system.
+     */
+    public synchronized void releaseIgnored() {
+        inFlight--;
+        notifyAll();
+    }
+
+    @ManagedAttribute(description = "The current concurrency limit")
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    @ManagedAttribute(description = "Calls currently in progress")
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @ManagedAttribute(description = "Calls rejected because the concurrency limit was reached")
+    public synchronized long getRejectedCalls() {
+        return rejectedCalls;
+    }
+
+    private long updateMinLatency(long latencyNanos) {
+        minLatencyOfCurrentEpoch = Math.min(minLatencyOfCurrentEpoch, latencyNanos);
+        if (++samplesInCurrentEpoch >= SAMPLES_PER_EPOCH) {
+            minLatencyOfPreviousEpoch = minLatencyOfCurrentEpoch;
+            minLatencyOfCurrentEpoch = Long.MAX_VALUE;
+            samplesInCurrentEpoch = 0;
+        }
+        return Math.min(minLatencyOfPreviousEpoch, minLatencyOfCurrentEpoch);
+    }
+}
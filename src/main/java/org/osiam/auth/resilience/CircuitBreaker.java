@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.resilience;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.context.ApplicationEventPublisher;
+
+import com.google.common.base.Ticker;
+
+/**
+ * A circuit breaker that opens after a number of consecutive failed calls and rejects all calls while it is open.
+ * After the configured open duration a single trial call is let through (half open). The circuit closes again if the
+ * trial call succeeds, otherwise it is opened for another period.
+ * <p/>
+ * Every state change is logged and published as {@link CircuitBreakerStateChangedEvent}.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openDurationNanos;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Ticker ticker;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialCallInProgress;
+
+    private final AtomicLong rejectedCalls = new AtomicLong();
+    private final AtomicLong failedCalls = new AtomicLong();
+
+    public CircuitBreaker(String name, int failureThreshold, long openDuration, TimeUnit unit,
+            ApplicationEventPublisher eventPublisher) {
+        this(name, failureThreshold, openDuration, unit, eventPublisher, Ticker.systemTicker());
+    }
+
+    CircuitBreaker(String name, int failureThreshold, long openDuration, TimeUnit unit,
+            ApplicationEventPublisher eventPublisher, Ticker ticker) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = unit.toNanos(openDuration);
+        this.eventPublisher = eventPublisher;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Checks whether a call may be executed. Every permitted call has to be reported back with
+     * {@link #recordSuccess()} or {@link #recordFailure()}.
+     *
+     * @return true if the call may be executed, false if the circuit is open
+     */
+    public boolean allowRequest() {
+        State previousState;
+        synchronized (this) {
+            previousState = state;
+            if (state == State.CLOSED) {
+                return true;
+            }
+            if (state == State.OPEN && ticker.read() - openedAt >= openDurationNanos) {
+                state = State.HALF_OPEN;
+                trialCallInProgress = false;
+            }
+            if (state == State.OPEN || trialCallInProgress) {
+                rejectedCalls.incrementAndGet();
+                return false;
+            }
+            trialCallInProgress = true;
+        }
+        stateChanged(previousState, State.HALF_OPEN);
+        return true;
+    }
+
+    public void recordSuccess() {
+        State previousState;
+        synchronized (this) {
+            previousState = state;
+            consecutiveFailures = 0;
+            trialCallInProgress = false;
+            state = State.CLOSED;
+        }
+        stateChanged(previousState, State.CLOSED);
+    }
+
+    public void recordFailure() {
+        failedCalls.incrementAndGet();
+        State previousState;
+        State newState;
+        synchronized (this) {
+            previousState = state;
+            consecutiveFailures++;
+            trialCallInProgress = false;
+            if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+                state = State.OPEN;
+                openedAt = ticker.read();
+            }
+            newState = state;
+        }
+        stateChanged(previousState, newState);
+    }
+
+    /**
+     * Reports that a permitted call was not executed or that its outcome doesn't tell anything about the health of the
+     * remote system.
+     */
+    public synchronized void recordIgnored() {
+        trialCallInProgress = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRejectedCalls() {
+        return rejectedCalls.get();
+    }
+
+    public long getFailedCalls() {
+        return failedCalls.get();
+    }
+
+    private void stateChanged(State previousState, State newState) {
+        if (previousState == newState) {
+            return;
+        }
+        LOGGER.log(newState == State.OPEN ? Level.WARNING : Level.INFO, "Circuit breaker '" + name
+                + "' changed from " + previousState + " to " + newState);
+        if (eventPublisher != null) {
+            eventPublisher.publishEvent(new CircuitBreakerStateChangedEvent(this, previousState, newState));
+        }
+    }
+}
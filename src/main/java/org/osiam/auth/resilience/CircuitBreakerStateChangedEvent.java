@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.resilience;
+
+import org.osiam.auth.resilience.CircuitBreaker.State;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published whenever a {@link CircuitBreaker} changes its state.
+ */
+public class CircuitBreakerStateChangedEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = -3436102740935128416L;
+
+    private final State previousState;
+    private final State newState;
+
+    public CircuitBreakerStateChangedEvent(CircuitBreaker circuitBreaker, State previousState, State newState) {
+        super(circuitBreaker);
+        this.previousState = previousState;
+        this.newState = newState;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return (CircuitBreaker) getSource();
+    }
+
+    public State getPreviousState() {
+        return previousState;
+    }
+
+    public State getNewState() {
+        return newState;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.resilience;
+
+import java.util.concurrent.TimeUnit;
+
+import org.osiam.auth.exception.DeadlineExceededException;
+
+/**
+ * The point in time until which the current request has to be answered. The deadline is bound to the thread that
+ * handles the request, so the outbound calls made on behalf of the request can use only the remaining time and fail
+ * fast once the client has given up anyway.
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long deadlineNanos;
+
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public static Deadline after(long duration, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(duration));
+    }
+
+    /**
+     * @return the deadline of the current request or null if the request has no deadline
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds the given deadline to the current thread. Callers have to restore the previous deadline when the request
+     * is done, e.g. in a finally block.
+     *
+     * @param deadline
+     *        the deadline to bind or null to remove the deadline
+     * @return the previously bound deadline
+     */
+    public static Deadline setCurrent(Deadline deadline) {
+        Deadline previous = CURRENT.get();
+        if (deadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadline);
+        }
+        return previous;
+    }
+
+    /**
+     * @throws DeadlineExceededException
+     *         if the current request has a deadline and it has passed
+     */
+    public static void checkCurrent() {
+        Deadline deadline = current();
+        if (deadline != null) {
+            deadline.check();
+        }
+    }
+
+    /**
+     * @return the time until the deadline of the current request, but at most the given maximum
+     */
+    public static long remainingOrMax(long max, TimeUnit unit) {
+        Deadline deadline = current();
+        if (deadline == null) {
+            return max;
+        }
+        return Math.min(max, deadline.remaining(unit));
+    }
+
+    public long remaining(TimeUnit unit) {
+        return unit.convert(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isExpired() {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @throws DeadlineExceededException
+     *         if the deadline has passed
+     */
+    public void check() {
+        if (isExpired()) {
+            throw new DeadlineExceededException("The deadline of the request has passed");
+        }
+    }
+}
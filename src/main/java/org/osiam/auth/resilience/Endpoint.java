@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.resilience;
+
+/**
+ * One replica of a remote system managed by a {@link LoadBalancer}. Tracks the calls in progress, the consecutive
+ * failures and, if reported, the latency of the replica.
+ */
+public class Endpoint {
+
+    private final String url;
+
+    private int outstandingCalls;
+    private int consecutiveFailures;
+    private long ejectedUntil;
+    private boolean ejected;
+
+    private double latencyNanos;
+    private long lastLatencySample;
+
+    Endpoint(String url) {
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public synchronized int getOutstandingCalls() {
+        return outstandingCalls;
+    }
+
+    synchronized void callStarted() {
+        outstandingCalls++;
+    }
+
+    synchronized void callSucceeded() {
+        outstandingCalls--;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Records the latency of a successful call as exponentially weighted moving average. A latency above the average
+     * replaces it at once, so a replica that becomes slow is avoided immediately (peak EWMA).
+     */
+    synchronized void callSucceeded(long latencyNanos, long now, long decayNanos) {
+        callSucceeded();
+        double averageLatency = getLatencyNanos(now, decayNanos);
+        this.latencyNanos = latencyNanos > averageLatency ? latencyNanos : averageLatency
+                + (latencyNanos - averageLatency) * (1 - weightOfAverage(now, decayNanos));
+        lastLatencySample = now;
+    }
+
+    /**
+     * Returns the average latency, which decays over time without new samples, so a replica that was slow gets
+     * another chance after a while.
+     */
+    synchronized double getLatencyNanos(long now, long decayNanos) {
+        return latencyNanos * weightOfAverage(now, decayNanos);
+    }
+
+    private double weightOfAverage(long now, long decayNanos) {
+        return Math.exp(-(double) Math.max(0, now - lastLatencySample) / decayNanos);
+    }
+
+    /**
+     * @return true if the endpoint has to be ejected because of this failure
+     */
+    synchronized boolean callFailed(int failureThreshold) {
+        outstandingCalls--;
+        consecutiveFailures++;
+        return !ejected && consecutiveFailures >= failureThreshold;
+    }
+
+    synchronized void callIgnored() {
+        outstandingCalls--;
+    }
+
+    synchronized void eject(long until) {
+        ejected = true;
+        ejectedUntil = until;
+    }
+
+    synchronized boolean isEjected(long now) {
+        if (ejected && now - ejectedUntil >= 0) {
+            // give the endpoint another chance, a single further failure ejects it again
+            ejected = false;
+            consecutiveFailures = Math.max(0, consecutiveFailures - 1);
+        }
+        return ejected;
+    }
+
+    synchronized long getEjectedUntil() {
+        return ejectedUntil;
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+}
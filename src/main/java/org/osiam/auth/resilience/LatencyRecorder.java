@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.resilience;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent calls to compute percentiles over them. The percentiles are recomputed only
+ * after a number of new samples, so reading them is cheap.
+ */
+public class LatencyRecorder {
+
+    private static final int RECOMPUTE_INTERVAL = 64;
+
+    private final long[] samples;
+    private final double percentile;
+
+    private int nextSample;
+    private int sampleCount;
+    private int samplesSinceRecompute;
+    private long percentileValue = -1;
+
+    /**
+     * @param windowSize
+     *        the number of most recent samples to keep
+     * @param percentile
+     *        the percentile to compute, e.g. 0.95
+     */
+    public LatencyRecorder(int windowSize, double percentile) {
+        this.samples = new long[windowSize];
+        this.percentile = percentile;
+    }
+
+    public synchronized void record(long latencyNanos) {
+        samples[nextSample] = latencyNanos;
+        nextSample = (nextSample + 1) % samples.length;
+        sampleCount = Math.min(samples.length, sampleCount + 1);
+        samplesSinceRecompute++;
+    }
+
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return the configured percentile of the recorded latencies in nanoseconds or -1 if nothing was recorded yet
+     */
+    public synchronized long getPercentile() {
+        if (sampleCount == 0) {
+            return -1;
+        }
+        if (percentileValue < 0 || samplesSinceRecompute >= RECOMPUTE_INTERVAL) {
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            percentileValue = sorted[(int) Math.min(sampleCount - 1, Math.ceil(percentile * sampleCount) - 1)];
+            samplesSinceRecompute = 0;
+        }
+        return percentileValue;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.resilience;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Spreads calls over the replicas of a remote system. Every call goes to the replica with the fewest calls in
+ * progress, ties are broken round robin. If the latency of the calls is reported, the calls in progress are weighted
+ * with the average latency of the replica, so the fastest replica gets most of the calls. A replica that failed a
+ * number of consecutive calls is ejected for a while (passive health checking). If all replicas are ejected the one
+ * that is ejected the shortest is used anyway.
+ * <p/>
+ * Every call has to be reported back with {@link #callSucceeded(Endpoint)}, {@link #callSucceeded(Endpoint, long)},
+ * {@link #callFailed(Endpoint)} or {@link #callIgnored(Endpoint)}.
+ */
+public class LoadBalancer {
+
+    private static final Logger LOGGER = Logger.getLogger(LoadBalancer.class.getName());
+
+    /**
+     * The time after which the average latency of a replica without new calls has decayed to about a third.
+     */
+    static final long LATENCY_DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final List<Endpoint> endpoints;
+    private final int failureThreshold;
+    private final long ejectionDurationNanos;
+    private final Ticker ticker;
+
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    public LoadBalancer(List<String> urls, int failureThreshold, long ejectionDuration, TimeUnit unit) {
+        this(urls, failureThreshold, ejectionDuration, unit, Ticker.systemTicker());
+    }
+
+    LoadBalancer(List<String> urls, int failureThreshold, long ejectionDuration, TimeUnit unit, Ticker ticker) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String url : urls) {
+            endpoints.add(new Endpoint(url));
+        }
+        this.endpoints = Collections.unmodifiableList(endpoints);
+        this.failureThreshold = failureThreshold;
+        this.ejectionDurationNanos = unit.toNanos(ejectionDuration);
+        this.ticker = ticker;
+    }
+
+    /**
+     * Chooses the endpoint for the next call and counts the call as started.
+     */
+    public Endpoint choose() {
+        return choose(Collections.<Endpoint> emptySet());
+    }
+
+    /**
+     * Chooses the endpoint for the next call, but not the given one, and counts the call as started.
+     *
+     * @return the chosen endpoint or null if there is no other healthy endpoint
+     */
+    public Endpoint chooseOther(Endpoint excluded) {
+        return choose(Collections.singleton(excluded));
+    }
+
+    /**
+     * Chooses the endpoint for the next call, but none of the given ones, and counts the call as started.
+     *
+     * @return the chosen endpoint or null if there is no other healthy endpoint
+     */
+    public Endpoint chooseOther(Collection<Endpoint> excluded) {
+        return choose(excluded);
+    }
+
+    public void callSucceeded(Endpoint endpoint) {
+        endpoint.callSucceeded();
+    }
+
+    /**
+     * Reports a successful call together with its latency, which is taken into account when choosing endpoints.
+     */
+    public void callSucceeded(Endpoint endpoint, long latencyNanos) {
+        endpoint.callSucceeded(latencyNanos, ticker.read(), LATENCY_DECAY_NANOS);
+    }
+
+    public void callFailed(Endpoint endpoint) {
+        if (endpoint.callFailed(failureThreshold) && endpoints.size() > 1) {
+            endpoint.eject(ticker.read() + ejectionDurationNanos);
+            LOGGER.warning("Ejected the endpoint " + endpoint + " after " + failureThreshold
+                    + " consecutive failures");
+        }
+    }
+
+    public void callIgnored(Endpoint endpoint) {
+        endpoint.callIgnored();
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Returns the average latency of the successful calls to the endpoint, if reported.
+     */
+    public double getLatency(Endpoint endpoint, TimeUnit unit) {
+        return endpoint.getLatencyNanos(ticker.read(), LATENCY_DECAY_NANOS) / unit.toNanos(1);
+    }
+
+    public boolean isHealthy(Endpoint endpoint) {
+        return !endpoint.isEjected(ticker.read());
+    }
+
+    public int getHealthyEndpoints() {
+        long now = ticker.read();
+        int healthy = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.isEjected(now)) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    private Endpoint choose(Collection<Endpoint> excluded) {
+        long now = ticker.read();
+        int start = Math.abs(nextIndex.getAndIncrement() % endpoints.size());
+
+        Endpoint chosen = null;
+        double chosenCost = 0;
+        Endpoint leastEjected = null;
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get((start + i) % endpoints.size());
+            if (excluded.contains(endpoint)) {
+                continue;
+            }
+            if (endpoint.isEjected(now)) {
+                if (leastEjected == null || endpoint.getEjectedUntil() - leastEjected.getEjectedUntil() < 0) {
+                    leastEjected = endpoint;
+                }
+                continue;
+            }
+            // without reported latencies this is the number of calls in progress
+            double cost = (endpoint.getLatencyNanos(now, LATENCY_DECAY_NANOS) + 1)
+                    * (endpoint.getOutstandingCalls() + 1);
+            if (chosen == null || cost < chosenCost) {
+                chosen = endpoint;
+                chosenCost = cost;
+            }
+        }
+
+        if (chosen == null && excluded.isEmpty()) {
+            chosen = leastEjected;
+        }
+        if (chosen != null) {
+            chosen.callStarted();
+        }
+        return chosen;
+    }
+}
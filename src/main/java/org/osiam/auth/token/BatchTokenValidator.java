@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.inject.Inject;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.oauth2.common.exceptions.InvalidRequestException;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Validates many access tokens at once for API gateways. The tokens are read from a JSON array of strings, the results
+ * are written as a JSON array in the same order while the tokens are validated, so the response is never kept in
+ * memory as a whole:
+ *
+ * <pre>
+ * [{"status":"valid","access_token":{...}},{"status":"revoked"},{"status":"expired"},{"status":"unknown"}]
+ * </pre>
+ *
+ * The validation is the same as for a single token, see {@link TokenValidationService#check(String)}.
+ */
+@Service
+public class BatchTokenValidator {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @Inject
+    private TokenValidationService tokenValidationService;
+
+    @Value("${org.osiam.auth-server.token-validation.batch.max-size:1000}")
+    private int maxSize;
+
+    /**
+     * Reads the tokens of a batch.
+     *
+     * @throws InvalidRequestException
+     *         if the request is not a JSON array of strings or contains more tokens than allowed
+     */
+    public List<String> readTokens(InputStream in) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new InvalidRequestException("The tokens have to be sent as JSON array");
+            }
+            JsonToken next;
+            while ((next = parser.nextToken()) == JsonToken.VALUE_STRING) {
+                if (tokens.size() == maxSize) {
+                    throw new InvalidRequestException("At most " + maxSize + " tokens can be validated at once");
+                }
+                tokens.add(parser.getText());
+            }
+            if (next != JsonToken.END_ARRAY) {
+                throw new InvalidRequestException("The tokens have to be sent as JSON array of strings");
+            }
+        } catch (JsonParseException e) {
+            throw new InvalidRequestException("The tokens have to be sent as JSON array: " + e.getOriginalMessage());
+        }
+        return tokens;
+    }
+
+    /**
+     * Validates the tokens one after another and writes the result of each token as soon as it's known.
+     */
+    public void writeResults(List<String> tokens, OutputStream out) throws IOException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartArray();
+            for (String token : tokens) {
+                TokenValidationResult result = tokenValidationService.check(token);
+                generator.writeStartObject();
+                generator.writeStringField("status", result.getStatus().name().toLowerCase(Locale.ENGLISH));
+                if (result.isValid()) {
+                    generator.writeFieldName("access_token");
+                    generator.writeRawValue(new String(result.getResponse().getBody(), StandardCharsets.UTF_8));
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+    }
+}
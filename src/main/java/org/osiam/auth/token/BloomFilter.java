@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * A bloom filter over SHA-256 hashes. The bit of a hash {@code h} for the hash function {@code i} is
+ * {@code ((h1 + i * h2) & Long.MAX_VALUE) % size}, where {@code h1} and {@code h2} are the first and the second 8 bytes
+ * of {@code h} read as big endian 64 bit integers.
+ * <p/>
+ * Concurrent calls of {@link #put(HashCode)} have to be synchronized by the caller. {@link #mightContain(HashCode)} can
+ * be called without synchronization and sees all hashes put before.
+ */
+final class BloomFilter {
+
+    private static final int MAX_SIZE = Integer.MAX_VALUE & ~63;
+
+    private final AtomicLongArray bits;
+    private final int size;
+    private final int hashFunctions;
+
+    /**
+     * Creates a filter with the optimal size and number of hash functions to reach the given false positive rate when
+     * it contains the given number of hashes.
+     */
+    BloomFilter(int capacity, double falsePositiveRate) {
+        double bitsPerHash = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long optimalSize = (long) Math.ceil(Math.max(1, capacity) * bitsPerHash);
+        size = (int) Math.min(MAX_SIZE, Math.max(64, (optimalSize + 63) & ~63L));
+        hashFunctions = Math.max(1, (int) Math.round((double) size / Math.max(1, capacity) * Math.log(2)));
+        bits = new AtomicLongArray(size / 64);
+    }
+
+    void put(HashCode hash) {
+        byte[] bytes = hash.asBytes();
+        long hash1 = ByteBuffer.wrap(bytes).getLong(0);
+        long hash2 = ByteBuffer.wrap(bytes).getLong(8);
+        for (int i = 0; i < hashFunctions; i++) {
+            int index = index(hash1, hash2, i);
+            long word = bits.get(index >>> 6);
+            if ((word & (1L << index)) == 0) {
+                bits.set(index >>> 6, word | (1L << index));
+            }
+        }
+    }
+
+    boolean mightContain(HashCode hash) {
+        byte[] bytes = hash.asBytes();
+        long hash1 = ByteBuffer.wrap(bytes).getLong(0);
+        long hash2 = ByteBuffer.wrap(bytes).getLong(8);
+        for (int i = 0; i < hashFunctions; i++) {
+            int index = index(hash1, hash2, i);
+            if ((bits.get(index >>> 6) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the bits of the filter, bit {@code n} is the bit {@code n % 8} (least significant first) of the byte
+     *         {@code n / 8}
+     */
+    byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(size / 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < bits.length(); i++) {
+            buffer.putLong(bits.get(i));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return the number of bits of the filter
+     */
+    int getSize() {
+        return size;
+    }
+
+    int getHashFunctions() {
+        return hashFunctions;
+    }
+
+    /**
+     * @return the false positive rate of the filter when it contains the given number of hashes
+     */
+    double getExpectedFalsePositiveRate(int count) {
+        return Math.pow(1 - Math.exp(-(double) hashFunctions * count / size), hashFunctions);
+    }
+
+    private int index(long hash1, long hash2, int i) {
+        return (int) (((hash1 + i * hash2) & Long.MAX_VALUE) % size);
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.InMemoryTokenStore;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps the tokens in memory like the {@link InMemoryTokenStore} and tells the registered {@link Listener}s about
+ * access tokens that were removed, no matter if they were revoked, replaced by a refresh or expired.
+ * <p/>
+ * Access tokens that are removed before they expire count as revoked. The store remembers the SHA-256 hashes of revoked
+ * tokens until the tokens would have expired, so validations can tell revoked tokens from unknown ones.
+ * <p/>
+ * The hashes of all issued access tokens are kept in a {@link BloomFilter}. Lookups of access tokens that aren't
+ * contained in the filter, like guessed or garbled tokens, are answered without consulting the stored tokens. Removed
+ * tokens stay in the filter until it is built anew from the stored tokens, which happens when it is three quarters full
+ * or most of its tokens have been removed. The new filter is built in the background, so storing and reading tokens
+ * never waits for the stored tokens to be scanned. Until it replaces the current one, tokens are put into both.
+ */
+@ManagedResource(objectName = "org.osiam.auth-server:type=TokenStore")
+public class OsiamTokenStore extends InMemoryTokenStore {
+
+    /**
+     * Gets notified about changes of the token store.
+     */
+    public interface Listener {
+
+        /**
+         * Called after the access token was removed from the token store.
+         *
+         * @param revoked
+         *        true if the token was removed before it expired
+         */
+        void accessTokenRemoved(String tokenValue, boolean revoked);
+    }
+
+    private static final long PRUNE_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * The hashes of the revoked tokens, mapped to the time the tokens would have expired
+     */
+    private final ConcurrentMap<HashCode, Long> revokedTokens = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextPrune = new AtomicLong();
+
+    private double knownTokenFalsePositiveRate = 0.01;
+    private int knownTokenMinCapacity = 1000;
+
+    /**
+     * The clients access tokens were issued to, to find all stored tokens when the known token filter is built anew
+     */
+    private final Set<String> clientIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Object knownTokensLock = new Object();
+    private volatile BloomFilter knownTokens;
+    private int knownTokenCapacity;
+    private int knownTokenCount;
+    private int knownTokenRemovals;
+
+    /**
+     * The hashes of the tokens stored while a new known token filter is built in the background, null if none is
+     */
+    private List<HashCode> pendingKnownTokens;
+
+    private final ExecutorService rebuildExecutor;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong rejectedLookups = new AtomicLong();
+
+    public OsiamTokenStore() {
+        this(Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("known-token-filter-rebuild").setDaemon(true).build()));
+    }
+
+    OsiamTokenStore(ExecutorService rebuildExecutor) {
+        this.rebuildExecutor = rebuildExecutor;
+        rebuildKnownTokens();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rebuildExecutor.shutdownNow();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param falsePositiveRate
+     *        the rate of unknown tokens the known token filter doesn't reject when it is full
+     */
+    public void setKnownTokenFalsePositiveRate(double falsePositiveRate) {
+        synchronized (knownTokensLock) {
+            knownTokenFalsePositiveRate = falsePositiveRate;
+            rebuildKnownTokens();
+        }
+    }
+
+    /**
+     * @param minCapacity
+     *        the minimum number of tokens the known token filter is sized for
+     */
+    public void setKnownTokenMinCapacity(int minCapacity) {
+        synchronized (knownTokensLock) {
+            knownTokenMinCapacity = minCapacity;
+            rebuildKnownTokens();
+        }
+    }
+
+    @Override
+    public void storeAccessToken(OAuth2AccessToken token, OAuth2Authentication authentication) {
+        clientIds.add(authentication.getAuthorizationRequest().getClientId());
+        super.storeAccessToken(token, authentication);
+
+        // the token is stored before it is added to the filter, so a filter built anew from the stored tokens after
+        // it was added contains it, and one built before it was added gets it from the pending tokens
+        HashCode hash = hash(token.getValue());
+        List<HashCode> pending = null;
+        synchronized (knownTokensLock) {
+            knownTokens.put(hash);
+            knownTokenCount++;
+            if (pendingKnownTokens != null) {
+                pendingKnownTokens.add(hash);
+            } else if (knownTokenCount * 4L >= knownTokenCapacity * 3L) {
+                pending = startRebuild();
+            }
+        }
+        if (pending != null) {
+            scheduleRebuild(pending);
+        }
+    }
+
+    @Override
+    public OAuth2AccessToken readAccessToken(String tokenValue) {
+        return readAccessToken(tokenValue, hash(tokenValue));
+    }
+
+    /**
+     * Like {@link #readAccessToken(String)}, for callers that already have the hash of the token.
+     *
+     * @param hash
+     *        the hash of the token, see {@link #hash(String)}
+     */
+    public OAuth2AccessToken readAccessToken(String tokenValue, HashCode hash) {
+        return isKnown(hash) ? super.readAccessToken(tokenValue) : null;
+    }
+
+    @Override
+    public OAuth2Authentication readAuthentication(String token) {
+        return readAuthentication(token, hash(token));
+    }
+
+    /**
+     * Like {@link #readAuthentication(String)}, for callers that already have the hash of the token.
+     *
+     * @param hash
+     *        the hash of the token, see {@link #hash(String)}
+     */
+    public OAuth2Authentication readAuthentication(String token, HashCode hash) {
+        return isKnown(hash) ? super.readAuthentication(token) : null;
+    }
+
+    /**
+     * All other methods that remove access tokens delegate to this one.
+     */
+    @Override
+    public void removeAccessToken(String tokenValue) {
+        OAuth2AccessToken accessToken = super.readAccessToken(tokenValue);
+        super.removeAccessToken(tokenValue);
+
+        long now = System.currentTimeMillis();
+        boolean revoked = accessToken != null && !accessToken.isExpired();
+        if (revoked) {
+            long expiresAt = accessToken.getExpiration() != null ? accessToken.getExpiration().getTime()
+                    : Long.MAX_VALUE;
+            revokedTokens.put(hash(tokenValue), expiresAt);
+        }
+        pruneRevokedTokens(now);
+
+        if (accessToken != null) {
+            List<HashCode> pending = null;
+            synchronized (knownTokensLock) {
+                knownTokenRemovals++;
+                if (pendingKnownTokens == null && knownTokenCapacity > knownTokenMinCapacity
+                        && (knownTokenCount - knownTokenRemovals) * 4L < knownTokenCount) {
+                    pending = startRebuild();
+                }
+            }
+            if (pending != null) {
+                scheduleRebuild(pending);
+            }
+        }
+
+        for (Listener listener : listeners) {
+            listener.accessTokenRemoved(tokenValue, revoked);
+        }
+    }
+
+    /**
+     * @return true if the access token was removed from the store before it expired and hasn't expired since
+     */
+    public boolean isRevoked(String tokenValue) {
+        return isRevoked(hash(tokenValue));
+    }
+
+    /**
+     * Like {@link #isRevoked(String)}, for callers that already have the hash of the token.
+     */
+    public boolean isRevoked(HashCode hash) {
+        Long expiresAt = revokedTokens.get(hash);
+        return expiresAt != null && expiresAt > System.currentTimeMillis();
+    }
+
+    public int getRevokedTokenCount() {
+        return revokedTokens.size();
+    }
+
+    /**
+     * @return the hashes of the tokens that were revoked and haven't expired since
+     */
+    public Set<HashCode> getRevokedTokenHashes() {
+        long now = System.currentTimeMillis();
+        Set<HashCode> hashes = new HashSet<>();
+        for (Map.Entry<HashCode, Long> revokedToken : revokedTokens.entrySet()) {
+            if (revokedToken.getValue() > now) {
+                hashes.add(revokedToken.getKey());
+            }
+        }
+        return hashes;
+    }
+
+    @ManagedAttribute(description = "Lookups of access tokens by their value")
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    @ManagedAttribute(description = "Lookups of access tokens rejected by the known token filter")
+    public long getRejectedLookups() {
+        return rejectedLookups.get();
+    }
+
+    @ManagedAttribute(description = "The rate of lookups of access tokens rejected by the known token filter")
+    public double getRejectionRate() {
+        long total = lookups.get();
+        return total == 0 ? 0 : (double) rejectedLookups.get() / total;
+    }
+
+    @ManagedAttribute(description = "The number of access tokens the known token filter is sized for")
+    public int getKnownTokenCapacity() {
+        synchronized (knownTokensLock) {
+            return knownTokenCapacity;
+        }
+    }
+
+    @ManagedAttribute(description = "The rate of unknown access tokens the known token filter currently lets through")
+    public double getKnownTokenFalsePositiveRate() {
+        synchronized (knownTokensLock) {
+            return knownTokens.getExpectedFalsePositiveRate(knownTokenCount);
+        }
+    }
+
+    private boolean isKnown(HashCode hash) {
+        lookups.incrementAndGet();
+        if (knownTokens.mightContain(hash)) {
+            return true;
+        }
+        rejectedLookups.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Builds the known token filter anew from the stored tokens. The caller has to hold the lock of the filter. A
+     * filter that is built in the background at the same time is discarded.
+     */
+    private void rebuildKnownTokens() {
+        pendingKnownTokens = null;
+        Set<HashCode> hashes = findKnownTokens();
+        knownTokenCapacity = capacityFor(hashes.size(), knownTokenMinCapacity);
+        knownTokens = buildKnownTokens(hashes, knownTokenCapacity, knownTokenFalsePositiveRate);
+        knownTokenCount = hashes.size();
+        knownTokenRemovals = 0;
+    }
+
+    /**
+     * Starts to collect the tokens that are stored while a new filter is built. The caller has to hold the lock of the
+     * filter.
+     *
+     * @return the list the stored tokens are collected in
+     */
+    private List<HashCode> startRebuild() {
+        pendingKnownTokens = new ArrayList<>();
+        return pendingKnownTokens;
+    }
+
+    private void scheduleRebuild(final List<HashCode> pending) {
+        final int minCapacity;
+        final double falsePositiveRate;
+        synchronized (knownTokensLock) {
+            minCapacity = knownTokenMinCapacity;
+            falsePositiveRate = knownTokenFalsePositiveRate;
+        }
+        try {
+            rebuildExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    rebuildKnownTokens(pending, minCapacity, falsePositiveRate);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finishRebuild(pending);
+        }
+    }
+
+    /**
+     * Builds the known token filter anew from the stored tokens without holding the lock of the filter, and swaps it
+     * in together with the tokens stored in the meantime.
+     */
+    private void rebuildKnownTokens(List<HashCode> pending, int minCapacity, double falsePositiveRate) {
+        try {
+            Set<HashCode> hashes = findKnownTokens();
+            int capacity = capacityFor(hashes.size(), minCapacity);
+            BloomFilter filter = buildKnownTokens(hashes, capacity, falsePositiveRate);
+            synchronized (knownTokensLock) {
+                if (pendingKnownTokens != pending) {
+                    return;
+                }
+                for (HashCode hash : pending) {
+                    if (hashes.add(hash)) {
+                        filter.put(hash);
+                    }
+                }
+                knownTokenCapacity = capacity;
+                knownTokenCount = hashes.size();
+                knownTokenRemovals = 0;
+                knownTokens = filter;
+            }
+        } finally {
+            finishRebuild(pending);
+        }
+    }
+
+    private void finishRebuild(List<HashCode> pending) {
+        synchronized (knownTokensLock) {
+            if (pendingKnownTokens == pending) {
+                pendingKnownTokens = null;
+            }
+        }
+    }
+
+    private Set<HashCode> findKnownTokens() {
+        Set<HashCode> hashes = new HashSet<>();
+        for (String clientId : clientIds) {
+            for (OAuth2AccessToken accessToken : findTokensByClientId(clientId)) {
+                hashes.add(hash(accessToken.getValue()));
+            }
+        }
+        return hashes;
+    }
+
+    private static int capacityFor(int tokenCount, int minCapacity) {
+        return Math.max(Math.max(1, minCapacity), 2 * tokenCount);
+    }
+
+    private static BloomFilter buildKnownTokens(Set<HashCode> hashes, int capacity, double falsePositiveRate) {
+        BloomFilter filter = new BloomFilter(capacity, falsePositiveRate);
+        for (HashCode hash : hashes) {
+            filter.put(hash);
+        }
+        return filter;
+    }
+
+    private void pruneRevokedTokens(long now) {
+        long next = nextPrune.get();
+        if (now < next || !nextPrune.compareAndSet(next, now + PRUNE_INTERVAL)) {
+            return;
+        }
+        Iterator<Long> expirations = revokedTokens.values().iterator();
+        while (expirations.hasNext()) {
+            if (expirations.next() <= now) {
+                expirations.remove();
+            }
+        }
+    }
+
+    static HashCode hash(String tokenValue) {
+        return Hashing.sha256().hashString(tokenValue, StandardCharsets.UTF_8);
+    }
+}
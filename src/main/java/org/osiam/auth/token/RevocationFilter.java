@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.google.common.hash.HashCode;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * A {@link BloomFilter} over the SHA-256 hashes of the revoked access tokens that haven't expired yet. Resource servers
+ * that validate tokens locally download the filter and only ask the auth server about tokens the filter contains,
+ * because the filter can report tokens as revoked that aren't. The exact set of revoked tokens is kept by the
+ * {@link OsiamTokenStore}.
+ * <p/>
+ * Revoked tokens are only added to the filter, so resource servers can follow the filter with the hashes of the tokens
+ * revoked since their version. When the filter is full or most of its tokens have expired, it is built anew from the
+ * tokens that are still revoked with a size fitting their number, which starts a new generation of versions.
+ */
+@Service
+@ManagedResource
+public class RevocationFilter {
+
+    /**
+     * Either the whole filter or the hashes of the tokens revoked since a version of the filter.
+     */
+    @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+    public static final class Update {
+
+        private final String version;
+        private final boolean full;
+        private final Integer size;
+        private final Integer hashFunctions;
+        private final String bits;
+        private final List<String> hashes;
+
+        Update(String version, int size, int hashFunctions, String bits) {
+            this.version = version;
+            this.full = true;
+            this.size = size;
+            this.hashFunctions = hashFunctions;
+            this.bits = bits;
+            this.hashes = null;
+        }
+
+        Update(String version, List<String> hashes) {
+            this.version = version;
+            this.full = false;
+            this.size = null;
+            this.hashFunctions = null;
+            this.bits = null;
+            this.hashes = hashes;
+        }
+
+        /**
+         * @return the version of the filter after applying this update
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * @return true if this update contains the whole filter, false if it contains the hashes to add
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * @return the number of bits of the filter
+         */
+        public Integer getSize() {
+            return size;
+        }
+
+        public Integer getHashFunctions() {
+            return hashFunctions;
+        }
+
+        /**
+         * @return the bits of the filter, base64 encoded, bit {@code n} is the bit {@code n % 8} (least significant
+         *         first) of the byte {@code n / 8}
+         */
+        public String getBits() {
+            return bits;
+        }
+
+        /**
+         * @return the hex encoded hashes of the tokens revoked since the requested version
+         */
+        public List<String> getHashes() {
+            return hashes;
+        }
+    }
+
+    @Inject
+    private OsiamTokenStore tokenStore;
+
+    @Value("${org.osiam.auth-server.revocation-filter.false-positive-rate:0.01}")
+    private double falsePositiveRate;
+
+    @Value("${org.osiam.auth-server.revocation-filter.min-capacity:1000}")
+    private int minCapacity;
+
+    @Value("${org.osiam.auth-server.revocation-filter.max-delta:10000}")
+    private int maxDelta;
+
+    private final String epoch = createEpoch();
+
+    private long generation;
+    private BloomFilter filter;
+    private int capacity;
+
+    /**
+     * The number of tokens added in the current generation
+     */
+    private int count;
+
+    /**
+     * The latest tokens added in the current generation
+     */
+    private final Deque<HashCode> delta = new ArrayDeque<>();
+
+    private Update fullUpdate;
+
+    @PostConstruct
+    synchronized void registerListener() {
+        tokenStore.addListener(new OsiamTokenStore.Listener() {
+            @Override
+            public void accessTokenRemoved(String tokenValue, boolean revoked) {
+                if (revoked) {
+                    add(OsiamTokenStore.hash(tokenValue));
+                }
+            }
+        });
+        rebuild();
+    }
+
+    public synchronized void add(HashCode hash) {
+        if (count >= capacity && rebuild().contains(hash)) {
+            return;
+        }
+        filter.put(hash);
+        count++;
+        delta.addLast(hash);
+        while (delta.size() > Math.max(0, maxDelta)) {
+            delta.removeFirst();
+        }
+        fullUpdate = null;
+    }
+
+    /**
+     * Returns the update from the given version to the current version of the filter. If the version is of another
+     * generation or too old to be updated with the retained hashes, the whole filter is returned.
+     *
+     * @param version
+     *        the version of the filter the resource server has or null
+     */
+    public synchronized Update read(String version) {
+        if (capacity > minCapacity && tokenStore.getRevokedTokenCount() * 4L < count) {
+            rebuild();
+        }
+
+        long knownCount = parse(version);
+        if (knownCount >= 0 && knownCount <= count && count - knownCount <= delta.size()) {
+            List<String> hashes = new ArrayList<>(count - (int) knownCount);
+            Iterator<HashCode> newestFirst = delta.descendingIterator();
+            for (int i = 0; i < count - knownCount; i++) {
+                hashes.add(newestFirst.next().toString());
+            }
+            Collections.reverse(hashes);
+            return new Update(version(), hashes);
+        }
+
+        if (fullUpdate == null) {
+            fullUpdate = new Update(version(), filter.getSize(), filter.getHashFunctions(),
+                    BaseEncoding.base64().encode(filter.toByteArray()));
+        }
+        return fullUpdate;
+    }
+
+    synchronized boolean mightContain(HashCode hash) {
+        return filter.mightContain(hash);
+    }
+
+    @ManagedAttribute(description = "The current version of the revocation filter")
+    public synchronized String getVersion() {
+        return version();
+    }
+
+    @ManagedAttribute(description = "The number of tokens the revocation filter holds before it is built anew")
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    @ManagedAttribute(description = "The number of tokens added to the revocation filter")
+    public synchronized int getCount() {
+        return count;
+    }
+
+    @ManagedAttribute(description = "The size of the revocation filter in bytes")
+    public synchronized int getSizeInBytes() {
+        return filter.getSize() / 8;
+    }
+
+    @ManagedAttribute(description = "The expected rate of tokens the revocation filter reports as revoked wrongly")
+    public synchronized double getExpectedFalsePositiveRate() {
+        return filter.getExpectedFalsePositiveRate(count);
+    }
+
+    /**
+     * @return the tokens in the new filter
+     */
+    private Set<HashCode> rebuild() {
+        Set<HashCode> revokedTokens = tokenStore.getRevokedTokenHashes();
+        capacity = Math.max(Math.max(1, minCapacity), 2 * revokedTokens.size());
+        filter = new BloomFilter(capacity, falsePositiveRate);
+        for (HashCode hash : revokedTokens) {
+            filter.put(hash);
+        }
+        count = revokedTokens.size();
+        delta.clear();
+        generation++;
+        fullUpdate = null;
+        return revokedTokens;
+    }
+
+    private static String createEpoch() {
+        byte[] epoch = new byte[8];
+        new SecureRandom().nextBytes(epoch);
+        return BaseEncoding.base16().lowerCase().encode(epoch);
+    }
+
+    private String version() {
+        return epoch + '-' + generation + '-' + count;
+    }
+
+    /**
+     * @return the number of tokens of the version or -1 if the version doesn't belong to the current generation
+     */
+    private long parse(String version) {
+        String prefix = epoch + '-' + generation + '-';
+        if (version == null || !version.startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(version.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * A log of revocations that resource servers follow to drop cached validations of revoked tokens. Every event gets the
+ * next sequence number, so the position of a consumer in the log is a single number. The cursors handed to consumers
+ * also contain a random epoch of this log, because the log is kept in memory only and starts anew with every start of
+ * the auth server.
+ * <p/>
+ * The log keeps only the latest events. A consumer whose cursor is older than the oldest event or belongs to another
+ * epoch has missed events and is told to reset, i.e. to drop all cached validations.
+ */
+@Service
+@ManagedResource
+public class RevocationLog {
+
+    public enum Type {
+        /**
+         * A single access token was revoked, the value is the hex encoded SHA-256 hash of the token
+         */
+        TOKEN,
+        /**
+         * All access tokens of a user were revoked, the value is the id of the user
+         */
+        USER,
+        /**
+         * A client was deleted, the value is the id of the client
+         */
+        CLIENT
+    }
+
+    public static final class Event {
+
+        private final long sequence;
+        private final Type type;
+        private final String value;
+
+        Event(long sequence, Type type, String value) {
+            this.sequence = sequence;
+            this.type = type;
+            this.value = value;
+        }
+
+        public String getType() {
+            return type.name().toLowerCase(Locale.ENGLISH);
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * The events after a cursor.
+     */
+    public static final class Events {
+
+        private final String cursor;
+        private final boolean reset;
+        private final List<Event> events;
+
+        Events(String cursor, boolean reset, List<Event> events) {
+            this.cursor = cursor;
+            this.reset = reset;
+            this.events = events;
+        }
+
+        /**
+         * @return the cursor to read the following events with
+         */
+        public String getCursor() {
+            return cursor;
+        }
+
+        /**
+         * @return true if the consumer missed events and has to drop all cached validations
+         */
+        public boolean isReset() {
+            return reset;
+        }
+
+        public List<Event> getEvents() {
+            return events;
+        }
+    }
+
+    @Inject
+    private OsiamTokenStore tokenStore;
+
+    @Value("${org.osiam.auth-server.revocation-log.size:10000}")
+    private int size;
+
+    private final String epoch = createEpoch();
+
+    private final Deque<Event> events = new ArrayDeque<>();
+    private final List<Runnable> waiters = new ArrayList<>();
+    private long lastSequence;
+
+    @PostConstruct
+    void registerListener() {
+        tokenStore.addListener(new OsiamTokenStore.Listener() {
+            @Override
+            public void accessTokenRemoved(String tokenValue, boolean revoked) {
+                if (revoked) {
+                    append(Type.TOKEN, OsiamTokenStore.hash(tokenValue).toString());
+                }
+            }
+        });
+    }
+
+    public void append(Type type, String value) {
+        List<Runnable> waitersToNotify;
+        synchronized (this) {
+            events.addLast(new Event(++lastSequence, type, value));
+            while (events.size() > Math.max(1, size)) {
+                events.removeFirst();
+            }
+            waitersToNotify = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        for (Runnable waiter : waitersToNotify) {
+            waiter.run();
+        }
+    }
+
+    /**
+     * Reads the events after the given cursor. Without cursor no events are returned, only the cursor of the current
+     * end of the log.
+     *
+     * @param cursor
+     *        the cursor returned by the previous read or null
+     * @param maxEvents
+     *        the maximum number of events to return, the following events can be read with the returned cursor
+     */
+    public synchronized Events read(String cursor, int maxEvents) {
+        if (cursor == null) {
+            return new Events(cursor(lastSequence), false, Collections.<Event>emptyList());
+        }
+
+        long sequence = parse(cursor);
+        long firstSequence = events.isEmpty() ? lastSequence + 1 : events.peekFirst().sequence;
+        if (sequence < firstSequence - 1 || sequence > lastSequence) {
+            return new Events(cursor(lastSequence), true, Collections.<Event>emptyList());
+        }
+
+        List<Event> result = new ArrayList<>(Math.min(maxEvents, (int) (lastSequence - sequence)));
+        Iterator<Event> newestFirst = events.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Event event = newestFirst.next();
+            if (event.sequence <= sequence) {
+                break;
+            }
+            result.add(event);
+        }
+        Collections.reverse(result);
+        if (result.size() > maxEvents) {
+            result = new ArrayList<>(result.subList(0, maxEvents));
+        }
+        long next = result.isEmpty() ? sequence : result.get(result.size() - 1).sequence;
+        return new Events(cursor(next), false, result);
+    }
+
+    /**
+     * Calls the waiter once when the next event is appended after the given cursor. If there already are events after
+     * the cursor or the cursor is not valid, the waiter is not registered.
+     *
+     * @return true if the waiter was registered, false if the events can be read right away
+     */
+    public synchronized boolean awaitEvents(String cursor, Runnable waiter) {
+        if (cursor == null || parse(cursor) != lastSequence) {
+            return false;
+        }
+        waiters.add(waiter);
+        return true;
+    }
+
+    public synchronized void removeWaiter(Runnable waiter) {
+        waiters.remove(waiter);
+    }
+
+    @ManagedAttribute(description = "The sequence number of the latest revocation")
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    @ManagedAttribute(description = "Consumers waiting for revocations")
+    public synchronized int getWaitingConsumers() {
+        return waiters.size();
+    }
+
+    private static String createEpoch() {
+        byte[] epoch = new byte[8];
+        new SecureRandom().nextBytes(epoch);
+        return BaseEncoding.base16().lowerCase().encode(epoch);
+    }
+
+    private String cursor(long sequence) {
+        return epoch + '-' + sequence;
+    }
+
+    /**
+     * @return the sequence number of the cursor or -1 if the cursor doesn't belong to this log
+     */
+    private long parse(String cursor) {
+        int separator = cursor.indexOf('-');
+        if (separator < 0 || !cursor.regionMatches(0, epoch, 0, separator) || separator != epoch.length()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(cursor.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
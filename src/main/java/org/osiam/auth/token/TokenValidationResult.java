@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token;
+
+import org.springframework.security.oauth2.client.resource.OAuth2AccessDeniedException;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+
+/**
+ * The outcome of the validation of a single access token.
+ */
+public final class TokenValidationResult {
+
+    public enum Status {
+        /**
+         * The token is valid, the result contains its description
+         */
+        VALID,
+        /**
+         * The token has expired
+         */
+        EXPIRED,
+        /**
+         * The token was never issued by this auth server or has expired so long ago that it's forgotten
+         */
+        UNKNOWN,
+        /**
+         * The token was revoked before it expired
+         */
+        REVOKED,
+        /**
+         * The token has no authentication
+         */
+        INVALID,
+        /**
+         * The token is not meant for the auth server
+         */
+        ACCESS_DENIED
+    }
+
+    private final Status status;
+    private final String message;
+    private final ValidationResponse response;
+
+    private TokenValidationResult(Status status, String message, ValidationResponse response) {
+        this.status = status;
+        this.message = message;
+        this.response = response;
+    }
+
+    static TokenValidationResult valid(ValidationResponse response) {
+        return new TokenValidationResult(Status.VALID, null, response);
+    }
+
+    static TokenValidationResult invalid(Status status, String message) {
+        return new TokenValidationResult(status, message, null);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isValid() {
+        return status == Status.VALID;
+    }
+
+    /**
+     * @return the serialized description of the token, or null if the token is not valid
+     */
+    public ValidationResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @return why the token is not valid, or null if the token is valid
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the exception the resource server filter throws for the token, or null if the token is valid
+     */
+    public OAuth2Exception toException() {
+        switch (status) {
+        case VALID:
+            return null;
+        case ACCESS_DENIED:
+            return new OAuth2AccessDeniedException(message);
+        default:
+            return new InvalidTokenException(message);
+        }
+    }
+}
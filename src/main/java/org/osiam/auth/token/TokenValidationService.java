@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.auth.token;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.osiam.auth.token.TokenValidationResult.Status;
+import org.osiam.client.oauth.AccessToken;
+import org.osiam.client.oauth.Scope;
+import org.osiam.resources.scim.User;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.oauth2.client.resource.OAuth2AccessDeniedException;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.AuthorizationRequest;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+
+/**
+ * Validates access tokens the same way the resource server filter of the auth server does and describes them for
+ * resource servers.
+ * <p/>
+ * Resource servers validate the same token again and again, so the serialized descriptions of valid tokens are cached
+ * for a short time. The cache is keyed by the SHA-256 hash of the token and the entries are removed as soon as the
+ * token is removed from the token store, e.g. because it was revoked.
+ */
+@Service
+public class TokenValidationService {
+
+    /**
+     * The resource id of the auth server, as configured for the resource server filter
+     */
+    public static final String RESOURCE_ID = "oauth2res";
+
+    @Inject
+    private OsiamTokenStore tokenStore;
+
+    @Value("${org.osiam.auth-server.token-validation.cache.size:10000}")
+    private int cacheSize;
+
+    @Value("${org.osiam.auth-server.token-validation.max-age:60}")
+    private int maxAgeInSeconds;
+
+    private final ObjectWriter accessTokenWriter = new ObjectMapper().writerWithType(AccessToken.class);
+
+    private Cache<HashCode, ValidationResponse> validationResponses;
+
+    /**
+     * Counts the access tokens removed from the token store, to tell if a token was removed while its response was
+     * created
+     */
+    private final AtomicLong removedTokens = new AtomicLong();
+
+    @PostConstruct
+    void createCache() {
+        if (cacheSize > 0 && maxAgeInSeconds > 0) {
+            validationResponses = CacheBuilder.newBuilder()
+                    .maximumSize(cacheSize)
+                    .expireAfterWrite(maxAgeInSeconds, TimeUnit.SECONDS)
+                    .build();
+        }
+        tokenStore.addListener(new OsiamTokenStore.Listener() {
+            @Override
+            public void accessTokenRemoved(String tokenValue, boolean revoked) {
+                // counted before the cache entry is invalidated, so a response put in between is noticed
+                removedTokens.incrementAndGet();
+                invalidate(tokenValue);
+            }
+        });
+    }
+
+    /**
+     * @return the maximum time in seconds resource servers may cache a validation response
+     */
+    public int getMaxAgeInSeconds() {
+        return maxAgeInSeconds;
+    }
+
+    /**
+     * Validates the access token like the resource server filter and serializes the description of the token, or
+     * takes it from the cache.
+     *
+     * @throws InvalidTokenException
+     *         if the token is unknown, revoked or expired
+     * @throws OAuth2AccessDeniedException
+     *         if the token is not meant for the auth server
+     */
+    public ValidationResponse getValidationResponse(String token) throws IOException {
+        return getValidationResponse(token, null);
+    }
+
+    /**
+     * Like {@link #getValidationResponse(String)}, but reuses the authentication the resource server filter has already
+     * loaded and checked for the token, so only the access token is read from the token store if the response is not
+     * cached.
+     *
+     * @param authentication
+     *        the authentication of the token from the security context, or null to load it from the token store
+     */
+    public ValidationResponse getValidationResponse(String token, OAuth2Authentication authentication)
+            throws IOException {
+        TokenValidationResult result = check(token, authentication);
+        if (!result.isValid()) {
+            throw result.toException();
+        }
+        return result.getResponse();
+    }
+
+    /**
+     * Validates the access token like {@link #getValidationResponse(String)}, but reports why a token is not valid in
+     * the result instead of throwing an exception.
+     */
+    public TokenValidationResult check(String token) throws IOException {
+        return check(token, null);
+    }
+
+    private TokenValidationResult check(String token, OAuth2Authentication loadedAuthentication) throws IOException {
+        // the token is hashed once for the cache and all lookups in the token store
+        HashCode hash = OsiamTokenStore.hash(token);
+        HashCode key = null;
+        if (validationResponses != null) {
+            key = hash;
+            ValidationResponse response = validationResponses.getIfPresent(key);
+            if (response != null && !response.isExpired(System.currentTimeMillis())) {
+                return TokenValidationResult.valid(response);
+            }
+        }
+
+        long removedTokensBefore = removedTokens.get();
+        OAuth2AccessToken accessToken = tokenStore.readAccessToken(token, hash);
+        if (accessToken == null) {
+            return TokenValidationResult.invalid(tokenStore.isRevoked(hash) ? Status.REVOKED : Status.UNKNOWN,
+                    "Invalid access token: " + token);
+        }
+        if (accessToken.isExpired()) {
+            tokenStore.removeAccessToken(accessToken);
+            return TokenValidationResult.invalid(Status.EXPIRED, "Access token expired: " + token);
+        }
+
+        OAuth2Authentication authentication = loadedAuthentication;
+        if (authentication == null) {
+            authentication = tokenStore.readAuthentication(token, hash);
+            if (authentication == null) {
+                return TokenValidationResult.invalid(Status.INVALID, "Invalid token: " + token);
+            }
+            Set<String> resourceIds = authentication.getAuthorizationRequest().getResourceIds();
+            if (resourceIds != null && !resourceIds.isEmpty() && !resourceIds.contains(RESOURCE_ID)) {
+                return TokenValidationResult.invalid(Status.ACCESS_DENIED,
+                        "Invalid token does not contain resource id (" + RESOURCE_ID + ")");
+            }
+        }
+
+        ValidationResponse response = new ValidationResponse(
+                accessTokenWriter.writeValueAsBytes(toAccessToken(token, authentication, accessToken)),
+                accessToken.getExpiration());
+        if (key != null) {
+            validationResponses.put(key, response);
+            if (removedTokens.get() != removedTokensBefore) {
+                // a token was removed while the response was created, the listener might have missed the cache entry
+                validationResponses.invalidate(key);
+            }
+        }
+        return TokenValidationResult.valid(response);
+    }
+
+    private void invalidate(String token) {
+        if (validationResponses != null) {
+            validationResponses.invalidate(OsiamTokenStore.hash(token));
+        }
+    }
+
+    /**
+     * Describes a valid access token for a resource server.
+     */
+    public static AccessToken toAccessToken(String token, OAuth2Authentication authentication,
+            OAuth2AccessToken accessToken) {
+        AuthorizationRequest authReq = authentication.getAuthorizationRequest();
+        AccessToken.Builder tokenBuilder = new AccessToken.Builder(token).setClientId(authReq.getClientId());
+
+        if (authentication.getUserAuthentication() != null && authentication.getPrincipal() instanceof User) {
+            User user = (User) authentication.getPrincipal();
+            tokenBuilder.setUserName(user.getUserName());
+            tokenBuilder.setUserId(user.getId());
+        }
+
+        tokenBuilder.setExpiresAt(accessToken.getExpiration());
+
+        for (String scopeString : authReq.getScope()) {
+            tokenBuilder.addScope(new Scope(scopeString));
+        }
+
+        return tokenBuilder.build();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.auth.token;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Locale;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.osiam.client.oauth.AccessToken;
+import org.springframework.security.authentication.InsufficientAuthenticationException;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.security.web.AuthenticationEntryPoint;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * Validates access tokens like {@code POST /token/validation}, but without the security filters and the dispatcher
+ * servlet in between: its URL has an empty security filter chain. The servlet is registered directly in the
+ * {@code web.xml} and takes the beans it needs from the application context named by the init parameter
+ * {@code contextAttribute}.
+ * <p/>
+ * The responses are the same: the JSON of the {@link AccessToken} for a valid token, otherwise the error the OAuth2
+ * entry point of the resource server filter writes.
+ * <p/>
+ * Responses for valid tokens may be cached by the resource server until the token expires, but at most for the
+ * configured maximum age. They carry an entity tag, so the resource server can revalidate them with a conditional GET
+ * request.
+ */
+public class TokenValidationServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 6530129485640723218L;
+
+    private static final String CONTENT_TYPE = "application/json;charset=UTF-8";
+
+    private transient TokenValidationService tokenValidationService;
+    private transient AuthenticationEntryPoint authenticationEntryPoint;
+
+    @Override
+    public void init() throws ServletException {
+        WebApplicationContext context = WebApplicationContextUtils.getWebApplicationContext(getServletContext(),
+                getInitParameter("contextAttribute"));
+        if (context == null) {
+            throw new ServletException("No application context found in the servlet context attribute "
+                    + getInitParameter("contextAttribute"));
+        }
+        init(context.getBean(TokenValidationService.class),
+                context.getBean("oauthAuthenticationEntryPoint", AuthenticationEntryPoint.class));
+    }
+
+    void init(TokenValidationService tokenValidationService, AuthenticationEntryPoint authenticationEntryPoint) {
+        this.tokenValidationService = tokenValidationService;
+        this.authenticationEntryPoint = authenticationEntryPoint;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+            IOException {
+        validate(request, response, false);
+    }
+
+    /**
+     * Validates like a POST request, but answers conditional requests whose entity tag matches with 304.
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+            IOException {
+        validate(request, response, true);
+    }
+
+    private void validate(HttpServletRequest request, HttpServletResponse response, boolean conditional)
+            throws ServletException, IOException {
+        response.setHeader("Vary", "Authorization");
+
+        String token = getBearerToken(request);
+        if (token == null) {
+            response.setHeader("Cache-Control", "no-store");
+            authenticationEntryPoint.commence(request, response, new InsufficientAuthenticationException(
+                    "Full authentication is required to access this resource"));
+            return;
+        }
+
+        ValidationResponse validationResponse;
+        try {
+            validationResponse = tokenValidationService.getValidationResponse(token);
+        } catch (OAuth2Exception e) {
+            response.setHeader("Cache-Control", "no-store");
+            authenticationEntryPoint.commence(request, response, new InsufficientAuthenticationException(
+                    e.getMessage(), e));
+            return;
+        }
+
+        long maxAge = validationResponse.getMaxAge(System.currentTimeMillis(),
+                tokenValidationService.getMaxAgeInSeconds());
+        response.setHeader("Cache-Control", "private, max-age=" + maxAge);
+        response.setHeader("ETag", validationResponse.getETag());
+
+        if (conditional && matches(request.getHeaders("If-None-Match"), validationResponse.getETag())) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] body = validationResponse.getBody();
+        response.setContentType(CONTENT_TYPE);
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    private static boolean matches(Enumeration<String> ifNoneMatch, String eTag) {
+        while (ifNoneMatch != null && ifNoneMatch.hasMoreElements()) {
+            for (String candidate : ifNoneMatch.nextElement().split(",")) {
+                String trimmed = candidate.trim();
+                if (trimmed.equals(eTag) || trimmed.equals("*")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the bearer token from the Authorization header like the resource server filter.
+     */
+    private static String getBearerToken(HttpServletRequest request) {
+        Enumeration<String> headers = request.getHeaders("Authorization");
+        String bearerType = OAuth2AccessToken.BEARER_TYPE.toLowerCase(Locale.ENGLISH);
+        while (headers != null && headers.hasMoreElements()) {
+            String value = headers.nextElement();
+            if (value.toLowerCase(Locale.ENGLISH).startsWith(bearerType)) {
+                String token = value.substring(OAuth2AccessToken.BEARER_TYPE.length()).trim();
+                int commaIndex = token.indexOf(',');
+                return commaIndex > 0 ? token.substring(0, commaIndex) : token;
+            }
+        }
+        return null;
+    }
+}
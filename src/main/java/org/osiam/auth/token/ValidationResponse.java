@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * The serialized description of a valid access token, as it is sent to resource servers.
+ */
+public final class ValidationResponse {
+
+    private final byte[] body;
+    private final String eTag;
+    private final long expiresAt;
+
+    ValidationResponse(byte[] body, Date expiration) {
+        this.body = body;
+        this.eTag = '"' + Hashing.sha256().hashBytes(body).toString() + '"';
+        this.expiresAt = expiration != null ? expiration.getTime() : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the JSON of the {@link org.osiam.client.oauth.AccessToken}, must not be modified
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return the strong entity tag of the body, including the quotes
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt <= now;
+    }
+
+    /**
+     * @return the time in seconds the response may be cached: the remaining lifetime of the token, but at most the
+     *         given maximum
+     */
+    public long getMaxAge(long now, long maxAgeInSeconds) {
+        long remaining = TimeUnit.MILLISECONDS.toSeconds(Math.max(0, expiresAt - now));
+        return Math.min(remaining, maxAgeInSeconds);
+    }
+}
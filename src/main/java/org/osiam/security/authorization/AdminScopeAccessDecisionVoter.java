@@ -14,13 +14,18 @@ import org.springframework.security.web.FilterInvocation;
 
 public class AdminScopeAccessDecisionVoter implements AccessDecisionVoter<FilterInvocation> {
 
-    public static final SecurityConfig SCOPE_DYNAMIC = new SecurityConfig("SCOPE_DYNAMIC");
+    public static final SecurityConfig SCOPE_DYNAMIC = ScopeRegistry.SCOPE_DYNAMIC;
     public static final SecurityConfig SCOPE_ADMIN = new SecurityConfig("SCOPE_ADMIN");
 
     private final ScopeVoter scopeVoter;
 
-    public AdminScopeAccessDecisionVoter(ScopeVoter scopeVoter) {
+    private final ScopeRegistry scopeRegistry;
+    private final long adminScope;
+
+    public AdminScopeAccessDecisionVoter(ScopeVoter scopeVoter, ScopeRegistry scopeRegistry) {
         this.scopeVoter = scopeVoter;
+        this.scopeRegistry = scopeRegistry;
+        adminScope = scopeRegistry.register("ADMIN");
     }
 
     @Override
@@ -41,6 +46,11 @@ public class AdminScopeAccessDecisionVoter implements AccessDecisionVoter<Filter
             return ACCESS_ABSTAIN;
         }
 
+        if (ScopeRegistry.isOnlyScopeDynamic(attributes)) {
+            return scopeRegistry.hasScope((OAuth2Authentication) authentication, adminScope)
+                    ? ACCESS_GRANTED : ACCESS_DENIED;
+        }
+
         Set<ConfigAttribute> enhancedAttributes = new HashSet<>(attributes);
         if (enhancedAttributes.contains(SCOPE_DYNAMIC)) {
             enhancedAttributes.remove(SCOPE_DYNAMIC);
@@ -32,21 +32,33 @@ import org.springframework.security.access.AccessDecisionVoter;
 import org.springframework.security.access.ConfigAttribute;
 import org.springframework.security.access.SecurityConfig;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.vote.ScopeVoter;
 import org.springframework.security.web.FilterInvocation;
 
 /**
  * This AccessDecisionVoter is based upon an other AccessDecisionVoter given in the constructor.
  * <p/>
  * The only purpose of this class is to enhance attributes with a SCOPE_HTTP-Method in vote when SCOPE_DYNAMIC is set.
- *
+ * If SCOPE_DYNAMIC is the only attribute and the other voter is a {@link ScopeVoter}, the scope of the HTTP method is
+ * checked directly in the bit mask of the token's scopes.
  */
 public class DynamicHTTPMethodScopeEnhancer implements AccessDecisionVoter<Object> {
 
-    private final ConfigAttribute dynamic = new SecurityConfig("SCOPE_DYNAMIC");
+    private static final String[] HTTP_METHODS = {"GET", "POST", "PUT", "PATCH", "DELETE", "HEAD", "OPTIONS",
+            "TRACE"};
+
+    private final ConfigAttribute dynamic = ScopeRegistry.SCOPE_DYNAMIC;
     private final AccessDecisionVoter<Object> basedOnVoter;
+    private final ScopeRegistry scopeRegistry;
 
-    public DynamicHTTPMethodScopeEnhancer(final AccessDecisionVoter<Object> basedOnVoter) {
+    public DynamicHTTPMethodScopeEnhancer(final AccessDecisionVoter<Object> basedOnVoter,
+            final ScopeRegistry scopeRegistry) {
         this.basedOnVoter = basedOnVoter;
+        this.scopeRegistry = scopeRegistry;
+        for (String method : HTTP_METHODS) {
+            scopeRegistry.register(method);
+        }
     }
 
     @Override
@@ -61,10 +73,23 @@ public class DynamicHTTPMethodScopeEnhancer implements AccessDecisionVoter<Objec
 
     @Override
     public int vote(final Authentication authentication, final Object object, final Collection<ConfigAttribute> attributes) {
+        if (canVoteWithScopeMask(authentication, object, attributes)) {
+            long methodScope = scopeRegistry.getBit(((FilterInvocation) object).getRequest().getMethod());
+            if (methodScope != 0) {
+                return scopeRegistry.hasScope((OAuth2Authentication) authentication, methodScope)
+                        ? ACCESS_GRANTED : ACCESS_DENIED;
+            }
+        }
         Set<ConfigAttribute> dynamicConfigs = ifScopeDynamicAddMethodScope(object, attributes);
         return basedOnVoter.vote(authentication, object, dynamicConfigs);
     }
 
+    private boolean canVoteWithScopeMask(final Authentication authentication, final Object object,
+            final Collection<ConfigAttribute> attributes) {
+        return basedOnVoter instanceof ScopeVoter && authentication instanceof OAuth2Authentication
+                && object instanceof FilterInvocation && ScopeRegistry.isOnlyScopeDynamic(attributes);
+    }
+
     private Set<ConfigAttribute> ifScopeDynamicAddMethodScope(final Object object, final Collection<ConfigAttribute> attributes) {
         Set<ConfigAttribute> dynamicConfigs = new HashSet<>(attributes);
         if (object instanceof FilterInvocation && dynamicConfigs.remove(dynamic)) {
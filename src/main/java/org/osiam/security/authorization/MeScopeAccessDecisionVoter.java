@@ -1,12 +1,11 @@
 package org.osiam.security.authorization;
 
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
+import javax.servlet.http.HttpServletRequest;
+
 import org.osiam.resources.scim.User;
 import org.springframework.security.access.AccessDecisionVoter;
 import org.springframework.security.access.ConfigAttribute;
@@ -16,17 +15,24 @@ import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.security.oauth2.provider.vote.ScopeVoter;
 import org.springframework.security.web.FilterInvocation;
 
-import com.google.common.base.Splitter;
-
 public class MeScopeAccessDecisionVoter implements AccessDecisionVoter<FilterInvocation> {
 
-    public static final SecurityConfig SCOPE_DYNAMIC = new SecurityConfig("SCOPE_DYNAMIC");
+    public static final SecurityConfig SCOPE_DYNAMIC = ScopeRegistry.SCOPE_DYNAMIC;
     public static final SecurityConfig SCOPE_ME = new SecurityConfig("SCOPE_ME");
 
+    /**
+     * Matches /token/revocation/{userId}, so users can only revoke their own tokens
+     */
+    private static final ResourcePathMatcher REVOCATION_PATH = new ResourcePathMatcher("/token/revocation", 2);
+
     private final ScopeVoter scopeVoter;
+    private final ScopeRegistry scopeRegistry;
+    private final long meScope;
 
-    public MeScopeAccessDecisionVoter(ScopeVoter scopeVoter) {
+    public MeScopeAccessDecisionVoter(ScopeVoter scopeVoter, ScopeRegistry scopeRegistry) {
         this.scopeVoter = scopeVoter;
+        this.scopeRegistry = scopeRegistry;
+        meScope = scopeRegistry.register("ME");
     }
 
     @Override
@@ -43,10 +49,9 @@ public class MeScopeAccessDecisionVoter implements AccessDecisionVoter<FilterInv
     public int vote(Authentication authentication, FilterInvocation filterInvocation,
             Collection<ConfigAttribute> attributes) {
 
-        String requestUrl = filterInvocation.getRequestUrl();
-        String requestMethod = filterInvocation.getHttpRequest().getMethod();
+        HttpServletRequest request = filterInvocation.getHttpRequest();
 
-        if (!canVoteOn(authentication, requestUrl, requestMethod)) {
+        if (!canVoteOn(authentication, request)) {
             return ACCESS_ABSTAIN;
         }
 
@@ -55,10 +60,15 @@ public class MeScopeAccessDecisionVoter implements AccessDecisionVoter<FilterInv
             userId = ((User) authentication.getPrincipal()).getId();
         }
 
-        if (!isOwnerOfResource(userId, requestUrl)) {
+        if (!REVOCATION_PATH.isCollectionOrResource(request, userId)) {
             return ACCESS_ABSTAIN;
         }
 
+        if (ScopeRegistry.isOnlyScopeDynamic(attributes)) {
+            return scopeRegistry.hasScope((OAuth2Authentication) authentication, meScope)
+                    ? ACCESS_GRANTED : ACCESS_DENIED;
+        }
+
         return scopeVoter.vote(authentication, filterInvocation, enhanceConfigAttributes(attributes));
     }
 
@@ -71,48 +81,15 @@ public class MeScopeAccessDecisionVoter implements AccessDecisionVoter<FilterInv
         return enhancedAttributes;
     }
 
-    private boolean canVoteOn(Authentication authentication, String url, String method) {
+    private boolean canVoteOn(Authentication authentication, HttpServletRequest request) {
         if (!(authentication instanceof OAuth2Authentication)) {
             return false;
         }
 
-        if (!url.startsWith("/token/revocation")) {
+        if (!REVOCATION_PATH.hasPrefix(request)) {
             return false;
         }
 
         return true;
     }
-
-    private boolean isOwnerOfResource(String userId, String url) {
-        try {
-            String path = new URI(url).getPath();
-
-            if ("/token/revocation".equals(path) || "/token/revocation/".equals(path)) {
-                return true;
-            }
-
-            // userId is null, if access token is bound to a client, not a user
-            if (userId == null) {
-                return false;
-            }
-
-            List<String> pathSegments = Splitter.on('/')
-                    .omitEmptyStrings()
-                    .trimResults()
-                    .splitToList(path);
-
-            if (pathSegments.size() < 3) {
-                return false;
-            }
-
-            String resourceId = pathSegments.get(2);
-            if (userId.equals(resourceId)) {
-                return true;
-            }
-        } catch (URISyntaxException e) {
-            return false;
-        }
-
-        return false;
-    }
 }
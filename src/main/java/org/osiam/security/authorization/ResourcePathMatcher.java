@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.security.authorization;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.security.web.util.UrlUtils;
+
+import com.google.common.base.Splitter;
+
+/**
+ * Matches request URLs that start with a fixed prefix and compares one segment of their path with the id of a
+ * resource, e.g. {@code /token/revocation/<user id>}.
+ * <p/>
+ * The common URLs, that contain only characters a URI doesn't need to decode or reject, are matched in place on the
+ * servlet path, path info and query of the request without allocating anything. Other URLs are parsed as
+ * {@link URI}, so a URL that is not a valid URI never matches.
+ */
+final class ResourcePathMatcher {
+
+    private static final boolean[] PATH_CHARS = allowedChars("-_.!~*'();:@&=+$,/");
+    private static final boolean[] QUERY_CHARS = allowedChars("-_.!~*'();:@&=+$,/?");
+
+    private final String prefix;
+    private final int resourceIdSegment;
+
+    /**
+     * @param prefix
+     *        the prefix of the URLs, which is also the path of the resource collection
+     * @param resourceIdSegment
+     *        the index of the path segment with the resource id, empty segments aren't counted
+     */
+    ResourcePathMatcher(String prefix, int resourceIdSegment) {
+        this.prefix = prefix;
+        this.resourceIdSegment = resourceIdSegment;
+    }
+
+    boolean hasPrefix(HttpServletRequest request) {
+        if (!isSimple(request)) {
+            return UrlUtils.buildRequestUrl(request).startsWith(prefix);
+        }
+        String servletPath = request.getServletPath();
+        String pathInfo = request.getPathInfo();
+        return pathLength(servletPath, pathInfo) >= prefix.length()
+                && regionMatches(servletPath, pathInfo, 0, prefix, prefix.length());
+    }
+
+    /**
+     * @return true if the path is the resource collection itself or the resource id in the path is the given one
+     */
+    boolean isCollectionOrResource(HttpServletRequest request, String resourceId) {
+        if (!isSimple(request)) {
+            return isCollectionOrResource(UrlUtils.buildRequestUrl(request), resourceId);
+        }
+
+        String servletPath = request.getServletPath();
+        String pathInfo = request.getPathInfo();
+        int length = pathLength(servletPath, pathInfo);
+        if (length == prefix.length() && regionMatches(servletPath, pathInfo, 0, prefix, length)
+                || length == prefix.length() + 1 && regionMatches(servletPath, pathInfo, 0, prefix, prefix.length())
+                && charAt(servletPath, pathInfo, prefix.length()) == '/') {
+            return true;
+        }
+
+        if (resourceId == null) {
+            return false;
+        }
+
+        int segment = -1;
+        int segmentStart = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i < length && charAt(servletPath, pathInfo, i) != '/') {
+                continue;
+            }
+            if (i > segmentStart && ++segment == resourceIdSegment) {
+                return i - segmentStart == resourceId.length()
+                        && regionMatches(servletPath, pathInfo, segmentStart, resourceId, resourceId.length());
+            }
+            segmentStart = i + 1;
+        }
+        return false;
+    }
+
+    private boolean isCollectionOrResource(String url, String resourceId) {
+        try {
+            String path = new URI(url).getPath();
+
+            if (prefix.equals(path) || (prefix + "/").equals(path)) {
+                return true;
+            }
+
+            // resourceId is null, if access token is bound to a client, not a user
+            if (resourceId == null) {
+                return false;
+            }
+
+            List<String> pathSegments = Splitter.on('/')
+                    .omitEmptyStrings()
+                    .trimResults()
+                    .splitToList(path);
+
+            if (pathSegments.size() <= resourceIdSegment) {
+                return false;
+            }
+
+            return resourceId.equals(pathSegments.get(resourceIdSegment));
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the URL of the request consists of a servlet path and only contains characters whose meaning
+     *         in a URI is the same as in the request, so it doesn't need to be parsed as URI
+     */
+    private static boolean isSimple(HttpServletRequest request) {
+        String servletPath = request.getServletPath();
+        String pathInfo = request.getPathInfo();
+        // a path starting with two slashes would be parsed as authority
+        return servletPath != null && servletPath.startsWith("/")
+                && !(pathLength(servletPath, pathInfo) > 1 && charAt(servletPath, pathInfo, 1) == '/')
+                && consistsOf(servletPath, PATH_CHARS)
+                && consistsOf(pathInfo, PATH_CHARS)
+                && consistsOf(request.getQueryString(), QUERY_CHARS);
+    }
+
+    private static boolean consistsOf(String value, boolean[] allowedChars) {
+        if (value == null) {
+            return true;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= allowedChars.length || !allowedChars[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int pathLength(String servletPath, String pathInfo) {
+        return servletPath.length() + (pathInfo != null ? pathInfo.length() : 0);
+    }
+
+    private static char charAt(String servletPath, String pathInfo, int index) {
+        return index < servletPath.length() ? servletPath.charAt(index) : pathInfo.charAt(index - servletPath.length());
+    }
+
+    private static boolean regionMatches(String servletPath, String pathInfo, int offset, String other, int length) {
+        for (int i = 0; i < length; i++) {
+            if (charAt(servletPath, pathInfo, offset + i) != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean[] allowedChars(String punctuation) {
+        boolean[] allowedChars = new boolean[128];
+        for (char c = 'a'; c <= 'z'; c++) {
+            allowedChars[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            allowedChars[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            allowedChars[c] = true;
+        }
+        for (char c : punctuation.toCharArray()) {
+            allowedChars[c] = true;
+        }
+        return allowedChars;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.security.authorization;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.security.access.ConfigAttribute;
+import org.springframework.security.access.SecurityConfig;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Assigns a bit to every scope an access decision voter checks, so the scopes of an access token can be held as a bit
+ * mask and a voter checks a scope with a single mask operation. The mask of an authentication is computed once and
+ * kept as long as the token store holds the authentication, so voting on a request doesn't allocate anything.
+ * <p/>
+ * Only the registered scopes are part of the masks, the other scopes of a token are never checked by a voter. Like
+ * the {@link org.springframework.security.oauth2.provider.vote.ScopeVoter} scopes are compared case-insensitively.
+ */
+public class ScopeRegistry {
+
+    public static final SecurityConfig SCOPE_DYNAMIC = new SecurityConfig("SCOPE_DYNAMIC");
+
+    static final int MAX_SCOPES = Long.SIZE;
+
+    private final ConcurrentMap<String, Long> scopes = new ConcurrentHashMap<>();
+
+    private final Cache<OAuth2Authentication, Long> scopesOfAuthentications = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build();
+
+    /**
+     * Registers a scope that is checked by a voter.
+     *
+     * @return the bit of the scope
+     * @throws IllegalStateException
+     *         if more than {@link #MAX_SCOPES} scopes are registered
+     */
+    public synchronized long register(String scope) {
+        String normalizedScope = scope.toUpperCase(Locale.ENGLISH);
+        Long bit = scopes.get(normalizedScope);
+        if (bit != null) {
+            return bit;
+        }
+        if (scopes.size() == MAX_SCOPES) {
+            throw new IllegalStateException("No more than " + MAX_SCOPES + " scopes can be registered");
+        }
+        bit = 1L << scopes.size();
+        scopes.put(normalizedScope, bit);
+        // masks computed before don't contain the new scope
+        scopesOfAuthentications.invalidateAll();
+        return bit;
+    }
+
+    /**
+     * @return the bit of the given scope or 0 if it isn't registered
+     */
+    public long getBit(String scope) {
+        Long bit = scopes.get(scope);
+        if (bit == null) {
+            bit = scopes.get(scope.toUpperCase(Locale.ENGLISH));
+        }
+        return bit != null ? bit : 0;
+    }
+
+    /**
+     * @return true if the access token of the given authentication has the scope of the given bit
+     */
+    public boolean hasScope(OAuth2Authentication authentication, long bit) {
+        return (getScopes(authentication) & bit) != 0;
+    }
+
+    /**
+     * @return the registered scopes of the access token of the given authentication as bit mask
+     */
+    public long getScopes(OAuth2Authentication authentication) {
+        Long mask = scopesOfAuthentications.getIfPresent(authentication);
+        if (mask == null) {
+            mask = computeScopes(authentication.getAuthorizationRequest().getScope());
+            scopesOfAuthentications.put(authentication, mask);
+        }
+        return mask;
+    }
+
+    private long computeScopes(Collection<String> scopesOfToken) {
+        long mask = 0;
+        for (String scope : scopesOfToken) {
+            mask |= getBit(scope);
+        }
+        return mask;
+    }
+
+    /**
+     * @return true if the only attribute is {@link #SCOPE_DYNAMIC}, as configured for all secured URLs, which lets the
+     *         voters decide with a mask operation instead of a {@code ScopeVoter}
+     */
+    static boolean isOnlyScopeDynamic(Collection<ConfigAttribute> attributes) {
+        return attributes.size() == 1 && attributes.contains(SCOPE_DYNAMIC);
+    }
+}
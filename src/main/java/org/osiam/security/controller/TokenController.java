@@ -23,25 +23,39 @@
 
 package org.osiam.security.controller;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.osiam.auth.login.ResourceServerConnector;
+import org.osiam.auth.token.BatchTokenValidator;
+import org.osiam.auth.token.RevocationFilter;
+import org.osiam.auth.token.RevocationLog;
+import org.osiam.auth.token.RevocationLog.Events;
+import org.osiam.auth.token.TokenValidationService;
 import org.osiam.client.oauth.AccessToken;
-import org.osiam.client.oauth.Scope;
 import org.osiam.resources.scim.User;
 import org.osiam.security.authentication.AuthenticationError;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidRequestException;
 import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
-import org.springframework.security.oauth2.provider.AuthorizationRequest;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.authentication.OAuth2AuthenticationDetails;
 import org.springframework.security.oauth2.provider.token.DefaultTokenServices;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 /**
  * This Controller is used to handle OAuth2 access tokens with Spring Security.
@@ -50,35 +64,55 @@ import org.springframework.web.bind.annotation.*;
 @RequestMapping(value = "/token")
 public class TokenController {
 
+    static final int MAX_EVENTS = 1000;
+
     @Inject
     private DefaultTokenServices tokenServices;
 
     @Inject
     private ResourceServerConnector resourceServerConnector;
 
-    @RequestMapping(value = "/validation", method = RequestMethod.POST)
-    @ResponseBody
-    public AccessToken validateToken(@RequestHeader("Authorization") final String authorization) {
-        String token = getToken(authorization);
-        OAuth2Authentication auth = tokenServices.loadAuthentication(token);
-        OAuth2AccessToken accessToken = tokenServices.getAccessToken(auth);
-
-        AuthorizationRequest authReq = auth.getAuthorizationRequest();
-        AccessToken.Builder tokenBuilder = new AccessToken.Builder(token).setClientId(authReq.getClientId());
+    @Inject
+    private TokenValidationService tokenValidationService;
 
-        if (auth.getUserAuthentication() != null && auth.getPrincipal() instanceof User) {
-            User user = (User) auth.getPrincipal();
-            tokenBuilder.setUserName(user.getUserName());
-            tokenBuilder.setUserId(user.getId());
-        }
+    @Inject
+    private BatchTokenValidator batchTokenValidator;
 
-        tokenBuilder.setExpiresAt(accessToken.getExpiration());
+    @Inject
+    private RevocationLog revocationLog;
 
-        for (String scopeString : authReq.getScope()) {
-            tokenBuilder.addScope(new Scope(scopeString));
-        }
+    @Inject
+    private RevocationFilter revocationFilter;
+
+    @Value("${org.osiam.auth-server.revocation-log.max-wait:60}")
+    private int maxWaitInSeconds;
+
+    /**
+     * Validates the access token of the request and writes the JSON of the {@link AccessToken}. The validation is the
+     * same as for {@code /token/validation/direct}, see {@link TokenValidationService}, so the descriptions of valid
+     * tokens are taken from the same cache. The token has already been loaded by the resource server filter, so on a
+     * cache miss the authentication is taken from the security context and only the access token is read from the
+     * token store.
+     */
+    @RequestMapping(value = "/validation", method = RequestMethod.POST)
+    public void validateToken(@RequestHeader("Authorization") final String authorization,
+            HttpServletResponse response) throws IOException {
+        String token = getToken(authorization);
+        byte[] body = tokenValidationService.getValidationResponse(token, getCurrentAuthentication(token)).getBody();
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE + ";charset=UTF-8");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
 
-        return tokenBuilder.build();
+    /**
+     * Validates a JSON array of access tokens and streams the result of every token, see {@link BatchTokenValidator}.
+     */
+    @RequestMapping(value = "/validation/batch", method = RequestMethod.POST)
+    public void validateTokens(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        List<String> tokens = batchTokenValidator.readTokens(request.getInputStream());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE + ";charset=UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        batchTokenValidator.writeResults(tokens, response.getOutputStream());
     }
 
     @RequestMapping(value = "/revocation", method = RequestMethod.POST)
@@ -101,6 +135,61 @@ public class TokenController {
         for (OAuth2AccessToken token : new ArrayList<>(tokens)) {
             tokenServices.revokeToken(token.getValue());
         }
+        revocationLog.append(RevocationLog.Type.USER, userId);
+    }
+
+    /**
+     * Returns the revocations after the given cursor. If there are none, the request waits for the next revocation, at
+     * most the given time (long polling).
+     *
+     * @param cursor
+     *        the cursor of the previous response, without cursor only the cursor of the current end of the log is
+     *        returned
+     * @param wait
+     *        the time in seconds to wait for revocations
+     */
+    @RequestMapping(value = "/events", method = RequestMethod.GET)
+    @ResponseBody
+    public DeferredResult<Events> getRevocations(@RequestParam(value = "cursor", required = false) final String cursor,
+            @RequestParam(value = "wait", defaultValue = "0") int wait) {
+        Events events = revocationLog.read(cursor, MAX_EVENTS);
+        long timeout = TimeUnit.SECONDS.toMillis(Math.min(wait, maxWaitInSeconds));
+        final DeferredResult<Events> result = new DeferredResult<>(timeout);
+        if (timeout <= 0 || cursor == null || events.isReset() || !events.getEvents().isEmpty()) {
+            result.setResult(events);
+            return result;
+        }
+
+        final Runnable waiter = new Runnable() {
+            @Override
+            public void run() {
+                result.setResult(revocationLog.read(cursor, MAX_EVENTS));
+            }
+        };
+        result.onTimeout(waiter);
+        result.onCompletion(new Runnable() {
+            @Override
+            public void run() {
+                revocationLog.removeWaiter(waiter);
+            }
+        });
+        if (!revocationLog.awaitEvents(cursor, waiter)) {
+            waiter.run();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the filter of the revoked tokens, or only the tokens revoked since the given version of the filter.
+     *
+     * @param version
+     *        the version of the filter the resource server has
+     */
+    @RequestMapping(value = "/revoked", method = RequestMethod.GET)
+    @ResponseBody
+    public RevocationFilter.Update getRevokedTokens(
+            @RequestParam(value = "version", required = false) String version) {
+        return revocationFilter.read(version);
     }
 
     @ExceptionHandler
@@ -110,6 +199,27 @@ public class TokenController {
         return new AuthenticationError("invalid_token", ex.getMessage());
     }
 
+    @ExceptionHandler
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    @ResponseBody
+    public AuthenticationError handleInvalidRequestException(InvalidRequestException ex) {
+        return new AuthenticationError("invalid_request", ex.getMessage());
+    }
+
+    /**
+     * @return the authentication the resource server filter loaded for the given token or null
+     */
+    private OAuth2Authentication getCurrentAuthentication(String token) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (!(authentication instanceof OAuth2Authentication)
+                || !(authentication.getDetails() instanceof OAuth2AuthenticationDetails)) {
+            return null;
+        }
+        // the token store shares the authentication between requests, so it is only reused for the same token
+        OAuth2AuthenticationDetails details = (OAuth2AuthenticationDetails) authentication.getDetails();
+        return token.equals(details.getTokenValue()) ? (OAuth2Authentication) authentication : null;
+    }
+
     private String getToken(String authorization) {
         int lastIndexOf = authorization.lastIndexOf(' ');
         return authorization.substring(lastIndexOf + 1);
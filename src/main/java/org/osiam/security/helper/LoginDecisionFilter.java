@@ -24,12 +24,15 @@
 package org.osiam.security.helper;
 
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.osiam.auth.login.internal.InternalAuthentication;
 import org.osiam.auth.login.ldap.OsiamLdapAuthentication;
+import org.osiam.auth.resilience.Deadline;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
@@ -42,6 +45,9 @@ public class LoginDecisionFilter extends AbstractAuthenticationProcessingFilter
 
     private boolean postOnly = true;
 
+    @Value("${org.osiam.auth-server.login.deadline:10000}")
+    private long deadline;
+
     public LoginDecisionFilter() {
         super("/login/check");
     }
@@ -76,7 +82,17 @@ public class LoginDecisionFilter extends AbstractAuthenticationProcessingFilter
         }
 
         setDetails(request, authRequest);
-        return this.getAuthenticationManager().authenticate(authRequest);
+
+        if (deadline <= 0) {
+            return this.getAuthenticationManager().authenticate(authRequest);
+        }
+
+        Deadline previous = Deadline.setCurrent(Deadline.after(deadline, TimeUnit.MILLISECONDS));
+        try {
+            return this.getAuthenticationManager().authenticate(authRequest);
+        } finally {
+            Deadline.setCurrent(previous);
+        }
     }
 
     /**
@@ -23,10 +23,15 @@
 
 package org.osiam.auth.configuration
 
+import java.lang.reflect.Method
+
+import org.osiam.auth.login.ldap.FailoverLdapContextSource
 import org.osiam.auth.login.ldap.OsiamLdapAuthenticationProvider
 import org.springframework.security.authentication.AuthenticationProvider
 import org.springframework.security.authentication.ProviderManager
 import org.springframework.security.ldap.DefaultSpringSecurityContextSource
+import org.springframework.security.ldap.authentication.BindAuthenticator
+import org.springframework.security.ldap.authentication.LdapAuthenticationProvider
 
 import spock.lang.Specification
 
@@ -34,56 +39,77 @@ class LdapConfigurationSpec extends Specification {
 
     LdapConfiguration ldapConfiguration = new LdapConfiguration()
     
-    def 'when ldap is not enabled, the contextSource is null'() {
+    def 'when ldap is not enabled, the ldap provider is null'() {
         given:
         ldapConfiguration.isLdapConfigured = false
         
         when:
-        DefaultSpringSecurityContextSource contextSource = ldapConfiguration.createLdapContextSource()
+        OsiamLdapAuthenticationProvider provider = ldapConfiguration.createLdapAuthProvider()
         
         then:
-        contextSource == null
+        provider == null
     }
     
-    def 'when ldap is enabled, the contextSource is not null and has the given url'() {
+    def 'when ldap is enabled, the ldap provider is not null and all dependencies are build'() {
         given:
+        ldapConfiguration.authenticationManager = new ProviderManager()
+        ldapConfiguration.authenticationManager.providers = new ArrayList<AuthenticationProvider>()
         ldapConfiguration.isLdapConfigured = true
         ldapConfiguration.url = 'ldaps://localhost:8080/ou=example,ou=users'
+        ldapConfiguration.dnPatterns = ['cn={0},ou=people']
+        ldapConfiguration.attributes = ['mail']
+        ldapConfiguration.attributeMapping = []
+        ldapConfiguration.scimLdapAttributes = [:]
         
         when:
-        DefaultSpringSecurityContextSource contextSource = ldapConfiguration.createLdapContextSource()
+        OsiamLdapAuthenticationProvider provider = ldapConfiguration.createLdapAuthProvider()
         
         then:
-        contextSource != null
-        contextSource.urls[0] == 'ldaps://localhost:8080/'
+        provider != null
     }
-    
-    def 'when ldap is not enabled, the ldap provider is null'() {
+
+    def 'when a single ldap server is configured, the logins bind against the given url'() {
         given:
-        ldapConfiguration.isLdapConfigured = false
-        
+        ldapConfiguration.authenticationManager = new ProviderManager()
+        ldapConfiguration.authenticationManager.providers = new ArrayList<AuthenticationProvider>()
+        ldapConfiguration.isLdapConfigured = true
+        ldapConfiguration.url = 'ldaps://localhost:8080/ou=example,ou=users'
+        ldapConfiguration.dnPatterns = ['cn={0},ou=people']
+        ldapConfiguration.attributes = ['mail']
+        ldapConfiguration.attributeMapping = []
+        ldapConfiguration.scimLdapAttributes = [:]
+
         when:
         OsiamLdapAuthenticationProvider provider = ldapConfiguration.createLdapAuthProvider()
-        
+
         then:
-        provider == null
+        DefaultSpringSecurityContextSource contextSource = authenticatorOf(provider).contextSource
+        contextSource.urls[0] == 'ldaps://localhost:8080/'
     }
-    
-    def 'when ldap is enabled, the ldap provider is not null and all dependencies are build'() {
+
+    def 'when several ldap servers are configured, the logins fail over between them'() {
         given:
         ldapConfiguration.authenticationManager = new ProviderManager()
         ldapConfiguration.authenticationManager.providers = new ArrayList<AuthenticationProvider>()
         ldapConfiguration.isLdapConfigured = true
-        ldapConfiguration.url = 'ldaps://localhost:8080/ou=example,ou=users'
+        ldapConfiguration.url = 'ldap://ldap1:389/ou=example,dc=org, ldap://ldap2:389/ou=example,dc=org'
         ldapConfiguration.dnPatterns = ['cn={0},ou=people']
         ldapConfiguration.attributes = ['mail']
         ldapConfiguration.attributeMapping = []
         ldapConfiguration.scimLdapAttributes = [:]
-        
+
         when:
         OsiamLdapAuthenticationProvider provider = ldapConfiguration.createLdapAuthProvider()
-        
+
         then:
-        provider != null
+        FailoverLdapContextSource contextSource = authenticatorOf(provider).contextSource
+        contextSource.servers.size() == 2
+        contextSource.baseLdapPathAsString == 'ou=example,dc=org'
+    }
+
+    private static BindAuthenticator authenticatorOf(LdapAuthenticationProvider provider) {
+        Method getAuthenticator = LdapAuthenticationProvider.getDeclaredMethod('getAuthenticator')
+        getAuthenticator.accessible = true
+        getAuthenticator.invoke(provider)
     }
 }
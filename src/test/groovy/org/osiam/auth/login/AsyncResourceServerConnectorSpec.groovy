@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.login
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+
+import org.osiam.auth.exception.ResourceServerUnavailableException
+import org.osiam.resources.scim.User
+
+import spock.lang.Specification
+
+class AsyncResourceServerConnectorSpec extends Specification {
+
+    static final long RESOURCE_SERVER_LATENCY = 200
+    static final long LDAP_BIND_LATENCY = 200
+
+    ResourceServerConnector resourceServerConnector = Mock()
+    AsyncResourceServerConnector asyncConnector = new AsyncResourceServerConnector(ioThreads: 2,
+            resourceServerConnector: resourceServerConnector)
+
+    def setup() {
+        asyncConnector.createExecutor()
+    }
+
+    def cleanup() {
+        asyncConnector.shutdownExecutor()
+    }
+
+    def 'the result of the resource server call is available through the future'() {
+        given:
+        User user = new User.Builder('marissa').build()
+        resourceServerConnector.getUserByUsername('marissa') >> user
+
+        expect:
+        asyncConnector.getUserByUsername('marissa').get() == user
+    }
+
+    def 'an exception of the resource server call is raised by the future'() {
+        given:
+        resourceServerConnector.getUserById('id') >> { throw new ResourceServerUnavailableException('down') }
+
+        when:
+        asyncConnector.getUserById('id').get()
+
+        then:
+        ExecutionException e = thrown()
+        e.cause instanceof ResourceServerUnavailableException
+    }
+
+    def 'a call is rejected like by the concurrency limit when all threads are busy and the queue is full'() {
+        given:
+        CountDownLatch release = new CountDownLatch(1)
+        int rejectedCalls = 0
+        // the busy calls must not block inside a mock, because that would block all further mock calls
+        ResourceServerConnector busyConnector = new ResourceServerConnector() {
+            @Override
+            User getUserById(String id) {
+                release.await()
+                null
+            }
+
+            @Override
+            ResourceServerUnavailableException rejectCall() {
+                rejectedCalls++
+                new ResourceServerUnavailableException('too many')
+            }
+        }
+        AsyncResourceServerConnector busyAsyncConnector = new AsyncResourceServerConnector(ioThreads: 2,
+                ioQueueSize: 1, resourceServerConnector: busyConnector)
+        busyAsyncConnector.createExecutor()
+        3.times { busyAsyncConnector.getUserById('busy') }
+
+        when:
+        Future<User> rejected = busyAsyncConnector.getUserById('id')
+
+        then: 'the rejection is reported by the future, not thrown by the call'
+        rejected.done
+        rejectedCalls == 1
+
+        when:
+        rejected.get()
+
+        then:
+        ExecutionException e = thrown()
+        e.cause instanceof ResourceServerUnavailableException
+
+        cleanup:
+        release.countDown()
+        busyAsyncConnector.shutdownExecutor()
+    }
+
+    def 'an overlapped LDAP login takes about as long as the slowest call instead of the sum of both'() {
+        given:
+        resourceServerConnector.getUserByUsername('marissa') >> {
+            Thread.sleep(RESOURCE_SERVER_LATENCY)
+            new User.Builder('marissa').build()
+        }
+
+        when:
+        long sequential = measure {
+            resourceServerConnector.getUserByUsername('marissa')
+            bindAgainstLdap()
+        }
+        long overlapped = measure {
+            Future<User> user = asyncConnector.getUserByUsername('marissa')
+            bindAgainstLdap()
+            user.get()
+        }
+
+        then:
+        sequential >= RESOURCE_SERVER_LATENCY + LDAP_BIND_LATENCY
+        overlapped < RESOURCE_SERVER_LATENCY + LDAP_BIND_LATENCY
+    }
+
+    private void bindAgainstLdap() {
+        Thread.sleep(LDAP_BIND_LATENCY)
+    }
+
+    private long measure(Closure login) {
+        long start = System.currentTimeMillis()
+        login()
+        System.currentTimeMillis() - start
+    }
+}
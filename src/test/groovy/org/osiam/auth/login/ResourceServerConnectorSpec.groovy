@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.login
+
+import java.lang.reflect.Field
+import java.lang.reflect.Method
+import java.util.concurrent.TimeUnit
+
+import org.osiam.auth.exception.ResourceServerUnavailableException
+import org.osiam.auth.oauth_client.OsiamAuthServerClientProvider
+import org.osiam.auth.token.OsiamAccessTokenProvider
+import org.osiam.client.OsiamConnector
+import org.osiam.client.exception.ConnectionInitializationException
+import org.osiam.resources.scim.SCIMSearchResult
+import org.osiam.resources.scim.User
+import org.springframework.context.ApplicationEventPublisher
+import org.springframework.util.ReflectionUtils
+
+import spock.lang.Specification
+
+class ResourceServerConnectorSpec extends Specification {
+
+    static final List<String> REPLICAS = ['http://rs1', 'http://rs2', 'http://rs3']
+
+    int calls = 0
+    Map<String, Integer> callsPerReplica = [:].withDefault { 0 }
+
+    def 'lookups are spread over all replicas'() {
+        given:
+        ResourceServerConnector connector = createConnector(false) { 1 }
+
+        when:
+        30.times { connector.getUserById('id') }
+
+        then:
+        callsPerReplica.keySet() == REPLICAS as Set
+        callsPerReplica.values().every { it == 10 }
+    }
+
+    def 'a replica that can\'t be reached is ejected and the other replicas take over'() {
+        given:
+        ResourceServerConnector connector = createConnector(false) { String replica ->
+            if (replica == 'http://rs1') {
+                throw new ConnectionInitializationException('connection refused')
+            }
+            1
+        }
+
+        when:
+        30.times {
+            try {
+                connector.getUserById('id')
+            } catch (ResourceServerUnavailableException ignored) {
+            }
+        }
+
+        then:
+        callsPerReplica['http://rs1'] == 3
+        connector.healthyEndpoints == 2
+        connector.circuitBreakerState == 'CLOSED'
+    }
+
+    def 'hedged lookups cut the tail latency caused by a jittery replica'() {
+        given: 'replicas that usually answer in 2 ms, but take 100 ms for every 25th request'
+        Closure<Long> jitteryLatency = { countCall() % 25 == 0 ? 100 : 2 }
+
+        when:
+        long unhedgedTail = tailLatency(createConnector(false, jitteryLatency))
+        long hedgedTail = tailLatency(createConnector(true, jitteryLatency))
+
+        then:
+        unhedgedTail >= 100
+        hedgedTail < unhedgedTail / 2
+    }
+
+    private long tailLatency(ResourceServerConnector connector) {
+        List<Long> latencies = (1..200).collect {
+            long start = System.nanoTime()
+            connector.getUserByUsername('marissa')
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        }
+        List<Long> measured = latencies.drop(50).sort()
+        measured[(int) (measured.size() * 0.99) - 1]
+    }
+
+    private ResourceServerConnector createConnector(boolean hedgingEnabled, Closure<Long> latencyOfReplica) {
+        OsiamConnector osiamConnector = Stub()
+        osiamConnector.searchUsers(_, _) >> new SCIMSearchResult<User>([new User.Builder('marissa').build()], 1, 1, 1,
+                'urn:scim:schemas:core:2.0:User')
+        osiamConnector.getUser(_, _) >> new User.Builder('marissa').build()
+
+        // the latency is simulated outside of the stub, because Spock handles the calls of a stub one at a time
+        ResourceServerConnector connector = new StubbedResourceServerConnector(replicaStub: { String replica ->
+            simulateCall(replica, latencyOfReplica)
+            osiamConnector
+        })
+        [
+            resourceServerHome: REPLICAS.join(', '),
+            maxConcurrentRequests: 40,
+            minConcurrentRequests: 40,
+            maxWait: 1000,
+            failureThreshold: 5,
+            openDuration: 10,
+            ejectionFailureThreshold: 3,
+            ejectionDuration: 30,
+            hedgingEnabled: hedgingEnabled,
+            minHedgingDelay: 1,
+            osiamAccessTokenProvider: Stub(OsiamAccessTokenProvider),
+            authServerClientProvider: Stub(OsiamAuthServerClientProvider),
+            unknownUserCache: new UnknownUserCache(),
+            eventPublisher: Stub(ApplicationEventPublisher)
+        ].each { String name, Object value ->
+            Field field = ReflectionUtils.findField(ResourceServerConnector, name)
+            ReflectionUtils.makeAccessible(field)
+            ReflectionUtils.setField(field, connector, value)
+        }
+        Method configure = ReflectionUtils.findMethod(ResourceServerConnector, 'configure')
+        ReflectionUtils.makeAccessible(configure)
+        ReflectionUtils.invokeMethod(configure, connector)
+        connector
+    }
+
+    private synchronized int countCall(String replica = null) {
+        if (replica != null) {
+            callsPerReplica[replica]++
+        }
+        ++calls
+    }
+
+    private void simulateCall(String replica, Closure<Long> latencyOfReplica) {
+        countCall(replica)
+        Thread.sleep(latencyOfReplica(replica))
+    }
+
+    static class StubbedResourceServerConnector extends ResourceServerConnector {
+
+        Closure<OsiamConnector> replicaStub
+
+        @Override
+        OsiamConnector createOsiamConnector(String resourceServerEndpoint) {
+            replicaStub(resourceServerEndpoint)
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.login
+
+import spock.lang.Specification
+
+class UnknownUserCacheSpec extends Specification {
+
+    UnknownUserCache unknownUserCache = new UnknownUserCache(maximumSize: 2, timeToLiveInSeconds: 30)
+
+    def setup() {
+        unknownUserCache.createCache()
+    }
+
+    def 'a user name marked as unknown is reported as unknown'() {
+        when:
+        unknownUserCache.markUnknown('marissa')
+
+        then:
+        unknownUserCache.isUnknown('marissa')
+        !unknownUserCache.isUnknown('bjensen')
+    }
+
+    def 'an invalidated user name is no longer reported as unknown'() {
+        given:
+        unknownUserCache.markUnknown('marissa')
+
+        when:
+        unknownUserCache.invalidate('marissa')
+
+        then:
+        !unknownUserCache.isUnknown('marissa')
+    }
+
+    def 'the cache never holds more than the configured number of user names'() {
+        when:
+        ['a', 'b', 'c', 'd'].each { unknownUserCache.markUnknown(it) }
+
+        then:
+        ['a', 'b', 'c', 'd'].count { unknownUserCache.isUnknown(it) } <= 2
+    }
+
+    def 'a cache with a size of 0 is disabled'() {
+        given:
+        UnknownUserCache disabledCache = new UnknownUserCache(maximumSize: 0, timeToLiveInSeconds: 30)
+        disabledCache.createCache()
+
+        when:
+        disabledCache.markUnknown('marissa')
+
+        then:
+        !disabledCache.isUnknown('marissa')
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.login.internal
+
+import java.util.concurrent.TimeUnit
+
+import org.osiam.auth.login.internal.DegradedModeCredentialCache.VerifiedLogin
+import org.osiam.resources.scim.Role
+import org.osiam.resources.scim.User
+import org.springframework.security.authentication.BadCredentialsException
+
+import spock.lang.Specification
+
+import com.google.common.base.Ticker
+
+class DegradedModeCredentialCacheSpec extends Specification {
+
+    long now = 0
+    Ticker ticker = Mock()
+    DegradedModeCredentialCache cache = new DegradedModeCredentialCache(enabled: true, maxAgeInSeconds: 60,
+            maximumSize: 10, verifierIterations: 1000, ticker: ticker)
+    User user = new User.Builder('marissa')
+            .setId('user-id')
+            .setActive(true)
+            .addRoles([new Role.Builder().setValue('USER').build()])
+            .build()
+
+    def setup() {
+        ticker.read() >> { now }
+        cache.createCache()
+    }
+
+    def 'a remembered login can be verified with the same password'() {
+        given:
+        cache.remember('marissa', 'koala', user)
+
+        when:
+        VerifiedLogin login = cache.verify('marissa', 'koala')
+
+        then:
+        login.userId == 'user-id'
+        login.active
+        login.roles == ['USER']
+        cache.degradedLogins == 1
+    }
+
+    def 'a remembered login is rejected with another password'() {
+        given:
+        cache.remember('marissa', 'koala', user)
+
+        when:
+        cache.verify('marissa', 'wrong')
+
+        then:
+        thrown(BadCredentialsException)
+        cache.rejectedDegradedLogins == 1
+    }
+
+    def 'an unknown user can\'t be verified'() {
+        expect:
+        cache.verify('marissa', 'koala') == null
+        cache.unservedDegradedLogins == 1
+    }
+
+    def 'a remembered login is not used after the maximum age'() {
+        given:
+        cache.remember('marissa', 'koala', user)
+
+        when:
+        now += TimeUnit.SECONDS.toNanos(61)
+
+        then:
+        cache.verify('marissa', 'koala') == null
+    }
+
+    def 'a tampered login is discarded'() {
+        given:
+        cache.remember('marissa', 'koala', user)
+        byte[] encrypted = cache.verifiedLogins.getIfPresent('marissa')
+        encrypted[20] ^= 1
+
+        expect:
+        cache.verify('marissa', 'koala') == null
+        cache.size == 0
+    }
+
+    def 'neither the password nor the user id is stored in plain text'() {
+        when:
+        cache.remember('marissa', 'koala', user)
+        String stored = new String(cache.verifiedLogins.getIfPresent('marissa'), 'ISO-8859-1')
+
+        then:
+        !stored.contains('koala')
+        !stored.contains('user-id')
+    }
+
+    def 'nothing is remembered if the degraded mode is disabled'() {
+        given:
+        DegradedModeCredentialCache disabledCache = new DegradedModeCredentialCache(enabled: false,
+                maxAgeInSeconds: 60, maximumSize: 10)
+        disabledCache.createCache()
+
+        when:
+        disabledCache.remember('marissa', 'koala', user)
+
+        then:
+        !disabledCache.enabled
+        disabledCache.verify('marissa', 'koala') == null
+    }
+}
@@ -23,6 +23,12 @@
 
 package org.osiam.auth.login.internal
 
+import org.osiam.auth.exception.ResourceServerUnavailableException
+import org.osiam.auth.login.ResourceServerConnector
+import org.osiam.resources.scim.Role
+import org.osiam.resources.scim.User
+import org.springframework.security.authentication.BadCredentialsException
+import org.springframework.security.authentication.encoding.ShaPasswordEncoder
 import org.springframework.security.core.Authentication
 import org.springframework.security.core.GrantedAuthority
 
@@ -37,4 +43,79 @@ class InternalAuthenticationProviderSpec extends Specification {
         expect:
         provider.supports(InternalAuthentication)
     }
+
+    ResourceServerConnector resourceServerConnector = Mock()
+    DegradedModeCredentialCache degradedModeCredentialCache = new DegradedModeCredentialCache(enabled: true,
+            maxAgeInSeconds: 60, maximumSize: 10, verifierIterations: 1000)
+    InternalAuthenticationProvider provider = new InternalAuthenticationProvider(maxLoginFailures: 0,
+            resourceServerConnector: resourceServerConnector, passwordEncoder: new ShaPasswordEncoder(512),
+            degradedModeCredentialCache: degradedModeCredentialCache)
+    User user = new User.Builder('marissa')
+            .setId('user-id')
+            .setActive(true)
+            .addRoles([new Role.Builder().setValue('USER').build()])
+            .build()
+
+    def setup() {
+        degradedModeCredentialCache.createCache()
+    }
+
+    def 'a recently verified user can log in while the circuit to the resource server is open'() {
+        given:
+        resourceServerConnector.getUserByUsername('marissa') >> user >>
+                { throw new ResourceServerUnavailableException('down') }
+        resourceServerConnector.searchUserByUserNameAndPassword('marissa', _) >> user
+        resourceServerConnector.isCircuitOpen() >> true
+        provider.authenticate(new InternalAuthentication('marissa', 'koala', []))
+
+        when:
+        Authentication authentication = provider.authenticate(new InternalAuthentication('marissa', 'koala', []))
+
+        then:
+        authentication.principal.id == 'user-id'
+        authentication.authorities*.authority == ['USER']
+        degradedModeCredentialCache.degradedLogins == 1
+    }
+
+    def 'a wrong password is rejected while the circuit to the resource server is open'() {
+        given:
+        resourceServerConnector.getUserByUsername('marissa') >> user >>
+                { throw new ResourceServerUnavailableException('down') }
+        resourceServerConnector.searchUserByUserNameAndPassword('marissa', _) >> user
+        resourceServerConnector.isCircuitOpen() >> true
+        provider.authenticate(new InternalAuthentication('marissa', 'koala', []))
+
+        when:
+        provider.authenticate(new InternalAuthentication('marissa', 'wrong', []))
+
+        then:
+        thrown(BadCredentialsException)
+    }
+
+    def 'the degraded mode is not used as long as the circuit to the resource server is closed'() {
+        given:
+        resourceServerConnector.getUserByUsername('marissa') >> user >>
+                { throw new ResourceServerUnavailableException('down') }
+        resourceServerConnector.searchUserByUserNameAndPassword('marissa', _) >> user
+        resourceServerConnector.isCircuitOpen() >> false
+        provider.authenticate(new InternalAuthentication('marissa', 'koala', []))
+
+        when:
+        provider.authenticate(new InternalAuthentication('marissa', 'koala', []))
+
+        then:
+        thrown(ResourceServerUnavailableException)
+    }
+
+    def 'users without a recent login can\'t log in while the resource server is unavailable'() {
+        given:
+        resourceServerConnector.getUserByUsername('marissa') >> { throw new ResourceServerUnavailableException('down') }
+        resourceServerConnector.isCircuitOpen() >> true
+
+        when:
+        provider.authenticate(new InternalAuthentication('marissa', 'koala', []))
+
+        then:
+        thrown(ResourceServerUnavailableException)
+    }
 }
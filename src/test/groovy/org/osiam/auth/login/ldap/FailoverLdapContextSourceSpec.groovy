@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.auth.login.ldap
+
+import java.util.concurrent.TimeUnit
+
+import javax.naming.directory.DirContext
+import javax.naming.directory.SearchControls
+
+import org.osiam.auth.resilience.Endpoint
+import org.springframework.context.support.GenericApplicationContext
+import org.springframework.ldap.CommunicationException
+import org.springframework.ldap.core.DistinguishedName
+import org.springframework.ldap.core.support.BaseLdapPathContextSource
+import org.springframework.security.authentication.BadCredentialsException
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource
+import org.springframework.security.ldap.authentication.BindAuthenticator
+import org.springframework.security.ldap.server.ApacheDSContainer
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class FailoverLdapContextSourceSpec extends Specification {
+
+    static final String ROOT = 'dc=springframework,dc=org'
+
+    @Shared
+    ApacheDSContainer firstServer
+
+    @Shared
+    ApacheDSContainer secondServer
+
+    @Shared
+    String firstUrl
+
+    @Shared
+    String secondUrl
+
+    def setupSpec() {
+        firstUrl = startServer { firstServer = it }
+        secondUrl = startServer { secondServer = it }
+    }
+
+    def cleanupSpec() {
+        firstServer?.destroy()
+        secondServer?.destroy()
+    }
+
+    def 'logins succeed while one server is unreachable and the server is ejected'() {
+        given:
+        String unreachableUrl = "ldap://localhost:${freePort()}/${ROOT}"
+        FailoverLdapContextSource contextSource = createFailoverContextSource([
+                (unreachableUrl): createContextSource(unreachableUrl),
+                (firstUrl): createContextSource(firstUrl)])
+        BindAuthenticator authenticator = createBindAuthenticator(contextSource)
+
+        when:
+        List<String> users = (1..5).collect {
+            authenticator.authenticate(new UsernamePasswordAuthenticationToken('marissa', 'koala'))
+                    .getStringAttribute('uid')
+        }
+
+        then:
+        users.unique() == ['marissa']
+        contextSource.healthyServers == 1
+    }
+
+    def 'the faster server gets most of the connections'() {
+        given:
+        CountingContextSource fastServer = new CountingContextSource(createContextSource(firstUrl), 0)
+        CountingContextSource slowServer = new CountingContextSource(createContextSource(secondUrl), 50)
+        FailoverLdapContextSource contextSource = createFailoverContextSource([
+                (firstUrl): fastServer, (secondUrl): slowServer])
+
+        when:
+        20.times {
+            contextSource.readOnlyContext.close()
+        }
+
+        then:
+        fastServer.contexts >= 17
+        slowServer.contexts <= 3
+    }
+
+    def 'a wrong password is not a failure of the server'() {
+        given:
+        CountingContextSource firstServer = new CountingContextSource(createContextSource(firstUrl), 0)
+        CountingContextSource secondServer = new CountingContextSource(createContextSource(secondUrl), 0)
+        FailoverLdapContextSource contextSource = createFailoverContextSource([
+                (firstUrl): firstServer, (secondUrl): secondServer])
+        BindAuthenticator authenticator = createBindAuthenticator(contextSource)
+
+        when:
+        5.times {
+            try {
+                authenticator.authenticate(new UsernamePasswordAuthenticationToken('marissa', 'wrong'))
+            } catch (BadCredentialsException e) {
+            }
+        }
+
+        then:
+        contextSource.healthyServers == 2
+        // every bind went to a single server, none was retried at the other one
+        firstServer.contexts + secondServer.contexts == 5
+    }
+
+    def 'logins keep working after a server has been shut down'() {
+        given:
+        ApacheDSContainer thirdServer
+        String thirdUrl = startServer { thirdServer = it }
+        FailoverLdapContextSource contextSource = createFailoverContextSource([
+                (thirdUrl): createContextSource(thirdUrl), (firstUrl): createContextSource(firstUrl)])
+        BindAuthenticator authenticator = createBindAuthenticator(contextSource)
+        authenticator.authenticate(new UsernamePasswordAuthenticationToken('marissa', 'koala'))
+
+        when:
+        thirdServer.destroy()
+        List<String> users = (1..5).collect {
+            authenticator.authenticate(new UsernamePasswordAuthenticationToken('bob', 'bobspassword'))
+                    .getStringAttribute('uid')
+        }
+
+        then:
+        users.unique() == ['bob']
+    }
+
+    def 'a context is in progress until it is closed, so the latency covers the whole operation'() {
+        given:
+        FailoverLdapContextSource contextSource = createFailoverContextSource([
+                (firstUrl): createContextSource(firstUrl)])
+        Endpoint endpoint = contextSource.loadBalancer.endpoints[0]
+
+        when:
+        DirContext context = contextSource.readOnlyContext
+        int inProgress = endpoint.outstandingCalls
+        Thread.sleep(100)
+        context.close()
+
+        then:
+        inProgress == 1
+        endpoint.outstandingCalls == 0
+        contextSource.loadBalancer.getLatency(endpoint, TimeUnit.MILLISECONDS) >= 100
+    }
+
+    def 'a search is repeated at the next server if the connection breaks'() {
+        given:
+        String brokenUrl = "ldap://broken/${ROOT}"
+        CountingContextSource brokenServer = new CountingContextSource(new BrokenConnectionContextSource(), 0)
+        FailoverLdapContextSource contextSource = createFailoverContextSource([
+                (brokenUrl): brokenServer, (firstUrl): createContextSource(firstUrl)])
+
+        when:
+        List<String> users = (1..3).collect {
+            DirContext context = contextSource.readOnlyContext
+            try {
+                context.search('ou=people', '(uid=marissa)', new SearchControls()).next().attributes.get('uid').get()
+            } finally {
+                context.close()
+            }
+        }
+
+        then:
+        users.unique() == ['marissa']
+        brokenServer.contexts == 2
+        contextSource.healthyServers == 1
+        contextSource.loadBalancer.endpoints*.outstandingCalls == [0, 0]
+    }
+
+    def 'the last error is thrown if no server can be reached'() {
+        given:
+        String unreachableUrl = "ldap://localhost:${freePort()}/${ROOT}"
+        String otherUnreachableUrl = "ldap://localhost:${freePort()}/${ROOT}"
+        FailoverLdapContextSource contextSource = createFailoverContextSource([
+                (unreachableUrl): createContextSource(unreachableUrl),
+                (otherUnreachableUrl): createContextSource(otherUnreachableUrl)])
+
+        when:
+        contextSource.readOnlyContext
+
+        then:
+        thrown(CommunicationException)
+    }
+
+    private String startServer(Closure serverCallback) {
+        int port = freePort()
+        ApacheDSContainer server = new ApacheDSContainer(ROOT, 'classpath:ldap/test-users.ldif')
+        server.port = port
+        server.workingDirectory = File.createTempFile('apacheds', '').with { delete(); it }
+        server.applicationContext = new GenericApplicationContext()
+        server.afterPropertiesSet()
+        serverCallback(server)
+        "ldap://localhost:${port}/${ROOT}"
+    }
+
+    private static int freePort() {
+        new ServerSocket(0).withCloseable { it.localPort }
+    }
+
+    private static FailoverLdapContextSource createFailoverContextSource(
+            Map<String, BaseLdapPathContextSource> servers) {
+        new FailoverLdapContextSource(new LinkedHashMap(servers), 2, 30, TimeUnit.SECONDS)
+    }
+
+    private static BaseLdapPathContextSource createContextSource(String url) {
+        DefaultSpringSecurityContextSource contextSource = new DefaultSpringSecurityContextSource(url)
+        contextSource.baseEnvironmentProperties = ['com.sun.jndi.ldap.connect.timeout': '1000']
+        contextSource.afterPropertiesSet()
+        contextSource
+    }
+
+    private static BindAuthenticator createBindAuthenticator(BaseLdapPathContextSource contextSource) {
+        BindAuthenticator authenticator = new BindAuthenticator(contextSource)
+        authenticator.userDnPatterns = ['uid={0},ou=people'] as String[]
+        authenticator.afterPropertiesSet()
+        authenticator
+    }
+
+    /**
+     * Opens contexts whose connection breaks at the first search.
+     */
+    static class BrokenConnectionContextSource implements BaseLdapPathContextSource {
+
+        DirContext getReadOnlyContext() {
+            [search: { Object[] args -> throw new javax.naming.CommunicationException('connection closed') },
+                    close: { -> }] as DirContext
+        }
+
+        DirContext getReadWriteContext() {
+            readOnlyContext
+        }
+
+        DirContext getContext(String principal, String credentials) {
+            readOnlyContext
+        }
+
+        DistinguishedName getBaseLdapPath() {
+            new DistinguishedName(ROOT)
+        }
+
+        String getBaseLdapPathAsString() {
+            ROOT
+        }
+    }
+
+    /**
+     * Counts the contexts taken from a server and makes the server slower.
+     */
+    static class CountingContextSource implements BaseLdapPathContextSource {
+
+        final BaseLdapPathContextSource delegate
+        final long delayMillis
+        int contexts
+
+        CountingContextSource(BaseLdapPathContextSource delegate, long delayMillis) {
+            this.delegate = delegate
+            this.delayMillis = delayMillis
+        }
+
+        DirContext getReadOnlyContext() {
+            count()
+            delegate.readOnlyContext
+        }
+
+        DirContext getReadWriteContext() {
+            count()
+            delegate.readWriteContext
+        }
+
+        DirContext getContext(String principal, String credentials) {
+            count()
+            delegate.getContext(principal, credentials)
+        }
+
+        DistinguishedName getBaseLdapPath() {
+            delegate.baseLdapPath
+        }
+
+        String getBaseLdapPathAsString() {
+            delegate.baseLdapPathAsString
+        }
+
+        private void count() {
+            contexts++
+            Thread.sleep(delayMillis)
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.auth.login.ldap
+
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+import javax.naming.directory.DirContext
+import javax.naming.ldap.LdapContext
+
+import org.osiam.auth.login.AsyncResourceServerConnector
+import org.osiam.auth.login.ResourceServerConnector
+import org.osiam.auth.resilience.AdaptiveConcurrencyLimiter
+import org.osiam.resources.scim.UpdateUser
+import org.osiam.resources.scim.User
+import org.springframework.context.support.GenericApplicationContext
+import org.springframework.ldap.core.DistinguishedName
+import org.springframework.ldap.core.support.BaseLdapPathContextSource
+import org.springframework.security.ldap.authentication.BindAuthenticator
+import org.springframework.security.ldap.server.ApacheDSContainer
+import org.springframework.security.ldap.userdetails.DefaultLdapAuthoritiesPopulator
+
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+/**
+ * Measures the performance of LDAP logins against an embedded directory and a local stub of the resource server.
+ * Not part of the normal build, run it with {@code mvn test -P ldap-load-test}. The size of the test is configured with
+ * system properties:
+ * <ul>
+ * <li>{@code ldap.load-test.users}: number of users in the directory (default 1000)</li>
+ * <li>{@code ldap.load-test.groups}: number of groups the users are members of (default 50)</li>
+ * <li>{@code ldap.load-test.logins}: number of logins per run (default 5000)</li>
+ * <li>{@code ldap.load-test.concurrency}: number of concurrent logins (default 16)</li>
+ * <li>{@code ldap.load-test.resource-server-latency}: latency of the resource server stub in ms (default 5)</li>
+ * </ul>
+ */
+class LdapLoginLoadTest extends Specification {
+
+    static final String ROOT = 'dc=springframework,dc=org'
+
+    static final int USERS = Integer.getInteger('ldap.load-test.users', 1000)
+    static final int GROUPS = Integer.getInteger('ldap.load-test.groups', 50)
+    static final int LOGINS = Integer.getInteger('ldap.load-test.logins', 5000)
+    static final int CONCURRENCY = Integer.getInteger('ldap.load-test.concurrency', 16)
+    static final long RESOURCE_SERVER_LATENCY = Long.getLong('ldap.load-test.resource-server-latency', 5)
+
+    static final Map<String, String> MAPPING = [userName: 'uid', displayName: 'cn', 'name.familyName': 'sn',
+                                                email: 'mail', title: 'title']
+
+    @Shared
+    ApacheDSContainer ldapServer
+
+    @Shared
+    String url
+
+    @Shared
+    File ldif
+
+    def setupSpec() {
+        ldif = File.createTempFile('ldap-load-test', '.ldif')
+        ldif.text = createLdif()
+
+        int port = new ServerSocket(0).withCloseable { it.localPort }
+        url = "ldap://localhost:${port}/${ROOT}"
+        ldapServer = new ApacheDSContainer(ROOT, ldif.toURI().toString())
+        ldapServer.port = port
+        ldapServer.applicationContext = new GenericApplicationContext()
+        ldapServer.afterPropertiesSet()
+    }
+
+    def cleanupSpec() {
+        ldapServer?.destroy()
+        ldif?.delete()
+    }
+
+    @Unroll
+    def 'LDAP logins with pooling #pooled, write-behind sync #writeBehind and overlapped lookup #overlapped'() {
+        given:
+        StubResourceServerConnector resourceServer = new StubResourceServerConnector(latency: RESOURCE_SERVER_LATENCY)
+        LdapServerContextSource defaultContextSource = new LdapServerContextSource(url)
+        defaultContextSource.afterPropertiesSet()
+        PooledLdapContextSource pooledContextSource = pooled ? new PooledLdapContextSource(defaultContextSource,
+                CONCURRENCY, CONCURRENCY, 1000, 300, 30, TimeUnit.SECONDS) : null
+        CountingContextSource contextSource = new CountingContextSource(pooledContextSource ?: defaultContextSource)
+        LdapUserSyncQueue userSyncQueue = writeBehind ? new LdapUserSyncQueue(resourceServer,
+                new OsiamLdapUserContextMapper(MAPPING), 10000, 0, 100) : null
+        AsyncResourceServerConnector asyncConnector = overlapped ?
+                new AsyncResourceServerConnector(ioThreads: CONCURRENCY, resourceServerConnector: resourceServer) : null
+        OsiamLdapAuthenticationProvider provider = createProvider(contextSource, resourceServer, userSyncQueue,
+                asyncConnector)
+
+        // the first login of every user creates the SCIM user, the measured logins find an existing user
+        login(provider, USERS, 0)
+        changeDisplayNames(resourceServer)
+        contextSource.reset()
+        resourceServer.reset()
+
+        when:
+        List<Long> latencies = login(provider, LOGINS, USERS)
+        long duration = latencies.remove(latencies.size() - 1)
+
+        then:
+        latencies.size() == LOGINS
+        report("pooling ${pooled}, write-behind ${writeBehind}, overlapped ${overlapped}", latencies, duration,
+                contextSource, resourceServer, pooledContextSource)
+
+        cleanup:
+        userSyncQueue?.stop()
+        asyncConnector?.shutdownExecutor()
+        pooledContextSource?.destroy()
+
+        where:
+        pooled | writeBehind | overlapped
+        false  | false       | false
+        true   | false       | false
+        true   | true        | false
+        true   | true        | true
+    }
+
+    private OsiamLdapAuthenticationProvider createProvider(BaseLdapPathContextSource contextSource,
+            ResourceServerConnector resourceServer, LdapUserSyncQueue userSyncQueue,
+            AsyncResourceServerConnector asyncConnector) {
+        BindAuthenticator bindAuthenticator = new BindAuthenticator(contextSource)
+        bindAuthenticator.setUserDnPatterns(['uid={0},ou=people'] as String[])
+        bindAuthenticator.setUserAttributes(MAPPING.values() as String[])
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(bindAuthenticator,
+                new DefaultLdapAuthoritiesPopulator(contextSource, 'ou=groups'), new OsiamLdapUserContextMapper(MAPPING))
+        provider.resourceServerConnector = resourceServer
+        provider.syncUserData = true
+        provider.bindConcurrencyLimiter = new AdaptiveConcurrencyLimiter(2, 2, CONCURRENCY * 2, 10000)
+        if (userSyncQueue != null) {
+            userSyncQueue.start()
+            provider.userSyncQueue = userSyncQueue
+        }
+        if (asyncConnector != null) {
+            asyncConnector.createExecutor()
+            provider.asyncResourceServerConnector = asyncConnector
+        }
+        provider
+    }
+
+    /**
+     * Logs in the given number of users, the users are used round robin.
+     *
+     * @return the latency of every login in nanoseconds, followed by the duration of all logins
+     */
+    private List<Long> login(OsiamLdapAuthenticationProvider provider, int logins, int offset) {
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY)
+        AtomicInteger nextLogin = new AtomicInteger(offset)
+        List<Future<List<Long>>> workers = []
+        long start = System.nanoTime()
+        CONCURRENCY.times {
+            workers << executor.submit({
+                List<Long> latencies = []
+                int login
+                while ((login = nextLogin.getAndIncrement()) < offset + logins) {
+                    String user = "user${login % USERS}"
+                    String password = "password${login % USERS}"
+                    long loginStart = System.nanoTime()
+                    provider.authenticate(new OsiamLdapAuthentication(user, password))
+                    latencies << System.nanoTime() - loginStart
+                }
+                latencies
+            } as Callable<List<Long>>)
+        }
+        List<Long> latencies = workers.collectMany { it.get() }
+        long duration = System.nanoTime() - start
+        executor.shutdown()
+        latencies.sort()
+        latencies << duration
+    }
+
+    private void changeDisplayNames(StubResourceServerConnector resourceServer) {
+        // every tenth user differs from the directory, so some logins have to update the user
+        resourceServer.users.values().eachWithIndex { User user, int index ->
+            if (index % 10 == 0) {
+                resourceServer.users[user.userName] = new User.Builder(user).setDisplayName('outdated').build()
+            }
+        }
+    }
+
+    private boolean report(String name, List<Long> latencies, long duration, CountingContextSource contextSource,
+            StubResourceServerConnector resourceServer, PooledLdapContextSource pooledContextSource) {
+        double seconds = duration / 1e9
+        long connections = pooledContextSource != null ?
+                pooledContextSource.readOnlyPool.createdConnections + pooledContextSource.bindPool.createdConnections :
+                contextSource.binds.get() + contextSource.readOnlyContexts.get()
+        println """
+            |LDAP login load test: ${name}
+            |  ${USERS} users, ${LOGINS} logins, ${CONCURRENCY} concurrent
+            |  throughput:          ${String.format('%.1f', LOGINS / seconds)} logins/s
+            |  latency p50/p95/p99: ${millis(latencies, 0.5)} / ${millis(latencies, 0.95)} / ${millis(latencies, 0.99)} ms
+            |  per login:           ${perLogin(contextSource.binds)} binds, ${perLogin(contextSource.searches)} searches,
+            |                       ${String.format('%.3f', connections / LOGINS)} new connections,
+            |                       ${perLogin(resourceServer.calls)} resource server calls
+            |""".stripMargin()
+        true
+    }
+
+    private static String millis(List<Long> sortedLatencies, double percentile) {
+        long latency = sortedLatencies[Math.min(sortedLatencies.size() - 1, (int) (sortedLatencies.size() * percentile))]
+        String.format('%.2f', latency / 1e6)
+    }
+
+    private static String perLogin(AtomicLong counter) {
+        String.format('%.3f', counter.get() / LOGINS)
+    }
+
+    private static String createLdif() {
+        StringBuilder ldif = new StringBuilder()
+        ldif << "dn: ou=people,${ROOT}\nobjectclass: top\nobjectclass: organizationalUnit\nou: people\n\n"
+        ldif << "dn: ou=groups,${ROOT}\nobjectclass: top\nobjectclass: organizationalUnit\nou: groups\n\n"
+        USERS.times { int user ->
+            ldif << "dn: uid=user${user},ou=people,${ROOT}\n" +
+                    'objectclass: top\nobjectclass: person\nobjectclass: organizationalPerson\n' +
+                    'objectclass: inetOrgPerson\n' +
+                    "uid: user${user}\ncn: User ${user}\nsn: ${user}\nmail: user${user}@example.org\n" +
+                    "title: Employee\nuserPassword: password${user}\n\n"
+        }
+        GROUPS.times { int group ->
+            ldif << "dn: cn=group${group},ou=groups,${ROOT}\nobjectclass: top\nobjectclass: groupOfNames\n" +
+                    "cn: group${group}\n"
+            (group..<USERS).step(GROUPS) { int user ->
+                ldif << "member: uid=user${user},ou=people,${ROOT}\n"
+            }
+            ldif << '\n'
+        }
+        ldif.toString()
+    }
+
+    /**
+     * Keeps the users in memory and simulates the latency of the resource server.
+     */
+    static class StubResourceServerConnector extends ResourceServerConnector {
+
+        long latency
+        Map<String, User> users = new ConcurrentHashMap<>()
+        AtomicLong calls = new AtomicLong()
+
+        void reset() {
+            calls.set(0)
+        }
+
+        @Override
+        User getUserByUsername(String userName) {
+            call()
+            users[userName]
+        }
+
+        @Override
+        User createUser(User user) {
+            call()
+            User created = new User.Builder(user).setId(UUID.randomUUID().toString()).build()
+            users[user.userName] = created
+            created
+        }
+
+        @Override
+        User updateUser(String userId, UpdateUser updateUser) {
+            call()
+            User user = users.values().find { it.id == userId }
+            User update = updateUser.scimConformUpdateUser
+            User updated = new User.Builder(user).setDisplayName(update.displayName ?: user.displayName).build()
+            users[user.userName] = updated
+            updated
+        }
+
+        private void call() {
+            calls.incrementAndGet()
+            Thread.sleep(latency)
+        }
+    }
+
+    /**
+     * Counts the binds and searches against the directory.
+     */
+    static class CountingContextSource implements BaseLdapPathContextSource {
+
+        final BaseLdapPathContextSource delegate
+        final AtomicLong binds = new AtomicLong()
+        final AtomicLong readOnlyContexts = new AtomicLong()
+        final AtomicLong searches = new AtomicLong()
+
+        CountingContextSource(BaseLdapPathContextSource delegate) {
+            this.delegate = delegate
+        }
+
+        void reset() {
+            binds.set(0)
+            readOnlyContexts.set(0)
+            searches.set(0)
+        }
+
+        @Override
+        DirContext getReadOnlyContext() {
+            readOnlyContexts.incrementAndGet()
+            counting(delegate.readOnlyContext)
+        }
+
+        @Override
+        DirContext getReadWriteContext() {
+            counting(delegate.readWriteContext)
+        }
+
+        @Override
+        DirContext getContext(String principal, String credentials) {
+            binds.incrementAndGet()
+            counting(delegate.getContext(principal, credentials))
+        }
+
+        @Override
+        DistinguishedName getBaseLdapPath() {
+            delegate.baseLdapPath
+        }
+
+        @Override
+        String getBaseLdapPathAsString() {
+            delegate.baseLdapPathAsString
+        }
+
+        private DirContext counting(DirContext context) {
+            (DirContext) Proxy.newProxyInstance(getClass().classLoader, [LdapContext] as Class[],
+                    new InvocationHandler() {
+                        @Override
+                        Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.name in ['search', 'getAttributes', 'lookup']) {
+                                searches.incrementAndGet()
+                            }
+                            try {
+                                method.invoke(context, args)
+                            } catch (InvocationTargetException e) {
+                                throw e.cause
+                            }
+                        }
+                    })
+        }
+    }
+}
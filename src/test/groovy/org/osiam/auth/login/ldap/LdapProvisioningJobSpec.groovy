@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.auth.login.ldap
+
+import org.osiam.auth.exception.ResourceServerUnavailableException
+import org.osiam.auth.login.ResourceServerConnector
+import org.osiam.resources.scim.User
+import org.springframework.context.support.GenericApplicationContext
+import org.springframework.ldap.core.DirContextAdapter
+import org.springframework.security.ldap.DefaultSpringSecurityContextSource
+import org.springframework.security.ldap.server.ApacheDSContainer
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class LdapProvisioningJobSpec extends Specification {
+
+    static final String ROOT = 'dc=springframework,dc=org'
+
+    @Shared
+    ApacheDSContainer ldapServer
+
+    @Shared
+    DefaultSpringSecurityContextSource contextSource
+
+    ResourceServerConnector resourceServerConnector = Mock()
+    OsiamLdapUserContextMapper mapper = new OsiamLdapUserContextMapper([userName: 'uid', displayName: 'cn'])
+    File checkpointFile
+    LdapProvisioningJob job
+
+    def setupSpec() {
+        int port = new ServerSocket(0).withCloseable { it.localPort }
+        ldapServer = new ApacheDSContainer(ROOT, 'classpath:ldap/test-users.ldif')
+        ldapServer.port = port
+        ldapServer.applicationContext = new GenericApplicationContext()
+        ldapServer.afterPropertiesSet()
+        contextSource = new DefaultSpringSecurityContextSource("ldap://localhost:${port}/${ROOT}")
+        contextSource.afterPropertiesSet()
+    }
+
+    def cleanupSpec() {
+        ldapServer?.destroy()
+    }
+
+    def setup() {
+        checkpointFile = File.createTempFile('ldap-provisioning', '.checkpoint')
+        checkpointFile.delete()
+        job = new LdapProvisioningJob(contextSource, ['uid={0},ou=people'] as String[], ['uid', 'cn'] as String[],
+                mapper, resourceServerConnector)
+        job.pageSize = 1
+        job.threads = 2
+        job.checkpointFile = checkpointFile
+    }
+
+    def cleanup() {
+        checkpointFile.delete()
+    }
+
+    def 'all users of the directory are created at the resource server'() {
+        when:
+        job.run()
+
+        then:
+        1 * resourceServerConnector.getUserByUsername('marissa') >> null
+        1 * resourceServerConnector.getUserByUsername('bob') >> null
+        1 * resourceServerConnector.createUser({ it.userName == 'marissa' && it.displayName == 'Marissa Koala' })
+        1 * resourceServerConnector.createUser({ it.userName == 'bob' && it.displayName == 'Bob Hamilton' })
+        job.createdUsers == 2
+        job.provisionedEntries == 2
+        !checkpointFile.exists()
+    }
+
+    def 'changed users are updated, unchanged and internal users are left alone'() {
+        given:
+        User marissa = new User.Builder(mapper.mapUser(ldapUser('marissa', 'Marissa'))).setId('marissa-id').build()
+        User bob = new User.Builder('bob').setId('bob-id').build()
+
+        when:
+        job.run()
+
+        then:
+        1 * resourceServerConnector.getUserByUsername('marissa') >> marissa
+        1 * resourceServerConnector.getUserByUsername('bob') >> bob
+        1 * resourceServerConnector.updateUser('marissa-id', { it.scimConformUpdateUser.displayName == 'Marissa Koala' })
+        0 * resourceServerConnector.updateUser('bob-id', _)
+        0 * resourceServerConnector.createUser(_)
+        job.updatedUsers == 1
+        job.skippedUsers == 1
+    }
+
+    def 'a run resumes after the entries recorded in the checkpoint'() {
+        given:
+        checkpointFile.text = 'position=1\n'
+
+        when:
+        job.run()
+
+        then:
+        1 * resourceServerConnector.getUserByUsername(_) >> null
+        1 * resourceServerConnector.createUser(_)
+        job.provisionedEntries == 1
+        !checkpointFile.exists()
+    }
+
+    def 'the run stops and keeps the checkpoint when the resource server becomes unavailable'() {
+        when:
+        job.run()
+
+        then:
+        1 * resourceServerConnector.getUserByUsername(_) >> null
+        1 * resourceServerConnector.createUser(_)
+        1 * resourceServerConnector.getUserByUsername(_) >> { throw new ResourceServerUnavailableException('down') }
+        job.failedUsers == 1
+        checkpointFile.text.contains('position=1')
+    }
+
+    def 'a user that can\'t be provisioned doesn\'t stop the run'() {
+        when:
+        job.run()
+
+        then:
+        2 * resourceServerConnector.getUserByUsername(_) >> null
+        2 * resourceServerConnector.createUser(_) >> { throw new IllegalStateException('invalid') } >> null
+        job.failedUsers == 1
+        job.createdUsers == 1
+        !checkpointFile.exists()
+    }
+
+    private static DirContextAdapter ldapUser(String uid, String cn) {
+        DirContextAdapter ldapUser = new DirContextAdapter()
+        ldapUser.setAttributeValue('uid', uid)
+        ldapUser.setAttributeValue('cn', cn)
+        ldapUser
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.auth.login.ldap
+
+import java.util.concurrent.CountDownLatch
+
+import org.osiam.auth.exception.ResourceServerUnavailableException
+import org.osiam.auth.login.ResourceServerConnector
+import org.osiam.resources.scim.UpdateUser
+import org.osiam.resources.scim.User
+import org.springframework.ldap.core.DirContextAdapter
+
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+class LdapUserSyncQueueSpec extends Specification {
+
+    ResourceServerConnector resourceServerConnector = Mock()
+    OsiamLdapUserContextMapper mapper = new OsiamLdapUserContextMapper([userName: 'uid', displayName: 'cn'])
+    DirContextAdapter ldapUserData = new DirContextAdapter()
+    PollingConditions conditions = new PollingConditions(timeout: 5)
+    List<String> sentDisplayNames = [].asSynchronized()
+
+    def cleanup() {
+        queue?.stop()
+    }
+
+    LdapUserSyncQueue queue
+
+    def 'a submitted update is sent to the resource server in the background'() {
+        given:
+        resourceServerConnector.updateUser('user-id', _) >> { String id, UpdateUser update -> record(update) }
+        createQueue(10, 0, 10)
+
+        when:
+        boolean queued = queue.submit('user-id', displayName('marissa'), ldapUserData)
+
+        then:
+        queued
+        conditions.eventually {
+            assert sentDisplayNames == ['marissa']
+            assert queue.completedUpdates == 1
+        }
+    }
+
+    def 'waiting updates of the same user collapse into the latest one'() {
+        given:
+        CountDownLatch busy = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        resourceServerConnector.updateUser('other-id', _) >> {
+            busy.countDown()
+            release.await()
+            null
+        }
+        resourceServerConnector.updateUser('user-id', _) >> { String id, UpdateUser update -> record(update) }
+        createQueue(10, 0, 10)
+        queue.submit('other-id', displayName('koala'), ldapUserData)
+        busy.await()
+
+        when:
+        queue.submit('user-id', displayName('first'), ldapUserData)
+        queue.submit('user-id', displayName('second'), ldapUserData)
+        queue.submit('user-id', displayName('third'), ldapUserData)
+        release.countDown()
+
+        then:
+        conditions.eventually {
+            assert queue.completedUpdates == 2
+        }
+        sentDisplayNames == ['third']
+        queue.coalescedUpdates == 2
+    }
+
+    def 'an update is rejected when the queue is full'() {
+        given:
+        CountDownLatch busy = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        resourceServerConnector.updateUser(_, _) >> {
+            busy.countDown()
+            release.await()
+            null
+        }
+        createQueue(1, 0, 10)
+        queue.submit('busy-id', displayName('busy'), ldapUserData)
+        busy.await()
+        queue.submit('waiting-id', displayName('waiting'), ldapUserData)
+
+        when:
+        boolean queued = queue.submit('user-id', displayName('marissa'), ldapUserData)
+
+        then:
+        !queued
+        queue.rejectedUpdates == 1
+
+        cleanup:
+        release.countDown()
+    }
+
+    def 'an update is retried while the resource server is unavailable'() {
+        given:
+        int calls = 0
+        resourceServerConnector.updateUser('user-id', _) >> { String id, UpdateUser update ->
+            if (++calls < 3) {
+                throw new ResourceServerUnavailableException('down')
+            }
+            record(update)
+        }
+        resourceServerConnector.getUserById('user-id') >> userWithDisplayName('Marissa')
+        ldapUserData.setAttributeValue('cn', 'marissa')
+        createQueue(10, 5, 10)
+
+        when:
+        queue.submit('user-id', displayName('marissa'), ldapUserData)
+
+        then:
+        conditions.eventually {
+            assert sentDisplayNames == ['marissa']
+        }
+        queue.retriedUpdates == 2
+        queue.recomputedUpdates == 2
+        queue.failedUpdates == 0
+    }
+
+    def 'a retry is computed again against the user, so an update applied before it failed is not sent twice'() {
+        given:
+        User user = userWithDisplayName('Marissa')
+        resourceServerConnector.updateUser('user-id', _) >> { String id, UpdateUser update ->
+            record(update)
+            user = new User.Builder(user).setDisplayName(update.scimConformUpdateUser.displayName).build()
+            throw new ResourceServerUnavailableException('read timed out')
+        }
+        resourceServerConnector.getUserById('user-id') >> { user }
+        ldapUserData.setAttributeValue('cn', 'marissa')
+        createQueue(10, 5, 10)
+
+        when: 'the resource server applies the update, but the response is lost'
+        queue.submit('user-id', displayName('marissa'), ldapUserData)
+
+        then:
+        conditions.eventually {
+            assert queue.completedUpdates == 1
+        }
+        sentDisplayNames == ['marissa']
+        queue.retriedUpdates == 1
+        queue.recomputedUpdates == 1
+    }
+
+    def 'a retry is dropped when a newer update of the user was submitted during the backoff'() {
+        given:
+        CountDownLatch failed = new CountDownLatch(1)
+        int calls = 0
+        resourceServerConnector.updateUser('user-id', _) >> { String id, UpdateUser update ->
+            if (++calls == 1) {
+                failed.countDown()
+                throw new ResourceServerUnavailableException('down')
+            }
+            record(update)
+        }
+        resourceServerConnector.getUserById('user-id') >> userWithDisplayName('old')
+        ldapUserData.setAttributeValue('cn', 'new')
+        createQueue(10, 5, 500)
+        queue.submit('user-id', displayName('old'), ldapUserData)
+        failed.await()
+
+        when: 'the retry would run after 500 ms'
+        queue.submit('user-id', displayName('new'), ldapUserData)
+        sleep(1000)
+
+        then:
+        sentDisplayNames == ['new']
+        queue.retriedUpdates == 0
+    }
+
+    def 'an update is given up after the configured number of retries'() {
+        given:
+        resourceServerConnector.updateUser('user-id', _) >> { throw new ResourceServerUnavailableException('down') }
+        resourceServerConnector.getUserById('user-id') >> userWithDisplayName('Marissa')
+        ldapUserData.setAttributeValue('cn', 'marissa')
+        createQueue(10, 2, 10)
+
+        when:
+        queue.submit('user-id', displayName('marissa'), ldapUserData)
+
+        then:
+        conditions.eventually {
+            assert queue.failedUpdates == 1
+        }
+        queue.retriedUpdates == 2
+    }
+
+    def 'an update rejected by the resource server is not retried'() {
+        given:
+        resourceServerConnector.updateUser('user-id', _) >> { throw new IllegalStateException('invalid') }
+        createQueue(10, 5, 10)
+
+        when:
+        queue.submit('user-id', displayName('marissa'), ldapUserData)
+
+        then:
+        conditions.eventually {
+            assert queue.failedUpdates == 1
+        }
+        queue.retriedUpdates == 0
+    }
+
+    def 'a discarded update is not sent'() {
+        given:
+        CountDownLatch busy = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        resourceServerConnector.updateUser('other-id', _) >> {
+            busy.countDown()
+            release.await()
+            null
+        }
+        resourceServerConnector.updateUser('user-id', _) >> { String id, UpdateUser update -> record(update) }
+        createQueue(10, 0, 10)
+        queue.submit('other-id', displayName('koala'), ldapUserData)
+        busy.await()
+
+        when:
+        queue.submit('user-id', displayName('marissa'), ldapUserData)
+        queue.discard('user-id')
+        release.countDown()
+
+        then:
+        conditions.eventually {
+            assert queue.completedUpdates == 1
+        }
+        queue.queuedUpdates == 0
+        sentDisplayNames.isEmpty()
+    }
+
+    def 'an update submitted while an update of the same user is sent is computed again after it'() {
+        given:
+        CountDownLatch busy = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        User user = new User.Builder('marissa').setId('user-id').setDisplayName('Marissa').build()
+        resourceServerConnector.updateUser('user-id', _) >> { String id, UpdateUser update ->
+            busy.countDown()
+            release.await()
+            record(update)
+            user = new User.Builder(user).setDisplayName(update.scimConformUpdateUser.displayName).build()
+            null
+        }
+        resourceServerConnector.getUserById('user-id') >> { user }
+        createQueue(10, 0, 10)
+        ldapUserData.setAttributeValue('uid', 'marissa')
+        ldapUserData.setAttributeValue('cn', 'Marissa Koala')
+        queue.submit('user-id', displayName('Marissa Koala'), ldapUserData)
+        busy.await()
+
+        when: 'a second login read the user before the first update was done'
+        queue.submit('user-id', displayName('Marissa Koala'), ldapUserData)
+        release.countDown()
+
+        then:
+        conditions.eventually {
+            assert queue.completedUpdates == 2
+        }
+        sentDisplayNames == ['Marissa Koala']
+        queue.recomputedUpdates == 1
+    }
+
+    def 'discarding waits for an update of the user that is being sent'() {
+        given:
+        CountDownLatch busy = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        resourceServerConnector.updateUser('user-id', _) >> {
+            busy.countDown()
+            release.await()
+            null
+        }
+        createQueue(10, 0, 10)
+        queue.submit('user-id', displayName('marissa'), ldapUserData)
+        busy.await()
+        Thread.start {
+            sleep(100)
+            release.countDown()
+        }
+
+        expect:
+        queue.discard('user-id')
+        release.count == 0
+        !queue.discard('user-id')
+    }
+
+    private void createQueue(int capacity, int maxRetries, long retryDelay) {
+        queue = new LdapUserSyncQueue(resourceServerConnector, mapper, capacity, maxRetries, retryDelay)
+        queue.start()
+    }
+
+    private User record(UpdateUser update) {
+        sentDisplayNames << update.scimConformUpdateUser.displayName
+        null
+    }
+
+    private static User userWithDisplayName(String displayName) {
+        new User.Builder('marissa').setId('user-id').setDisplayName(displayName).build()
+    }
+
+    private static UpdateUser displayName(String displayName) {
+        new UpdateUser.Builder().updateDisplayName(displayName).build()
+    }
+}
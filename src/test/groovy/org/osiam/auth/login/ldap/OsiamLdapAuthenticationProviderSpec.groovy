@@ -23,16 +23,36 @@
 
 package org.osiam.auth.login.ldap
 
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import org.osiam.auth.configuration.LdapConfiguration
+import org.osiam.auth.exception.LdapAuthenticationProcessException
+import org.osiam.auth.exception.ResourceServerUnavailableException
+import org.osiam.auth.login.AsyncResourceServerConnector
+import org.osiam.auth.login.ResourceServerConnector
+import org.osiam.resources.scim.Extension
+import org.osiam.resources.scim.Role
+import org.osiam.resources.scim.User
 import org.springframework.ldap.core.DirContextAdapter;
 import org.springframework.ldap.core.DirContextOperations
 import org.springframework.ldap.core.support.LdapContextSource;
+import org.springframework.security.authentication.BadCredentialsException
 import org.springframework.security.core.Authentication
 import org.springframework.security.ldap.authentication.BindAuthenticator;
 import org.springframework.security.ldap.authentication.LdapAuthenticator;
 import org.springframework.security.ldap.userdetails.DefaultLdapAuthoritiesPopulator;
+import org.springframework.security.ldap.userdetails.LdapAuthoritiesPopulator
 
 import spock.lang.Specification
 
+import com.google.common.util.concurrent.Futures
+import com.google.common.util.concurrent.MoreExecutors
+import com.google.common.util.concurrent.SettableFuture
+
 class OsiamLdapAuthenticationProviderSpec extends Specification {
 
     def 'the ldap provider only supports OsiamLdapAuthentication class'() {
@@ -46,4 +66,345 @@ class OsiamLdapAuthenticationProviderSpec extends Specification {
         expect:
         provider.supports(OsiamLdapAuthentication)
     }
+
+    def 'the groups of the user are not loaded from the directory, because the roles of the SCIM user are used'() {
+        given:
+        LdapAuthenticator authenticator = Mock()
+        LdapAuthoritiesPopulator authoritiesPopulator = Mock()
+        ResourceServerConnector resourceServerConnector = Mock()
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                authoritiesPopulator, new OsiamLdapUserContextMapper([:]))
+        provider.resourceServerConnector = resourceServerConnector
+        provider.syncUserData = false
+        Extension authExtension = new Extension.Builder(LdapConfiguration.AUTH_EXTENSION)
+                .setField('origin', LdapConfiguration.LDAP_PROVIDER)
+                .build()
+        User user = new User.Builder('marissa')
+                .setId('user-id')
+                .setActive(true)
+                .addExtension(authExtension)
+                .addRoles([new Role.Builder().setValue('USER').build()])
+                .build()
+
+        when:
+        Authentication authentication = provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then:
+        1 * resourceServerConnector.getUserByUsername('marissa') >> user
+        1 * authenticator.authenticate(_) >> new DirContextAdapter()
+        0 * authoritiesPopulator._
+        authentication.authorities*.authority == ['USER']
+    }
+
+    def 'a login without changes in the directory doesn\'t update the user at the resource server'() {
+        given:
+        LdapAuthenticator authenticator = Mock()
+        ResourceServerConnector resourceServerConnector = Mock()
+        OsiamLdapUserContextMapper mapper = new OsiamLdapUserContextMapper([userName: 'uid', displayName: 'cn'])
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                Mock(LdapAuthoritiesPopulator), mapper)
+        provider.resourceServerConnector = resourceServerConnector
+        provider.syncUserData = true
+        DirContextAdapter ldapUserData = new DirContextAdapter()
+        ldapUserData.setAttributeValue('uid', 'marissa')
+        ldapUserData.setAttributeValue('cn', 'Marissa')
+        User user = new User.Builder(mapper.mapUser(ldapUserData)).setId('user-id').build()
+
+        when:
+        provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then:
+        1 * resourceServerConnector.getUserByUsername('marissa') >> user
+        1 * authenticator.authenticate(_) >> ldapUserData
+        0 * resourceServerConnector.updateUser(_, _)
+    }
+
+    def 'a login with changes in the directory updates the user at the resource server'() {
+        given:
+        LdapAuthenticator authenticator = Mock()
+        ResourceServerConnector resourceServerConnector = Mock()
+        OsiamLdapUserContextMapper mapper = new OsiamLdapUserContextMapper([userName: 'uid', displayName: 'cn'])
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                Mock(LdapAuthoritiesPopulator), mapper)
+        provider.resourceServerConnector = resourceServerConnector
+        provider.syncUserData = true
+        DirContextAdapter ldapUserData = new DirContextAdapter()
+        ldapUserData.setAttributeValue('uid', 'marissa')
+        ldapUserData.setAttributeValue('cn', 'Marissa')
+        User user = new User.Builder(mapper.mapUser(ldapUserData)).setId('user-id').build()
+        ldapUserData.setAttributeValue('cn', 'Marissa Koala')
+
+        when:
+        provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then:
+        1 * resourceServerConnector.getUserByUsername('marissa') >> user
+        1 * authenticator.authenticate(_) >> ldapUserData
+        1 * resourceServerConnector.updateUser('user-id', { it.scimConformUpdateUser.displayName == 'Marissa Koala' }) >> user
+    }
+
+    def 'the changes of an existing user are sent in the background when a sync queue is set'() {
+        given:
+        LdapAuthenticator authenticator = Mock()
+        ResourceServerConnector resourceServerConnector = Mock()
+        LdapUserSyncQueue userSyncQueue = Mock()
+        OsiamLdapUserContextMapper mapper = new OsiamLdapUserContextMapper([userName: 'uid', displayName: 'cn'])
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                Mock(LdapAuthoritiesPopulator), mapper)
+        provider.resourceServerConnector = resourceServerConnector
+        provider.syncUserData = true
+        provider.userSyncQueue = userSyncQueue
+        DirContextAdapter ldapUserData = new DirContextAdapter()
+        ldapUserData.setAttributeValue('uid', 'marissa')
+        ldapUserData.setAttributeValue('cn', 'Marissa')
+        User user = new User.Builder(mapper.mapUser(ldapUserData)).setId('user-id').build()
+        ldapUserData.setAttributeValue('cn', 'Marissa Koala')
+
+        when:
+        provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then:
+        1 * resourceServerConnector.getUserByUsername('marissa') >> user
+        1 * authenticator.authenticate(_) >> ldapUserData
+        1 * userSyncQueue.submit('user-id', { it.scimConformUpdateUser.displayName == 'Marissa Koala' },
+                ldapUserData) >> true
+        0 * resourceServerConnector.updateUser(_, _)
+    }
+
+    def 'changed roles are sent before the login completes, because they are the authorities of the login'() {
+        given:
+        LdapAuthenticator authenticator = Mock()
+        ResourceServerConnector resourceServerConnector = Mock()
+        LdapUserSyncQueue userSyncQueue = Mock()
+        OsiamLdapUserContextMapper mapper = new OsiamLdapUserContextMapper([userName: 'uid', role: 'title'])
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                Mock(LdapAuthoritiesPopulator), mapper)
+        provider.resourceServerConnector = resourceServerConnector
+        provider.syncUserData = true
+        provider.userSyncQueue = userSyncQueue
+        DirContextAdapter ldapUserData = new DirContextAdapter()
+        ldapUserData.setAttributeValue('uid', 'marissa')
+        ldapUserData.setAttributeValue('title', 'USER')
+        User user = new User.Builder(mapper.mapUser(ldapUserData)).setId('user-id').build()
+        ldapUserData.setAttributeValue('title', 'ADMIN')
+        User updatedUser = new User.Builder(mapper.mapUser(ldapUserData)).setId('user-id').build()
+
+        when:
+        Authentication authentication = provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then:
+        1 * resourceServerConnector.getUserByUsername('marissa') >> user
+        1 * authenticator.authenticate(_) >> ldapUserData
+        0 * userSyncQueue.submit(_, _, _)
+        1 * userSyncQueue.discard('user-id')
+        1 * resourceServerConnector.updateUser('user-id', _) >> updatedUser
+        authentication.authorities*.authority == ['ADMIN']
+    }
+
+    def 'the update is computed again against the user changed by an update sent in the background'() {
+        given:
+        LdapAuthenticator authenticator = Mock()
+        ResourceServerConnector resourceServerConnector = Mock()
+        LdapUserSyncQueue userSyncQueue = Mock()
+        OsiamLdapUserContextMapper mapper = new OsiamLdapUserContextMapper([userName: 'uid', role: 'title'])
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                Mock(LdapAuthoritiesPopulator), mapper)
+        provider.resourceServerConnector = resourceServerConnector
+        provider.syncUserData = true
+        provider.userSyncQueue = userSyncQueue
+        DirContextAdapter ldapUserData = new DirContextAdapter()
+        ldapUserData.setAttributeValue('uid', 'marissa')
+        ldapUserData.setAttributeValue('title', 'USER')
+        User user = new User.Builder(mapper.mapUser(ldapUserData)).setId('user-id').build()
+        ldapUserData.setAttributeValue('title', 'ADMIN')
+        User updatedUser = new User.Builder(mapper.mapUser(ldapUserData)).setId('user-id').build()
+
+        when:
+        Authentication authentication = provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then:
+        1 * resourceServerConnector.getUserByUsername('marissa') >> user
+        1 * authenticator.authenticate(_) >> ldapUserData
+        1 * userSyncQueue.discard('user-id') >> true
+        1 * resourceServerConnector.getUserById('user-id') >> updatedUser
+        0 * resourceServerConnector.updateUser(_, _)
+        authentication.authorities*.authority == ['ADMIN']
+    }
+
+    def 'a user known from an earlier login is looked up at the resource server while the bind is in progress'() {
+        given:
+        AsyncResourceServerConnector asyncConnector = Mock()
+        SettableFuture<User> pendingUser = SettableFuture.create()
+        CountDownLatch bindStarted = new CountDownLatch(1)
+        CountDownLatch lookupStarted = new CountDownLatch(1)
+        boolean bindOverlapped = false
+        boolean lookupOverlapped = false
+        int binds = 0
+        LdapAuthenticator authenticator = { Authentication authentication ->
+            if (++binds == 2) {
+                bindStarted.countDown()
+                lookupOverlapped = lookupStarted.await(5, TimeUnit.SECONDS)
+            }
+            new DirContextAdapter()
+        } as LdapAuthenticator
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                Mock(LdapAuthoritiesPopulator), new OsiamLdapUserContextMapper([:]))
+        provider.resourceServerConnector = Mock(ResourceServerConnector)
+        provider.asyncResourceServerConnector = asyncConnector
+        provider.syncUserData = false
+        asyncConnector.getUserByUsername('marissa') >>> [Futures.immediateFuture(ldapUser('marissa')), pendingUser]
+        provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+        Thread.start {
+            lookupStarted.countDown()
+            // the lookup only finishes after the bind has started
+            bindOverlapped = bindStarted.await(5, TimeUnit.SECONDS)
+            pendingUser.set(ldapUser('marissa'))
+        }
+
+        when:
+        Authentication authentication = provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then:
+        authentication.principal.id == 'user-id'
+        bindOverlapped
+        lookupOverlapped
+    }
+
+    def 'the lookup of a user name not seen before finishes before the bind'() {
+        given:
+        AsyncResourceServerConnector asyncConnector = Mock()
+        LdapAuthenticator authenticator = Mock()
+        SettableFuture<User> pendingUser = SettableFuture.create()
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                Mock(LdapAuthoritiesPopulator), new OsiamLdapUserContextMapper([:]))
+        provider.resourceServerConnector = Mock(ResourceServerConnector)
+        provider.asyncResourceServerConnector = asyncConnector
+        asyncConnector.getUserByUsername('marissa') >> pendingUser
+        Thread.start {
+            pendingUser.set(new User.Builder('marissa').build())
+        }
+
+        when:
+        provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then: 'the password of the internal user is not sent to the LDAP server'
+        0 * authenticator.authenticate(_)
+        thrown(LdapAuthenticationProcessException)
+    }
+
+    def 'an internal user with the same name is reported even if the bind fails'() {
+        given:
+        AsyncResourceServerConnector asyncConnector = Mock()
+        LdapAuthenticator authenticator = Mock()
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                Mock(LdapAuthoritiesPopulator), new OsiamLdapUserContextMapper([:]))
+        provider.resourceServerConnector = Mock(ResourceServerConnector)
+        provider.asyncResourceServerConnector = asyncConnector
+        asyncConnector.getUserByUsername('marissa') >> Futures.immediateFuture(new User.Builder('marissa').build())
+        authenticator.authenticate(_) >> { throw new BadCredentialsException('bad credentials') }
+
+        when:
+        provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then:
+        thrown(LdapAuthenticationProcessException)
+    }
+
+    def 'an internal user already found by the lookup is rejected without a bind'() {
+        given:
+        AsyncResourceServerConnector asyncConnector = Mock()
+        LdapAuthenticator authenticator = Mock()
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                Mock(LdapAuthoritiesPopulator), new OsiamLdapUserContextMapper([:]))
+        provider.resourceServerConnector = Mock(ResourceServerConnector)
+        provider.asyncResourceServerConnector = asyncConnector
+
+        when:
+        provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then:
+        1 * asyncConnector.getUserByUsername('marissa') >>
+                Futures.immediateFuture(new User.Builder('marissa').build())
+        0 * authenticator.authenticate(_)
+        thrown(LdapAuthenticationProcessException)
+    }
+
+    def 'a known internal user is rejected without a lookup and without a bind'() {
+        given:
+        ExecutorService executor = Executors.newSingleThreadExecutor()
+        AsyncResourceServerConnector asyncConnector = Mock()
+        LdapAuthenticator authenticator = Mock()
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                Mock(LdapAuthoritiesPopulator), new OsiamLdapUserContextMapper([:]))
+        provider.resourceServerConnector = Mock(ResourceServerConnector)
+        provider.asyncResourceServerConnector = asyncConnector
+        asyncConnector.getUserByUsername('marissa') >> MoreExecutors.listeningDecorator(executor).submit({
+            Thread.sleep(100)
+            new User.Builder('marissa').build()
+        } as Callable)
+        authenticator.authenticate(_) >> new DirContextAdapter()
+        try {
+            provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+        } catch (LdapAuthenticationProcessException ignored) {
+        }
+
+        when:
+        provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then:
+        0 * asyncConnector.getUserByUsername(_)
+        0 * authenticator.authenticate(_)
+        thrown(LdapAuthenticationProcessException)
+
+        cleanup:
+        executor.shutdownNow()
+    }
+
+    def 'an error of the lookup at the resource server is raised unchanged'() {
+        given:
+        AsyncResourceServerConnector asyncConnector = Mock()
+        LdapAuthenticator authenticator = Mock()
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                Mock(LdapAuthoritiesPopulator), new OsiamLdapUserContextMapper([:]))
+        provider.resourceServerConnector = Mock(ResourceServerConnector)
+        provider.asyncResourceServerConnector = asyncConnector
+        asyncConnector.getUserByUsername('marissa') >>
+                Futures.immediateFailedFuture(new ResourceServerUnavailableException('down'))
+        authenticator.authenticate(_) >> new DirContextAdapter()
+
+        when:
+        provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then:
+        thrown(ResourceServerUnavailableException)
+    }
+
+    def 'a failed bind is reported if the lookup at the resource server succeeds'() {
+        given:
+        AsyncResourceServerConnector asyncConnector = Mock()
+        LdapAuthenticator authenticator = Mock()
+        OsiamLdapAuthenticationProvider provider = new OsiamLdapAuthenticationProvider(authenticator,
+                Mock(LdapAuthoritiesPopulator), new OsiamLdapUserContextMapper([:]))
+        provider.resourceServerConnector = Mock(ResourceServerConnector)
+        provider.asyncResourceServerConnector = asyncConnector
+        asyncConnector.getUserByUsername('marissa') >> Futures.immediateFuture(ldapUser('marissa'))
+        authenticator.authenticate(_) >> { throw new BadCredentialsException('bad credentials') }
+
+        when:
+        provider.authenticate(new OsiamLdapAuthentication('marissa', 'koala'))
+
+        then:
+        thrown(BadCredentialsException)
+    }
+
+    private static User ldapUser(String userName) {
+        Extension authExtension = new Extension.Builder(LdapConfiguration.AUTH_EXTENSION)
+                .setField('origin', LdapConfiguration.LDAP_PROVIDER)
+                .build()
+        new User.Builder(userName)
+                .setId('user-id')
+                .setActive(true)
+                .addExtension(authExtension)
+                .build()
+    }
 }
@@ -23,9 +23,11 @@
 
 package org.osiam.auth.login.ldap
 
+import org.osiam.auth.exception.LdapConfigurationException
 import org.osiam.resources.scim.Email
 import org.osiam.resources.scim.Entitlement
 import org.osiam.resources.scim.Im
+import org.osiam.resources.scim.Name
 import org.osiam.resources.scim.PhoneNumber
 import org.osiam.resources.scim.Photo
 import org.osiam.resources.scim.Role
@@ -36,6 +38,7 @@ import org.springframework.ldap.core.DirContextAdapter
 import org.springframework.ldap.core.DirContextOperations
 
 import spock.lang.Specification
+import spock.lang.Unroll
 
 class OsiamLdapUserContextMapperSpec extends Specification {
 
@@ -169,6 +172,138 @@ class OsiamLdapUserContextMapperSpec extends Specification {
         conformUserData(user)
     }
     
+    def 'no update is mapped when the scim user already has the data from ldap'() {
+        given:
+        osiamLdapUserContextMapper = new OsiamLdapUserContextMapper(scimLdapAttributes)
+        User user = osiamLdapUserContextMapper.mapUser(userData)
+
+        expect:
+        osiamLdapUserContextMapper.mapUpdateUser(user, userData) == null
+    }
+
+    def 'only the attributes changed in ldap are part of the update'() {
+        given:
+        osiamLdapUserContextMapper = new OsiamLdapUserContextMapper(scimLdapAttributes)
+        User user = osiamLdapUserContextMapper.mapUser(userData)
+        userData.setAttributeValue('displayName', 'newDisplayName')
+        userData.setAttributeValue('mail', 'new@mail.de')
+
+        when:
+        User update = osiamLdapUserContextMapper.mapUpdateUser(user, userData).scimConformUpdateUser
+
+        then:
+        update.displayName == 'newDisplayName'
+        update.emails*.value.contains('new@mail.de')
+        update.emails*.value.contains(emailValue)
+        update.nickName == null
+        update.title == null
+        update.name == null
+        update.addresses.isEmpty()
+        update.roles.isEmpty()
+        update.phoneNumbers.isEmpty()
+    }
+
+    def 'the name of the scim user doesn\'t cause an update when no name attribute is mapped'() {
+        given:
+        osiamLdapUserContextMapper = new OsiamLdapUserContextMapper([userName: 'uid', displayName: 'cn'])
+        userData.setAttributeValue('uid', 'marissa')
+        userData.setAttributeValue('cn', 'Marissa')
+        User user = new User.Builder('marissa')
+                .setDisplayName('Marissa')
+                .setName(new Name.Builder().setGivenName('Marissa').setFamilyName('Koala').build())
+                .build()
+
+        expect:
+        osiamLdapUserContextMapper.mapUpdateUser(user, userData) == null
+    }
+
+    def 'an email added to the scim user by someone else doesn\'t cause an update'() {
+        given:
+        osiamLdapUserContextMapper = new OsiamLdapUserContextMapper(scimLdapAttributes)
+        User ldapUser = osiamLdapUserContextMapper.mapUser(userData)
+        User user = new User.Builder(ldapUser)
+                .addEmails([new Email.Builder().setValue('other@mail.de').setType(Email.Type.WORK).build()])
+                .build()
+
+        expect:
+        osiamLdapUserContextMapper.mapUpdateUser(user, userData) == null
+    }
+
+    @Unroll
+    def 'an empty ldap attribute mapped to #scimAttribute doesn\'t cause an update'() {
+        given:
+        userData.setAttributeValue(ldapAttribute, '')
+        osiamLdapUserContextMapper = new OsiamLdapUserContextMapper(scimLdapAttributes)
+        User user = osiamLdapUserContextMapper.mapUser(userData)
+
+        expect:
+        osiamLdapUserContextMapper.mapUpdateUser(user, userData) == null
+
+        where:
+        scimAttribute     | ldapAttribute
+        'email'           | 'mail'
+        'entitlement'     | 'entitlement'
+        'im'              | 'im'
+        'phoneNumber'     | 'telephoneNumber'
+        'photo'           | 'picture'
+        'role'            | 'role'
+        'x509Certificate' | 'x509Certificate'
+    }
+
+    def 'a value removed in ldap is deleted without adding an empty one'() {
+        given:
+        osiamLdapUserContextMapper = new OsiamLdapUserContextMapper(scimLdapAttributes)
+        User user = osiamLdapUserContextMapper.mapUser(userData)
+        userData.setAttributeValue('mail', '')
+
+        when:
+        UpdateUser update = osiamLdapUserContextMapper.mapUpdateUser(user, userData)
+
+        then:
+        update.scimConformUpdateUser.emails*.value == [emailValue]
+        update.scimConformUpdateUser.emails*.operation == ['delete']
+    }
+
+    def 'every mapped ldap attribute is read exactly once when a user is mapped'() {
+        given:
+        osiamLdapUserContextMapper = new OsiamLdapUserContextMapper(scimLdapAttributes)
+        DirContextOperations countingUserData = Mock()
+
+        when:
+        osiamLdapUserContextMapper.mapUser(countingUserData)
+
+        then:
+        scimLdapAttributes.values().each { String ldapAttribute ->
+            1 * countingUserData.getStringAttribute(ldapAttribute) >> { userData.getStringAttribute(ldapAttribute) }
+        }
+        0 * countingUserData._
+    }
+
+    def 'every mapped ldap attribute is read exactly once when an update is mapped'() {
+        given:
+        osiamLdapUserContextMapper = new OsiamLdapUserContextMapper(scimLdapAttributes)
+        User user = osiamLdapUserContextMapper.mapUser(userData)
+        DirContextOperations countingUserData = Mock()
+
+        when:
+        osiamLdapUserContextMapper.mapUpdateUser(user, countingUserData)
+
+        then:
+        scimLdapAttributes.values().each { String ldapAttribute ->
+            1 * countingUserData.getStringAttribute(ldapAttribute) >> { userData.getStringAttribute(ldapAttribute) }
+        }
+        0 * countingUserData._
+    }
+
+    def 'an unknown scim attribute in the mapping is rejected when the mapper is created'() {
+        when:
+        new OsiamLdapUserContextMapper([userName: 'uid', favoriteColor: 'color'])
+
+        then:
+        LdapConfigurationException e = thrown()
+        e.message.contains('favoriteColor')
+    }
+
     def conformUserData(User user) {
         user.getUserName() == userNameValue
         user.getName().getFormatted() == nameFormattedValue
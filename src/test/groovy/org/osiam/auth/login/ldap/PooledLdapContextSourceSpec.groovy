@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.login.ldap
+
+import java.util.concurrent.TimeUnit
+
+import javax.naming.Context
+import javax.naming.directory.DirContext
+import javax.naming.ldap.LdapContext
+
+import org.springframework.context.support.GenericApplicationContext
+import org.springframework.ldap.AuthenticationException
+import org.springframework.ldap.LimitExceededException
+import org.springframework.ldap.core.DirContextOperations
+import org.springframework.security.authentication.BadCredentialsException
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken
+import org.springframework.security.ldap.authentication.BindAuthenticator
+import org.springframework.security.ldap.server.ApacheDSContainer
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class PooledLdapContextSourceSpec extends Specification {
+
+    static final String ROOT = 'dc=springframework,dc=org'
+
+    @Shared
+    ApacheDSContainer ldapServer
+
+    @Shared
+    String url
+
+    PooledLdapContextSource contextSource
+
+    def setupSpec() {
+        int port = new ServerSocket(0).withCloseable { it.localPort }
+        url = "ldap://localhost:${port}/${ROOT}"
+        ldapServer = new ApacheDSContainer(ROOT, 'classpath:ldap/test-users.ldif')
+        ldapServer.port = port
+        ldapServer.applicationContext = new GenericApplicationContext()
+        ldapServer.afterPropertiesSet()
+    }
+
+    def cleanupSpec() {
+        ldapServer?.destroy()
+    }
+
+    def setup() {
+        contextSource = createPooledContextSource(serverContextSource())
+    }
+
+    def cleanup() {
+        contextSource.destroy()
+    }
+
+    def 'repeated logins reuse a single bind connection'() {
+        given:
+        BindAuthenticator authenticator = createBindAuthenticator()
+
+        when:
+        List<DirContextOperations> users = (1..5).collect {
+            authenticator.authenticate(new UsernamePasswordAuthenticationToken('marissa', 'koala'))
+        }
+
+        then:
+        users*.getStringAttribute('mail').unique() == ['marissa@example.org']
+        contextSource.bindPool.createdConnections == 1
+        contextSource.bindPool.reusedConnections == 4
+        contextSource.bindPool.activeConnections == 0
+    }
+
+    def 'a reused connection is bound with the credentials of the next user'() {
+        given:
+        BindAuthenticator authenticator = createBindAuthenticator()
+        authenticator.authenticate(new UsernamePasswordAuthenticationToken('marissa', 'koala'))
+
+        when:
+        DirContextOperations bob = authenticator.authenticate(new UsernamePasswordAuthenticationToken('bob',
+                'bobspassword'))
+
+        then:
+        bob.getStringAttribute('uid') == 'bob'
+        contextSource.bindPool.createdConnections == 1
+    }
+
+    def 'a wrong password is rejected and the connection stays in the pool'() {
+        given:
+        BindAuthenticator authenticator = createBindAuthenticator()
+        authenticator.authenticate(new UsernamePasswordAuthenticationToken('marissa', 'koala'))
+
+        when:
+        authenticator.authenticate(new UsernamePasswordAuthenticationToken('marissa', 'wrong'))
+
+        then:
+        thrown(BadCredentialsException)
+        contextSource.bindPool.idleConnections == 1
+
+        when: 'the connection is used again with the right password'
+        authenticator.authenticate(new UsernamePasswordAuthenticationToken('marissa', 'koala'))
+
+        then:
+        contextSource.bindPool.createdConnections == 1
+    }
+
+    def 'read-only contexts are pooled separately from the bind connections'() {
+        when:
+        2.times {
+            DirContext context = contextSource.readOnlyContext
+            context.getAttributes('uid=bob,ou=people')
+            context.close()
+        }
+
+        then:
+        contextSource.readOnlyPool.createdConnections == 1
+        contextSource.readOnlyPool.reusedConnections == 1
+        contextSource.bindPool.createdConnections == 0
+    }
+
+    def 'no more than the configured number of idle connections are kept'() {
+        when:
+        List<DirContext> contexts = (1..3).collect { contextSource.readOnlyContext }
+        contexts*.close()
+
+        then:
+        contextSource.readOnlyPool.idleConnections == 2
+        contextSource.readOnlyPool.closedConnections == 1
+    }
+
+    def 'a connection bound as a user is bound anonymously before it is put back into the pool'() {
+        given:
+        createBindAuthenticator().authenticate(new UsernamePasswordAuthenticationToken('marissa', 'koala'))
+
+        when:
+        LdapContext context = contextSource.bindPool.borrow()
+
+        then:
+        context.environment[Context.SECURITY_AUTHENTICATION] == 'none'
+        context.environment[Context.SECURITY_PRINCIPAL] == null
+        context.environment[Context.SECURITY_CREDENTIALS] == null
+        contextSource.bindPool.createdConnections == 1
+
+        cleanup:
+        contextSource.bindPool.giveBack(context, true)
+    }
+
+    def 'read-only connections are authenticated with the manager DN of the context source'() {
+        given:
+        contextSource.destroy()
+        contextSource = createPooledContextSource(serverContextSource("uid=bob,ou=people,${ROOT}", 'bobspassword'))
+
+        when:
+        DirContext context = contextSource.readOnlyContext
+        context.getAttributes('uid=bob,ou=people')
+        Hashtable<?, ?> environment = context.environment
+        context.close()
+
+        then:
+        environment[Context.SECURITY_PRINCIPAL] == "uid=bob,ou=people,${ROOT}".toString()
+    }
+
+    def 'read-only connections fail if the manager DN can\'t be authenticated'() {
+        given:
+        contextSource.destroy()
+        contextSource = createPooledContextSource(serverContextSource("uid=bob,ou=people,${ROOT}", 'wrong'))
+
+        when:
+        contextSource.readOnlyContext
+
+        then:
+        thrown(AuthenticationException)
+        contextSource.readOnlyPool.activeConnections == 0
+    }
+
+    def 'no more than the configured number of connections are in use at the same time'() {
+        given:
+        List<DirContext> contexts = (1..4).collect { contextSource.readOnlyContext }
+
+        when:
+        contextSource.readOnlyContext
+
+        then:
+        thrown(LimitExceededException)
+        contextSource.readOnlyPool.rejectedBorrows == 1
+
+        when: 'a connection is given back'
+        contexts.pop().close()
+        contexts << contextSource.readOnlyContext
+
+        then:
+        contextSource.readOnlyPool.activeConnections == 4
+
+        cleanup:
+        contexts*.close()
+    }
+
+    def 'a closed context can\'t be used anymore'() {
+        given:
+        DirContext context = contextSource.readOnlyContext
+        context.close()
+
+        when:
+        context.getAttributes('uid=bob,ou=people')
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    private LdapServerContextSource serverContextSource(String userDn = '', String password = '') {
+        LdapServerContextSource serverContextSource = new LdapServerContextSource(url)
+        serverContextSource.userDn = userDn
+        serverContextSource.password = password
+        serverContextSource.afterPropertiesSet()
+        serverContextSource
+    }
+
+    private static PooledLdapContextSource createPooledContextSource(LdapServerContextSource serverContextSource) {
+        new PooledLdapContextSource(serverContextSource, 2, 4, 50, 300, 30, TimeUnit.SECONDS)
+    }
+
+    private BindAuthenticator createBindAuthenticator() {
+        BindAuthenticator authenticator = new BindAuthenticator(contextSource)
+        authenticator.userDnPatterns = ['uid={0},ou=people'] as String[]
+        authenticator.afterPropertiesSet()
+        authenticator
+    }
+}
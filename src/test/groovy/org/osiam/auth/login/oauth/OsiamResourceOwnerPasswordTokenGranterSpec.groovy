@@ -23,7 +23,10 @@
 
 package org.osiam.auth.login.oauth
 
+import java.util.concurrent.TimeUnit
+
 import org.osiam.auth.login.internal.InternalAuthentication
+import org.osiam.auth.resilience.Deadline
 import org.springframework.security.authentication.ProviderManager
 import org.springframework.security.core.GrantedAuthority
 import org.springframework.security.oauth2.provider.AuthorizationRequest
@@ -48,4 +51,26 @@ class OsiamResourceOwnerPasswordTokenGranterSpec extends Specification {
         authenticationManager.authenticate(_) >> authentication
         auth.getUserAuthentication() instanceof InternalAuthentication
     }
+
+    def 'the user is authenticated within the configured deadline'() {
+        given:
+        ProviderManager authenticationManager = Mock()
+        OsiamResourceOwnerPasswordTokenGranter osiamGranter = new OsiamResourceOwnerPasswordTokenGranter(authenticationManager, null, null)
+        osiamGranter.deadline = 5000
+        AuthorizationRequest request = new DefaultAuthorizationRequest(new HashMap())
+        InternalAuthentication authentication = new InternalAuthentication('username', 'password', new ArrayList<GrantedAuthority>())
+        Deadline deadlineDuringAuthentication = null
+
+        when:
+        osiamGranter.getOAuth2Authentication(request)
+
+        then:
+        1 * authenticationManager.authenticate(_) >> {
+            deadlineDuringAuthentication = Deadline.current()
+            authentication
+        }
+        deadlineDuringAuthentication.remaining(TimeUnit.MILLISECONDS) > 0
+        deadlineDuringAuthentication.remaining(TimeUnit.MILLISECONDS) <= 5000
+        Deadline.current() == null
+    }
 }
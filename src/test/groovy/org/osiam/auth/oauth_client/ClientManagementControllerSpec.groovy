@@ -25,6 +25,7 @@ package org.osiam.auth.oauth_client
 
 import java.lang.reflect.Method
 
+import org.osiam.auth.token.RevocationLog
 import org.springframework.http.HttpStatus
 import org.springframework.web.bind.annotation.RequestMapping
 import org.springframework.web.bind.annotation.RequestMethod
@@ -36,7 +37,9 @@ import spock.lang.Specification
 class ClientManagementControllerSpec extends Specification {
 
     def clientDao = Mock(ClientDao)
-    def clientManagementController = new ClientManagementController(clientDao: clientDao)
+    def revocationLog = Mock(RevocationLog)
+    def clientManagementController = new ClientManagementController(clientDao: clientDao,
+            revocationLog: revocationLog)
 
     def "should contain a method to GET a client"() {
         given:
@@ -88,6 +91,15 @@ class ClientManagementControllerSpec extends Specification {
         1 * clientDao.delete("f47ac10b-58cc-4372-a567-0e02b2c3d479")
     }
 
+    def "the deletion of a client is appended to the revocation log"() {
+        when:
+        clientManagementController.delete("client")
+
+        then:
+        1 * clientDao.delete("client")
+        1 * revocationLog.append(RevocationLog.Type.CLIENT, "client")
+    }
+
     def "should contain a method to update a client"() {
         given:
         Method method = ClientManagementController.class.getDeclaredMethod("update", String, String)
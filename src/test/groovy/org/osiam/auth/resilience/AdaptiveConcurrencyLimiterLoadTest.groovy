@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.resilience
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+import spock.lang.Specification
+
+/**
+ * Runs the {@link AdaptiveConcurrencyLimiter} against a simulated remote system under overload for about a second of
+ * real time. Not part of the normal build, because it depends on the scheduling of the test machine, run it with
+ * {@code mvn test -P resilience-load-test}.
+ */
+class AdaptiveConcurrencyLimiterLoadTest extends Specification {
+
+    static final long BASE_LATENCY = TimeUnit.MILLISECONDS.toNanos(2)
+
+    def 'under overload the limit settles near the capacity of the remote system'() {
+        given: 'a remote system that handles 4 calls at a time, further calls queue up and raise the latency'
+        int capacity = 4
+        AtomicInteger concurrentCalls = new AtomicInteger()
+        Closure callRemoteSystem = {
+            int concurrent = concurrentCalls.incrementAndGet()
+            try {
+                long latency = (long) (BASE_LATENCY * Math.max(1.0d, concurrent / (double) capacity))
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(latency), (int) (latency % 1000000))
+            } finally {
+                concurrentCalls.decrementAndGet()
+            }
+        }
+
+        and: '16 clients that call it as fast as possible'
+        int clients = 16
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, clients, 1000)
+        AtomicBoolean running = new AtomicBoolean(true)
+        CountDownLatch finished = new CountDownLatch(clients)
+
+        when:
+        clients.times {
+            Thread.start {
+                while (running.get()) {
+                    if (limiter.tryAcquire()) {
+                        long start = System.nanoTime()
+                        callRemoteSystem()
+                        limiter.release(System.nanoTime() - start)
+                    }
+                }
+                finished.countDown()
+            }
+        }
+        Thread.sleep(500)
+        List<Integer> limits = []
+        100.times {
+            limits << limiter.limit
+            Thread.sleep(10)
+        }
+        running.set(false)
+        finished.await(5, TimeUnit.SECONDS)
+
+        then: 'the clients don\'t queue up at the remote system'
+        double averageLimit = limits.sum() / limits.size()
+        averageLimit >= capacity
+        averageLimit < 12
+        // a single sample may hit the maximum, when a scheduling hiccup of the test machine hides the queueing
+        limits.sort(false)[89] < clients
+    }
+}
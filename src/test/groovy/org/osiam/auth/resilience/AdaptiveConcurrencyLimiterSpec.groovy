@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.osiam.auth.resilience
+
+import java.util.concurrent.TimeUnit
+
+import spock.lang.Specification
+
+class AdaptiveConcurrencyLimiterSpec extends Specification {
+
+    static final long BASE_LATENCY = TimeUnit.MILLISECONDS.toNanos(2)
+
+    def 'calls are rejected when the limit is reached and no permit is released in time'() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10, 10)
+
+        expect:
+        limiter.tryAcquire()
+        limiter.tryAcquire()
+        !limiter.tryAcquire()
+        limiter.inFlight == 2
+        limiter.rejectedCalls == 1
+    }
+
+    def 'the limit grows while the latency stays at its minimum and the limit is used'() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 10, 10)
+
+        when:
+        4.times { limiter.tryAcquire() }
+        4.times { limiter.release(BASE_LATENCY) }
+
+        then:
+        limiter.limit > 4
+        limiter.inFlight == 0
+    }
+
+    def 'the limit does not grow while it is not used'() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 1, 10, 10)
+
+        when:
+        10.times {
+            limiter.tryAcquire()
+            limiter.release(BASE_LATENCY)
+        }
+
+        then:
+        limiter.limit == 4
+    }
+
+    def 'the limit shrinks when the latency rises'() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 10, 10)
+        limiter.tryAcquire()
+        limiter.release(BASE_LATENCY)
+
+        when:
+        limiter.tryAcquire()
+        limiter.release(BASE_LATENCY * 4)
+
+        then:
+        limiter.limit == 9
+    }
+
+    def 'the limit shrinks multiplicatively on dropped calls, but not below the minimum'() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 2, 10, 10)
+
+        when:
+        limiter.tryAcquire()
+        limiter.releaseDropped()
+
+        then:
+        limiter.limit == 9
+
+        when:
+        30.times {
+            limiter.tryAcquire()
+            limiter.releaseDropped()
+        }
+
+        then:
+        limiter.limit == 2
+    }
+
+    def 'a waiting caller gets the permit that is released while it waits'() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1, 5000)
+        limiter.tryAcquire()
+        boolean acquired = false
+        Thread waiting = Thread.start { acquired = limiter.tryAcquire() }
+
+        when:
+        Thread.sleep(50)
+        limiter.releaseIgnored()
+        waiting.join()
+
+        then:
+        acquired
+        limiter.inFlight == 1
+    }
+}
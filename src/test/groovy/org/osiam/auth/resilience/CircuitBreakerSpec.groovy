@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.resilience
+
+import java.util.concurrent.TimeUnit
+
+import org.osiam.auth.resilience.CircuitBreaker.State
+import org.springframework.context.ApplicationEventPublisher
+
+import spock.lang.Specification
+
+import com.google.common.base.Ticker
+
+class CircuitBreakerSpec extends Specification {
+
+    long now = 0
+    Ticker ticker = Mock()
+    ApplicationEventPublisher eventPublisher = Mock()
+    CircuitBreaker circuitBreaker = new CircuitBreaker('test', 3, 10, TimeUnit.SECONDS, eventPublisher, ticker)
+
+    def setup() {
+        ticker.read() >> { now }
+    }
+
+    def 'the circuit stays closed as long as the failures are below the threshold'() {
+        when:
+        2.times { circuitBreaker.recordFailure() }
+
+        then:
+        circuitBreaker.state == State.CLOSED
+        circuitBreaker.allowRequest()
+        0 * eventPublisher.publishEvent(_)
+    }
+
+    def 'the circuit opens after the configured number of consecutive failures and rejects calls'() {
+        when:
+        3.times { circuitBreaker.recordFailure() }
+
+        then:
+        circuitBreaker.state == State.OPEN
+        !circuitBreaker.allowRequest()
+        circuitBreaker.rejectedCalls == 1
+        1 * eventPublisher.publishEvent({ it.previousState == State.CLOSED && it.newState == State.OPEN })
+    }
+
+    def 'a success resets the count of consecutive failures'() {
+        when:
+        2.times { circuitBreaker.recordFailure() }
+        circuitBreaker.recordSuccess()
+        2.times { circuitBreaker.recordFailure() }
+
+        then:
+        circuitBreaker.state == State.CLOSED
+    }
+
+    def 'after the open duration exactly one trial call is permitted'() {
+        given:
+        3.times { circuitBreaker.recordFailure() }
+        now += TimeUnit.SECONDS.toNanos(10)
+
+        expect:
+        circuitBreaker.allowRequest()
+        circuitBreaker.state == State.HALF_OPEN
+        !circuitBreaker.allowRequest()
+    }
+
+    def 'a successful trial call closes the circuit'() {
+        given:
+        3.times { circuitBreaker.recordFailure() }
+        now += TimeUnit.SECONDS.toNanos(10)
+        circuitBreaker.allowRequest()
+
+        when:
+        circuitBreaker.recordSuccess()
+
+        then:
+        circuitBreaker.state == State.CLOSED
+        circuitBreaker.allowRequest()
+        1 * eventPublisher.publishEvent({ it.previousState == State.HALF_OPEN && it.newState == State.CLOSED })
+    }
+
+    def 'a failed trial call opens the circuit again'() {
+        given:
+        3.times { circuitBreaker.recordFailure() }
+        now += TimeUnit.SECONDS.toNanos(10)
+        circuitBreaker.allowRequest()
+
+        when:
+        circuitBreaker.recordFailure()
+
+        then:
+        circuitBreaker.state == State.OPEN
+        !circuitBreaker.allowRequest()
+    }
+
+    def 'an ignored trial call lets the next call through'() {
+        given:
+        3.times { circuitBreaker.recordFailure() }
+        now += TimeUnit.SECONDS.toNanos(10)
+        circuitBreaker.allowRequest()
+
+        when:
+        circuitBreaker.recordIgnored()
+
+        then:
+        circuitBreaker.state == State.HALF_OPEN
+        circuitBreaker.allowRequest()
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.resilience
+
+import java.util.concurrent.TimeUnit
+
+import org.osiam.auth.exception.DeadlineExceededException
+
+import spock.lang.Specification
+
+class DeadlineSpec extends Specification {
+
+    def cleanup() {
+        Deadline.setCurrent(null)
+    }
+
+    def 'without a deadline for the current request the maximum time is used and nothing fails'() {
+        when:
+        Deadline.checkCurrent()
+
+        then:
+        notThrown(DeadlineExceededException)
+        Deadline.remainingOrMax(1000, TimeUnit.MILLISECONDS) == 1000
+    }
+
+    def 'the remaining time is bounded by the deadline of the current request'() {
+        given:
+        Deadline.setCurrent(Deadline.after(100, TimeUnit.MILLISECONDS))
+
+        expect:
+        Deadline.remainingOrMax(1000, TimeUnit.MILLISECONDS) <= 100
+        Deadline.remainingOrMax(10, TimeUnit.MILLISECONDS) == 10
+    }
+
+    def 'a passed deadline fails the check'() {
+        given:
+        Deadline.setCurrent(Deadline.after(0, TimeUnit.MILLISECONDS))
+
+        when:
+        Deadline.checkCurrent()
+
+        then:
+        thrown(DeadlineExceededException)
+        Deadline.remainingOrMax(1000, TimeUnit.MILLISECONDS) == 0
+    }
+
+    def 'setting a deadline returns the previous one, so it can be restored'() {
+        given:
+        Deadline outer = Deadline.after(1, TimeUnit.SECONDS)
+        Deadline inner = Deadline.after(2, TimeUnit.SECONDS)
+        Deadline.setCurrent(outer)
+
+        when:
+        Deadline previous = Deadline.setCurrent(inner)
+
+        then:
+        previous == outer
+        Deadline.current() == inner
+
+        when:
+        Deadline.setCurrent(previous)
+
+        then:
+        Deadline.current() == outer
+    }
+
+    def 'the concurrency limiter does not wait beyond the deadline of the current request'() {
+        given:
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1, 5000)
+        limiter.tryAcquire()
+        Deadline.setCurrent(Deadline.after(50, TimeUnit.MILLISECONDS))
+
+        when:
+        long start = System.currentTimeMillis()
+        boolean acquired = limiter.tryAcquire()
+
+        then:
+        !acquired
+        System.currentTimeMillis() - start < 1000
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.resilience
+
+import java.util.concurrent.TimeUnit
+
+import spock.lang.Specification
+
+import com.google.common.base.Ticker
+
+class LoadBalancerSpec extends Specification {
+
+    long now = 0
+    Ticker ticker = Mock()
+    LoadBalancer loadBalancer = new LoadBalancer(['http://a', 'http://b', 'http://c'], 2, 30, TimeUnit.SECONDS, ticker)
+
+    def setup() {
+        ticker.read() >> { now }
+    }
+
+    def 'calls go to the endpoint with the fewest calls in progress'() {
+        given:
+        Endpoint a = endpoint('http://a')
+        Endpoint b = endpoint('http://b')
+        2.times { a.callStarted() }
+        b.callStarted()
+
+        expect:
+        loadBalancer.choose().url == 'http://c'
+        loadBalancer.choose().url == 'http://b'
+    }
+
+    def 'idle endpoints are chosen round robin'() {
+        when:
+        Set<String> chosen = (1..3).collect {
+            Endpoint endpoint = loadBalancer.choose()
+            loadBalancer.callSucceeded(endpoint)
+            endpoint.url
+        } as Set
+
+        then:
+        chosen == ['http://a', 'http://b', 'http://c'] as Set
+    }
+
+    def 'an endpoint is ejected after consecutive failures and comes back after the ejection duration'() {
+        given:
+        Endpoint a = endpoint('http://a')
+
+        when:
+        2.times {
+            a.callStarted()
+            loadBalancer.callFailed(a)
+        }
+
+        then:
+        loadBalancer.healthyEndpoints == 2
+        (1..10).every {
+            Endpoint endpoint = loadBalancer.choose()
+            loadBalancer.callSucceeded(endpoint)
+            endpoint != a
+        }
+
+        when:
+        now += TimeUnit.SECONDS.toNanos(30)
+
+        then:
+        loadBalancer.healthyEndpoints == 3
+    }
+
+    def 'a success resets the consecutive failures'() {
+        given:
+        Endpoint a = endpoint('http://a')
+
+        when:
+        a.callStarted()
+        loadBalancer.callFailed(a)
+        a.callStarted()
+        loadBalancer.callSucceeded(a)
+        a.callStarted()
+        loadBalancer.callFailed(a)
+
+        then:
+        loadBalancer.healthyEndpoints == 3
+    }
+
+    def 'if all endpoints are ejected, the one ejected the shortest is used anyway'() {
+        given:
+        loadBalancer.endpoints.each { Endpoint endpoint ->
+            2.times {
+                endpoint.callStarted()
+                loadBalancer.callFailed(endpoint)
+            }
+            now += 1
+        }
+
+        expect:
+        loadBalancer.healthyEndpoints == 0
+        loadBalancer.choose().url == 'http://a'
+    }
+
+    def 'no other endpoint is chosen for a hedged call if all others are ejected'() {
+        given:
+        ['http://b', 'http://c'].each { String url ->
+            2.times {
+                endpoint(url).callStarted()
+                loadBalancer.callFailed(endpoint(url))
+            }
+        }
+
+        expect:
+        loadBalancer.chooseOther(endpoint('http://a')) == null
+    }
+
+    def 'calls go to the endpoint with the lowest latency'() {
+        given:
+        report(endpoint('http://a'), 50)
+        report(endpoint('http://b'), 5)
+        report(endpoint('http://c'), 20)
+
+        expect:
+        (1..10).every {
+            Endpoint endpoint = loadBalancer.choose()
+            loadBalancer.callSucceeded(endpoint, TimeUnit.MILLISECONDS.toNanos(5))
+            endpoint.url == 'http://b'
+        }
+    }
+
+    def 'a fast endpoint gets calls until its calls in progress outweigh its latency advantage'() {
+        given:
+        report(endpoint('http://a'), 10)
+        report(endpoint('http://b'), 35)
+        report(endpoint('http://c'), 35)
+
+        when:
+        List<String> chosen = (1..3).collect { loadBalancer.choose().url }
+
+        then:
+        chosen == ['http://a', 'http://a', 'http://a']
+        loadBalancer.choose().url != 'http://a'
+    }
+
+    def 'a latency peak is taken over at once, but decays while the endpoint is not used'() {
+        given:
+        Endpoint a = endpoint('http://a')
+        report(a, 10)
+
+        when:
+        report(a, 100)
+
+        then:
+        loadBalancer.getLatency(a, TimeUnit.MILLISECONDS) == 100
+
+        when:
+        now += LoadBalancer.LATENCY_DECAY_NANOS
+
+        then:
+        loadBalancer.getLatency(a, TimeUnit.MILLISECONDS) < 40
+    }
+
+    def 'other endpoints than all the tried ones are chosen'() {
+        expect:
+        loadBalancer.chooseOther([endpoint('http://a'), endpoint('http://c')]).url == 'http://b'
+        loadBalancer.chooseOther(loadBalancer.endpoints) == null
+    }
+
+    private void report(Endpoint endpoint, long latencyMillis) {
+        endpoint.callStarted()
+        loadBalancer.callSucceeded(endpoint, TimeUnit.MILLISECONDS.toNanos(latencyMillis))
+    }
+
+    private Endpoint endpoint(String url) {
+        loadBalancer.endpoints.find { it.url == url }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token
+
+import org.osiam.auth.token.TokenValidationResult.Status
+import org.springframework.security.oauth2.common.exceptions.InvalidRequestException
+
+import com.fasterxml.jackson.databind.ObjectMapper
+
+import spock.lang.Specification
+
+class BatchTokenValidatorSpec extends Specification {
+
+    TokenValidationService tokenValidationService = Mock()
+    BatchTokenValidator batchTokenValidator = new BatchTokenValidator(tokenValidationService: tokenValidationService,
+            maxSize: 3)
+
+    def 'the tokens are read from a JSON array'() {
+        expect:
+        batchTokenValidator.readTokens(json(body)) == tokens
+
+        where:
+        body                    | tokens
+        '[]'                    | []
+        '["a"]'                 | ['a']
+        ' [ "a", "b" , "c" ] '  | ['a', 'b', 'c']
+    }
+
+    def 'a batch that is not a JSON array of strings is rejected'() {
+        when:
+        batchTokenValidator.readTokens(json(body))
+
+        then:
+        thrown(InvalidRequestException)
+
+        where:
+        body << ['', '{"tokens":["a"]}', '"a"', '["a", 1]', '["a", ["b"]]', '["a"', '["a" "b"]']
+    }
+
+    def 'a batch with too many tokens is rejected'() {
+        when:
+        batchTokenValidator.readTokens(json('["a", "b", "c", "d"]'))
+
+        then:
+        def e = thrown(InvalidRequestException)
+        e.message == 'At most 3 tokens can be validated at once'
+    }
+
+    def 'the result of every token is written in the order of the tokens'() {
+        given:
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        byte[] body = '{"access_token":"valid","client_id":"clientId"}'.getBytes('UTF-8')
+        tokenValidationService.check('valid') >> TokenValidationResult.valid(new ValidationResponse(body, null))
+        tokenValidationService.check('expired') >> TokenValidationResult.invalid(Status.EXPIRED, 'expired')
+        tokenValidationService.check('revoked') >> TokenValidationResult.invalid(Status.REVOKED, 'revoked')
+        tokenValidationService.check('unknown') >> TokenValidationResult.invalid(Status.UNKNOWN, 'unknown')
+
+        when:
+        batchTokenValidator.writeResults(['revoked', 'valid', 'unknown', 'expired'], out)
+
+        then:
+        new ObjectMapper().readValue(out.toByteArray(), List) == [
+                [status: 'revoked'],
+                [status: 'valid', access_token: [access_token: 'valid', client_id: 'clientId']],
+                [status: 'unknown'],
+                [status: 'expired']
+        ]
+    }
+
+    def 'an empty batch is written as empty array'() {
+        given:
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+
+        when:
+        batchTokenValidator.writeResults([], out)
+
+        then:
+        out.toString('UTF-8') == '[]'
+    }
+
+    private static InputStream json(String body) {
+        new ByteArrayInputStream(body.getBytes('UTF-8'))
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token
+
+import com.google.common.hash.Hashing
+
+import spock.lang.Specification
+
+class BloomFilterSpec extends Specification {
+
+    def 'the filter contains all hashes put into it'() {
+        given:
+        BloomFilter filter = new BloomFilter(1000, 0.01)
+
+        when:
+        (0..<1000).each { filter.put(Hashing.sha256().hashInt(it)) }
+
+        then:
+        (0..<1000).every { filter.mightContain(Hashing.sha256().hashInt(it)) }
+    }
+
+    def 'the false positive rate of a full filter is about the configured one'() {
+        given:
+        BloomFilter filter = new BloomFilter(10000, 0.01)
+        (0..<10000).each { filter.put(Hashing.sha256().hashInt(it)) }
+
+        when:
+        int falsePositives = (1..10000).count { filter.mightContain(Hashing.sha256().hashInt(-it)) }
+
+        then:
+        falsePositives < 200
+        filter.getExpectedFalsePositiveRate(10000) < 0.011
+    }
+
+    def 'the filter is sized for the capacity'() {
+        given:
+        BloomFilter filter = new BloomFilter(1000, 0.01)
+
+        expect:
+        filter.size == 9600
+        filter.hashFunctions == 7
+        filter.toByteArray().length == 1200
+    }
+}
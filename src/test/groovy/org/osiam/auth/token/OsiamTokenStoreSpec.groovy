@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token
+
+import java.util.concurrent.ExecutorService
+
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken
+import org.springframework.security.oauth2.common.OAuth2AccessToken
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest
+import org.springframework.security.oauth2.provider.OAuth2Authentication
+
+import com.google.common.util.concurrent.MoreExecutors
+
+import spock.lang.Specification
+
+class OsiamTokenStoreSpec extends Specification {
+
+    OsiamTokenStore tokenStore = new OsiamTokenStore(MoreExecutors.sameThreadExecutor())
+    OsiamTokenStore.Listener listener = Mock()
+    Closure duringScan
+
+    def setup() {
+        tokenStore.addListener(listener)
+    }
+
+    def 'the listeners are notified about removed access tokens'() {
+        given:
+        DefaultOAuth2AccessToken accessToken = storeToken('accessToken', 60000)
+
+        when:
+        tokenStore.removeAccessToken(accessToken)
+
+        then:
+        1 * listener.accessTokenRemoved('accessToken', true)
+        tokenStore.readAccessToken('accessToken') == null
+    }
+
+    def 'the listeners are notified about access tokens removed by a refresh'() {
+        given:
+        DefaultOAuth2AccessToken accessToken = storeToken('accessToken', 60000)
+        DefaultOAuth2RefreshToken refreshToken = new DefaultOAuth2RefreshToken('refreshToken')
+        accessToken.refreshToken = refreshToken
+        tokenStore.storeAccessToken(accessToken, authentication())
+        tokenStore.storeRefreshToken(refreshToken, authentication())
+
+        when:
+        tokenStore.removeAccessTokenUsingRefreshToken(refreshToken)
+
+        then:
+        1 * listener.accessTokenRemoved('accessToken', true)
+    }
+
+    def 'an access token removed before it expired is revoked'() {
+        given:
+        storeToken('accessToken', 60000)
+
+        when:
+        tokenStore.removeAccessToken('accessToken')
+
+        then:
+        tokenStore.isRevoked('accessToken')
+        !tokenStore.isRevoked('other')
+        tokenStore.revokedTokenCount == 1
+    }
+
+    def 'an access token removed after it expired is not revoked'() {
+        given:
+        storeToken('accessToken', -1000)
+
+        when:
+        tokenStore.removeAccessToken('accessToken')
+
+        then:
+        1 * listener.accessTokenRemoved('accessToken', false)
+        !tokenStore.isRevoked('accessToken')
+        tokenStore.revokedTokenCount == 0
+    }
+
+    def 'a revoked access token is forgotten after it would have expired'() {
+        given:
+        storeToken('accessToken', 50)
+        storeToken('otherToken', 60000)
+        tokenStore.removeAccessToken('accessToken')
+
+        when:
+        sleep(100)
+        tokenStore.@nextPrune.set(0)
+        tokenStore.removeAccessToken('otherToken')
+
+        then:
+        !tokenStore.isRevoked('accessToken')
+        tokenStore.isRevoked('otherToken')
+        tokenStore.revokedTokenCount == 1
+    }
+
+    def 'the hashes of the revoked tokens contain only tokens that have not expired yet'() {
+        given:
+        storeToken('accessToken', 50)
+        storeToken('otherToken', 60000)
+        tokenStore.removeAccessToken('accessToken')
+        tokenStore.removeAccessToken('otherToken')
+
+        when:
+        sleep(100)
+
+        then:
+        tokenStore.revokedTokenHashes == [OsiamTokenStore.hash('otherToken')] as Set
+    }
+
+    def 'lookups of tokens that were never issued are rejected'() {
+        given:
+        storeToken('accessToken', 60000)
+
+        expect:
+        tokenStore.readAccessToken('guessed') == null
+        tokenStore.readAuthentication('guessed') == null
+        tokenStore.readAccessToken('accessToken') != null
+        tokenStore.lookups == 3
+        tokenStore.rejectedLookups == 2
+        tokenStore.rejectionRate == 2d / 3
+    }
+
+    def 'tokens are looked up with a hash computed by the caller'() {
+        given:
+        storeToken('accessToken', 60000)
+        storeToken('revoked', 60000)
+        tokenStore.removeAccessToken('revoked')
+
+        expect:
+        tokenStore.readAccessToken('accessToken', OsiamTokenStore.hash('accessToken')) != null
+        tokenStore.readAuthentication('accessToken', OsiamTokenStore.hash('accessToken')) != null
+        tokenStore.readAccessToken('guessed', OsiamTokenStore.hash('guessed')) == null
+        tokenStore.isRevoked(OsiamTokenStore.hash('revoked'))
+        tokenStore.rejectedLookups == 1
+    }
+
+    def 'the known token filter is built anew when it is full'() {
+        given:
+        tokenStore.knownTokenMinCapacity = 2
+
+        when:
+        (1..3).each { storeToken("accessToken$it", 60000) }
+
+        then:
+        tokenStore.knownTokenCapacity == 6
+        (1..3).every { tokenStore.readAccessToken("accessToken$it") != null }
+        tokenStore.rejectedLookups == 0
+    }
+
+    def 'tokens are stored while the known token filter is built anew in the background'() {
+        given:
+        Runnable rebuild = null
+        ExecutorService rebuildExecutor = Mock()
+        rebuildExecutor.execute(_) >> { Runnable runnable -> rebuild = runnable }
+        tokenStore = new OsiamTokenStore(rebuildExecutor) {
+            @Override
+            Collection<OAuth2AccessToken> findTokensByClientId(String clientId) {
+                Collection<OAuth2AccessToken> tokens = new ArrayList<>(super.findTokensByClientId(clientId))
+                duringScan?.call()
+                tokens
+            }
+        }
+        tokenStore.knownTokenMinCapacity = 4
+        (1..3).each { storeToken("accessToken$it", 60000) }
+
+        when: 'the filter is full before the new one is built'
+        (4..6).each { storeToken("accessToken$it", 60000) }
+
+        then:
+        rebuild != null
+        tokenStore.knownTokenCapacity == 4
+        (1..6).every { tokenStore.readAccessToken("accessToken$it") != null }
+
+        when: 'a token is stored after the stored tokens were scanned'
+        duringScan = { storeToken('accessToken7', 60000) }
+        rebuild.run()
+
+        then: 'the new filter contains the tokens stored in the meantime'
+        tokenStore.knownTokenCapacity == 12
+        (1..7).every { tokenStore.readAccessToken("accessToken$it") != null }
+        tokenStore.rejectedLookups == 0
+    }
+
+    def 'the known token filter is built anew when most of its tokens were removed'() {
+        given:
+        tokenStore.knownTokenMinCapacity = 2
+        (1..10).each { storeToken("accessToken$it", 60000) }
+
+        when:
+        (2..10).each { tokenStore.removeAccessToken("accessToken$it") }
+
+        then: 'it was built anew with two of the tokens left'
+        tokenStore.knownTokenCapacity == 4
+        tokenStore.readAccessToken('accessToken1') != null
+    }
+
+    private DefaultOAuth2AccessToken storeToken(String token, long validityInMillis) {
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(token)
+        accessToken.expiration = new Date(System.currentTimeMillis() + validityInMillis)
+        tokenStore.storeAccessToken(accessToken, authentication())
+        accessToken
+    }
+
+    private static OAuth2Authentication authentication() {
+        new OAuth2Authentication(new DefaultAuthorizationRequest('clientId', ['GET']), null)
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.google.common.hash.HashCode
+import com.google.common.hash.Hashing
+
+import spock.lang.Specification
+
+/**
+ * Measures the size of the {@link RevocationFilter} as downloaded by resource servers and its false positive rate
+ * with many revoked tokens. Not part of the normal build, run it with {@code mvn test -P token-validation-load-test}.
+ * The size of the test is configured with system properties:
+ * <ul>
+ * <li>{@code revocation-filter.load-test.revocations}: number of revoked tokens (default 1000000)</li>
+ * <li>{@code revocation-filter.load-test.probes}: number of tokens that aren't revoked to look up (default 1000000)</li>
+ * </ul>
+ */
+class RevocationFilterLoadTest extends Specification {
+
+    static final int REVOCATIONS = Integer.getInteger('revocation-filter.load-test.revocations', 1000000)
+    static final int PROBES = Integer.getInteger('revocation-filter.load-test.probes', 1000000)
+
+    ObjectMapper objectMapper = new ObjectMapper()
+
+    def 'revocation filter with many revoked tokens'() {
+        given:
+        Set<HashCode> revokedTokens = new HashSet<>(REVOCATIONS * 2)
+        OsiamTokenStore tokenStore = Stub {
+            getRevokedTokenHashes() >> { revokedTokens }
+            getRevokedTokenCount() >> { revokedTokens.size() }
+        }
+        RevocationFilter revocationFilter = new RevocationFilter(tokenStore: tokenStore, falsePositiveRate: 0.01,
+                minCapacity: 1000, maxDelta: 10000)
+        revocationFilter.registerListener()
+
+        when:
+        long start = System.nanoTime()
+        for (int i = 0; i < REVOCATIONS; i++) {
+            HashCode hash = Hashing.sha256().hashInt(i)
+            revokedTokens.add(hash)
+            revocationFilter.add(hash)
+        }
+        long duration = System.nanoTime() - start
+
+        String version = revocationFilter.version
+        for (int i = REVOCATIONS; i < REVOCATIONS + 100; i++) {
+            HashCode hash = Hashing.sha256().hashInt(i)
+            revokedTokens.add(hash)
+            revocationFilter.add(hash)
+        }
+        byte[] delta = objectMapper.writeValueAsBytes(revocationFilter.read(version))
+        byte[] full = objectMapper.writeValueAsBytes(revocationFilter.read(null))
+
+        int falsePositives = 0
+        for (int i = 0; i < PROBES; i++) {
+            if (revocationFilter.mightContain(Hashing.sha256().hashInt(-i - 1))) {
+                falsePositives++
+            }
+        }
+
+        then:
+        (0..<REVOCATIONS).step(REVOCATIONS.intdiv(1000) ?: 1).every {
+            revocationFilter.mightContain(Hashing.sha256().hashInt(it))
+        }
+        println """
+            |Revocation filter load test
+            |  ${revocationFilter.count} revoked tokens, capacity ${revocationFilter.capacity}
+            |  added in:               ${String.format('%.1f', duration / 1e6)} ms
+            |  filter size:            ${revocationFilter.sizeInBytes} bytes, ${full.length} bytes as JSON
+            |  delta of 100 tokens:    ${delta.length} bytes as JSON
+            |  false positive rate:    ${String.format('%.4f', falsePositives / PROBES)} measured, ${String.format('%.4f', revocationFilter.expectedFalsePositiveRate)} expected
+            |""".stripMargin()
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+import com.google.common.hash.HashCode
+import com.google.common.io.BaseEncoding
+
+import spock.lang.Specification
+
+class RevocationFilterSpec extends Specification {
+
+    Set<HashCode> revokedTokens = [] as Set
+    OsiamTokenStore tokenStore = Mock {
+        getRevokedTokenHashes() >> { new HashSet<HashCode>(revokedTokens) }
+        getRevokedTokenCount() >> { revokedTokens.size() }
+    }
+    RevocationFilter revocationFilter = new RevocationFilter(tokenStore: tokenStore, falsePositiveRate: 0.01,
+            minCapacity: 10, maxDelta: 5)
+
+    def setup() {
+        revocationFilter.registerListener()
+    }
+
+    def 'revoked tokens are added to the filter'() {
+        given:
+        OsiamTokenStore.Listener listener = null
+        RevocationFilter filter = new RevocationFilter(tokenStore: Mock(OsiamTokenStore) {
+            getRevokedTokenHashes() >> ([] as Set)
+            addListener(_) >> { args -> listener = args[0] }
+        }, falsePositiveRate: 0.01, minCapacity: 10, maxDelta: 5)
+        filter.registerListener()
+
+        when:
+        listener.accessTokenRemoved('revoked', true)
+        listener.accessTokenRemoved('expired', false)
+
+        then:
+        filter.mightContain(OsiamTokenStore.hash('revoked'))
+        filter.count == 1
+    }
+
+    def 'the full filter contains the revoked tokens'() {
+        given:
+        revoke('token1')
+        revoke('token2')
+
+        when:
+        RevocationFilter.Update update = revocationFilter.read(null)
+
+        then:
+        update.full
+        update.hashes == null
+        update.size % 64 == 0
+        update.hashFunctions > 0
+        contains(update, OsiamTokenStore.hash('token1'))
+        contains(update, OsiamTokenStore.hash('token2'))
+        !contains(update, OsiamTokenStore.hash('token3'))
+    }
+
+    def 'a resource server with a recent version gets the tokens revoked since'() {
+        given:
+        revoke('token1')
+        String version = revocationFilter.read(null).version
+        revoke('token2')
+        revoke('token3')
+
+        when:
+        RevocationFilter.Update update = revocationFilter.read(version)
+
+        then:
+        !update.full
+        update.hashes == [OsiamTokenStore.hash('token2').toString(), OsiamTokenStore.hash('token3').toString()]
+        update.version == revocationFilter.version
+        update.version != version
+    }
+
+    def 'a resource server with the current version gets no tokens'() {
+        given:
+        revoke('token1')
+        String version = revocationFilter.read(null).version
+
+        when:
+        RevocationFilter.Update update = revocationFilter.read(version)
+
+        then:
+        !update.full
+        update.hashes.empty
+        update.version == version
+    }
+
+    def 'a resource server further behind than the retained tokens gets the full filter'() {
+        given:
+        String version = revocationFilter.read(null).version
+        (1..6).each { revoke("token$it") }
+
+        expect:
+        revocationFilter.read(version).full
+    }
+
+    def 'a version of another filter gets the full filter'() {
+        expect:
+        revocationFilter.read(version).full
+
+        where:
+        version << ['0000000000000000-1-0', 'invalid', '']
+    }
+
+    def 'a full filter is built anew with the tokens still revoked and a new version'() {
+        given:
+        String version = revocationFilter.read(null).version
+        (1..9).each { revoke("token$it") }
+        revokedTokens.remove(OsiamTokenStore.hash('token1'))
+
+        when:
+        revoke('token10')
+        revoke('token11')
+
+        then:
+        revocationFilter.read(version).full
+        revocationFilter.capacity == 20
+        revocationFilter.count == 10
+        revocationFilter.mightContain(OsiamTokenStore.hash('token11'))
+        revocationFilter.version.startsWith(version.substring(0, version.indexOf('-')))
+    }
+
+    def 'the filter is built anew when most of its tokens have expired'() {
+        given:
+        (1..20).each { revoke("token$it") }
+        revokedTokens.clear()
+        revoke('token21')
+
+        when:
+        revocationFilter.read(null)
+
+        then:
+        revocationFilter.capacity == 10
+        revocationFilter.count == 1
+    }
+
+    def 'the expected false positive rate is about the configured one when the filter is full'() {
+        given:
+        (1..10).each { revoke("token$it") }
+
+        expect:
+        revocationFilter.expectedFalsePositiveRate < 0.02
+        revocationFilter.sizeInBytes == revocationFilter.read(null).size / 8
+    }
+
+    private void revoke(String token) {
+        HashCode hash = OsiamTokenStore.hash(token)
+        revokedTokens.add(hash)
+        revocationFilter.add(hash)
+    }
+
+    /**
+     * Looks up the token in the downloaded filter like a resource server would.
+     */
+    private static boolean contains(RevocationFilter.Update update, HashCode hash) {
+        byte[] bits = BaseEncoding.base64().decode(update.bits)
+        ByteBuffer hashBytes = ByteBuffer.wrap(hash.asBytes()).order(ByteOrder.BIG_ENDIAN)
+        long hash1 = hashBytes.getLong(0)
+        long hash2 = hashBytes.getLong(8)
+        (0..<update.hashFunctions).every { int i ->
+            int index = (int) (((hash1 + i * hash2) & Long.MAX_VALUE) % update.size)
+            (bits[index.intdiv(8)] & (1 << (index % 8))) != 0
+        }
+    }
+}
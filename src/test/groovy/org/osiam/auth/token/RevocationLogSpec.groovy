@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token
+
+import org.osiam.auth.token.RevocationLog.Type
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest
+import org.springframework.security.oauth2.provider.OAuth2Authentication
+
+import spock.lang.Specification
+
+class RevocationLogSpec extends Specification {
+
+    OsiamTokenStore tokenStore = new OsiamTokenStore()
+    RevocationLog revocationLog = new RevocationLog(tokenStore: tokenStore, size: 5)
+
+    def setup() {
+        revocationLog.registerListener()
+    }
+
+    def 'the events after a cursor are read in order'() {
+        given:
+        String cursor = revocationLog.read(null, 10).cursor
+        revocationLog.append(Type.TOKEN, 'hash')
+        revocationLog.append(Type.USER, 'userId')
+        revocationLog.append(Type.CLIENT, 'clientId')
+
+        when:
+        RevocationLog.Events events = revocationLog.read(cursor, 10)
+
+        then:
+        !events.reset
+        events.events*.type == ['token', 'user', 'client']
+        events.events*.value == ['hash', 'userId', 'clientId']
+        revocationLog.read(events.cursor, 10).events.empty
+    }
+
+    def 'the events are read in pages of the given size'() {
+        given:
+        String cursor = revocationLog.read(null, 10).cursor
+        4.times { revocationLog.append(Type.TOKEN, "hash${it}") }
+
+        when:
+        RevocationLog.Events first = revocationLog.read(cursor, 3)
+        RevocationLog.Events second = revocationLog.read(first.cursor, 3)
+
+        then:
+        first.events*.value == ['hash0', 'hash1', 'hash2']
+        second.events*.value == ['hash3']
+        !second.reset
+    }
+
+    def 'a consumer that missed events is told to reset'() {
+        given:
+        String cursor = revocationLog.read(null, 10).cursor
+        6.times { revocationLog.append(Type.TOKEN, "hash${it}") }
+
+        when:
+        RevocationLog.Events events = revocationLog.read(cursor, 10)
+
+        then:
+        events.reset
+        events.events.empty
+        revocationLog.read(events.cursor, 10).events.empty
+    }
+
+    def 'a consumer whose cursor was read right before the oldest event is not reset'() {
+        given:
+        5.times { revocationLog.append(Type.TOKEN, "old${it}") }
+        String cursor = revocationLog.read(null, 10).cursor
+        5.times { revocationLog.append(Type.TOKEN, "hash${it}") }
+
+        when:
+        RevocationLog.Events events = revocationLog.read(cursor, 10)
+
+        then:
+        !events.reset
+        events.events*.value == (0..4).collect { "hash${it}".toString() }
+    }
+
+    def 'a cursor of another log or beyond the end of the log is reset'() {
+        given:
+        RevocationLog other = new RevocationLog(tokenStore: tokenStore, size: 5)
+        String cursor = other.read(null, 10).cursor
+
+        expect:
+        revocationLog.read(cursor, 10).reset
+        revocationLog.read('garbage', 10).reset
+        revocationLog.read(revocationLog.read(null, 10).cursor.replaceFirst(/-\d+$/, '-99'), 10).reset
+    }
+
+    def 'a waiter is called once when the next event is appended'() {
+        given:
+        String cursor = revocationLog.read(null, 10).cursor
+        int calls = 0
+        Runnable waiter = { calls++ }
+
+        when:
+        boolean registered = revocationLog.awaitEvents(cursor, waiter)
+        revocationLog.append(Type.TOKEN, 'hash1')
+        revocationLog.append(Type.TOKEN, 'hash2')
+
+        then:
+        registered
+        calls == 1
+        revocationLog.waitingConsumers == 0
+    }
+
+    def 'a waiter is not registered if there are events after the cursor already'() {
+        given:
+        String cursor = revocationLog.read(null, 10).cursor
+        revocationLog.append(Type.TOKEN, 'hash')
+
+        expect:
+        !revocationLog.awaitEvents(cursor, {} as Runnable)
+        !revocationLog.awaitEvents(null, {} as Runnable)
+        revocationLog.waitingConsumers == 0
+    }
+
+    def 'revoked tokens are logged with the hash of the token, expired ones are not'() {
+        given:
+        String cursor = revocationLog.read(null, 10).cursor
+        storeToken('revoked', 60000)
+        storeToken('expired', -1000)
+
+        when:
+        tokenStore.removeAccessToken('revoked')
+        tokenStore.removeAccessToken('expired')
+
+        then:
+        revocationLog.read(cursor, 10).events*.value == [OsiamTokenStore.hash('revoked').toString()]
+    }
+
+    private void storeToken(String token, long validityInMillis) {
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(token)
+        accessToken.expiration = new Date(System.currentTimeMillis() + validityInMillis)
+        tokenStore.storeAccessToken(accessToken,
+                new OAuth2Authentication(new DefaultAuthorizationRequest('clientId', ['GET']), null))
+    }
+}
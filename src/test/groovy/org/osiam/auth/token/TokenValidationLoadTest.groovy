@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token
+
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+
+import javax.servlet.DispatcherType
+import javax.servlet.Filter
+import javax.servlet.FilterChain
+import javax.servlet.Servlet
+import javax.servlet.ServletConfig
+import javax.servlet.ServletContext
+import javax.servlet.ServletOutputStream
+import javax.servlet.ServletRequest
+import javax.servlet.ServletResponse
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import org.osiam.auth.login.ResourceServerConnector
+import org.osiam.security.controller.TokenController
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory
+import org.springframework.context.annotation.Configuration
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest
+import org.springframework.security.oauth2.provider.OAuth2Authentication
+import org.springframework.security.oauth2.provider.authentication.OAuth2AuthenticationManager
+import org.springframework.security.oauth2.provider.authentication.OAuth2AuthenticationProcessingFilter
+import org.springframework.security.oauth2.provider.error.OAuth2AuthenticationEntryPoint
+import org.springframework.security.oauth2.provider.token.DefaultTokenServices
+import org.springframework.security.web.DefaultSecurityFilterChain
+import org.springframework.security.web.FilterChainProxy
+import org.springframework.security.web.access.ExceptionTranslationFilter
+import org.springframework.security.web.context.HttpSessionSecurityContextRepository
+import org.springframework.security.web.context.SecurityContextPersistenceFilter
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher
+import org.springframework.security.web.util.matcher.AnyRequestMatcher
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext
+import org.springframework.web.filter.CharacterEncodingFilter
+import org.springframework.web.servlet.DispatcherServlet
+import org.springframework.web.servlet.config.annotation.EnableWebMvc
+
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+/**
+ * Compares the throughput of the token validation through the dispatcher servlet and the security filter chain with
+ * the throughput of the {@link TokenValidationServlet}. Both run in process with stubs of the servlet API, so the
+ * numbers show the overhead of the request processing without the network and the servlet container. Not part of the
+ * normal build, run it with {@code mvn test -P token-validation-load-test}. The size of the test is configured with
+ * system properties:
+ * <ul>
+ * <li>{@code token-validation.load-test.tokens}: number of tokens in the token store (default 10000)</li>
+ * <li>{@code token-validation.load-test.requests}: number of validations per run (default 200000)</li>
+ * <li>{@code token-validation.load-test.concurrency}: number of concurrent validations (default 8)</li>
+ * </ul>
+ */
+class TokenValidationLoadTest extends Specification {
+
+    static final int TOKENS = Integer.getInteger('token-validation.load-test.tokens', 10000)
+    static final int REQUESTS = Integer.getInteger('token-validation.load-test.requests', 200000)
+    static final int CONCURRENCY = Integer.getInteger('token-validation.load-test.concurrency', 8)
+
+    @Shared
+    DefaultTokenServices tokenServices
+
+    @Shared
+    List<String> tokens
+
+    @Shared
+    AnnotationConfigWebApplicationContext context
+
+    def setupSpec() {
+        OsiamTokenStore tokenStore = new OsiamTokenStore()
+        tokenServices = new DefaultTokenServices(tokenStore: tokenStore, supportRefreshToken: false)
+        tokens = (0..<TOKENS).collect { int user ->
+            DefaultAuthorizationRequest authorizationRequest = new DefaultAuthorizationRequest('client', ['GET'])
+            authorizationRequest.approved = true
+            tokenServices.createAccessToken(new OAuth2Authentication(authorizationRequest,
+                    new UsernamePasswordAuthenticationToken("user${user}", null, []))).value
+        }
+
+        context = new AnnotationConfigWebApplicationContext()
+        context.register(WebConfig, TokenController)
+        context.addBeanFactoryPostProcessor(new PropertySourcesPlaceholderConfigurer())
+        context.addBeanFactoryPostProcessor(new BeanFactoryPostProcessor() {
+            @Override
+            void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
+                beanFactory.registerSingleton('tokenServices', tokenServices)
+                beanFactory.registerSingleton('resourceServerConnector', new ResourceServerConnector())
+                // without a cache, so the MVC chain is compared with the direct servlet without a cache
+                TokenValidationService tokenValidationService = new TokenValidationService(tokenStore: tokenStore,
+                        cacheSize: 0, maxAgeInSeconds: 60)
+                tokenValidationService.createCache()
+                beanFactory.registerSingleton('tokenValidationService', tokenValidationService)
+                // only needed by the other endpoints of the controller
+                beanFactory.registerSingleton('batchTokenValidator', new BatchTokenValidator())
+                beanFactory.registerSingleton('revocationLog', new RevocationLog())
+                beanFactory.registerSingleton('revocationFilter', new RevocationFilter())
+            }
+        })
+    }
+
+    def cleanupSpec() {
+        context?.close()
+    }
+
+    @Unroll
+    def 'token validation through #name with cache size #cacheSize'() {
+        given:
+        Closure<Void> handle = name == 'MVC' ? createMvcChain() : createDirectServlet(cacheSize)
+        // warm up, so both variants are measured with compiled code
+        validate(handle, REQUESTS / 4 as int)
+
+        when:
+        List<Long> latencies = validate(handle, REQUESTS)
+        long duration = latencies.remove(latencies.size() - 1)
+
+        then:
+        latencies.size() == REQUESTS
+        report("${name}, cache size ${cacheSize}", latencies, duration)
+
+        where:
+        name             | cacheSize
+        'MVC'            | 0
+        'direct servlet' | 0
+        'direct servlet' | TOKENS
+    }
+
+    /**
+     * The character encoding filter, the security filters that take part in the validation of a token and the
+     * dispatcher servlet, like they are configured in the web.xml and the rest-security.xml.
+     */
+    private Closure<Void> createMvcChain() {
+        ServletContext servletContext = servletContext()
+        DispatcherServlet dispatcherServlet = new DispatcherServlet(context)
+        dispatcherServlet.init(servletConfig(servletContext))
+
+        OAuth2AuthenticationEntryPoint entryPoint = new OAuth2AuthenticationEntryPoint()
+        OAuth2AuthenticationProcessingFilter resourceServerFilter = new OAuth2AuthenticationProcessingFilter()
+        resourceServerFilter.authenticationManager = new OAuth2AuthenticationManager(tokenServices: tokenServices,
+                resourceId: TokenValidationService.RESOURCE_ID)
+        resourceServerFilter.authenticationEntryPoint = entryPoint
+        HttpSessionSecurityContextRepository contextRepository = new HttpSessionSecurityContextRepository()
+        contextRepository.allowSessionCreation = false
+        FilterChainProxy securityFilterChain = new FilterChainProxy(new DefaultSecurityFilterChain(
+                new AntPathRequestMatcher('/token/validation'),
+                new SecurityContextPersistenceFilter(contextRepository),
+                resourceServerFilter,
+                new ExceptionTranslationFilter(entryPoint)))
+        securityFilterChain.afterPropertiesSet()
+        CharacterEncodingFilter encodingFilter = new CharacterEncodingFilter(encoding: 'UTF-8', forceEncoding: true)
+
+        List<Filter> filters = [encodingFilter, securityFilterChain]
+        return { HttpServletRequest request, HttpServletResponse response ->
+            new ServletFilterChain(filters, dispatcherServlet).doFilter(request, response)
+        }
+    }
+
+    /**
+     * The character encoding filter, the empty security filter chain of /token/validation/direct and the token
+     * validation servlet, like they are configured in the web.xml and the rest-security.xml.
+     */
+    private Closure<Void> createDirectServlet(int cacheSize) {
+        TokenValidationService tokenValidationService = new TokenValidationService(
+                tokenStore: tokenServices.@tokenStore, cacheSize: cacheSize, maxAgeInSeconds: 60)
+        tokenValidationService.createCache()
+        TokenValidationServlet servlet = new TokenValidationServlet()
+        servlet.init(tokenValidationService, new OAuth2AuthenticationEntryPoint())
+        FilterChainProxy securityFilterChain = new FilterChainProxy(new DefaultSecurityFilterChain(
+                AnyRequestMatcher.INSTANCE))
+        securityFilterChain.afterPropertiesSet()
+        CharacterEncodingFilter encodingFilter = new CharacterEncodingFilter(encoding: 'UTF-8', forceEncoding: true)
+
+        List<Filter> filters = [encodingFilter, securityFilterChain]
+        return { HttpServletRequest request, HttpServletResponse response ->
+            new ServletFilterChain(filters, servlet).doFilter(request, response)
+        }
+    }
+
+    /**
+     * Validates the tokens round robin.
+     *
+     * @return the latency of every validation in nanoseconds, followed by the duration of all validations
+     */
+    private List<Long> validate(Closure<Void> handle, int requests) {
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY)
+        AtomicInteger nextRequest = new AtomicInteger()
+        List<Future<List<Long>>> workers = []
+        long start = System.nanoTime()
+        CONCURRENCY.times {
+            workers << executor.submit({
+                List<Long> latencies = []
+                int index
+                while ((index = nextRequest.getAndIncrement()) < requests) {
+                    Map<String, Object> responseState = [:]
+                    long requestStart = System.nanoTime()
+                    handle(request(tokens[index % TOKENS]), response(responseState))
+                    latencies << System.nanoTime() - requestStart
+                    assert responseState.status == null && responseState.body.size() > 0
+                }
+                latencies
+            } as Callable<List<Long>>)
+        }
+        List<Long> latencies = workers.collectMany { it.get() }
+        long duration = System.nanoTime() - start
+        executor.shutdown()
+        latencies.sort()
+        latencies << duration
+    }
+
+    private boolean report(String name, List<Long> latencies, long duration) {
+        double seconds = duration / 1e9
+        println """
+            |Token validation load test: ${name}
+            |  ${TOKENS} tokens, ${REQUESTS} validations, ${CONCURRENCY} concurrent
+            |  throughput:          ${String.format('%.1f', REQUESTS / seconds)} validations/s
+            |  latency p50/p95/p99: ${micros(latencies, 0.5)} / ${micros(latencies, 0.95)} / ${micros(latencies, 0.99)} us
+            |""".stripMargin()
+        true
+    }
+
+    private static String micros(List<Long> sortedLatencies, double percentile) {
+        long latency = sortedLatencies[Math.min(sortedLatencies.size() - 1, (int) (sortedLatencies.size() * percentile))]
+        String.format('%.1f', latency / 1e3)
+    }
+
+    private static HttpServletRequest request(String token) {
+        Map<String, Object> attributes = [:]
+        stub(HttpServletRequest, [
+                getMethod           : { 'POST' },
+                getScheme           : { 'http' },
+                getServerName       : { 'localhost' },
+                getServerPort       : { 8080 },
+                getContextPath      : { '/osiam-auth-server' },
+                getServletPath      : { '/token/validation' },
+                getRequestURI       : { '/osiam-auth-server/token/validation' },
+                getRequestURL       : { new StringBuffer('http://localhost:8080/osiam-auth-server/token/validation') },
+                getDispatcherType   : { DispatcherType.REQUEST },
+                getHeader           : { String name -> name == 'Authorization' ? "Bearer ${token}".toString() : null },
+                getHeaders          : { String name ->
+                    Collections.enumeration(name == 'Authorization' ? ["Bearer ${token}".toString()] :
+                            name == 'Accept' ? ['application/json'] : [])
+                },
+                getHeaderNames      : { Collections.enumeration(['Authorization', 'Accept']) },
+                getParameterMap     : { [:] },
+                getParameterNames   : { Collections.enumeration([]) },
+                getLocale           : { Locale.ENGLISH },
+                getLocales          : { Collections.enumeration([Locale.ENGLISH]) },
+                getAttribute        : { String name -> attributes[name] },
+                getAttributeNames   : { Collections.enumeration(attributes.keySet()) },
+                setAttribute        : { String name, Object value -> attributes[name] = value },
+                removeAttribute     : { String name -> attributes.remove(name) },
+                setCharacterEncoding: { String encoding -> attributes.characterEncoding = encoding },
+                getCharacterEncoding: { attributes.characterEncoding }
+        ])
+    }
+
+    private static HttpServletResponse response(Map<String, Object> state) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream()
+        state.body = body
+        ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            void write(int b) {
+                body.write(b)
+            }
+
+            @Override
+            void write(byte[] b, int off, int len) {
+                body.write(b, off, len)
+            }
+        }
+        stub(HttpServletResponse, [
+                getOutputStream     : { outputStream },
+                getWriter           : { new PrintWriter(new OutputStreamWriter(outputStream, 'UTF-8'), true) },
+                setStatus           : { int status -> state.status = status },
+                sendError           : { int status -> state.status = status },
+                setContentType      : { String contentType -> state.contentType = contentType },
+                getContentType      : { state.contentType },
+                setCharacterEncoding: { String encoding -> state.characterEncoding = encoding },
+                getCharacterEncoding: { state.characterEncoding ?: 'UTF-8' }
+        ])
+    }
+
+    private static ServletContext servletContext() {
+        Map<String, Object> attributes = [:]
+        stub(ServletContext, [
+                getContextPath       : { '/osiam-auth-server' },
+                getMajorVersion      : { 3 },
+                getMinorVersion      : { 0 },
+                getServerInfo        : { 'token validation load test' },
+                getInitParameterNames: { Collections.enumeration([]) },
+                getAttribute         : { String name -> attributes[name] },
+                getAttributeNames    : { Collections.enumeration(attributes.keySet()) },
+                setAttribute         : { String name, Object value -> attributes[name] = value },
+                removeAttribute      : { String name -> attributes.remove(name) }
+        ])
+    }
+
+    private static ServletConfig servletConfig(ServletContext servletContext) {
+        stub(ServletConfig, [
+                getServletName       : { 'spring' },
+                getServletContext    : { servletContext },
+                getInitParameterNames: { Collections.enumeration([]) }
+        ])
+    }
+
+    /**
+     * Implements the interface with the given closures. Other methods do nothing and return null, false or 0.
+     */
+    private static <T> T stub(Class<T> type, Map<String, Closure> methods) {
+        (T) Proxy.newProxyInstance(TokenValidationLoadTest.classLoader, [type] as Class[], new InvocationHandler() {
+            @Override
+            Object invoke(Object proxy, Method method, Object[] args) {
+                Closure implementation = methods[method.name]
+                if (implementation != null) {
+                    return args ? implementation.call(*args) : implementation.call()
+                }
+                if (method.name == 'hashCode') {
+                    return System.identityHashCode(proxy)
+                }
+                if (method.name == 'equals') {
+                    return proxy.is(args[0])
+                }
+                if (method.returnType == boolean) {
+                    return false
+                }
+                if (method.returnType == int) {
+                    return Integer.valueOf(0)
+                }
+                if (method.returnType == long) {
+                    return Long.valueOf(0)
+                }
+                null
+            }
+        })
+    }
+
+    /**
+     * Calls the filters one after another and then the servlet.
+     */
+    static class ServletFilterChain implements FilterChain {
+
+        final List<Filter> filters
+        final Servlet servlet
+        int position
+
+        ServletFilterChain(List<Filter> filters, Servlet servlet) {
+            this.filters = filters
+            this.servlet = servlet
+        }
+
+        @Override
+        void doFilter(ServletRequest request, ServletResponse response) {
+            if (position < filters.size()) {
+                filters[position++].doFilter(request, response, this)
+            } else {
+                servlet.service(request, response)
+            }
+        }
+    }
+
+    @Configuration
+    @EnableWebMvc
+    static class WebConfig {
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token
+
+import org.osiam.client.oauth.AccessToken
+import org.osiam.client.oauth.Scope
+import org.osiam.resources.scim.User
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken
+import org.springframework.security.oauth2.client.resource.OAuth2AccessDeniedException
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken
+import org.springframework.security.oauth2.common.OAuth2AccessToken
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest
+import org.springframework.security.oauth2.provider.OAuth2Authentication
+
+import com.fasterxml.jackson.databind.ObjectMapper
+
+import spock.lang.Specification
+
+class TokenValidationServiceSpec extends Specification {
+
+    OsiamTokenStore tokenStore = Mock()
+    TokenValidationService tokenValidationService = new TokenValidationService(tokenStore: tokenStore)
+
+    def 'a valid token is described with its client, user, expiration and scopes'() {
+        given:
+        Date expiration = new Date(System.currentTimeMillis() + 60000)
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken('accessToken')
+        accessToken.expiration = expiration
+        User user = new User.Builder('username').setId('userId').build()
+        OAuth2Authentication authentication = new OAuth2Authentication(
+                new DefaultAuthorizationRequest('clientId', ['GET', 'POST']),
+                new UsernamePasswordAuthenticationToken(user, null, []))
+
+        when:
+        AccessToken result = describedToken(tokenValidationService.getValidationResponse('accessToken'))
+
+        then:
+        1 * tokenStore.readAccessToken('accessToken', OsiamTokenStore.hash('accessToken')) >> accessToken
+        1 * tokenStore.readAuthentication('accessToken', OsiamTokenStore.hash('accessToken')) >> authentication
+        0 * tokenStore._
+        result.token == 'accessToken'
+        result.clientId == 'clientId'
+        result.userId == 'userId'
+        result.userName == 'username'
+        result.expiresAt == expiration
+        result.scopes as Set == [new Scope('GET'), new Scope('POST')] as Set
+    }
+
+    def 'an unknown token is rejected'() {
+        when:
+        tokenValidationService.getValidationResponse('unknown')
+
+        then:
+        1 * tokenStore.readAccessToken('unknown', _) >> null
+        def e = thrown(InvalidTokenException)
+        e.message == 'Invalid access token: unknown'
+    }
+
+    def 'a revoked token is rejected like an unknown one, but checked as revoked'() {
+        given:
+        tokenStore.readAccessToken('revoked', _) >> null
+        tokenStore.isRevoked(OsiamTokenStore.hash('revoked')) >> true
+
+        when:
+        TokenValidationResult result = tokenValidationService.check('revoked')
+        tokenValidationService.getValidationResponse('revoked')
+
+        then:
+        result.status == TokenValidationResult.Status.REVOKED
+        result.response == null
+        def e = thrown(InvalidTokenException)
+        e.message == 'Invalid access token: revoked'
+    }
+
+    def 'an expired token is rejected and removed from the token store'() {
+        given:
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken('accessToken')
+        accessToken.expiration = new Date(System.currentTimeMillis() - 1000)
+        tokenStore.readAccessToken('accessToken', _) >> accessToken
+
+        when:
+        tokenValidationService.getValidationResponse('accessToken')
+
+        then:
+        1 * tokenStore.removeAccessToken(accessToken)
+        0 * tokenStore.readAuthentication(*_)
+        def e = thrown(InvalidTokenException)
+        e.message == 'Access token expired: accessToken'
+    }
+
+    def 'a token without authentication is rejected'() {
+        given:
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken('accessToken')
+        tokenStore.readAccessToken('accessToken', _) >> accessToken
+        tokenStore.readAuthentication('accessToken', _) >> null
+
+        when:
+        tokenValidationService.getValidationResponse('accessToken')
+
+        then:
+        def e = thrown(InvalidTokenException)
+        e.message == 'Invalid token: accessToken'
+    }
+
+    def 'a token for another resource is rejected'() {
+        given:
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken('accessToken')
+        DefaultAuthorizationRequest authorizationRequest = new DefaultAuthorizationRequest('clientId', ['GET'])
+        authorizationRequest.resourceIds = ['other']
+        tokenStore.readAccessToken('accessToken', _) >> accessToken
+        tokenStore.readAuthentication('accessToken', _) >> new OAuth2Authentication(authorizationRequest, null)
+
+        when:
+        tokenValidationService.getValidationResponse('accessToken')
+
+        then:
+        thrown(OAuth2AccessDeniedException)
+    }
+
+    def 'a token for the auth server is accepted'() {
+        given:
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken('accessToken')
+        DefaultAuthorizationRequest authorizationRequest = new DefaultAuthorizationRequest('clientId', ['GET'])
+        authorizationRequest.resourceIds = [TokenValidationService.RESOURCE_ID]
+        tokenStore.readAccessToken('accessToken', _) >> accessToken
+        tokenStore.readAuthentication('accessToken', _) >> new OAuth2Authentication(authorizationRequest, null)
+
+        expect:
+        describedToken(tokenValidationService.getValidationResponse('accessToken')).clientId == 'clientId'
+    }
+
+    def 'the validation response contains the JSON of the access token'() {
+        given:
+        OsiamTokenStore store = new OsiamTokenStore()
+        TokenValidationService service = cachingService(store)
+        storeToken(store, 'accessToken', 60)
+
+        when:
+        ValidationResponse response = service.getValidationResponse('accessToken')
+
+        then:
+        describedToken(response).token == 'accessToken'
+        describedToken(response).clientId == 'clientId'
+        response.ETag ==~ /"[0-9a-f]{64}"/
+    }
+
+    def 'repeated validations of a token are answered from the cache'() {
+        given:
+        OsiamTokenStore store = Spy(OsiamTokenStore)
+        TokenValidationService service = cachingService(store)
+        storeToken(store, 'accessToken', 60)
+
+        when:
+        ValidationResponse first = service.getValidationResponse('accessToken')
+        ValidationResponse second = service.getValidationResponse('accessToken')
+
+        then:
+        second.is(first)
+        1 * store.readAuthentication('accessToken', _)
+    }
+
+    def 'an authentication that was already loaded is used without reading the token store again'() {
+        given:
+        OsiamTokenStore store = Spy(OsiamTokenStore)
+        TokenValidationService service = cachingService(store)
+        storeToken(store, 'accessToken', 60)
+        OAuth2Authentication authentication = new OAuth2Authentication(
+                new DefaultAuthorizationRequest('clientId', ['GET']), null)
+
+        when:
+        ValidationResponse response = service.getValidationResponse('accessToken', authentication)
+
+        then:
+        1 * store.readAccessToken('accessToken', _)
+        0 * store.readAuthentication(*_)
+        describedToken(response).clientId == 'clientId'
+    }
+
+    def 'a revoked token is removed from the cache'() {
+        given:
+        OsiamTokenStore store = new OsiamTokenStore()
+        TokenValidationService service = cachingService(store)
+        storeToken(store, 'accessToken', 60)
+        service.getValidationResponse('accessToken')
+
+        when:
+        store.removeAccessToken('accessToken')
+        service.getValidationResponse('accessToken')
+
+        then:
+        def e = thrown(InvalidTokenException)
+        e.message == 'Invalid access token: accessToken'
+    }
+
+    def 'a cached response of an expired token is not used'() {
+        given:
+        OsiamTokenStore store = new OsiamTokenStore()
+        TokenValidationService service = cachingService(store)
+        DefaultOAuth2AccessToken accessToken = storeToken(store, 'accessToken', 60)
+        accessToken.expiration = new Date(System.currentTimeMillis() + 50)
+        service.getValidationResponse('accessToken')
+        sleep(100)
+
+        when:
+        service.getValidationResponse('accessToken')
+
+        then:
+        def e = thrown(InvalidTokenException)
+        e.message == 'Access token expired: accessToken'
+        store.readAccessToken('accessToken') == null
+    }
+
+    def 'a token revoked while its response is created is not cached'() {
+        given:
+        OsiamTokenStore store = Spy(OsiamTokenStore)
+        TokenValidationService service = cachingService(store)
+        storeToken(store, 'accessToken', 60)
+        store.readAuthentication('accessToken', _) >> {
+            OAuth2Authentication authentication = callRealMethod()
+            store.removeAccessToken('accessToken')
+            authentication
+        }
+
+        when:
+        service.getValidationResponse('accessToken')
+
+        then:
+        service.@validationResponses.size() == 0
+    }
+
+    def 'the cache can be disabled'() {
+        given:
+        OsiamTokenStore store = Spy(OsiamTokenStore)
+        TokenValidationService service = new TokenValidationService(tokenStore: store, cacheSize: 0,
+                maxAgeInSeconds: 60)
+        service.createCache()
+        storeToken(store, 'accessToken', 60)
+
+        when:
+        service.getValidationResponse('accessToken')
+        service.getValidationResponse('accessToken')
+
+        then:
+        2 * store.readAuthentication('accessToken', _)
+    }
+
+    def 'the max age of a response is bounded by the lifetime of the token'() {
+        given:
+        long now = System.currentTimeMillis()
+
+        expect:
+        new ValidationResponse(new byte[0], new Date(now + 10500)).getMaxAge(now, 60) == 10
+        new ValidationResponse(new byte[0], new Date(now + 600000)).getMaxAge(now, 60) == 60
+        new ValidationResponse(new byte[0], new Date(now - 1000)).getMaxAge(now, 60) == 0
+        new ValidationResponse(new byte[0], null).getMaxAge(now, 60) == 60
+    }
+
+    def 'the status of a token is checked without exception'() {
+        given:
+        OsiamTokenStore store = new OsiamTokenStore()
+        TokenValidationService service = cachingService(store)
+        storeToken(store, 'valid', 60)
+        storeToken(store, 'revoked', 60)
+        store.removeAccessToken('revoked')
+        storeToken(store, 'expired', -1)
+
+        expect:
+        service.check('valid').status == TokenValidationResult.Status.VALID
+        service.check('valid').response != null
+        service.check('revoked').status == TokenValidationResult.Status.REVOKED
+        service.check('expired').status == TokenValidationResult.Status.EXPIRED
+        service.check('expired').status == TokenValidationResult.Status.UNKNOWN
+        service.check('unknown').status == TokenValidationResult.Status.UNKNOWN
+    }
+
+    private static AccessToken describedToken(ValidationResponse response) {
+        new ObjectMapper().readValue(response.body, AccessToken)
+    }
+
+    private static TokenValidationService cachingService(OsiamTokenStore store) {
+        TokenValidationService service = new TokenValidationService(tokenStore: store, cacheSize: 100,
+                maxAgeInSeconds: 60)
+        service.createCache()
+        service
+    }
+
+    private static DefaultOAuth2AccessToken storeToken(OsiamTokenStore store, String token, int validityInSeconds) {
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(token)
+        accessToken.expiration = new Date(System.currentTimeMillis() + validityInSeconds * 1000)
+        store.storeAccessToken(accessToken, new OAuth2Authentication(
+                new DefaultAuthorizationRequest('clientId', ['GET']), null))
+        accessToken
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.osiam.auth.token
+
+import javax.servlet.ServletOutputStream
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import org.osiam.client.oauth.AccessToken
+import org.osiam.client.oauth.Scope
+import org.springframework.security.authentication.InsufficientAuthenticationException
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException
+import org.springframework.security.web.AuthenticationEntryPoint
+
+import com.fasterxml.jackson.databind.ObjectMapper
+
+import spock.lang.Specification
+
+class TokenValidationServletSpec extends Specification {
+
+    TokenValidationService tokenValidationService = Mock()
+    AuthenticationEntryPoint entryPoint = Mock()
+    TokenValidationServlet servlet = new TokenValidationServlet()
+
+    HttpServletRequest request = Mock()
+    HttpServletResponse response = Mock()
+    ByteArrayOutputStream body = new ByteArrayOutputStream()
+
+    def setup() {
+        servlet.init(tokenValidationService, entryPoint)
+        response.outputStream >> new ServletOutputStream() {
+            @Override
+            void write(int b) {
+                body.write(b)
+            }
+        }
+    }
+
+    def 'a valid token is written as JSON'() {
+        given:
+        ValidationResponse validationResponse = validationResponse(60)
+        request.getHeaders('Authorization') >> headers('Bearer accessToken')
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        1 * tokenValidationService.getValidationResponse('accessToken') >> validationResponse
+        1 * response.setContentType('application/json;charset=UTF-8')
+        0 * entryPoint._
+        body.toByteArray() == validationResponse.body
+    }
+
+    def 'a valid token may be cached until it expires, but at most for the configured max age'() {
+        given:
+        request.getHeaders('Authorization') >> headers('Bearer accessToken')
+        tokenValidationService.getValidationResponse('accessToken') >> validationResponse(lifetime)
+        tokenValidationService.maxAgeInSeconds >> 60
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        1 * response.setHeader('Cache-Control', { it ==~ /private, max-age=${maxAge}/ })
+        1 * response.setHeader('ETag', { it ==~ /"[0-9a-f]{64}"/ })
+        1 * response.setHeader('Vary', 'Authorization')
+
+        where:
+        lifetime | maxAge
+        600      | 60
+        30       | '(29|30)'
+    }
+
+    def 'a conditional GET request with a matching entity tag is answered with 304'() {
+        given:
+        ValidationResponse validationResponse = validationResponse(60)
+        request.getHeaders('Authorization') >> headers('Bearer accessToken')
+        request.getHeaders('If-None-Match') >> headers('"other", ' + validationResponse.ETag)
+        tokenValidationService.getValidationResponse('accessToken') >> validationResponse
+
+        when:
+        servlet.doGet(request, response)
+
+        then:
+        1 * response.setStatus(HttpServletResponse.SC_NOT_MODIFIED)
+        1 * response.setHeader('ETag', validationResponse.ETag)
+        0 * response.setContentType(_)
+        body.size() == 0
+    }
+
+    def 'a GET request with another entity tag gets the full response'() {
+        given:
+        ValidationResponse validationResponse = validationResponse(60)
+        request.getHeaders('Authorization') >> headers('Bearer accessToken')
+        request.getHeaders('If-None-Match') >> headers('"other"')
+        tokenValidationService.getValidationResponse('accessToken') >> validationResponse
+
+        when:
+        servlet.doGet(request, response)
+
+        then:
+        0 * response.setStatus(_)
+        body.toByteArray() == validationResponse.body
+    }
+
+    def 'a POST request is not conditional'() {
+        given:
+        ValidationResponse validationResponse = validationResponse(60)
+        request.getHeaders('Authorization') >> headers('Bearer accessToken')
+        request.getHeaders('If-None-Match') >> headers(validationResponse.ETag)
+        tokenValidationService.getValidationResponse('accessToken') >> validationResponse
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        0 * response.setStatus(_)
+        body.toByteArray() == validationResponse.body
+    }
+
+    def 'the token is read from the Authorization header like the resource server filter does'() {
+        given:
+        request.getHeaders('Authorization') >> headers('Basic abc', 'bearer   accessToken,other')
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        1 * tokenValidationService.getValidationResponse('accessToken') >> validationResponse(60)
+    }
+
+    def 'a request without bearer token is rejected by the entry point'() {
+        given:
+        request.getHeaders('Authorization') >> headers('Basic abc')
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        0 * tokenValidationService._
+        1 * entryPoint.commence(request, response, { it instanceof InsufficientAuthenticationException })
+        body.size() == 0
+    }
+
+    def 'an invalid token is rejected by the entry point with the reason'() {
+        given:
+        request.getHeaders('Authorization') >> headers('Bearer unknown')
+        InvalidTokenException invalidToken = new InvalidTokenException('Invalid access token: unknown')
+        tokenValidationService.getValidationResponse('unknown') >> { throw invalidToken }
+
+        when:
+        servlet.doPost(request, response)
+
+        then:
+        1 * entryPoint.commence(request, response, {
+            it instanceof InsufficientAuthenticationException && it.message == invalidToken.message &&
+                    it.cause.is(invalidToken)
+        })
+        1 * response.setHeader('Cache-Control', 'no-store')
+        0 * response.setContentType(_)
+        body.size() == 0
+    }
+
+    private static ValidationResponse validationResponse(int lifetimeInSeconds) {
+        AccessToken accessToken = new AccessToken.Builder('accessToken')
+                .setClientId('clientId')
+                .setExpiresAt(new Date(System.currentTimeMillis() + lifetimeInSeconds * 1000))
+                .addScope(new Scope('GET'))
+                .build()
+        new ValidationResponse(new ObjectMapper().writeValueAsBytes(accessToken), accessToken.expiresAt)
+    }
+
+    private static Enumeration<String> headers(String... values) {
+        Collections.enumeration(values as List)
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.security.authorization
+
+import java.lang.management.ManagementFactory
+
+import javax.servlet.http.HttpServletRequest
+
+import org.osiam.resources.scim.User
+import org.springframework.security.access.AccessDecisionVoter
+import org.springframework.security.access.ConfigAttribute
+import org.springframework.security.authentication.TestingAuthenticationToken
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest
+import org.springframework.security.oauth2.provider.OAuth2Authentication
+import org.springframework.security.oauth2.provider.vote.ScopeVoter
+import org.springframework.security.web.FilterInvocation
+import org.springframework.security.web.util.UrlUtils
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import com.sun.management.ThreadMXBean
+
+import groovy.transform.CompileStatic
+
+class ResourcePathMatcherSpec extends Specification {
+
+    static final String USER_ID = 'cef9452e-00a9-4cec-a086-d171374ffbef'
+
+    ResourcePathMatcher matcher = new ResourcePathMatcher('/token/revocation', 2)
+
+    @Unroll
+    def 'the path #servletPath with path info #pathInfo and query #query is #description'() {
+        given:
+        HttpServletRequest request = new FilterInvocation('', servletPath, pathInfo, query, 'POST').httpRequest
+
+        expect:
+        matcher.hasPrefix(request)
+        matcher.isCollectionOrResource(request, USER_ID) == expected
+        matcher.isCollectionOrResource(request, USER_ID) ==
+                matcher.isCollectionOrResource(UrlUtils.buildRequestUrl(request), USER_ID)
+
+        where:
+        servletPath                                    | pathInfo        | query       | expected | description
+        '/token/revocation'                            | null            | null        | true     | 'the collection'
+        '/token/revocation/'                           | null            | null        | true     | 'the collection'
+        '/token/revocation'                            | '/'             | null        | true     | 'the collection'
+        '/token/revocation'                            | null            | 'a=b'       | true     | 'the collection'
+        "/token/revocation/${USER_ID}"                 | null            | null        | true     | 'the own resource'
+        "/token/revocation/${USER_ID}/"                | null            | null        | true     | 'the own resource'
+        '/token/revocation'                            | "/${USER_ID}"   | null        | true     | 'the own resource'
+        "/token/revocation//${USER_ID}"                | null            | null        | true     | 'the own resource'
+        "/token/revocation/${USER_ID}"                 | null            | 'x=y&z'     | true     | 'the own resource'
+        "/token/revocation/${USER_ID}/more"            | null            | null        | true     | 'the own resource'
+        '/token/revocation/someone-else'               | null            | null        | false    | 'another resource'
+        "/token/revocation/${USER_ID}x"                | null            | null        | false    | 'another resource'
+        "/token/revocationX/y/${USER_ID}"              | null            | null        | false    | 'another resource'
+        "/token/revocationX/${USER_ID}"                | null            | null        | true     | 'a resource with the id'
+        '/token/revocation//'                          | null            | null        | false    | 'no resource'
+        "/token/revocation/${USER_ID}"                 | null            | 'a b'       | false    | 'malformed'
+        "/token/revocation/${USER_ID}"                 | null            | 'a=%zz'     | false    | 'malformed'
+        "/token/revocation/${USER_ID} "                | null            | null        | false    | 'malformed'
+        '/token/revocation/%63ef9452e'                 | null            | null        | false    | 'encoded'
+        '/token/revocation/%zz'                        | null            | null        | false    | 'malformed'
+        "/token/revocation/${USER_ID}#fragment"        | null            | null        | true     | 'a fragment'
+        "/token/revocation/a b/${USER_ID}"             | null            | null        | false    | 'malformed'
+    }
+
+    def 'a resource path never matches if there is no user'() {
+        given:
+        HttpServletRequest request = new FilterInvocation("/token/revocation/${USER_ID}" as String, 'POST').httpRequest
+
+        expect:
+        !matcher.isCollectionOrResource(request, null)
+        matcher.isCollectionOrResource(new FilterInvocation('/token/revocation', 'POST').httpRequest, null)
+    }
+
+    @Unroll
+    def 'the path #servletPath doesn\'t start with the prefix'() {
+        expect:
+        !matcher.hasPrefix(new FilterInvocation(servletPath, 'POST').httpRequest)
+
+        where:
+        servletPath << ['/', '/token', '/token/revocatio', '/Client/token/revocation', '//token/revocation']
+    }
+
+    def 'voting on the revocation of the own tokens doesn\'t allocate memory'() {
+        given:
+        ScopeRegistry scopeRegistry = new ScopeRegistry()
+        MeScopeAccessDecisionVoter voter = new MeScopeAccessDecisionVoter(new ScopeVoter(), scopeRegistry)
+        User user = new User.Builder('marissa').setId(USER_ID).build()
+        OAuth2Authentication authentication = new OAuth2Authentication(
+                new DefaultAuthorizationRequest('example-client', ['ME']),
+                new TestingAuthenticationToken(user, null))
+        FilterInvocation filterInvocation = new FilterInvocation("/token/revocation/${USER_ID}" as String, 'POST')
+        List<ConfigAttribute> attributes = [ScopeRegistry.SCOPE_DYNAMIC]
+        int decisions = 100000
+        vote(voter, authentication, filterInvocation, attributes, decisions)
+
+        when:
+        long allocatedBytes = vote(voter, authentication, filterInvocation, attributes, decisions)
+
+        then:
+        allocatedBytes < decisions
+    }
+
+    @CompileStatic
+    private static long vote(MeScopeAccessDecisionVoter voter, OAuth2Authentication authentication,
+            FilterInvocation filterInvocation, List<ConfigAttribute> attributes, int decisions) {
+        ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.threadMXBean
+        long threadId = Thread.currentThread().id
+        long before = threadMXBean.getThreadAllocatedBytes(threadId)
+        for (int i = 0; i < decisions; i++) {
+            if (voter.vote(authentication, filterInvocation, attributes) != AccessDecisionVoter.ACCESS_GRANTED) {
+                throw new IllegalStateException('Wrong decision')
+            }
+        }
+        threadMXBean.getThreadAllocatedBytes(threadId) - before
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.security.authorization
+
+import javax.servlet.FilterChain
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import org.springframework.context.support.GenericXmlApplicationContext
+import org.springframework.security.access.AccessDeniedException
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest
+import org.springframework.security.oauth2.provider.OAuth2Authentication
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices
+import org.springframework.security.web.FilterChainProxy
+import org.springframework.security.web.access.AccessDeniedHandler
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+/**
+ * Runs requests through the security filter chains of the rest-security.xml.
+ */
+class RestSecuritySpec extends Specification {
+
+    ResourceServerTokenServices tokenServices = Mock()
+    AccessDeniedHandler accessDeniedHandler = Mock()
+    FilterChain chain = Mock()
+    GenericXmlApplicationContext context = new GenericXmlApplicationContext()
+    FilterChainProxy securityFilterChain
+
+    def setup() {
+        context.beanFactory.registerSingleton('tokenServices', tokenServices)
+        context.beanFactory.registerSingleton('oauthAccessDeniedHandler', accessDeniedHandler)
+        context.load('file:src/main/webapp/WEB-INF/rest-security.xml')
+        context.refresh()
+        securityFilterChain = context.getBean('springSecurityFilterChain', FilterChainProxy)
+    }
+
+    def cleanup() {
+        context.close()
+    }
+
+    @Unroll
+    def 'a token with the scopes #scopes gets no access to #path'() {
+        given:
+        tokenServices.loadAuthentication('token') >> authentication(scopes)
+
+        when:
+        securityFilterChain.doFilter(request(path), Mock(HttpServletResponse), chain)
+
+        then:
+        1 * accessDeniedHandler.handle(_, _, _ as AccessDeniedException)
+        0 * chain.doFilter(_, _)
+
+        where:
+        path             | scopes
+        '/token/events'  | ['GET']
+        '/token/events'  | ['GET', 'POST', 'PUT', 'PATCH', 'DELETE']
+        '/token/revoked' | ['GET']
+    }
+
+    @Unroll
+    def 'a token with the ADMIN scope gets access to #path'() {
+        given:
+        tokenServices.loadAuthentication('token') >> authentication(['ADMIN'])
+
+        when:
+        securityFilterChain.doFilter(request(path), Mock(HttpServletResponse), chain)
+
+        then:
+        0 * accessDeniedHandler.handle(_, _, _)
+        1 * chain.doFilter(_, _)
+
+        where:
+        path << ['/token/events', '/token/revoked']
+    }
+
+    private HttpServletRequest request(String path) {
+        HttpServletRequest request = Mock()
+        request.method >> 'GET'
+        request.servletPath >> path
+        request.requestURI >> path
+        request.getHeaders('Authorization') >> Collections.enumeration(['Bearer token'])
+        request.getHeader('Authorization') >> 'Bearer token'
+        request
+    }
+
+    private static OAuth2Authentication authentication(List<String> scopes) {
+        DefaultAuthorizationRequest authorizationRequest = new DefaultAuthorizationRequest('client', scopes)
+        authorizationRequest.approved = true
+        new OAuth2Authentication(authorizationRequest, null)
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 tarent AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.osiam.security.authorization
+
+import java.lang.management.ManagementFactory
+
+import org.springframework.security.access.AccessDecisionVoter
+import org.springframework.security.access.ConfigAttribute
+import org.springframework.security.access.SecurityConfig
+import org.springframework.security.authentication.TestingAuthenticationToken
+import org.springframework.security.core.Authentication
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest
+import org.springframework.security.oauth2.provider.OAuth2Authentication
+import org.springframework.security.oauth2.provider.vote.ScopeVoter
+import org.springframework.security.web.FilterInvocation
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import com.sun.management.ThreadMXBean
+
+import groovy.transform.CompileStatic
+
+class ScopeRegistrySpec extends Specification {
+
+    ScopeRegistry scopeRegistry = new ScopeRegistry()
+    ScopeVoter scopeVoter = new ScopeVoter(throwException: false)
+
+    def 'every registered scope gets its own bit and is registered only once'() {
+        when:
+        long admin = scopeRegistry.register('ADMIN')
+        long get = scopeRegistry.register('GET')
+
+        then:
+        Long.bitCount(admin) == 1
+        Long.bitCount(get) == 1
+        admin != get
+        scopeRegistry.register('admin') == admin
+        scopeRegistry.getBit('Admin') == admin
+        scopeRegistry.getBit('POST') == 0
+    }
+
+    def 'no more than 64 scopes can be registered'() {
+        given:
+        (1..64).each { scopeRegistry.register("SCOPE${it}") }
+
+        when:
+        scopeRegistry.register('ONE_TOO_MANY')
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def 'the mask of a token contains only the registered scopes'() {
+        given:
+        long admin = scopeRegistry.register('ADMIN')
+        long get = scopeRegistry.register('GET')
+        scopeRegistry.register('POST')
+
+        expect:
+        scopeRegistry.getScopes(authentication('get', 'Admin', 'unknown')) == (admin | get)
+    }
+
+    def 'a scope registered later is part of the masks computed before'() {
+        given:
+        OAuth2Authentication authentication = authentication('GET', 'ME')
+        scopeRegistry.register('GET')
+        scopeRegistry.getScopes(authentication)
+
+        when:
+        long me = scopeRegistry.register('ME')
+
+        then:
+        scopeRegistry.hasScope(authentication, me)
+    }
+
+    @Unroll
+    def 'the voters decide like the ScopeVoter for a token with scopes #scopes and HTTP method #method'() {
+        given:
+        OAuth2Authentication authentication = authentication(scopes as String[])
+        FilterInvocation filterInvocation = new FilterInvocation('/Client/example-client', method)
+        List<ConfigAttribute> attributes = [ScopeRegistry.SCOPE_DYNAMIC]
+        AccessDecisionVoter<Object> adminVoter = new AdminScopeAccessDecisionVoter(scopeVoter, scopeRegistry)
+        AccessDecisionVoter<Object> methodVoter = new DynamicHTTPMethodScopeEnhancer(scopeVoter, scopeRegistry)
+
+        expect:
+        adminVoter.vote(authentication, filterInvocation, attributes) ==
+                scopeVoter.vote(authentication, filterInvocation, [new SecurityConfig('SCOPE_ADMIN')])
+        methodVoter.vote(authentication, filterInvocation, attributes) ==
+                scopeVoter.vote(authentication, filterInvocation, [new SecurityConfig("SCOPE_${method}" as String)])
+
+        where:
+        scopes             | method
+        ['GET']            | 'GET'
+        ['GET']            | 'POST'
+        ['get', 'post']    | 'POST'
+        ['ADMIN']          | 'DELETE'
+        []                 | 'GET'
+        ['GET', 'UNKNOWN'] | 'PROPFIND'
+        ['PROPFIND']       | 'PROPFIND'
+    }
+
+    def 'the voters abstain if the authentication is not an OAuth2 authentication'() {
+        given:
+        Authentication authentication = new TestingAuthenticationToken('marissa', 'koala')
+        FilterInvocation filterInvocation = new FilterInvocation('/Client/example-client', 'GET')
+
+        expect:
+        new AdminScopeAccessDecisionVoter(scopeVoter, scopeRegistry).vote(authentication, filterInvocation,
+                [ScopeRegistry.SCOPE_DYNAMIC]) == AccessDecisionVoter.ACCESS_ABSTAIN
+        new DynamicHTTPMethodScopeEnhancer(scopeVoter, scopeRegistry).vote(authentication, filterInvocation,
+                [ScopeRegistry.SCOPE_DYNAMIC]) == AccessDecisionVoter.ACCESS_ABSTAIN
+    }
+
+    def 'voting on a request doesn\'t allocate memory'() {
+        given:
+        OAuth2Authentication authentication = authentication('GET', 'POST')
+        FilterInvocation filterInvocation = new FilterInvocation('/Client/example-client', 'GET')
+        List<ConfigAttribute> attributes = [ScopeRegistry.SCOPE_DYNAMIC]
+        List<AccessDecisionVoter<Object>> voters = [
+                new AdminScopeAccessDecisionVoter(scopeVoter, scopeRegistry),
+                new DynamicHTTPMethodScopeEnhancer(scopeVoter, scopeRegistry)]
+        int decisions = 100000
+        vote(voters, authentication, filterInvocation, attributes, decisions)
+
+        when:
+        long allocatedBytes = vote(voters, authentication, filterInvocation, attributes, decisions)
+
+        then:
+        allocatedBytes < decisions
+    }
+
+    @CompileStatic
+    private static long vote(List<AccessDecisionVoter<Object>> voters, Authentication authentication,
+            FilterInvocation filterInvocation, List<ConfigAttribute> attributes, int decisions) {
+        ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.threadMXBean
+        long threadId = Thread.currentThread().id
+        AccessDecisionVoter<Object> adminVoter = voters.get(0)
+        AccessDecisionVoter<Object> methodVoter = voters.get(1)
+        long before = threadMXBean.getThreadAllocatedBytes(threadId)
+        for (int i = 0; i < decisions; i++) {
+            if (adminVoter.vote(authentication, filterInvocation, attributes) != AccessDecisionVoter.ACCESS_DENIED
+                    || methodVoter.vote(authentication, filterInvocation, attributes) !=
+                    AccessDecisionVoter.ACCESS_GRANTED) {
+                throw new IllegalStateException('Wrong decision')
+            }
+        }
+        threadMXBean.getThreadAllocatedBytes(threadId) - before
+    }
+
+    private static OAuth2Authentication authentication(String... scopes) {
+        new OAuth2Authentication(new DefaultAuthorizationRequest('example-client', scopes as List), null)
+    }
+}
@@ -24,45 +24,73 @@
 package org.osiam.security.controller
 
 import org.osiam.auth.login.ResourceServerConnector
+import org.osiam.auth.token.BatchTokenValidator
+import org.osiam.auth.token.OsiamTokenStore
+import org.osiam.auth.token.RevocationFilter
+import org.osiam.auth.token.RevocationLog
+import org.osiam.auth.token.TokenValidationService
 import org.osiam.client.oauth.AccessToken;
 import org.osiam.client.oauth.Scope;
 import org.osiam.resources.scim.User;
-import org.springframework.security.core.Authentication
+import javax.servlet.ServletInputStream
+import javax.servlet.ServletOutputStream
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken
+import org.springframework.security.core.context.SecurityContextHolder
 import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken
 import org.springframework.security.oauth2.common.OAuth2AccessToken
-import org.springframework.security.oauth2.provider.AuthorizationRequest
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest
 import org.springframework.security.oauth2.provider.OAuth2Authentication
+import org.springframework.security.oauth2.provider.authentication.OAuth2AuthenticationDetails
 import org.springframework.security.oauth2.provider.token.DefaultTokenServices
+import org.springframework.web.context.request.async.DeferredResult
+
+import com.fasterxml.jackson.databind.ObjectMapper
+
 import spock.lang.Specification
 
 class TokenControllerSpec extends Specification {
 
     DefaultTokenServices defaultTokenServicesMock = Mock()
     ResourceServerConnector resourceServerConnectorMock = Mock()
+    OsiamTokenStore tokenStoreMock = Mock()
+    TokenValidationService tokenValidationService = new TokenValidationService(tokenStore: tokenStoreMock,
+        cacheSize: 10, maxAgeInSeconds: 60)
+    BatchTokenValidator batchTokenValidatorMock = Mock()
+    RevocationFilter revocationFilterMock = Mock()
+    RevocationLog revocationLog = new RevocationLog(tokenStore: Mock(OsiamTokenStore), size: 100)
     TokenController tokenController = new TokenController(tokenServices: defaultTokenServicesMock,
-        resourceServerConnector: resourceServerConnectorMock)
+        resourceServerConnector: resourceServerConnectorMock, tokenValidationService: tokenValidationService,
+        batchTokenValidator: batchTokenValidatorMock,
+        revocationLog: revocationLog, revocationFilter: revocationFilterMock, maxWaitInSeconds: 1)
+
+    def setup() {
+        tokenValidationService.createCache()
+    }
+
+    def cleanup() {
+        SecurityContextHolder.clearContext()
+    }
 
     def 'The TokenController should return an accesstoken with all attributes set'() {
         given:
-        OAuth2Authentication auth = Mock()
-        OAuth2AccessToken accessToken = Mock()
-        AuthorizationRequest authReq = Mock()
-        Authentication authentication = Mock()
         User user = new User.Builder('username').setId('userId').build()
-        Date date = new Date()
+        OAuth2Authentication auth = new OAuth2Authentication(new DefaultAuthorizationRequest('clientId', ['GET']),
+                new UsernamePasswordAuthenticationToken(user, null, []))
+        Date date = new Date(System.currentTimeMillis() + 60000)
+        ByteArrayOutputStream body = new ByteArrayOutputStream()
 
         when:
-        AccessToken result = tokenController.validateToken('accessToken')
+        tokenController.validateToken('Bearer accessToken', response(body))
+        AccessToken result = new ObjectMapper().readValue(body.toByteArray(), AccessToken)
 
         then:
-        1 * defaultTokenServicesMock.loadAuthentication('accessToken') >> auth
-        1 * defaultTokenServicesMock.getAccessToken(auth) >> accessToken
-        1 * auth.authorizationRequest >> authReq
-        1 * authReq.clientId >> 'clientId'
-        1 * auth.userAuthentication >> authentication
-        2 * auth.principal >> user
-        1 * authReq.scope >> ['GET']
-        1 * accessToken.expiration >> date
+        tokenStoreMock.readAccessToken('accessToken', _) >>
+                new DefaultOAuth2AccessToken('accessToken').with { expiration = date; it }
+        tokenStoreMock.readAuthentication('accessToken', _) >> auth
         result.clientId == 'clientId'
         result.userId == 'userId'
         result.userName == 'username'
@@ -70,6 +98,111 @@ class TokenControllerSpec extends Specification {
         result.expiresAt == date
     }
 
+    def 'a token validated before is answered from the cache of the token validation service'() {
+        given:
+        OAuth2Authentication auth = new OAuth2Authentication(new DefaultAuthorizationRequest('clientId', ['GET']),
+                null)
+        ByteArrayOutputStream firstBody = new ByteArrayOutputStream()
+        ByteArrayOutputStream secondBody = new ByteArrayOutputStream()
+        tokenStoreMock.readAccessToken('accessToken', _) >> new DefaultOAuth2AccessToken('accessToken')
+        tokenStoreMock.readAuthentication('accessToken', _) >> auth
+        tokenController.validateToken('Bearer accessToken', response(firstBody))
+
+        when:
+        tokenController.validateToken('Bearer accessToken', response(secondBody))
+
+        then:
+        0 * tokenStoreMock.readAccessToken(*_)
+        0 * tokenStoreMock.readAuthentication(*_)
+        secondBody.toByteArray() == firstBody.toByteArray()
+        new ObjectMapper().readValue(secondBody.toByteArray(), AccessToken).clientId == 'clientId'
+    }
+
+    def 'the authentication loaded by the resource server filter is reused for the validation'() {
+        given:
+        OAuth2Authentication auth = new OAuth2Authentication(new DefaultAuthorizationRequest('clientId', ['GET']),
+                null)
+        auth.details = new OAuth2AuthenticationDetails(request('accessToken'))
+        SecurityContextHolder.context.authentication = auth
+        Date date = new Date(System.currentTimeMillis() + 60000)
+        ByteArrayOutputStream body = new ByteArrayOutputStream()
+
+        when:
+        tokenController.validateToken('Bearer accessToken', response(body))
+        AccessToken result = new ObjectMapper().readValue(body.toByteArray(), AccessToken)
+
+        then:
+        1 * tokenStoreMock.readAccessToken('accessToken', _) >>
+                new DefaultOAuth2AccessToken('accessToken').with { expiration = date; it }
+        0 * tokenStoreMock.readAuthentication(*_)
+        result.clientId == 'clientId'
+        result.scopes.contains(new Scope('GET'))
+        result.expiresAt == date
+    }
+
+    def 'the authentication in the security context is not used for another token'() {
+        given:
+        OAuth2Authentication otherAuth = new OAuth2Authentication(new DefaultAuthorizationRequest('other', ['GET']),
+                null)
+        otherAuth.details = new OAuth2AuthenticationDetails(request('otherToken'))
+        SecurityContextHolder.context.authentication = otherAuth
+        ByteArrayOutputStream body = new ByteArrayOutputStream()
+
+        when:
+        tokenController.validateToken('Bearer accessToken', response(body))
+
+        then:
+        1 * tokenStoreMock.readAccessToken('accessToken', _) >> new DefaultOAuth2AccessToken('accessToken')
+        1 * tokenStoreMock.readAuthentication('accessToken', _) >>
+                new OAuth2Authentication(new DefaultAuthorizationRequest('clientId', ['GET']), null)
+        new ObjectMapper().readValue(body.toByteArray(), AccessToken).clientId == 'clientId'
+    }
+
+    def 'a token that was revoked after the authentication is rejected'() {
+        given:
+        OAuth2Authentication auth = new OAuth2Authentication(new DefaultAuthorizationRequest('clientId', ['GET']),
+                null)
+        auth.details = new OAuth2AuthenticationDetails(request('accessToken'))
+        SecurityContextHolder.context.authentication = auth
+        tokenStoreMock.readAccessToken('accessToken', _) >> null
+
+        when:
+        tokenController.validateToken('Bearer accessToken', response(new ByteArrayOutputStream()))
+
+        then:
+        thrown(InvalidTokenException)
+    }
+
+    def 'a revoked token is rejected'() {
+        when:
+        tokenController.validateToken('Bearer accessToken', response(new ByteArrayOutputStream()))
+
+        then:
+        tokenStoreMock.readAccessToken('accessToken', _) >> null
+        tokenStoreMock.isRevoked(OsiamTokenStore.hash('accessToken')) >> true
+        InvalidTokenException e = thrown()
+        e.message == 'Invalid access token: accessToken'
+    }
+
+    def 'a batch of tokens is validated and the results are streamed to the response'() {
+        given:
+        HttpServletRequest request = Mock()
+        HttpServletResponse response = Mock()
+        ServletInputStream inputStream = Mock()
+        ServletOutputStream outputStream = Mock()
+        request.inputStream >> inputStream
+        response.outputStream >> outputStream
+
+        when:
+        tokenController.validateTokens(request, response)
+
+        then:
+        1 * batchTokenValidatorMock.readTokens(inputStream) >> ['token1', 'token2']
+        1 * response.setContentType('application/json;charset=UTF-8')
+        1 * response.setHeader('Cache-Control', 'no-store')
+        1 * batchTokenValidatorMock.writeResults(['token1', 'token2'], outputStream)
+    }
+
     def 'OSNG-444: A request to revoke a token should be delegated to the TokenService'() {
         when:
         tokenController.revokeToken('prefix accessToken')
@@ -83,6 +216,7 @@ class TokenControllerSpec extends Specification {
         def userId = "User Id"
         def userName = "User name"
         User user = new User.Builder(userName).setId(userId).build()
+        String cursor = revocationLog.read(null, 10).cursor
         OAuth2AccessToken token1 = new DefaultOAuth2AccessToken('token1')
         OAuth2AccessToken token2 = new DefaultOAuth2AccessToken('token2')
         OAuth2AccessToken token3 = new DefaultOAuth2AccessToken('token3')
@@ -96,6 +230,8 @@ class TokenControllerSpec extends Specification {
         1 * defaultTokenServicesMock.revokeToken(token1.getValue())
         1 * defaultTokenServicesMock.revokeToken(token2.getValue())
         1 * defaultTokenServicesMock.revokeToken(token3.getValue())
+        revocationLog.read(cursor, 10).events*.value == [userId]
+        revocationLog.read(cursor, 10).events*.type == ['user']
     }
 
 
@@ -113,4 +249,92 @@ class TokenControllerSpec extends Specification {
         1 * defaultTokenServicesMock.findTokensByUserName(user.toString()) >> []
         0 * defaultTokenServicesMock.revokeToken(_)
     }
+
+    def 'revocations after the cursor are returned right away'() {
+        given:
+        String cursor = revocationLog.read(null, 10).cursor
+        revocationLog.append(RevocationLog.Type.TOKEN, 'hash')
+
+        when:
+        DeferredResult<RevocationLog.Events> result = tokenController.getRevocations(cursor, 30)
+
+        then:
+        result.hasResult()
+        result.result.events*.value == ['hash']
+    }
+
+    def 'without cursor the current cursor is returned right away'() {
+        given:
+        revocationLog.append(RevocationLog.Type.TOKEN, 'hash')
+
+        when:
+        DeferredResult<RevocationLog.Events> result = tokenController.getRevocations(null, 30)
+
+        then:
+        result.hasResult()
+        result.result.events.empty
+        revocationLog.read(result.result.cursor, 10).events.empty
+    }
+
+    def 'a long poll is answered with the next revocation'() {
+        given:
+        String cursor = revocationLog.read(null, 10).cursor
+
+        when:
+        DeferredResult<RevocationLog.Events> result = tokenController.getRevocations(cursor, 30)
+
+        then:
+        !result.hasResult()
+        revocationLog.waitingConsumers == 1
+
+        when:
+        revocationLog.append(RevocationLog.Type.CLIENT, 'clientId')
+
+        then:
+        result.hasResult()
+        result.result.events*.type == ['client']
+        revocationLog.waitingConsumers == 0
+    }
+
+    def 'a long poll without wait time is answered right away'() {
+        given:
+        String cursor = revocationLog.read(null, 10).cursor
+
+        when:
+        DeferredResult<RevocationLog.Events> result = tokenController.getRevocations(cursor, 0)
+
+        then:
+        result.hasResult()
+        result.result.events.empty
+        result.result.cursor == cursor
+    }
+
+    def 'the revoked tokens are read from the revocation filter'() {
+        given:
+        RevocationFilter.Update update = new RevocationFilter.Update('version', [])
+
+        when:
+        RevocationFilter.Update result = tokenController.getRevokedTokens('version')
+
+        then:
+        1 * revocationFilterMock.read('version') >> update
+        result == update
+    }
+
+    private HttpServletResponse response(ByteArrayOutputStream body) {
+        HttpServletResponse response = Mock()
+        response.outputStream >> new ServletOutputStream() {
+            @Override
+            void write(int b) {
+                body.write(b)
+            }
+        }
+        response
+    }
+
+    private HttpServletRequest request(String token) {
+        HttpServletRequest request = Mock()
+        request.getAttribute(OAuth2AuthenticationDetails.ACCESS_TOKEN_VALUE) >> token
+        request
+    }
 }